@@ -32,8 +32,13 @@ import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 
+import de.m_entrup.EFTEMj_ESI.driftcorrection.CrossCorrelation;
+import de.m_entrup.EFTEMj_ESI.driftcorrection.FFTCrossCorrelation;
+import de.m_entrup.EFTEMj_ESI.driftcorrection.PyramidCrossCorrelation;
+import de.m_entrup.EFTEMj_ESI.map.FusedPostFitCalculation;
 import de.m_entrup.EFTEMj_ESI.map.MapCalculation;
 import de.m_entrup.EFTEMj_ESI.map.PowerLawFitCalculation;
+import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
 import de.m_entrup.EFTEMj_ESI.resources.PluginMessages;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -78,10 +83,51 @@ public class DatasetAPI {
 	 * post-edge images.
 	 */
 	private float edgeELoss;
+	/**
+	 * If <code>true</code> the drift is calculated by the
+	 * {@link FFTCrossCorrelation}, otherwise by the {@link CrossCorrelation}
+	 * that sums over the ROI for each shift.
+	 */
+	private boolean fftCorrelation = true;
+	/**
+	 * The value of pixels that have no source after the drift correction, e.g.
+	 * 0 or {@link Float#NaN}.
+	 */
+	private float fillValue = 0;
+	/**
+	 * If <code>true</code> the {@link FusedPostFitCalculation} is used after
+	 * the {@link PowerLawFitCalculation}.
+	 */
+	private boolean fusedPostFit = false;
 	/**
 	 * The {@link ImagePlus} that is selected for further calculations.
 	 */
 	private final ImagePlus imagePlus;
+	/**
+	 * If <code>true</code> a binned preview is shown before the
+	 * {@link PowerLawFitCalculation} starts.
+	 */
+	private boolean progressivePreview = false;
+	/**
+	 * If <code>true</code> the {@link PyramidCrossCorrelation} is used, if the
+	 * ROI and delta are large enough.
+	 */
+	private boolean pyramidSearch = false;
+	/**
+	 * If <code>true</code> the spectra are copied to {@link SpectrumBlock}s
+	 * before they are fitted.
+	 */
+	private boolean spectrumBlocks = true;
+	/**
+	 * If <code>true</code> the drift is detected and corrected with sub-pixel
+	 * accuracy, otherwise the images are shifted by whole pixels.
+	 */
+	private boolean subPixelShift = true;
+	/**
+	 * If <code>true</code> the fit of each pixel starts with the result of the
+	 * previous pixel.
+	 */
+	private boolean warmStart = false;
 
 	/**
 	 * Creates a new {@link DatasetAPI} object that will handle the access to
@@ -142,7 +188,7 @@ public class DatasetAPI {
 		fp.setRoi(roiMod);
 		array_croppedImages[referenceIndex - 1] = (FloatProcessor) fp.crop();
 		datasetDriftInput = new DatasetDriftInput(array_croppedImages, roi, referenceIndex, delta);
-		datasetDriftResult = new DatasetDriftResult();
+		datasetDriftResult = new DatasetDriftResult(this);
 		return true;
 	}
 
@@ -169,7 +215,7 @@ public class DatasetAPI {
 		Arrays.sort(array_EFTEMImages);
 		try {
 			datasetMapInput = new DatasetMapInput(array_EFTEMImages, edgeEnergyLoss, epsilon);
-			datasetMapResult = new DatasetMapResult();
+			datasetMapResult = new DatasetMapResult(this);
 		} catch (final Exception e) {
 			datasetMapInput = null;
 			datasetMapResult = null;
@@ -382,6 +428,23 @@ public class DatasetAPI {
 		return datasetMapInput.array_InputImages;
 	}
 
+	/**
+	 * {@link DatasetMapInput}
+	 *
+	 * @return The {@link EnergyKernel} of the sorted array of
+	 *         {@link EFTEMImage}s.
+	 */
+	public EnergyKernel getEnergyKernel() {
+		return datasetMapInput.energyKernel;
+	}
+
+	/**
+	 * @return The exit condition for the MLE calculation.
+	 */
+	public float getEpsilon() {
+		return datasetMapInput.epsilon;
+	}
+
 	/**
 	 * {@link DatasetStack}
 	 *
@@ -429,6 +492,36 @@ public class DatasetAPI {
 		return datasetMapResult.errorMap;
 	}
 
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @return The value of pixels that have no source after the drift
+	 *         correction.
+	 */
+	public float getFillValue() {
+		return fillValue;
+	}
+
+	/**
+	 * {@link DatasetMapResult}
+	 *
+	 * @return The number of iterations of the MLE at each pixel, counted by
+	 *         the {@link PowerLawFitCalculation}.
+	 */
+	public float[] getIterationMap() {
+		return datasetMapResult.iterationMap;
+	}
+
+	/**
+	 * {@link DatasetMapInput}
+	 *
+	 * @return The mask of the pixels that are fitted or <code>null</code> if
+	 *         all pixels are fitted.
+	 */
+	public PixelMask getMask() {
+		return datasetMapInput.mask;
+	}
+
 	/**
 	 * {@link DatasetAPI}
 	 *
@@ -525,6 +618,55 @@ public class DatasetAPI {
 		return label;
 	}
 
+	/**
+	 * {@link DatasetDriftInput}
+	 *
+	 * @return The mean value of the whole cropped reference image.
+	 */
+	public double getReferenceMean() {
+		return datasetDriftInput.referenceMean;
+	}
+
+	/**
+	 * {@link DatasetDriftInput}<br>
+	 * The value is read from a summed-area table that is created once for each
+	 * drift correction.
+	 *
+	 * @param x
+	 *            The left border of the window at the cropped reference image.
+	 * @param y
+	 *            The top border of the window at the cropped reference image.
+	 * @param width
+	 *            The width of the window.
+	 * @param height
+	 *            The height of the window.
+	 * @return The sum of the squares of all values minus
+	 *         <code>getReferenceMean()</code> inside the window.
+	 */
+	public double getReferenceSquareSum(final int x, final int y, final int width, final int height) {
+		return datasetDriftInput.windowSum(datasetDriftInput.referenceSquareSumTable, x, y, width, height);
+	}
+
+	/**
+	 * {@link DatasetDriftInput}<br>
+	 * The value is read from a summed-area table that is created once for each
+	 * drift correction.
+	 *
+	 * @param x
+	 *            The left border of the window at the cropped reference image.
+	 * @param y
+	 *            The top border of the window at the cropped reference image.
+	 * @param width
+	 *            The width of the window.
+	 * @param height
+	 *            The height of the window.
+	 * @return The sum of all values minus <code>getReferenceMean()</code>
+	 *         inside the window.
+	 */
+	public double getReferenceSum(final int x, final int y, final int width, final int height) {
+		return datasetDriftInput.windowSum(datasetDriftInput.referenceSumTable, x, y, width, height);
+	}
+
 	/**
 	 * {@link DatasetMapResult}
 	 *
@@ -587,6 +729,26 @@ public class DatasetAPI {
 		return datasetMapResult.array_Sigma2;
 	}
 
+	/**
+	 * {@link DatasetMapResult}<br>
+	 * The sigma² image is created if it does not exist. All calculations can
+	 * write directly to the returned array.
+	 *
+	 * @param imageIndex
+	 *            The position of the post-edge image at the sorted array of
+	 *            all images (starting at 0).
+	 * @return The pixels of the sigma² image.
+	 */
+	public synchronized float[] getSigma2Pixels(final int imageIndex) {
+		if (datasetMapResult.array_Sigma2[imageIndex - datasetMapInput.edgeIndex] == null) {
+			final EFTEMImage eftemImage = datasetMapInput.array_InputImages[imageIndex];
+			final String label = PluginMessages.getString("Label.Sigma2Image") + "[" + eftemImage.getELoss() + "eV]";
+			datasetMapResult.array_Sigma2[imageIndex - datasetMapInput.edgeIndex] = new EFTEMImage(
+					eftemImage.getELoss(), label, new float[getWidth() * getHeight()], eftemImage.width);
+		}
+		return datasetMapResult.array_Sigma2[imageIndex - datasetMapInput.edgeIndex].getPixels();
+	}
+
 	/**
 	 * {@link DatasetStack}
 	 *
@@ -608,6 +770,26 @@ public class DatasetAPI {
 		return datasetMapResult.array_SNR;
 	}
 
+	/**
+	 * {@link DatasetMapResult}<br>
+	 * The SNR image is created if it does not exist. All calculations can write
+	 * directly to the returned array.
+	 *
+	 * @param imageIndex
+	 *            The position of the post-edge image at the sorted array of
+	 *            all images (starting at 0).
+	 * @return The pixels of the SNR image.
+	 */
+	public synchronized float[] getSNRPixels(final int imageIndex) {
+		if (datasetMapResult.array_SNR[imageIndex - datasetMapInput.edgeIndex] == null) {
+			final EFTEMImage eftemImage = datasetMapInput.array_InputImages[imageIndex];
+			final String label = PluginMessages.getString("Label.SnrImage") + "[" + eftemImage.getELoss() + "eV]";
+			datasetMapResult.array_SNR[imageIndex - datasetMapInput.edgeIndex] = new EFTEMImage(eftemImage.getELoss(),
+					label, new float[getWidth() * getHeight()], eftemImage.width);
+		}
+		return datasetMapResult.array_SNR[imageIndex - datasetMapInput.edgeIndex].getPixels();
+	}
+
 	/**
 	 * {@link DatasetStack}
 	 *
@@ -798,13 +980,7 @@ public class DatasetAPI {
 	 *            The sigma² values of an image row.
 	 */
 	public synchronized void saveSigma2(final int imageIndex, final int index, final float[] sigma2) {
-		final EFTEMImage eftemImage = datasetMapInput.array_InputImages[imageIndex];
-		final String label = PluginMessages.getString("Label.Sigma2Image") + "[" + eftemImage.getELoss() + "eV]";
-		if (datasetMapResult.array_Sigma2[imageIndex - datasetMapInput.edgeIndex] == null) {
-			datasetMapResult.array_Sigma2[imageIndex - datasetMapInput.edgeIndex] = new EFTEMImage(
-					eftemImage.getELoss(), label, new float[getWidth() * getHeight()], eftemImage.width);
-		}
-		final float[] pixels = datasetMapResult.array_Sigma2[imageIndex - datasetMapInput.edgeIndex].getPixels();
+		final float[] pixels = getSigma2Pixels(imageIndex);
 		for (int i = 0; i < sigma2.length; i++) {
 			pixels[index + i] = sigma2[i];
 		}
@@ -820,18 +996,80 @@ public class DatasetAPI {
 	 *            The SNR values of an image row.
 	 */
 	public synchronized void saveSNR(final int imageIndex, final int index, final float[] snr) {
-		final EFTEMImage eftemImage = datasetMapInput.array_InputImages[imageIndex];
-		final String label = PluginMessages.getString("Label.SnrImage") + "[" + eftemImage.getELoss() + "eV]";
-		if (datasetMapResult.array_SNR[imageIndex - datasetMapInput.edgeIndex] == null) {
-			datasetMapResult.array_SNR[imageIndex - datasetMapInput.edgeIndex] = new EFTEMImage(eftemImage.getELoss(),
-					label, new float[getWidth() * getHeight()], eftemImage.width);
-		}
-		final float[] pixels = datasetMapResult.array_SNR[imageIndex - datasetMapInput.edgeIndex].getPixels();
+		final float[] pixels = getSNRPixels(imageIndex);
 		for (int i = 0; i < snr.length; i++) {
 			pixels[index + i] = snr[i];
 		}
 	}
 
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @return <code>true</code> if the {@link FFTCrossCorrelation} is used.
+	 */
+	public boolean isFftCorrelation() {
+		return fftCorrelation;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @return <code>true</code> if the {@link FusedPostFitCalculation} is used
+	 *         after the {@link PowerLawFitCalculation}.
+	 */
+	public boolean isFusedPostFit() {
+		return fusedPostFit;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @return <code>true</code> if a binned preview is shown before the
+	 *         {@link PowerLawFitCalculation} starts.
+	 */
+	public boolean isProgressivePreview() {
+		return progressivePreview;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @return <code>true</code> if the coarse-to-fine search is used.
+	 */
+	public boolean isPyramidSearch() {
+		return pyramidSearch;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @return <code>true</code> if the spectra are copied to
+	 *         {@link SpectrumBlock}s before they are fitted.
+	 */
+	public boolean isSpectrumBlocks() {
+		return spectrumBlocks;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @return <code>true</code> if the drift is corrected with sub-pixel
+	 *         accuracy.
+	 */
+	public boolean isSubPixelShift() {
+		return subPixelShift;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @return <code>true</code> if the fit of each pixel starts with the
+	 *         result of the previous pixel.
+	 */
+	public boolean isWarmStart() {
+		return warmStart;
+	}
+
 	/**
 	 * {@link DatasetStack}
 	 *
@@ -845,6 +1083,89 @@ public class DatasetAPI {
 		datasetStack.eLossArray[imageIndex] = eLoss;
 	}
 
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @param useFft
+	 *            <code>true</code> to use the {@link FFTCrossCorrelation},
+	 *            <code>false</code> to use the {@link CrossCorrelation}.
+	 */
+	public void setFftCorrelation(final boolean useFft) {
+		fftCorrelation = useFft;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @param value
+	 *            The value of pixels that have no source after the drift
+	 *            correction, e.g. 0 or {@link Float#NaN}.
+	 */
+	public void setFillValue(final float value) {
+		fillValue = value;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @param useFusedPostFit
+	 *            <code>true</code> to use the {@link FusedPostFitCalculation}
+	 *            after the {@link PowerLawFitCalculation}.
+	 */
+	public void setFusedPostFit(final boolean useFusedPostFit) {
+		fusedPostFit = useFusedPostFit;
+	}
+
+	/**
+	 * {@link DatasetMapInput}<br>
+	 * Only the selected pixels are fitted by the {@link PowerLawFitCalculation}
+	 * of the next elemental-map calculation. All results are NaN at the other
+	 * pixels.
+	 *
+	 * @param mask
+	 *            A {@link PixelMask} with the size of the stack or
+	 *            <code>null</code> to fit all pixels.
+	 */
+	public void setMask(final PixelMask mask) {
+		datasetMapInput.mask = mask;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @param showPreview
+	 *            <code>true</code> to show a binned preview before the
+	 *            {@link PowerLawFitCalculation} starts.
+	 */
+	public void setProgressivePreview(final boolean showPreview) {
+		progressivePreview = showPreview;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @param usePyramid
+	 *            <code>true</code> to use the {@link PyramidCrossCorrelation}
+	 *            if the ROI and delta are large enough.
+	 */
+	public void setPyramidSearch(final boolean usePyramid) {
+		pyramidSearch = usePyramid;
+	}
+
+	/**
+	 * {@link DatasetMapInput}<br>
+	 * Creates a mask by an automatic threshold of the image with the lowest
+	 * energy loss. Vacuum is bright at a zero-loss image and dark at all
+	 * others.
+	 *
+	 * @return A new {@link PixelMask}.
+	 */
+	public PixelMask createThresholdMask() {
+		final EFTEMImage image = datasetMapInput.array_InputImages[0];
+		final FloatProcessor fp = new FloatProcessor(getWidth(), getHeight(), image.getPixels());
+		return PixelMask.fromThreshold(fp, image.getELoss() >= PluginConstants.ZERO_LOSS_LIMIT);
+	}
+
 	/**
 	 * {@link DatasetStack}<br>
 	 * Set a new label for a specific slice. This is not a short label. It can
@@ -859,4 +1180,38 @@ public class DatasetAPI {
 		datasetStack.imageStack.setSliceLabel(newLabel, n + 1);
 		imagePlus.changes = true;
 	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @param useSpectrumBlocks
+	 *            <code>true</code> to copy the spectra to
+	 *            {@link SpectrumBlock}s before they are fitted.
+	 */
+	public void setSpectrumBlocks(final boolean useSpectrumBlocks) {
+		spectrumBlocks = useSpectrumBlocks;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @param useSubPixel
+	 *            <code>true</code> to detect and correct the drift with
+	 *            sub-pixel accuracy, <code>false</code> to shift the images by
+	 *            whole pixels.
+	 */
+	public void setSubPixelShift(final boolean useSubPixel) {
+		subPixelShift = useSubPixel;
+	}
+
+	/**
+	 * {@link DatasetAPI}
+	 *
+	 * @param useWarmStart
+	 *            <code>true</code> to start the fit of each pixel with the
+	 *            result of the previous pixel.
+	 */
+	public void setWarmStart(final boolean useWarmStart) {
+		warmStart = useWarmStart;
+	}
 }
@@ -64,6 +64,18 @@ public class DatasetDriftInput {
 	 */
 	protected double[] sigma;
 	protected Rectangle roi;
+	/**
+	 * The mean value of the whole reference image. It is subtracted before the
+	 * summed-area tables are created to reduce rounding errors.
+	 */
+	protected double referenceMean;
+	/**
+	 * The summed-area tables of the reference image minus
+	 * {@link #referenceMean} and of its square. Each table has one row and one
+	 * column more than the reference image, the first row and column are 0.
+	 */
+	protected double[] referenceSumTable;
+	protected double[] referenceSquareSumTable;
 
 	public DatasetDriftInput(final FloatProcessor[] array_croppedImages, final Rectangle roi, final int referenceIndex,
 			final int delta) {
@@ -74,6 +86,7 @@ public class DatasetDriftInput {
 		mean = new float[array_croppedImages.length];
 		sigma = new double[array_croppedImages.length];
 		calcMeanAndSigma();
+		calcReferenceSumTables();
 	}
 
 	/**
@@ -96,4 +109,56 @@ public class DatasetDriftInput {
 		}
 	}
 
+	/**
+	 * This method creates the summed-area tables of the reference image. The
+	 * sum of each shifted window, that is used to normalise the cross
+	 * correlation coefficient, is read from these tables with only 4 lookups.
+	 */
+	private void calcReferenceSumTables() {
+		final FloatProcessor reference = array_CroppedImages[referenceImageIndex];
+		final int width = reference.getWidth();
+		final int height = reference.getHeight();
+		final float[] pixels = (float[]) reference.getPixels();
+		double sum = 0;
+		for (final float value : pixels) {
+			sum += value;
+		}
+		referenceMean = sum / pixels.length;
+		referenceSumTable = new double[(width + 1) * (height + 1)];
+		referenceSquareSumTable = new double[(width + 1) * (height + 1)];
+		for (int y = 0; y < height; y++) {
+			double rowSum = 0;
+			double rowSquareSum = 0;
+			for (int x = 0; x < width; x++) {
+				final double value = pixels[y * width + x] - referenceMean;
+				rowSum += value;
+				rowSquareSum += value * value;
+				final int pos = (y + 1) * (width + 1) + x + 1;
+				referenceSumTable[pos] = referenceSumTable[pos - width - 1] + rowSum;
+				referenceSquareSumTable[pos] = referenceSquareSumTable[pos - width - 1] + rowSquareSum;
+			}
+		}
+	}
+
+	/**
+	 * @param table
+	 *            One of the summed-area tables of the reference image.
+	 * @param x
+	 *            The left border of the window.
+	 * @param y
+	 *            The top border of the window.
+	 * @param windowWidth
+	 *            The width of the window.
+	 * @param windowHeight
+	 *            The height of the window.
+	 * @return The sum of all values inside the window.
+	 */
+	protected double windowSum(final double[] table, final int x, final int y, final int windowWidth,
+			final int windowHeight) {
+		final int tableWidth = array_CroppedImages[referenceImageIndex].getWidth() + 1;
+		final int top = y * tableWidth;
+		final int bottom = (y + windowHeight) * tableWidth;
+		return table[bottom + x + windowWidth] - table[bottom + x] - table[top + x + windowWidth] + table[top + x];
+	}
+
 }
@@ -27,7 +27,6 @@
 
 package de.m_entrup.EFTEMj_ESI.dataset;
 
-import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
 import ij.ImagePlus;
 import ij.process.FloatProcessor;
 
@@ -53,9 +52,12 @@ public class DatasetDriftResult {
 	 * array_correlationCoefficients is initialised. The size of the array is
 	 * <br>
 	 * [datasetAPI.getStackSize()]*[(2*datasetAPI.getDelta()+1)^2]
+	 *
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that determines the size of the
+	 *            results.
 	 */
-	public DatasetDriftResult() {
-		final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
+	public DatasetDriftResult(final DatasetAPI datasetAPI) {
 		array_correlationCoefficients = new float[datasetAPI.getStackSize()][(2 * datasetAPI.getDelta() + 1)
 				* (2 * datasetAPI.getDelta() + 1)];
 	}
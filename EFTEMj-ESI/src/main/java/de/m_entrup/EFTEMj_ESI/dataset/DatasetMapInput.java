@@ -27,7 +27,6 @@
 
 package de.m_entrup.EFTEMj_ESI.dataset;
 
-import de.m_entrup.EFTEMj_ESI.map.PowerLawFitCalculation;
 import de.m_entrup.EFTEMj_ESI.resources.PluginMessages;
 
 /**
@@ -51,6 +50,20 @@ public class DatasetMapInput {
 	 * The index of the first post-edge image.
 	 */
 	protected int edgeIndex;
+	/**
+	 * The logarithms of the energy losses that are used by all stages of the
+	 * elemental-map calculation.
+	 */
+	protected EnergyKernel energyKernel;
+	/**
+	 * The exit condition for the MLE calculation.
+	 */
+	protected float epsilon;
+	/**
+	 * Only the pixels selected by this mask are fitted. It is
+	 * <code>null</code> if all pixels are fitted.
+	 */
+	protected PixelMask mask;
 
 	/**
 	 * The constructor creates an object of {@link DatasetMapInput} that is
@@ -68,7 +81,7 @@ public class DatasetMapInput {
 			throws Exception {
 		this.array_InputImages = inputImages;
 		this.edgeELoss = edgeELoss;
-		PowerLawFitCalculation.setEpsilon(epsilon);
+		this.epsilon = epsilon;
 		int index = 0;
 		while (index < inputImages.length) {
 			if (inputImages[index].eLoss >= edgeELoss) {
@@ -83,5 +96,6 @@ public class DatasetMapInput {
 		if (inputImages.length - edgeIndex == 0) {
 			throw new Exception(PluginMessages.getString("Error.PostEdgeImages"));
 		}
+		energyKernel = new EnergyKernel(inputImages, edgeIndex);
 	}
 }
@@ -27,15 +27,12 @@
 
 package de.m_entrup.EFTEMj_ESI.dataset;
 
-import java.util.Vector;
-
 import de.m_entrup.EFTEMj_ESI.map.BGCalculation;
 import de.m_entrup.EFTEMj_ESI.map.Chi2Calculation;
 import de.m_entrup.EFTEMj_ESI.map.CoeffOfDetCalculation;
 import de.m_entrup.EFTEMj_ESI.map.MapCalculation;
 import de.m_entrup.EFTEMj_ESI.map.PowerLawFitCalculation;
 import de.m_entrup.EFTEMj_ESI.map.SNRCalculation;
-import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
 
 /**
  * An instance of this class is used to save the results of the elemental-map
@@ -85,24 +82,28 @@ public class DatasetMapResult {
 	 */
 	protected float[] errorMap;
 	/**
-	 * This is the first parameter of the power law.
+	 * The number of iterations of the MLE at each pixel, counted by the
+	 * {@link PowerLawFitCalculation}.
 	 */
-	protected float[] rMap;
+	protected float[] iterationMap;
 	/**
-	 * The number of loops at the {@link PowerLawFitCalculation}.
+	 * This is the first parameter of the power law.
 	 */
-	protected Vector<Integer> vec_LoopCount;
+	protected float[] rMap;
 
 	/**
 	 * the constructor initialises all fields of this class.
+	 *
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that determines the size of the
+	 *            results.
 	 */
-	public DatasetMapResult() {
+	public DatasetMapResult(final DatasetAPI datasetAPI) {
 		super();
-		final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
 		rMap = new float[datasetAPI.getWidth() * datasetAPI.getHeight()];
 		aMap = new float[datasetAPI.getWidth() * datasetAPI.getHeight()];
 		errorMap = new float[datasetAPI.getWidth() * datasetAPI.getHeight()];
-		vec_LoopCount = new Vector<>();
+		iterationMap = new float[datasetAPI.getWidth() * datasetAPI.getHeight()];
 		array_BackgroundImage = new EFTEMImage[datasetAPI.getStackSize()];
 		array_RelativeBackgroundImage = new EFTEMImage[datasetAPI.getStackSize()];
 		array_Map = new EFTEMImage[datasetAPI.getStackSize() - datasetAPI.getEdgeIndex()];
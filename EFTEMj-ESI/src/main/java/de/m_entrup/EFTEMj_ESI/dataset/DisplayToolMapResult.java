@@ -85,6 +85,13 @@ public class DisplayToolMapResult {
 		}
 	}
 
+	public void showIterationMap() {
+		if (datasetAPI.getIterationMap() != null) {
+			final ImagePlus imp = impCreater.getIterationMap();
+			imp.show();
+		}
+	}
+
 	public void showMap() {
 		if (datasetAPI.getMap() != null) {
 			final ImagePlus imp = impCreater.getMap();
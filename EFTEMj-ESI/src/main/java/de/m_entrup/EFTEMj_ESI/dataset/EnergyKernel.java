@@ -0,0 +1,162 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.m_entrup.EFTEMj_ESI.dataset;
+
+/**
+ * The {@link EnergyKernel} holds the logarithms of the energy losses of a
+ * sorted EFTEM stack. The power law <code>I(E) = exp(a - r * ln(E))</code>
+ * only depends on <code>ln(E)</code>. By calculating it once for each
+ * {@link DatasetMapInput}, the per-pixel calculations need no additional
+ * calls of {@link Math#log(double)}. The kernel is immutable and can be shared
+ * by all threads.
+ */
+public class EnergyKernel {
+
+	/**
+	 * The index of the first post-edge image.
+	 */
+	private final int edgeIndex;
+	/**
+	 * <code>ln(E_i)</code> of all images.
+	 */
+	private final double[] lnE;
+	/**
+	 * <code>ln²(E_i)</code> of all images.
+	 */
+	private final double[] lnE2;
+
+	/**
+	 * Creates a new {@link EnergyKernel}.
+	 *
+	 * @param eftemImages
+	 *            A sorted array of {@link EFTEMImage}s.
+	 * @param edgeIndex
+	 *            The index of the first post-edge image.
+	 */
+	public EnergyKernel(final EFTEMImage[] eftemImages, final int edgeIndex) {
+		this.edgeIndex = edgeIndex;
+		lnE = new double[eftemImages.length];
+		lnE2 = new double[eftemImages.length];
+		for (int i = 0; i < eftemImages.length; i++) {
+			lnE[i] = Math.log(eftemImages[i].getELoss());
+			lnE2[i] = lnE[i] * lnE[i];
+		}
+	}
+
+	/**
+	 * Calculates the power law at the energy loss of the image with the given
+	 * index.
+	 *
+	 * @param imageIndex
+	 *            The position of the image at the sorted array of
+	 *            {@link EFTEMImage}s.
+	 * @param a
+	 *            The parameter <code>a</code> of the power law.
+	 * @param r
+	 *            The parameter <code>r</code> of the power law.
+	 * @return <code>exp(a - r * ln(E))</code>
+	 */
+	public double background(final int imageIndex, final double a, final double r) {
+		return Math.exp(a - r * lnE[imageIndex]);
+	}
+
+	/**
+	 * Fills the given vector with <code>E_i^-r</code> of all pre-edge images.
+	 * The vector is supplied by the caller to allow reusing it for each
+	 * iteration.
+	 *
+	 * @param r
+	 *            The value of <code>r</code> at the current iteration.
+	 * @param powers
+	 *            A vector with a length of at least {@link #getEdgeIndex()}.
+	 */
+	public void fillPowers(final double r, final double[] powers) {
+		for (int i = 0; i < edgeIndex; i++) {
+			powers[i] = Math.exp(-r * lnE[i]);
+		}
+	}
+
+	/**
+	 * Calculates the sums of <code>w_i * ln^k(E_i)</code> with
+	 * <code>k = 0, 1, 2</code> over all pre-edge images by a single pass.
+	 *
+	 * @param weights
+	 *            The weights <code>w_i</code>, e.g. the vector filled by
+	 *            {@link #fillPowers(double, double[])}.
+	 * @param sums
+	 *            An array with a length of at least 3. The sums are written to
+	 *            the indices 0, 1 and 2.
+	 */
+	public void moments(final double[] weights, final double[] sums) {
+		double s0 = 0;
+		double s1 = 0;
+		double s2 = 0;
+		for (int i = 0; i < edgeIndex; i++) {
+			s0 += weights[i];
+			s1 += weights[i] * lnE[i];
+			s2 += weights[i] * lnE2[i];
+		}
+		sums[0] = s0;
+		sums[1] = s1;
+		sums[2] = s2;
+	}
+
+	/**
+	 * @return The index of the first post-edge image.
+	 */
+	public int getEdgeIndex() {
+		return edgeIndex;
+	}
+
+	/**
+	 * @param imageIndex
+	 *            The position of the image at the sorted array of
+	 *            {@link EFTEMImage}s.
+	 * @return <code>ln(E)</code> of the selected image.
+	 */
+	public double getLnE(final int imageIndex) {
+		return lnE[imageIndex];
+	}
+
+	/**
+	 * @param imageIndex
+	 *            The position of the image at the sorted array of
+	 *            {@link EFTEMImage}s.
+	 * @return <code>ln²(E)</code> of the selected image.
+	 */
+	public double getLnE2(final int imageIndex) {
+		return lnE2[imageIndex];
+	}
+
+	/**
+	 * @return The number of images the kernel has been created for.
+	 */
+	public int getLength() {
+		return lnE.length;
+	}
+}
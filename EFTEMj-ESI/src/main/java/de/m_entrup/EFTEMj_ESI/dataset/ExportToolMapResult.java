@@ -80,6 +80,12 @@ public class ExportToolMapResult {
 		}
 	}
 
+	public void exportIterationMap() {
+		if (datasetAPI.getIterationMap() != null) {
+			ImagePlusTool.saveImagePlus(impCreator.getIterationMap());
+		}
+	}
+
 	public void exportMap() {
 		if (datasetAPI.getMap() != null) {
 			ImagePlusTool.saveImagePlus(impCreator.getMap());
@@ -0,0 +1,301 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.m_entrup.EFTEMj_ESI.dataset;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@link FitResultCache} keeps the results of recent power law fits in
+ * memory. A fit only depends on the pre-edge images, so a calculation that
+ * differs by the post-edge images only can reuse the <strong>r</strong>,
+ * <strong>a</strong> and error maps and has to subtract the background
+ * only.<br>
+ * The least recently used results are removed if the size of all results
+ * exceeds the memory budget. There is a single instance that is shared by
+ * all calculations.
+ */
+public class FitResultCache {
+
+	/**
+	 * Identifies the input of a power law fit. Two keys are equal if all their
+	 * parts are equal, arrays are compared by their values.
+	 */
+	public static class Key {
+
+		/**
+		 * The values that identify the fit.
+		 */
+		private final Object[] parts;
+
+		/**
+		 * @param parts
+		 *            All values the fit depends on, e.g. the ID of the stack,
+		 *            the indices and energy losses of the pre-edge images, the
+		 *            epsilon, the fit method and a
+		 *            {@link FitResultCache#fingerprint(float[][], float[], PixelMask)}
+		 *            of the pre-edge images.
+		 */
+		public Key(final Object... parts) {
+			this.parts = parts;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			return Arrays.deepEquals(parts, ((Key) obj).parts);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.deepHashCode(parts);
+		}
+	}
+
+	/**
+	 * The only instance of {@link FitResultCache}.
+	 */
+	private static final FitResultCache INSTANCE = new FitResultCache();
+
+	/**
+	 * @return The only instance of {@link FitResultCache}.
+	 */
+	public static FitResultCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Creates a hash of the values of the pre-edge images, so a result is not
+	 * reused if the images have been modified in place.
+	 *
+	 * @param images
+	 *            The pixels of the pre-edge images.
+	 * @param norms
+	 *            The divisor of each image or <code>null</code>.
+	 * @param mask
+	 *            The {@link PixelMask} of the fit or <code>null</code>.
+	 * @return A 64 bit hash (FNV-1a) of all values.
+	 */
+	public static long fingerprint(final float[][] images, final float[] norms, final PixelMask mask) {
+		long hash = 0xcbf29ce484222325L;
+		for (final float[] pixels : images) {
+			for (int i = 0; i < pixels.length; i++) {
+				hash = (hash ^ Float.floatToIntBits(pixels[i])) * 0x100000001b3L;
+			}
+		}
+		if (norms != null) {
+			for (final float norm : norms) {
+				hash = (hash ^ Float.floatToIntBits(norm)) * 0x100000001b3L;
+			}
+		}
+		if (mask != null) {
+			final int length = mask.getWidth() * mask.getHeight();
+			for (int i = 0; i < length; i++) {
+				hash = (hash ^ (mask.isSelected(i) ? i : -1)) * 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @param array
+	 *            One of the result arrays.
+	 * @return The size of the array in bytes.
+	 */
+	private static long sizeOf(final Object array) {
+		if (array instanceof float[]) {
+			return 4L * ((float[]) array).length;
+		}
+		if (array instanceof int[]) {
+			return 4L * ((int[]) array).length;
+		}
+		if (array instanceof byte[]) {
+			return ((byte[]) array).length;
+		}
+		throw new IllegalArgumentException("Only float, int and byte arrays can be cached.");
+	}
+
+	/**
+	 * @param maps
+	 *            The arrays of a cached result.
+	 * @return The size of all arrays in bytes.
+	 */
+	private static long sizeOf(final Object[] maps) {
+		long mapsSize = 0;
+		for (final Object map : maps) {
+			mapsSize += sizeOf(map);
+		}
+		return mapsSize;
+	}
+
+	/**
+	 * @param array
+	 *            One of the result arrays.
+	 * @return A copy of the array.
+	 */
+	private static Object copyOf(final Object array) {
+		if (array instanceof float[]) {
+			return ((float[]) array).clone();
+		}
+		if (array instanceof int[]) {
+			return ((int[]) array).clone();
+		}
+		if (array instanceof byte[]) {
+			return ((byte[]) array).clone();
+		}
+		throw new IllegalArgumentException("Only float, int and byte arrays can be cached.");
+	}
+
+	/**
+	 * The cached results in the order of their last access.
+	 */
+	private final LinkedHashMap<Key, Object[]> results = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * The size of all cached results in bytes.
+	 */
+	private long size = 0;
+	/**
+	 * The largest size of all cached results in bytes. The default is an
+	 * eighth of the maximum heap size.
+	 */
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 8;
+
+	/**
+	 * A private constructor.
+	 */
+	private FitResultCache() {
+		super();
+	}
+
+	/**
+	 * Removes all results.
+	 */
+	public synchronized void clear() {
+		results.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return The size of all cached results in bytes.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The largest size of all cached results in bytes.
+	 */
+	public synchronized long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @param bytes
+	 *            The largest size of all cached results. The least recently
+	 *            used results are removed if necessary. 0 disables the cache.
+	 */
+	public synchronized void setMemoryBudget(final long bytes) {
+		memoryBudget = bytes;
+		evict();
+	}
+
+	/**
+	 * Stores copies of the results of a fit. A result that is larger than the
+	 * memory budget is not stored.
+	 *
+	 * @param key
+	 *            Identifies the input of the fit.
+	 * @param maps
+	 *            The result arrays, e.g. the maps of <strong>r</strong>,
+	 *            <strong>a</strong> and the errors.
+	 */
+	public synchronized void put(final Key key, final Object... maps) {
+		final long mapsSize = sizeOf(maps);
+		if (mapsSize > memoryBudget) {
+			return;
+		}
+		final Object[] copies = new Object[maps.length];
+		for (int i = 0; i < maps.length; i++) {
+			copies[i] = copyOf(maps[i]);
+		}
+		final Object[] previous = results.put(key, copies);
+		if (previous != null) {
+			size -= sizeOf(previous);
+		}
+		size += mapsSize;
+		evict();
+	}
+
+	/**
+	 * Copies the cached results of a fit to the given arrays.
+	 *
+	 * @param key
+	 *            Identifies the input of the fit.
+	 * @param maps
+	 *            The arrays to fill, in the same order and with the same
+	 *            length as they have been passed to
+	 *            {@link #put(Key, Object...)}.
+	 * @return <code>true</code> if the results have been copied,
+	 *         <code>false</code> if there is no result for the key.
+	 */
+	public synchronized boolean restore(final Key key, final Object... maps) {
+		final Object[] cached = results.get(key);
+		if (cached == null || cached.length != maps.length) {
+			return false;
+		}
+		for (int i = 0; i < maps.length; i++) {
+			if (cached[i].getClass() != maps[i].getClass() || sizeOf(cached[i]) != sizeOf(maps[i])) {
+				return false;
+			}
+		}
+		for (int i = 0; i < maps.length; i++) {
+			System.arraycopy(cached[i], 0, maps[i], 0, Array.getLength(maps[i]));
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the least recently used results until the size of all results
+	 * is not larger than the memory budget.
+	 */
+	private void evict() {
+		final Iterator<Map.Entry<Key, Object[]>> iterator = results.entrySet().iterator();
+		while (size > memoryBudget && iterator.hasNext()) {
+			size -= sizeOf(iterator.next().getValue());
+			iterator.remove();
+		}
+	}
+}
@@ -157,6 +157,28 @@ public class MapResultToImagePlus {
 		return imp;
 	}
 
+	/**
+	 * @return A composite image containing the error map and the number of
+	 *         iterations of the MLE at each pixel.
+	 */
+	protected ImagePlus getIterationMap() {
+		ImagePlus imp;
+		final int width = datasetAPI.getWidth();
+		final int height = datasetAPI.getHeight();
+		final FloatProcessor fp = new FloatProcessor(width, height, datasetAPI.getIterationMap(), null);
+		fp.resetMinAndMax();
+		imp = ImagePlusTool.createImagePlus(
+				"Iteration-Map" + strOfPreELoss + " " + datasetAPI.getImagePlusShortTitle(), fp, true);
+		final ImagePlus[] images = new ImagePlus[7];
+		images[0] = getErrorMap();
+		images[3] = imp;
+		final RGBStackMerge rgbMerge = new RGBStackMerge();
+		final ImagePlus composite = rgbMerge.mergeHyperstacks(images, true);
+		composite.setTitle(images[3].getTitle());
+		composite.setSliceWithoutUpdate(2);
+		return composite;
+	}
+
 	protected ImagePlus getMap() {
 		ImagePlus imp;
 		final EFTEMImage[] array_Map = datasetAPI.getMap();
@@ -0,0 +1,267 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.dataset;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+/**
+ * A {@link PixelMask} selects the pixels of an image that are fitted by the
+ * elemental mapping. All other pixels, e.g. vacuum or embedding resin, are
+ * skipped and their results are NaN. A mask is created from a {@link Roi},
+ * from a binary image or by an automatic threshold of a single image.<br>
+ * The number of selected pixels up to each index is stored, so a calculation
+ * can check in constant time if a span of pixels contains any selected pixel.
+ */
+public class PixelMask {
+
+	/**
+	 * The number of histogram bins that is used to find the automatic
+	 * threshold.
+	 */
+	private static final int BINS = 256;
+
+	/**
+	 * The width of the masked image.
+	 */
+	private final int width;
+	/**
+	 * The height of the masked image.
+	 */
+	private final int height;
+	/**
+	 * <code>true</code> for each selected pixel.
+	 */
+	private final boolean[] selected;
+	/**
+	 * The number of selected pixels with an index lower than the array index.
+	 * The array has <code>width * height + 1</code> values.
+	 */
+	private final int[] selectedBefore;
+
+	/**
+	 * @param selected
+	 *            <code>true</code> for each pixel that is fitted. The array is
+	 *            not copied.
+	 * @param width
+	 *            The width of the masked image.
+	 * @param height
+	 *            The height of the masked image.
+	 */
+	public PixelMask(final boolean[] selected, final int width, final int height) {
+		if (selected.length != width * height) {
+			throw new IllegalArgumentException("The mask does not match the size of the image.");
+		}
+		this.selected = selected;
+		this.width = width;
+		this.height = height;
+		selectedBefore = new int[selected.length + 1];
+		for (int i = 0; i < selected.length; i++) {
+			selectedBefore[i + 1] = selectedBefore[i] + (selected[i] ? 1 : 0);
+		}
+	}
+
+	/**
+	 * @param roi
+	 *            An area {@link Roi}. Only the pixels inside are selected.
+	 * @param width
+	 *            The width of the masked image.
+	 * @param height
+	 *            The height of the masked image.
+	 * @return A new {@link PixelMask}.
+	 */
+	public static PixelMask fromRoi(final Roi roi, final int width, final int height) {
+		if (!roi.isArea()) {
+			throw new IllegalArgumentException("Only a ROI that encloses an area can be used as mask.");
+		}
+		final boolean[] selected = new boolean[width * height];
+		final Rectangle bounds = roi.getBounds().intersection(new Rectangle(0, 0, width, height));
+		for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+			for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+				selected[y * width + x] = roi.contains(x, y);
+			}
+		}
+		return new PixelMask(selected, width, height);
+	}
+
+	/**
+	 * @param mask
+	 *            A binary image. All pixels that are not 0 are selected.
+	 * @return A new {@link PixelMask}.
+	 */
+	public static PixelMask fromBinaryImage(final ImageProcessor mask) {
+		final boolean[] selected = new boolean[mask.getWidth() * mask.getHeight()];
+		for (int i = 0; i < selected.length; i++) {
+			selected[i] = mask.getf(i) != 0;
+		}
+		return new PixelMask(selected, mask.getWidth(), mask.getHeight());
+	}
+
+	/**
+	 * Selects the pixels by a threshold that is determined by Otsu's method.
+	 * At a low-loss image vacuum and embedding resin are dark, at a zero-loss
+	 * image they are bright.
+	 *
+	 * @param image
+	 *            The image that is used to find the threshold, usually the
+	 *            zero-loss or low-loss image of the stack.
+	 * @param darkBackground
+	 *            <code>true</code> to select the pixels above the threshold,
+	 *            <code>false</code> to select the pixels below.
+	 * @return A new {@link PixelMask}.
+	 */
+	public static PixelMask fromThreshold(final ImageProcessor image, final boolean darkBackground) {
+		final int length = image.getWidth() * image.getHeight();
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < length; i++) {
+			final float value = image.getf(i);
+			if (!Float.isNaN(value) && !Float.isInfinite(value)) {
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+		}
+		final boolean[] selected = new boolean[length];
+		if (!(max > min)) {
+			// A constant image can't be separated, so all pixels are fitted.
+			Arrays.fill(selected, true);
+			return new PixelMask(selected, image.getWidth(), image.getHeight());
+		}
+		final double binWidth = (max - min) / BINS;
+		final long[] histogram = new long[BINS];
+		for (int i = 0; i < length; i++) {
+			final float value = image.getf(i);
+			if (!Float.isNaN(value) && !Float.isInfinite(value)) {
+				histogram[Math.min(BINS - 1, (int) ((value - min) / binWidth))]++;
+			}
+		}
+		final float threshold = (float) (min + (otsu(histogram) + 1) * binWidth);
+		for (int i = 0; i < length; i++) {
+			final float value = image.getf(i);
+			selected[i] = darkBackground ? value >= threshold : value < threshold;
+		}
+		return new PixelMask(selected, image.getWidth(), image.getHeight());
+	}
+
+	/**
+	 * @param histogram
+	 *            A histogram with {@link #BINS} bins.
+	 * @return The last bin of the lower class that maximises the variance
+	 *         between both classes.
+	 */
+	private static int otsu(final long[] histogram) {
+		long total = 0;
+		double sum = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			total += histogram[i];
+			sum += (double) i * histogram[i];
+		}
+		long lowCount = 0;
+		double lowSum = 0;
+		double bestVariance = -1;
+		int best = 0;
+		for (int i = 0; i < histogram.length - 1; i++) {
+			lowCount += histogram[i];
+			lowSum += (double) i * histogram[i];
+			final long highCount = total - lowCount;
+			if (lowCount == 0 || highCount == 0) {
+				continue;
+			}
+			final double difference = lowSum / lowCount - (sum - lowSum) / highCount;
+			final double variance = (double) lowCount * highCount * difference * difference;
+			if (variance > bestVariance) {
+				bestVariance = variance;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return The number of selected pixels.
+	 */
+	public int getCount() {
+		return selectedBefore[selected.length];
+	}
+
+	/**
+	 * @return The height of the masked image.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The width of the masked image.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @param index
+	 *            The first pixel of the span.
+	 * @param length
+	 *            The number of pixels of the span.
+	 * @return <code>true</code> if no pixel of the span is selected.
+	 */
+	public boolean isEmpty(final int index, final int length) {
+		return selectedBefore[index + length] == selectedBefore[index];
+	}
+
+	/**
+	 * @param index
+	 *            The index of a pixel (<code>x + y * width</code>).
+	 * @return <code>true</code> if the pixel is fitted.
+	 */
+	public boolean isSelected(final int index) {
+		return selected[index];
+	}
+
+	/**
+	 * @param index
+	 *            The first pixel of the span.
+	 * @param end
+	 *            The first pixel that is not part of the span.
+	 * @return The index of the first pixel of the span that has the opposite
+	 *         state of the pixel at index, or end. This is used to process a
+	 *         span as runs of selected and unselected pixels.
+	 */
+	public int endOfRun(final int index, final int end) {
+		final boolean state = selected[index];
+		int i = index + 1;
+		while (i < end && selected[i] == state) {
+			i++;
+		}
+		return i;
+	}
+}
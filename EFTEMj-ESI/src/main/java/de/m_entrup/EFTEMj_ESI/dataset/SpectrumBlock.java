@@ -0,0 +1,216 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.m_entrup.EFTEMj_ESI.dataset;
+
+/**
+ * The {@link SpectrumBlock} is a spectrum-major copy of a span of pixels. The
+ * images of a stack store each energy loss in a separate array, so the
+ * spectrum of a single pixel is spread over all arrays with a stride of
+ * <code>width * height</code>. A {@link SpectrumBlock} transposes a span of
+ * pixels into a single array, where the spectrum of each pixel is contiguous:
+ * <code>data[pixel * depth + image]</code>.<br>
+ * A block is filled by reading each image sequentially. It is meant to be
+ * reused for all spans processed by a single thread and is not thread safe.
+ */
+public class SpectrumBlock {
+
+	/**
+	 * The transposed values, <code>depth</code> values per pixel.
+	 */
+	private float[] data;
+	/**
+	 * The number of values of each spectrum.
+	 */
+	private final int depth;
+	/**
+	 * The index (<code>x + y * width</code>) of the first pixel of the block.
+	 */
+	private int index;
+	/**
+	 * The number of pixels that are stored at the block.
+	 */
+	private int length;
+
+	/**
+	 * Creates an empty {@link SpectrumBlock}. The capacity is increased by
+	 * <code>load()</code> if necessary.
+	 *
+	 * @param depth
+	 *            The number of values of each spectrum, usually the stack size.
+	 * @param capacity
+	 *            The initial number of pixels the block can store.
+	 */
+	public SpectrumBlock(final int depth, final int capacity) {
+		this.depth = depth;
+		data = new float[depth * capacity];
+	}
+
+	/**
+	 * @param pixel
+	 *            The position of the pixel at the block (starting at 0).
+	 * @param image
+	 *            The position of the image at the stack (starting at 0).
+	 * @return The value of the given image at the given pixel.
+	 */
+	public float get(final int pixel, final int image) {
+		return data[pixel * depth + image];
+	}
+
+	/**
+	 * @return The array that contains all spectra. It can be larger than
+	 *         <code>getLength() * getDepth()</code>.
+	 */
+	public float[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return The number of values of each spectrum.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return The index (<code>x + y * width</code>) of the first pixel of the
+	 *         block.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return The number of pixels that are stored at the block.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Copies a span of pixels of the given images to the block.
+	 *
+	 * @param images
+	 *            A sorted array of {@link EFTEMImage}s. Its length has to be
+	 *            equal to the depth of the block.
+	 * @param index
+	 *            The first pixel of the span (<code>x + y * width</code>).
+	 * @param length
+	 *            The number of pixels to copy.
+	 */
+	public void load(final EFTEMImage[] images, final int index, final int length) {
+		ensureCapacity(length);
+		for (int i = 0; i < depth; i++) {
+			copy(images[i].getPixels(), i, index, length);
+		}
+		this.index = index;
+		this.length = length;
+	}
+
+	/**
+	 * Copies a span of pixels of the given slices to the block.
+	 *
+	 * @param slices
+	 *            The pixels of each image. The number of slices has to be equal
+	 *            to the depth of the block.
+	 * @param index
+	 *            The first pixel of the span (<code>x + y * width</code>).
+	 * @param length
+	 *            The number of pixels to copy.
+	 */
+	public void load(final float[][] slices, final int index, final int length) {
+		ensureCapacity(length);
+		for (int i = 0; i < depth; i++) {
+			copy(slices[i], i, index, length);
+		}
+		this.index = index;
+		this.length = length;
+	}
+
+	/**
+	 * Copies a span of pixels of the given slices to the block. Each value is
+	 * divided by the divisor of its slice, e.g. to normalise the exposure
+	 * without creating a normalised copy of the slices.
+	 *
+	 * @param slices
+	 *            The pixels of each image. The number of slices has to be equal
+	 *            to the depth of the block.
+	 * @param divisors
+	 *            One divisor for each slice or <code>null</code> to copy the
+	 *            values as they are.
+	 * @param index
+	 *            The first pixel of the span (<code>x + y * width</code>).
+	 * @param length
+	 *            The number of pixels to copy.
+	 */
+	public void load(final float[][] slices, final float[] divisors, final int index, final int length) {
+		if (divisors == null) {
+			load(slices, index, length);
+			return;
+		}
+		ensureCapacity(length);
+		for (int i = 0; i < depth; i++) {
+			final float[] pixels = slices[i];
+			final float divisor = divisors[i];
+			for (int p = 0, pos = i; p < length; p++, pos += depth) {
+				data[pos] = pixels[index + p] / divisor;
+			}
+		}
+		this.index = index;
+		this.length = length;
+	}
+
+	/**
+	 * @param pixel
+	 *            The position of the pixel at the block (starting at 0).
+	 * @return The position of the first value of the pixel at the array
+	 *         returned by {@link #getData()}.
+	 */
+	public int offset(final int pixel) {
+		return pixel * depth;
+	}
+
+	/**
+	 * Reads the span of a single image sequentially and writes it with a stride
+	 * of <code>depth</code>.
+	 */
+	private void copy(final float[] pixels, final int image, final int index, final int length) {
+		for (int p = 0, pos = image; p < length; p++, pos += depth) {
+			data[pos] = pixels[index + p];
+		}
+	}
+
+	/**
+	 * Increases the size of the array, if the given number of pixels does not
+	 * fit into it.
+	 */
+	private void ensureCapacity(final int length) {
+		if (data.length < length * depth) {
+			data = new float[length * depth];
+		}
+	}
+}
@@ -29,91 +29,155 @@ package de.m_entrup.EFTEMj_ESI.driftcorrection;
 
 import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
-import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
 import ij.ImageStack;
 import ij.process.FloatProcessor;
 
 /**
  * An instance of this class creates a map of cross correlation coefficients for
- * each possible shift between two images. Each row of this cross correlation
- * coefficients image is calculated at an independent thread of
- * {@link CrossCorrelation}. This class uses cropped images. For the reference
- * image the cropped area has to be larger in order to allow shifting.
+ * each possible shift between the reference image and all other images. The
+ * coefficient maps are processed {@link Tile} by {@link Tile}, each tile is
+ * calculated for all images. This class uses cropped images. For the reference
+ * image the cropped area has to be larger in order to allow shifting.<br>
+ * The sums of the shifted reference image, that normalise the coefficients,
+ * are read from the summed-area tables of the {@link DatasetAPI}. Only the
+ * covariance is calculated for each shift.
  */
-public class CrossCorrelation extends Thread {
+public class CrossCorrelation implements TileTask {
 
 	/**
-	 * A shortcut to access the instance of {@link DatasetAPI}.
+	 * The crosscorrelation coefficients of all images.
 	 */
-	private final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
+	private final float[][] array_crossCorrelationCoefficients;
 	/**
-	 * The index of the processed image at the {@link ImageStack}.
+	 * The {@link DatasetAPI} of the processed dataset.
 	 */
-	private final int index;
+	private final DatasetAPI datasetAPI;
 	/**
-	 * A shortcut to access the instance of {@link ThreadInterface}.
+	 * The index of the reference image at the {@link ImageStack}.
 	 */
-	private final ThreadInterface threadInterface = ThreadInterface.getInstance();
+	private final int templateIndex;
 	/**
-	 * The x-coordinate of the processed pixel of the crosscorrelation
-	 * coefficient map. This corresponds to a shift in x-direction between the
-	 * analysed images.
+	 * The width and height of the crosscorrelation coefficient map.
 	 */
-	private int x;
+	private final int width;
+
 	/**
-	 * The y-coordinate of the processed pixel of the crosscorrelation
-	 * coefficient map. This corresponds to a shift in y-direction between the
-	 * analysed images.
+	 * The {@link DatasetAPI} of the {@link PluginAPI} is used.
 	 */
-	private final int y;
+	public CrossCorrelation() {
+		this(PluginAPI.getInstance().getDatasetAPI());
+	}
 
 	/**
-	 * Each {@link CrossCorrelation} thread processes a single image row. At the
-	 * constructor it is declared which image and row are processed.
+	 * The constructor creates a new instance of {@link CrossCorrelation} for
+	 * all images except the reference image.
+	 *
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
+	 */
+	public CrossCorrelation(final DatasetAPI datasetAPI) {
+		super();
+		this.datasetAPI = datasetAPI;
+		width = 2 * datasetAPI.getDelta() + 1;
+		templateIndex = datasetAPI.getTemplateIndex();
+		array_crossCorrelationCoefficients = datasetAPI.getCorrelationCoefficients();
+	}
+
+	/**
+	 * Calculates a single row of the crosscorrelation coefficient map.
 	 *
 	 * @param index
 	 *            The index the stack, it starts a 0.
 	 * @param y
-	 *            The row of the crosscorrelation coefficient map.
+	 *            The row of the crosscorrelation coefficient map. This
+	 *            corresponds to a shift in y-direction between the analysed
+	 *            images.
 	 */
-	public CrossCorrelation(final int index, final int y) {
-		super();
-		threadInterface.addThread();
-		this.x = 0;
-		this.y = y;
-		this.index = index;
+	private void calculateRow(final int index, final int y) {
+		/*
+		 * x is the x-coordinate of the processed pixel of the crosscorrelation
+		 * coefficient map. This corresponds to a shift in x-direction between
+		 * the analysed images.
+		 */
+		for (int x = 0; x < width; x++) {
+			array_crossCorrelationCoefficients[index][y * width + x] = calculateCoefficient(index, x, y);
+		}
 	}
 
-	@Override
-	public void run() {
-		final int width = 2 * datasetAPI.getDelta() + 1;
+	/**
+	 * Calculates a single crosscorrelation coefficient.
+	 *
+	 * @param index
+	 *            The index the stack, it starts a 0.
+	 * @param x
+	 *            The column of the crosscorrelation coefficient map.
+	 * @param y
+	 *            The row of the crosscorrelation coefficient map.
+	 * @return The normalised crosscorrelation coefficient of the image and the
+	 *         reference image shifted by x and y.
+	 */
+	float calculateCoefficient(final int index, final int x, final int y) {
 		final FloatProcessor image = datasetAPI.getCroppedImage(index);
 		final FloatProcessor referenceImage = datasetAPI.getCroppedReferenceImage();
-		final float[] array_crossCorrelationCoefficients = new float[width];
-		for (x = 0; x < width; x++) {
-			double tSum = 0;
-			double tSquareSum = 0;
-			double covariance = 0;
-			/*
-			 * i and j are the coordinates of the cropped image that is
-			 * analysed. The reference image is shifted by x and y.
-			 */
-			for (int j = 0; j < image.getHeight(); j++) {
-				for (int i = 0; i < image.getWidth(); i++) {
-					final double templateQ = referenceImage.getf(x + i, y + j);
-					final double imageQ = image.getf(i, j);
-					tSum += templateQ;
-					tSquareSum += templateQ * templateQ;
-					covariance += templateQ * imageQ;
+		final int n = image.getWidth() * image.getHeight();
+		double covariance = 0;
+		/*
+		 * i and j are the coordinates of the cropped image that is analysed.
+		 * The reference image is shifted by x and y.
+		 */
+		for (int j = 0; j < image.getHeight(); j++) {
+			for (int i = 0; i < image.getWidth(); i++) {
+				final double templateQ = referenceImage.getf(x + i, y + j);
+				final double imageQ = image.getf(i, j);
+				covariance += templateQ * imageQ;
+			}
+		}
+		/*
+		 * The tables contain the reference image minus its mean. The sum of
+		 * squared deviations does not depend on this offset.
+		 */
+		final double centredSum = datasetAPI.getReferenceSum(x, y, image.getWidth(), image.getHeight());
+		final double tSum = centredSum + n * datasetAPI.getReferenceMean();
+		final double tSquareDeviation = datasetAPI.getReferenceSquareSum(x, y, image.getWidth(), image.getHeight())
+				- centredSum * centredSum / n;
+		return (float) ((covariance - tSum * datasetAPI.getMean(index))
+				/ (Math.sqrt(tSquareDeviation) * datasetAPI.getSigma(index)));
+	}
+
+	@Override
+	public void finished() {
+		// The results have been written to the coefficient maps.
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		// Each coefficient reads the whole cropped image and the same area of
+		// the reference image.
+		final FloatProcessor image = datasetAPI.getCroppedReferenceImage();
+		return 2 * 4 * image.getWidth() * image.getHeight();
+	}
+
+	@Override
+	public int getHeight() {
+		return width;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public void processTile(final Tile tile) {
+		for (int index = 0; index < array_crossCorrelationCoefficients.length; index++) {
+			if (index != templateIndex) {
+				for (int y = tile.getY(); y < tile.getY() + tile.getHeight(); y++) {
+					calculateRow(index, y);
 				}
 			}
-			final double tMean = tSum / (image.getWidth() * image.getHeight());
-			array_crossCorrelationCoefficients[x] = (float) ((covariance
-					- (image.getWidth() * image.getHeight()) * tMean * datasetAPI.getMean(index))
-					/ (Math.sqrt(tSquareSum - (image.getWidth() * image.getHeight()) * tMean * tMean)
-							* datasetAPI.getSigma(index)));
 		}
-		datasetAPI.saveCross(array_crossCorrelationCoefficients, index, y * width);
-		threadInterface.removeThread(ThreadInterface.CROSS);
 	}
 }
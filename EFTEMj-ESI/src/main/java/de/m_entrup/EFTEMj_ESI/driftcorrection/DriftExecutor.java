@@ -32,43 +32,69 @@ import java.text.DateFormat;
 import java.util.Date;
 import java.util.Locale;
 
-import javax.swing.SwingWorker;
-
 import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
-import de.m_entrup.EFTEMj_ESI.threading.ThreadChecker;
+import de.m_entrup.EFTEMj_ESI.threading.CalculationExecutor;
 import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
 import de.m_entrup.EFTEMj_ESI.tools.LogWriter;
 import de.m_entrup.EFTEMj_ESI.tools.MyTimer;
 
 /**
- * The {@link DriftExecutor} extends {@link SwingWorker} and allows to start the
- * calculation of the drift as a background task. A pair of images (one is the
- * reference image) is committed to {@link CrossCorrelation} to calculate the
- * cross correlation coefficients. This is repeated for all available images.
+ * The {@link DriftExecutor} extends {@link CalculationExecutor} and allows to
+ * start the calculation of the drift as a background task.
+ * {@link FFTCrossCorrelation} or {@link CrossCorrelation} calculates the cross
+ * correlation coefficients of all available images with respect to the
+ * reference image.
  */
-public class DriftExecutor extends SwingWorker<Void, Void> {
+public class DriftExecutor extends CalculationExecutor {
 
 	/**
-	 * A shortcut to access the instance of {@link DatasetAPI}.
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
+	 * @return The calculation of the cross correlation coefficients that is
+	 *         selected by {@link DatasetAPI#setPyramidSearch(boolean)} and
+	 *         {@link DatasetAPI#setFftCorrelation(boolean)}.
 	 */
-	private final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
+	public static TileTask createCorrelation(final DatasetAPI datasetAPI) {
+		final int binning = getPyramidBinning(datasetAPI);
+		if (binning > 1) {
+			return new PyramidCrossCorrelation(datasetAPI, binning);
+		}
+		if (datasetAPI.isFftCorrelation()) {
+			return new FFTCrossCorrelation(datasetAPI);
+		}
+		return new CrossCorrelation(datasetAPI);
+	}
+
 	/**
-	 * The height of the crosscorrelation coefficient map. The calculation will
-	 * be split up into subtasks, each processes a single image row.
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images.
+	 * @return The binning of the coarse-to-fine search or 1 if the exhaustive
+	 *         search is used.
 	 */
-	private final int height;
+	private static int getPyramidBinning(final DatasetAPI datasetAPI) {
+		if (!datasetAPI.isPyramidSearch()) {
+			return 1;
+		}
+		final Rectangle roi = datasetAPI.getRoi();
+		return PyramidCrossCorrelation.getBinning(roi.width, roi.height, datasetAPI.getDelta());
+	}
+
+	/**
+	 * A shortcut to access the instance of {@link DatasetAPI}.
+	 */
+	private final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
 
 	/**
-	 * The constructor determinates the number of subtasks and configures the
-	 * {@link ThreadChecker} using {@link ThreadInterface}.
+	 * The constructor writes the parameters of the drift correction to the
+	 * log.
 	 *
 	 * @throws Exception
 	 */
 	public DriftExecutor() throws Exception {
 		super();
-		height = (2 * datasetAPI.getDelta() + 1);
-		ThreadInterface.getInstance().configureThreadChecker((datasetAPI.getStackSize() - 1) * height);
 		LogWriter.clearProcessLog();
 		DateFormat df;
 		df = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM, Locale.ENGLISH);
@@ -81,19 +107,21 @@ public class DriftExecutor extends SwingWorker<Void, Void> {
 		final Rectangle roi = datasetAPI.getRoi();
 		LogWriter.writeProcessLog("The ROI is: x=" + roi.x + ", y=" + roi.y + ", w=" + roi.width + ", h=" + roi.height,
 				LogWriter.DRIFT);
+		final int binning = getPyramidBinning(datasetAPI);
+		if (binning > 1) {
+			LogWriter.writeProcessLog("The correlation is calculated coarse-to-fine (binning " + binning + ")",
+					LogWriter.DRIFT);
+		} else {
+			LogWriter.writeProcessLog(
+					"The correlation is calculated " + (datasetAPI.isFftCorrelation() ? "by FFT" : "directly"),
+					LogWriter.DRIFT);
+		}
 	}
 
 	@Override
 	protected Void doInBackground() throws Exception {
 		MyTimer.start();
-		for (int i = 0; i < datasetAPI.getStackSize(); i++) {
-			if (i != datasetAPI.getTemplateIndex()) {
-				for (int y = 0; y < height; y++) {
-					final CrossCorrelation crossCorrelation = new CrossCorrelation(i, y);
-					crossCorrelation.start();
-				}
-			}
-		}
+		ThreadInterface.getInstance().execute(createCorrelation(datasetAPI), ThreadInterface.CROSS);
 		return null;
 	}
 }
@@ -0,0 +1,204 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.m_entrup.EFTEMj_ESI.driftcorrection;
+
+import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
+import ij.process.FloatProcessor;
+
+/**
+ * Calculates the same maps of cross correlation coefficients as
+ * {@link CrossCorrelation}, but the covariance of all shifts is calculated at
+ * once by the Fourier transform. The sums of the shifted reference image are
+ * taken from the summed-area tables of the {@link DatasetAPI}. This is
+ * <code>O(w&middot;h&middot;log(w&middot;h))</code> per image instead of
+ * <code>O(&delta;<sup>2</sup>&middot;w&middot;h)</code>, so large drifts can be
+ * checked at large ROIs.<br>
+ * Each {@link Tile} is a single row that represents one image of the stack.
+ * The transform of the reference image is calculated once by the
+ * constructor.
+ *
+ * @author Michael Entrup b. Epping
+ */
+public class FFTCrossCorrelation implements TileTask {
+
+	/**
+	 * The crosscorrelation coefficients of all images.
+	 */
+	private final float[][] array_crossCorrelationCoefficients;
+	/**
+	 * The {@link DatasetAPI} of the processed dataset.
+	 */
+	private final DatasetAPI datasetAPI;
+	/**
+	 * The index of the reference image at the stack.
+	 */
+	private final int templateIndex;
+	/**
+	 * The width and height of the crosscorrelation coefficient map.
+	 */
+	private final int width;
+	/**
+	 * The transform of the size of the padded reference image.
+	 */
+	private final FourierTransform transform;
+	/**
+	 * The transform of the reference image minus {@link #referenceMean}.
+	 */
+	private final double[] referenceRe;
+	private final double[] referenceIm;
+	/**
+	 * The mean of the whole reference image. It is subtracted from all values
+	 * to reduce rounding errors.
+	 */
+	private final double referenceMean;
+
+	/**
+	 * The {@link DatasetAPI} of the {@link PluginAPI} is used.
+	 */
+	public FFTCrossCorrelation() {
+		this(PluginAPI.getInstance().getDatasetAPI());
+	}
+
+	/**
+	 * The constructor creates a new instance of {@link FFTCrossCorrelation} for
+	 * all images except the reference image.
+	 *
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
+	 */
+	public FFTCrossCorrelation(final DatasetAPI datasetAPI) {
+		super();
+		this.datasetAPI = datasetAPI;
+		width = 2 * datasetAPI.getDelta() + 1;
+		templateIndex = datasetAPI.getTemplateIndex();
+		array_crossCorrelationCoefficients = datasetAPI.getCorrelationCoefficients();
+		final FloatProcessor referenceImage = datasetAPI.getCroppedReferenceImage();
+		final int refWidth = referenceImage.getWidth();
+		final int refHeight = referenceImage.getHeight();
+		final float[] pixels = (float[]) referenceImage.getPixels();
+		referenceMean = datasetAPI.getReferenceMean();
+		// The shifted images never cross the border of the reference image,
+		// so the padding needs no additional space.
+		transform = new FourierTransform(FourierTransform.goodSize(refWidth),
+				FourierTransform.goodSize(refHeight));
+		final int size = transform.getWidth() * transform.getHeight();
+		referenceRe = new double[size];
+		referenceIm = new double[size];
+		for (int y = 0; y < refHeight; y++) {
+			for (int x = 0; x < refWidth; x++) {
+				referenceRe[y * transform.getWidth() + x] = pixels[y * refWidth + x] - referenceMean;
+			}
+		}
+		transform.transform(referenceRe, referenceIm, false);
+	}
+
+	/**
+	 * Calculates the crosscorrelation coefficient map of a single image.
+	 *
+	 * @param index
+	 *            The index at the stack, it starts at 0.
+	 */
+	private void calculateMap(final int index) {
+		final FloatProcessor image = datasetAPI.getCroppedImage(index);
+		final int imageWidth = image.getWidth();
+		final int imageHeight = image.getHeight();
+		final float[] pixels = (float[]) image.getPixels();
+		final int n = imageWidth * imageHeight;
+		final double mean = datasetAPI.getMean(index);
+		final int fftWidth = transform.getWidth();
+		final double[] re = new double[fftWidth * transform.getHeight()];
+		final double[] im = new double[re.length];
+		// The sum of the image minus its mean is not exactly 0, because the
+		// mean is stored as float.
+		double residual = 0;
+		for (int j = 0; j < imageHeight; j++) {
+			for (int i = 0; i < imageWidth; i++) {
+				final double value = pixels[j * imageWidth + i] - mean;
+				re[j * fftWidth + i] = value;
+				residual += value;
+			}
+		}
+		transform.transform(re, im, false);
+		// The product with the complex conjugate of the image results in the
+		// correlation.
+		for (int i = 0; i < re.length; i++) {
+			final double productRe = referenceRe[i] * re[i] + referenceIm[i] * im[i];
+			final double productIm = referenceIm[i] * re[i] - referenceRe[i] * im[i];
+			re[i] = productRe;
+			im[i] = productIm;
+		}
+		transform.transform(re, im, true);
+		for (int y = 0; y < width; y++) {
+			for (int x = 0; x < width; x++) {
+				// sum(t * (i - mean)) is the numerator of CrossCorrelation.
+				// It is equal to sum((t - referenceMean) * (i - mean)) +
+				// referenceMean * sum(i - mean).
+				final double covariance = re[y * fftWidth + x] + referenceMean * residual;
+				final double tSum = datasetAPI.getReferenceSum(x, y, imageWidth, imageHeight);
+				final double tSquareSum = datasetAPI.getReferenceSquareSum(x, y, imageWidth, imageHeight);
+				array_crossCorrelationCoefficients[index][y * width + x] = (float) (covariance
+						/ (Math.sqrt(tSquareSum - tSum * tSum / n) * datasetAPI.getSigma(index)));
+			}
+		}
+	}
+
+	@Override
+	public void finished() {
+		// The results have been written to the coefficient maps.
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		// Each image needs two transforms of the padded reference image, so
+		// each tile contains a single image.
+		return 2 * 8 * transform.getWidth() * transform.getHeight();
+	}
+
+	@Override
+	public int getHeight() {
+		return array_crossCorrelationCoefficients.length;
+	}
+
+	@Override
+	public int getWidth() {
+		return 1;
+	}
+
+	@Override
+	public void processTile(final Tile tile) {
+		for (int index = tile.getY(); index < tile.getY() + tile.getHeight(); index++) {
+			if (index != templateIndex) {
+				calculateMap(index);
+			}
+		}
+	}
+}
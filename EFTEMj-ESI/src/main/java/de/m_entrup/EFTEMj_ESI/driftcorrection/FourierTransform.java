@@ -0,0 +1,482 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.m_entrup.EFTEMj_ESI.driftcorrection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A two-dimensional discrete Fourier transform of complex values with double
+ * precision. The width and height have to be products of the factors 2, 3 and
+ * 5, {@link #goodSize(int)} returns the smallest suitable size. Such sizes are
+ * much closer to the image size than powers of two, so the padded images need
+ * less memory.<br>
+ * The transform is a recursive mixed radix Cooley-Tukey algorithm. An
+ * instance can be shared by several threads, the buffers are allocated by
+ * each call.
+ *
+ * @author Michael Entrup b. Epping
+ */
+class FourierTransform {
+
+	/**
+	 * The factors that are allowed for the width and the height.
+	 */
+	private static final int[] RADICES = { 2, 3, 5 };
+	/**
+	 * The number of columns that are transformed together, so the values of
+	 * each row are read from contiguous memory.
+	 */
+	private static final int COLUMN_BATCH = 16;
+
+	/**
+	 * @param n
+	 *            The minimal size.
+	 * @return The smallest size that is not less than n and has no other prime
+	 *         factors than 2, 3 and 5.
+	 */
+	static int goodSize(final int n) {
+		int size = Math.max(1, n);
+		while (factorize(size) == null) {
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * @param n
+	 *            The length of a one-dimensional transform.
+	 * @return The radices of the passes of the transform or <code>null</code>
+	 *         if n has another prime factor than 2, 3 and 5. Two factors of 2
+	 *         are combined to a single pass of radix 4.
+	 */
+	private static int[] factorize(final int n) {
+		final List<Integer> factors = new ArrayList<>();
+		int rest = n;
+		while (rest % 4 == 0) {
+			factors.add(4);
+			rest /= 4;
+		}
+		for (final int radix : RADICES) {
+			while (rest % radix == 0) {
+				factors.add(radix);
+				rest /= radix;
+			}
+		}
+		if (rest != 1) {
+			return null;
+		}
+		final int[] array = new int[factors.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = factors.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * The one-dimensional transform of the rows.
+	 */
+	private final Transform1D rows;
+	/**
+	 * The one-dimensional transform of the columns.
+	 */
+	private final Transform1D columns;
+
+	/**
+	 * @param width
+	 *            The number of columns. Use {@link #goodSize(int)}.
+	 * @param height
+	 *            The number of rows. Use {@link #goodSize(int)}.
+	 * @throws IllegalArgumentException
+	 *             If a size has another prime factor than 2, 3 and 5.
+	 */
+	FourierTransform(final int width, final int height) {
+		rows = new Transform1D(width);
+		columns = new Transform1D(height);
+	}
+
+	/**
+	 * @return The number of columns.
+	 */
+	int getWidth() {
+		return rows.length;
+	}
+
+	/**
+	 * @return The number of rows.
+	 */
+	int getHeight() {
+		return columns.length;
+	}
+
+	/**
+	 * Transforms the values in place.
+	 *
+	 * @param re
+	 *            The real parts, row by row.
+	 * @param im
+	 *            The imaginary parts, row by row.
+	 * @param inverse
+	 *            <code>true</code> for the inverse transform. It is scaled by
+	 *            <code>1 / (width * height)</code>, so it restores the input
+	 *            of the forward transform.
+	 */
+	void transform(final double[] re, final double[] im, final boolean inverse) {
+		final int width = rows.length;
+		final int height = columns.length;
+		if (inverse) {
+			// The inverse transform is the forward transform of the complex
+			// conjugate.
+			for (int i = 0; i < im.length; i++) {
+				im[i] = -im[i];
+			}
+		}
+		final int bufferSize = Math.max(width, height * COLUMN_BATCH);
+		final double[] bufRe = new double[bufferSize];
+		final double[] bufIm = new double[bufferSize];
+		for (int y = 0; y < height; y++) {
+			rows.transform(re, im, y * width, 1, bufRe, bufIm);
+		}
+		final double[] colRe = new double[height * COLUMN_BATCH];
+		final double[] colIm = new double[height * COLUMN_BATCH];
+		for (int x0 = 0; x0 < width; x0 += COLUMN_BATCH) {
+			final int batch = Math.min(COLUMN_BATCH, width - x0);
+			for (int y = 0; y < height; y++) {
+				System.arraycopy(re, y * width + x0, colRe, y * batch, batch);
+				System.arraycopy(im, y * width + x0, colIm, y * batch, batch);
+			}
+			columns.transform(colRe, colIm, 0, batch, bufRe, bufIm);
+			for (int y = 0; y < height; y++) {
+				System.arraycopy(colRe, y * batch, re, y * width + x0, batch);
+				System.arraycopy(colIm, y * batch, im, y * width + x0, batch);
+			}
+		}
+		if (inverse) {
+			final double scale = 1.0 / (width * height);
+			for (int i = 0; i < re.length; i++) {
+				re[i] *= scale;
+				im[i] *= -scale;
+			}
+		}
+	}
+
+	/**
+	 * The forward transform of rows or columns. It is a Stockham algorithm,
+	 * each pass reads one buffer and writes the other one, so no reordering of
+	 * the values is necessary.
+	 */
+	private static class Transform1D {
+
+		/**
+		 * <code>sin(2 &pi; / 3)</code>
+		 */
+		private static final double SIN_60 = Math.sqrt(0.75);
+		/**
+		 * The constants of the butterflies of radix 5.
+		 */
+		private static final double COS_72 = Math.cos(0.4 * Math.PI);
+		private static final double COS_144 = Math.cos(0.8 * Math.PI);
+		private static final double SIN_72 = Math.sin(0.4 * Math.PI);
+		private static final double SIN_144 = Math.sin(0.8 * Math.PI);
+
+		/**
+		 * The number of values.
+		 */
+		private final int length;
+		/**
+		 * The radix of each pass.
+		 */
+		private final int[] factors;
+		/**
+		 * <code>cos(2 &pi; j / length)</code> for all j.
+		 */
+		private final double[] cos;
+		/**
+		 * <code>-sin(2 &pi; j / length)</code> for all j.
+		 */
+		private final double[] sin;
+
+		/**
+		 * @param length
+		 *            The number of values.
+		 */
+		private Transform1D(final int length) {
+			this.length = length;
+			factors = factorize(length);
+			if (factors == null) {
+				throw new IllegalArgumentException(
+						"The size " + length + " has another prime factor than 2, 3 and 5.");
+			}
+			cos = new double[length];
+			sin = new double[length];
+			for (int j = 0; j < length; j++) {
+				final double angle = 2 * Math.PI * j / length;
+				cos[j] = Math.cos(angle);
+				sin[j] = -Math.sin(angle);
+			}
+		}
+
+		/**
+		 * Transforms <code>batch</code> interleaved sequences. Value k of
+		 * sequence b is found at <code>offset + k * batch + b</code>.
+		 *
+		 * @param re
+		 *            The real parts. They are replaced by the result.
+		 * @param im
+		 *            The imaginary parts. They are replaced by the result.
+		 * @param offset
+		 *            The position of the first value.
+		 * @param batch
+		 *            The number of sequences.
+		 * @param bufRe
+		 *            A buffer of at least <code>length * batch</code> values.
+		 * @param bufIm
+		 *            A buffer of at least <code>length * batch</code> values.
+		 */
+		private void transform(final double[] re, final double[] im, final int offset, final int batch,
+				final double[] bufRe, final double[] bufIm) {
+			double[] inRe = re;
+			double[] inIm = im;
+			int inOffset = offset;
+			double[] outRe = bufRe;
+			double[] outIm = bufIm;
+			int outOffset = 0;
+			// The length of the sub-sequences that have been transformed.
+			int ns = 1;
+			for (final int p : factors) {
+				switch (p) {
+				case 2:
+					pass2(inRe, inIm, inOffset, outRe, outIm, outOffset, ns, batch);
+					break;
+				case 3:
+					pass3(inRe, inIm, inOffset, outRe, outIm, outOffset, ns, batch);
+					break;
+				case 4:
+					pass4(inRe, inIm, inOffset, outRe, outIm, outOffset, ns, batch);
+					break;
+				default:
+					pass5(inRe, inIm, inOffset, outRe, outIm, outOffset, ns, batch);
+				}
+				ns *= p;
+				final double[] swapRe = inRe;
+				final double[] swapIm = inIm;
+				final int swapOffset = inOffset;
+				inRe = outRe;
+				inIm = outIm;
+				inOffset = outOffset;
+				outRe = swapRe;
+				outIm = swapIm;
+				outOffset = swapOffset;
+			}
+			if (inRe != re) {
+				System.arraycopy(inRe, inOffset, re, offset, length * batch);
+				System.arraycopy(inIm, inOffset, im, offset, length * batch);
+			}
+		}
+
+		/*
+		 * Each pass combines p transforms of length ns to one transform of
+		 * length ns * p. Value r of a butterfly is read from j + r * length /
+		 * p, multiplied by the twiddle factor exp(-2 pi i r (j mod ns) / (ns
+		 * p)) and written to (j - j mod ns) * p + j mod ns + r * ns.
+		 */
+
+		private void pass2(final double[] inRe, final double[] inIm, final int inOffset, final double[] outRe,
+				final double[] outIm, final int outOffset, final int ns, final int batch) {
+			final int stride = length / 2 * batch;
+			final int twiddleStep = length / (ns * 2);
+			for (int j = 0; j < length / 2; j++) {
+				final int jm = j % ns;
+				final double w1Re = cos[jm * twiddleStep];
+				final double w1Im = sin[jm * twiddleStep];
+				final int in = inOffset + j * batch;
+				final int out = outOffset + ((j - jm) * 2 + jm) * batch;
+				final int outStride = ns * batch;
+				for (int b = 0; b < batch; b++) {
+					final double a0Re = inRe[in + b];
+					final double a0Im = inIm[in + b];
+					final double a1Re = inRe[in + stride + b] * w1Re - inIm[in + stride + b] * w1Im;
+					final double a1Im = inRe[in + stride + b] * w1Im + inIm[in + stride + b] * w1Re;
+					outRe[out + b] = a0Re + a1Re;
+					outIm[out + b] = a0Im + a1Im;
+					outRe[out + outStride + b] = a0Re - a1Re;
+					outIm[out + outStride + b] = a0Im - a1Im;
+				}
+			}
+		}
+
+		private void pass3(final double[] inRe, final double[] inIm, final int inOffset, final double[] outRe,
+				final double[] outIm, final int outOffset, final int ns, final int batch) {
+			final int stride = length / 3 * batch;
+			final int twiddleStep = length / (ns * 3);
+			for (int j = 0; j < length / 3; j++) {
+				final int jm = j % ns;
+				final double w1Re = cos[jm * twiddleStep];
+				final double w1Im = sin[jm * twiddleStep];
+				final double w2Re = cos[2 * jm * twiddleStep];
+				final double w2Im = sin[2 * jm * twiddleStep];
+				final int in = inOffset + j * batch;
+				final int out = outOffset + ((j - jm) * 3 + jm) * batch;
+				final int outStride = ns * batch;
+				for (int b = 0; b < batch; b++) {
+					final int i1 = in + stride + b;
+					final int i2 = i1 + stride;
+					final double a1Re = inRe[i1] * w1Re - inIm[i1] * w1Im;
+					final double a1Im = inRe[i1] * w1Im + inIm[i1] * w1Re;
+					final double a2Re = inRe[i2] * w2Re - inIm[i2] * w2Im;
+					final double a2Im = inRe[i2] * w2Im + inIm[i2] * w2Re;
+					final double sumRe = a1Re + a2Re;
+					final double sumIm = a1Im + a2Im;
+					final double midRe = inRe[in + b] - 0.5 * sumRe;
+					final double midIm = inIm[in + b] - 0.5 * sumIm;
+					// -i * sin(60) * (a1 - a2)
+					final double rotRe = SIN_60 * (a1Im - a2Im);
+					final double rotIm = SIN_60 * (a2Re - a1Re);
+					outRe[out + b] = inRe[in + b] + sumRe;
+					outIm[out + b] = inIm[in + b] + sumIm;
+					outRe[out + outStride + b] = midRe + rotRe;
+					outIm[out + outStride + b] = midIm + rotIm;
+					outRe[out + 2 * outStride + b] = midRe - rotRe;
+					outIm[out + 2 * outStride + b] = midIm - rotIm;
+				}
+			}
+		}
+
+		private void pass4(final double[] inRe, final double[] inIm, final int inOffset, final double[] outRe,
+				final double[] outIm, final int outOffset, final int ns, final int batch) {
+			final int stride = length / 4 * batch;
+			final int twiddleStep = length / (ns * 4);
+			for (int j = 0; j < length / 4; j++) {
+				final int jm = j % ns;
+				final double w1Re = cos[jm * twiddleStep];
+				final double w1Im = sin[jm * twiddleStep];
+				final double w2Re = cos[2 * jm * twiddleStep];
+				final double w2Im = sin[2 * jm * twiddleStep];
+				final double w3Re = cos[3 * jm * twiddleStep];
+				final double w3Im = sin[3 * jm * twiddleStep];
+				final int in = inOffset + j * batch;
+				final int out = outOffset + ((j - jm) * 4 + jm) * batch;
+				final int outStride = ns * batch;
+				for (int b = 0; b < batch; b++) {
+					final int i1 = in + stride + b;
+					final int i2 = i1 + stride;
+					final int i3 = i2 + stride;
+					final double a0Re = inRe[in + b];
+					final double a0Im = inIm[in + b];
+					final double a1Re = inRe[i1] * w1Re - inIm[i1] * w1Im;
+					final double a1Im = inRe[i1] * w1Im + inIm[i1] * w1Re;
+					final double a2Re = inRe[i2] * w2Re - inIm[i2] * w2Im;
+					final double a2Im = inRe[i2] * w2Im + inIm[i2] * w2Re;
+					final double a3Re = inRe[i3] * w3Re - inIm[i3] * w3Im;
+					final double a3Im = inRe[i3] * w3Im + inIm[i3] * w3Re;
+					final double sRe = a0Re + a2Re;
+					final double sIm = a0Im + a2Im;
+					final double dRe = a0Re - a2Re;
+					final double dIm = a0Im - a2Im;
+					final double tRe = a1Re + a3Re;
+					final double tIm = a1Im + a3Im;
+					// -i * (a1 - a3)
+					final double uRe = a1Im - a3Im;
+					final double uIm = a3Re - a1Re;
+					outRe[out + b] = sRe + tRe;
+					outIm[out + b] = sIm + tIm;
+					outRe[out + outStride + b] = dRe + uRe;
+					outIm[out + outStride + b] = dIm + uIm;
+					outRe[out + 2 * outStride + b] = sRe - tRe;
+					outIm[out + 2 * outStride + b] = sIm - tIm;
+					outRe[out + 3 * outStride + b] = dRe - uRe;
+					outIm[out + 3 * outStride + b] = dIm - uIm;
+				}
+			}
+		}
+
+		private void pass5(final double[] inRe, final double[] inIm, final int inOffset, final double[] outRe,
+				final double[] outIm, final int outOffset, final int ns, final int batch) {
+			final int stride = length / 5 * batch;
+			final int twiddleStep = length / (ns * 5);
+			for (int j = 0; j < length / 5; j++) {
+				final int jm = j % ns;
+				final double w1Re = cos[jm * twiddleStep];
+				final double w1Im = sin[jm * twiddleStep];
+				final double w2Re = cos[2 * jm * twiddleStep];
+				final double w2Im = sin[2 * jm * twiddleStep];
+				final double w3Re = cos[3 * jm * twiddleStep];
+				final double w3Im = sin[3 * jm * twiddleStep];
+				final double w4Re = cos[4 * jm * twiddleStep];
+				final double w4Im = sin[4 * jm * twiddleStep];
+				final int in = inOffset + j * batch;
+				final int out = outOffset + ((j - jm) * 5 + jm) * batch;
+				final int outStride = ns * batch;
+				for (int b = 0; b < batch; b++) {
+					final int i1 = in + stride + b;
+					final int i2 = i1 + stride;
+					final int i3 = i2 + stride;
+					final int i4 = i3 + stride;
+					final double a0Re = inRe[in + b];
+					final double a0Im = inIm[in + b];
+					final double a1Re = inRe[i1] * w1Re - inIm[i1] * w1Im;
+					final double a1Im = inRe[i1] * w1Im + inIm[i1] * w1Re;
+					final double a2Re = inRe[i2] * w2Re - inIm[i2] * w2Im;
+					final double a2Im = inRe[i2] * w2Im + inIm[i2] * w2Re;
+					final double a3Re = inRe[i3] * w3Re - inIm[i3] * w3Im;
+					final double a3Im = inRe[i3] * w3Im + inIm[i3] * w3Re;
+					final double a4Re = inRe[i4] * w4Re - inIm[i4] * w4Im;
+					final double a4Im = inRe[i4] * w4Im + inIm[i4] * w4Re;
+					final double t1Re = a1Re + a4Re;
+					final double t1Im = a1Im + a4Im;
+					final double t2Re = a2Re + a3Re;
+					final double t2Im = a2Im + a3Im;
+					final double t3Re = a1Re - a4Re;
+					final double t3Im = a1Im - a4Im;
+					final double t4Re = a2Re - a3Re;
+					final double t4Im = a2Im - a3Im;
+					final double m1Re = a0Re + COS_72 * t1Re + COS_144 * t2Re;
+					final double m1Im = a0Im + COS_72 * t1Im + COS_144 * t2Im;
+					final double m2Re = a0Re + COS_144 * t1Re + COS_72 * t2Re;
+					final double m2Im = a0Im + COS_144 * t1Im + COS_72 * t2Im;
+					// -i * (sin(72) * t3 + sin(144) * t4)
+					final double u1Re = SIN_72 * t3Im + SIN_144 * t4Im;
+					final double u1Im = -SIN_72 * t3Re - SIN_144 * t4Re;
+					// -i * (sin(144) * t3 - sin(72) * t4)
+					final double u2Re = SIN_144 * t3Im - SIN_72 * t4Im;
+					final double u2Im = SIN_72 * t4Re - SIN_144 * t3Re;
+					outRe[out + b] = a0Re + t1Re + t2Re;
+					outIm[out + b] = a0Im + t1Im + t2Im;
+					outRe[out + outStride + b] = m1Re + u1Re;
+					outIm[out + outStride + b] = m1Im + u1Im;
+					outRe[out + 2 * outStride + b] = m2Re + u2Re;
+					outIm[out + 2 * outStride + b] = m2Im + u2Im;
+					outRe[out + 3 * outStride + b] = m2Re - u2Re;
+					outIm[out + 3 * outStride + b] = m2Im - u2Im;
+					outRe[out + 4 * outStride + b] = m1Re - u1Re;
+					outIm[out + 4 * outStride + b] = m1Im - u1Im;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,355 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.driftcorrection;
+
+import java.util.Arrays;
+
+import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
+import ij.process.FloatProcessor;
+
+/**
+ * A coarse-to-fine search for the maximum of the cross correlation. The drift
+ * is estimated at binned copies of the cropped images, where all shifts up to
+ * delta are checked. Then the coefficients of a small area around the coarse
+ * estimate are calculated at full resolution by {@link CrossCorrelation}. If
+ * the maximum is found at the border of this area, the search follows the
+ * rising coefficients until a local maximum is reached.<br>
+ * All other coefficients of the map are set to -1, the lowest possible value.
+ * The position of the maximum and its neighbours are the same as with the
+ * exhaustive search, unless the binned images are ambiguous.<br>
+ * Each {@link Tile} is a single row that represents one image of the stack.
+ *
+ * @author Michael Entrup b. Epping
+ */
+public class PyramidCrossCorrelation implements TileTask {
+
+	/**
+	 * The binned images have to be at least this large to give a reliable
+	 * estimate.
+	 */
+	private static final int MIN_BINNED_SIZE = 32;
+	/**
+	 * The binning factors that are tried, the largest one first.
+	 */
+	private static final int[] BINNINGS = { 8, 4, 2 };
+	/**
+	 * The value of all coefficients that are not calculated.
+	 */
+	private static final float NOT_CALCULATED = -1;
+
+	/**
+	 * Selects the binning of the coarse search. A factor is only used if the
+	 * binned ROI is not smaller than {@value #MIN_BINNED_SIZE} pixels and if
+	 * delta is at least twice the factor. Otherwise the refinement would cover
+	 * most of the map.
+	 *
+	 * @param roiWidth
+	 *            The width of the ROI.
+	 * @param roiHeight
+	 *            The height of the ROI.
+	 * @param delta
+	 *            The largest considered drift.
+	 * @return The binning factor or 1 if the coarse-to-fine search is not
+	 *         useful.
+	 */
+	public static int getBinning(final int roiWidth, final int roiHeight, final int delta) {
+		for (final int binning : BINNINGS) {
+			if (Math.min(roiWidth, roiHeight) / binning >= MIN_BINNED_SIZE && delta >= 2 * binning) {
+				return binning;
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * The crosscorrelation coefficients of all images.
+	 */
+	private final float[][] array_crossCorrelationCoefficients;
+	/**
+	 * The binning factor of the coarse search.
+	 */
+	private final int binning;
+	/**
+	 * The binned reference image minus its mean.
+	 */
+	private final float[] binnedReference;
+	private final int binnedReferenceWidth;
+	/**
+	 * The width and height of the binned images.
+	 */
+	private final int binnedWidth;
+	private final int binnedHeight;
+	/**
+	 * The number of coarse shifts in each direction.
+	 */
+	private final int coarseWidth;
+	/**
+	 * The {@link DatasetAPI} of the processed dataset.
+	 */
+	private final DatasetAPI datasetAPI;
+	/**
+	 * Calculates the coefficients at full resolution.
+	 */
+	private final CrossCorrelation fineCorrelation;
+	/**
+	 * The coefficients at full resolution are calculated up to this distance
+	 * from the coarse estimate.
+	 */
+	private final int radius;
+	/**
+	 * The index of the reference image at the stack.
+	 */
+	private final int templateIndex;
+	/**
+	 * The width and height of the crosscorrelation coefficient map.
+	 */
+	private final int width;
+
+	/**
+	 * The {@link DatasetAPI} of the {@link PluginAPI} is used.
+	 *
+	 * @param binning
+	 *            The binning factor of the coarse search, see
+	 *            {@link #getBinning(int, int, int)}.
+	 */
+	public PyramidCrossCorrelation(final int binning) {
+		this(PluginAPI.getInstance().getDatasetAPI(), binning);
+	}
+
+	/**
+	 * The constructor creates a new instance of {@link PyramidCrossCorrelation}
+	 * for all images except the reference image. The reference image is binned
+	 * once.
+	 *
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
+	 * @param binning
+	 *            The binning factor of the coarse search, see
+	 *            {@link #getBinning(int, int, int)}.
+	 */
+	public PyramidCrossCorrelation(final DatasetAPI datasetAPI, final int binning) {
+		super();
+		this.datasetAPI = datasetAPI;
+		this.binning = binning;
+		width = 2 * datasetAPI.getDelta() + 1;
+		templateIndex = datasetAPI.getTemplateIndex();
+		array_crossCorrelationCoefficients = datasetAPI.getCorrelationCoefficients();
+		fineCorrelation = new CrossCorrelation(datasetAPI);
+		radius = binning / 2 + 1;
+		final FloatProcessor referenceImage = datasetAPI.getCroppedReferenceImage();
+		binnedReferenceWidth = referenceImage.getWidth() / binning;
+		binnedReference = bin(referenceImage, binning);
+		subtractMean(binnedReference);
+		final FloatProcessor image = datasetAPI.getCroppedImage(templateIndex == 0 ? 1 : 0);
+		binnedWidth = image.getWidth() / binning;
+		binnedHeight = image.getHeight() / binning;
+		// The reference image is 2 * delta larger than the other images.
+		coarseWidth = (width - 1) / binning + 1;
+	}
+
+	/**
+	 * @param fp
+	 *            The image to bin.
+	 * @param binning
+	 *            The binning factor. Incomplete blocks at the right and bottom
+	 *            border are dropped.
+	 * @return The mean values of all blocks of binning x binning pixels.
+	 */
+	private static float[] bin(final FloatProcessor fp, final int binning) {
+		final int width = fp.getWidth() / binning;
+		final int height = fp.getHeight() / binning;
+		final float[] pixels = (float[]) fp.getPixels();
+		final float[] binned = new float[width * height];
+		for (int y = 0; y < height * binning; y++) {
+			final int offset = y * fp.getWidth();
+			final int binnedOffset = (y / binning) * width;
+			for (int x = 0; x < width * binning; x++) {
+				binned[binnedOffset + x / binning] += pixels[offset + x];
+			}
+		}
+		for (int i = 0; i < binned.length; i++) {
+			binned[i] /= binning * binning;
+		}
+		return binned;
+	}
+
+	/**
+	 * @param values
+	 *            The mean value is subtracted from all values.
+	 */
+	private static void subtractMean(final float[] values) {
+		double sum = 0;
+		for (final float value : values) {
+			sum += value;
+		}
+		final float mean = (float) (sum / values.length);
+		for (int i = 0; i < values.length; i++) {
+			values[i] -= mean;
+		}
+	}
+
+	/**
+	 * Checks all shifts at the binned images.
+	 *
+	 * @param index
+	 *            The index at the stack, it starts at 0.
+	 * @return The position of the maximum at the coefficient map in full
+	 *         resolution (y * width + x).
+	 */
+	private int coarseSearch(final int index) {
+		final float[] image = bin(datasetAPI.getCroppedImage(index), binning);
+		subtractMean(image);
+		double imageSquareSum = 0;
+		for (final float value : image) {
+			imageSquareSum += value * value;
+		}
+		final int n = binnedWidth * binnedHeight;
+		double max = Double.NEGATIVE_INFINITY;
+		int maxX = 0;
+		int maxY = 0;
+		for (int y = 0; y < coarseWidth; y++) {
+			for (int x = 0; x < coarseWidth; x++) {
+				double tSum = 0;
+				double tSquareSum = 0;
+				double covariance = 0;
+				for (int j = 0; j < binnedHeight; j++) {
+					final int offset = (y + j) * binnedReferenceWidth + x;
+					for (int i = 0; i < binnedWidth; i++) {
+						final double templateQ = binnedReference[offset + i];
+						tSum += templateQ;
+						tSquareSum += templateQ * templateQ;
+						covariance += templateQ * image[j * binnedWidth + i];
+					}
+				}
+				final double coefficient = covariance / Math.sqrt((tSquareSum - tSum * tSum / n) * imageSquareSum);
+				if (coefficient > max) {
+					max = coefficient;
+					maxX = x;
+					maxY = y;
+				}
+			}
+		}
+		return maxY * binning * width + maxX * binning;
+	}
+
+	/**
+	 * Calculates the coefficients around the coarse estimate and follows the
+	 * rising coefficients if the maximum is found at the border of this area.
+	 *
+	 * @param index
+	 *            The index at the stack, it starts at 0.
+	 */
+	private void calculateMap(final int index) {
+		final float[] coefficients = array_crossCorrelationCoefficients[index];
+		Arrays.fill(coefficients, NOT_CALCULATED);
+		final boolean[] calculated = new boolean[coefficients.length];
+		final int estimate = coarseSearch(index);
+		int max = estimate;
+		for (int y = estimate / width - radius; y <= estimate / width + radius; y++) {
+			for (int x = estimate % width - radius; x <= estimate % width + radius; x++) {
+				max = calculate(index, x, y, calculated, max);
+			}
+		}
+		// Hill climbing: all neighbours of the maximum have to be calculated.
+		int previous;
+		do {
+			previous = max;
+			for (int y = previous / width - 1; y <= previous / width + 1; y++) {
+				for (int x = previous % width - 1; x <= previous % width + 1; x++) {
+					max = calculate(index, x, y, calculated, max);
+				}
+			}
+		} while (max != previous);
+	}
+
+	/**
+	 * Calculates a single coefficient, if it is inside the map and has not
+	 * been calculated before.
+	 *
+	 * @param index
+	 *            The index at the stack, it starts at 0.
+	 * @param x
+	 *            The column of the coefficient map.
+	 * @param y
+	 *            The row of the coefficient map.
+	 * @param calculated
+	 *            Marks the coefficients that have been calculated.
+	 * @param max
+	 *            The position of the largest coefficient so far.
+	 * @return The position of the largest coefficient.
+	 */
+	private int calculate(final int index, final int x, final int y, final boolean[] calculated, final int max) {
+		if (x < 0 || y < 0 || x >= width || y >= width || calculated[y * width + x]) {
+			return max;
+		}
+		final float[] coefficients = array_crossCorrelationCoefficients[index];
+		final int position = y * width + x;
+		coefficients[position] = fineCorrelation.calculateCoefficient(index, x, y);
+		calculated[position] = true;
+		if (!calculated[max] || coefficients[position] > coefficients[max]) {
+			return position;
+		}
+		return max;
+	}
+
+	@Override
+	public void finished() {
+		// The results have been written to the coefficient maps.
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		// Each image reads the cropped image and the cropped reference image.
+		final FloatProcessor image = datasetAPI.getCroppedReferenceImage();
+		return 2 * 4 * image.getWidth() * image.getHeight();
+	}
+
+	@Override
+	public int getHeight() {
+		return array_crossCorrelationCoefficients.length;
+	}
+
+	@Override
+	public int getWidth() {
+		return 1;
+	}
+
+	@Override
+	public void processTile(final Tile tile) {
+		for (int index = tile.getY(); index < tile.getY() + tile.getHeight(); index++) {
+			if (index != templateIndex) {
+				calculateMap(index);
+			}
+		}
+	}
+}
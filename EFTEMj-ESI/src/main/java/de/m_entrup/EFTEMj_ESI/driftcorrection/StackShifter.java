@@ -0,0 +1,133 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.driftcorrection;
+
+import java.awt.geom.Point2D;
+
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
+import de.m_entrup.EFTEMj_ESI.tools.ImageShifter;
+import ij.ImageStack;
+
+/**
+ * Shifts all slices of a stack by the drift that has been detected. The
+ * result stack and the pixels of all its slices are allocated by the
+ * constructor; each slice is written once by
+ * {@link ImageShifter#shiftInto(float[], int, int, Point2D.Double, float, float[])}.
+ * <br>
+ * Each {@link Tile} is a single row that represents one slice of the stack,
+ * so the slices are processed in parallel by the {@link Tile} scheduler.
+ *
+ * @author Michael Entrup b. Epping
+ */
+public class StackShifter implements TileTask {
+
+	/**
+	 * The stack that is shifted. It is not changed.
+	 */
+	private final ImageStack source;
+	/**
+	 * The shift of each slice. A slice without a shift is copied.
+	 */
+	private final Point2D.Double[] shifts;
+	/**
+	 * The value of pixels without a source.
+	 */
+	private final float fillValue;
+	/**
+	 * The shifted stack.
+	 */
+	private final ImageStack result;
+
+	/**
+	 * @param source
+	 *            A stack of 32-bit images. It is not changed.
+	 * @param shifts
+	 *            The shift of each slice [x, y] (index starting at 0). Slices
+	 *            with the shift <code>null</code>, e.g. the reference image,
+	 *            are copied.
+	 * @param fillValue
+	 *            The value of pixels without a source, e.g. 0 or
+	 *            {@link Float#NaN}.
+	 */
+	public StackShifter(final ImageStack source, final Point2D.Double[] shifts, final float fillValue) {
+		super();
+		this.source = source;
+		this.shifts = shifts;
+		this.fillValue = fillValue;
+		result = new ImageStack(source.getWidth(), source.getHeight());
+		for (int i = 0; i < source.getSize(); i++) {
+			result.addSlice(source.getSliceLabel(i + 1), new float[source.getWidth() * source.getHeight()]);
+		}
+	}
+
+	@Override
+	public void finished() {
+		// The results have been written to the result stack.
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		// Each slice reads the source and writes the result, so each tile
+		// contains a single slice.
+		return 2 * 4 * source.getWidth() * source.getHeight();
+	}
+
+	@Override
+	public int getHeight() {
+		return source.getSize();
+	}
+
+	/**
+	 * @return The shifted stack. It is complete after all {@link Tile}s have
+	 *         been processed.
+	 */
+	public ImageStack getResult() {
+		return result;
+	}
+
+	@Override
+	public int getWidth() {
+		return 1;
+	}
+
+	@Override
+	public void processTile(final Tile tile) {
+		for (int index = tile.getY(); index < tile.getY() + tile.getHeight(); index++) {
+			final float[] pixels = (float[]) source.getPixels(index + 1);
+			final float[] target = (float[]) result.getPixels(index + 1);
+			if (shifts[index] == null) {
+				System.arraycopy(pixels, 0, target, 0, pixels.length);
+			} else {
+				ImageShifter.shiftInto(pixels, source.getWidth(), source.getHeight(), shifts[index], fillValue,
+						target);
+			}
+		}
+	}
+}
@@ -28,6 +28,7 @@
 package de.m_entrup.EFTEMj_ESI.gui;
 
 import java.awt.BorderLayout;
+import java.awt.Checkbox;
 import java.awt.Choice;
 import java.awt.Frame;
 import java.awt.GridLayout;
@@ -87,6 +88,10 @@ public class DriftSetupDialog extends EFTEMFrame implements ChangeListener {
 				return;
 			}
 			DriftSetupDialog.this.dispose();
+			datasetAPI.setFftCorrelation(fftCorrelationBox.getState());
+			datasetAPI.setSubPixelShift(subPixelBox.getState());
+			datasetAPI.setPyramidSearch(pyramidBox.getState());
+			datasetAPI.setFillValue(fillNaNBox.getState() ? Float.NaN : 0);
 			try {
 				final DriftExecutor executor = new DriftExecutor();
 				executor.execute();
@@ -121,6 +126,27 @@ public class DriftSetupDialog extends EFTEMFrame implements ChangeListener {
 	 * inner ActionListener class.
 	 */
 	private Choice templateMenu;
+	/**
+	 * At this check box the {@link DriftExecutor} is set to use the Fourier
+	 * transform. It can be accessed by the inner ActionListener class.
+	 */
+	private Checkbox fftCorrelationBox;
+	/**
+	 * At this check box the sub-pixel drift correction is enabled. It can be
+	 * accessed by the inner ActionListener class.
+	 */
+	private Checkbox subPixelBox;
+	/**
+	 * At this check box the coarse-to-fine search is enabled. It can be
+	 * accessed by the inner ActionListener class.
+	 */
+	private Checkbox pyramidBox;
+	/**
+	 * At this check box NaN is selected as value of the pixels that have no
+	 * source after shifting, otherwise 0 is used. It can be accessed by the
+	 * inner ActionListener class.
+	 */
+	private Checkbox fillNaNBox;
 
 	/**
 	 * The constructor creates a new {@link Frame} using the constructor of
@@ -202,7 +228,7 @@ public class DriftSetupDialog extends EFTEMFrame implements ChangeListener {
 		 */
 		// Create a GridLayout
 		final Panel panel = new Panel();
-		final GridLayout gLayout = new GridLayout(4, 2, PluginConstants.LAYOUT__GAP, PluginConstants.LAYOUT__GAP);
+		final GridLayout gLayout = new GridLayout(6, 2, PluginConstants.LAYOUT__GAP, PluginConstants.LAYOUT__GAP);
 		panel.setLayout(gLayout);
 		// Title of the image that is used
 		panel.add(new Label(PluginMessages.getString("Label.SelectedStack")));
@@ -217,6 +243,15 @@ public class DriftSetupDialog extends EFTEMFrame implements ChangeListener {
 		panel.add(new Label(PluginMessages.getString("Label.TemplateImage")));
 		panel.add(templateMenu);
 		// panel.add(templateField);
+		fftCorrelationBox = new Checkbox(PluginMessages.getString("Label.FftCorrelation"),
+				datasetAPI.isFftCorrelation());
+		panel.add(fftCorrelationBox);
+		subPixelBox = new Checkbox(PluginMessages.getString("Label.SubPixelShift"), datasetAPI.isSubPixelShift());
+		panel.add(subPixelBox);
+		pyramidBox = new Checkbox(PluginMessages.getString("Label.PyramidSearch"), datasetAPI.isPyramidSearch());
+		panel.add(pyramidBox);
+		fillNaNBox = new Checkbox(PluginMessages.getString("Label.FillNaN"), Float.isNaN(datasetAPI.getFillValue()));
+		panel.add(fillNaNBox);
 		return panel;
 	}
 
@@ -507,7 +507,7 @@ public class MainMenu extends Frame {
 			mapResultPanel = null;
 			this.pack();
 			PluginAPI.getInstance().getDatasetAPI().deleteMapDataset();
-			ThreadInterface.getInstance().deleteThreadChecker();
+			ThreadInterface.getInstance().cancel();
 			this.enableMainMenuButtons();
 		}
 	}
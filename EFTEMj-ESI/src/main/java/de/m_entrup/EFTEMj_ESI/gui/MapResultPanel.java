@@ -158,6 +158,14 @@ public class MapResultPanel extends Panel {
 				exportToolMapResult.exportErrorMap();
 				return;
 			}
+			if (e.getSource().equals(buttonTable.get("key_showIterationMap"))) {
+				displayToolMapResult.showIterationMap();
+				return;
+			}
+			if (e.getSource().equals(buttonTable.get("key_exportIterationMap"))) {
+				exportToolMapResult.exportIterationMap();
+				return;
+			}
 			if (e.getActionCommand() == PluginMessages.getString("Button.CloseMapResult")) {
 				PluginAPI.getInstance().getMainMenu().closeMapResultPanel();
 				return;
@@ -279,6 +287,10 @@ public class MapResultPanel extends Panel {
 		addButton("key_showErrorMap", pos, false);
 		addButton("key_exportErrorMap", pos, true);
 		pos++;
+		addLabel(PluginMessages.getString("Label.ShowIterationMap"), pos, 1);
+		addButton("key_showIterationMap", pos, false);
+		addButton("key_exportIterationMap", pos, true);
+		pos++;
 		// Panel spacer = new Panel();
 		// spacer.setBackground(Color.LIGHT_GRAY);
 		// addToMapResultPanel(spacer, 0, pos, 3, 1);
@@ -27,6 +27,8 @@
 
 package de.m_entrup.EFTEMj_ESI.gui;
 
+import java.awt.Checkbox;
+import java.awt.Choice;
 import java.awt.Component;
 import java.awt.Frame;
 import java.awt.GridBagConstraints;
@@ -41,6 +43,8 @@ import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.SwingConstants;
 
+import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+import de.m_entrup.EFTEMj_ESI.dataset.PixelMask;
 import de.m_entrup.EFTEMj_ESI.map.PowerLawFitCalculationExecutor;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
@@ -48,6 +52,7 @@ import de.m_entrup.EFTEMj_ESI.resources.PluginMessages;
 import de.m_entrup.EFTEMj_ESI.tools.LogWriter;
 import de.m_entrup.EFTEMj_lib.EFTEMj_Prefs;
 import ij.Prefs;
+import ij.gui.Roi;
 
 /**
  * This Frame is used to setup the elemental map calculation.
@@ -69,6 +74,11 @@ public class MapSetupDialog extends EFTEMFrame {
 		 */
 		private void readSettings() {
 			epsilon = (float) Prefs.get(EFTEMj_Prefs.PREFS_PREFIX + ESI_PREFIX + "epsilon", epsilon);
+			fusedPostFit = Prefs.get(EFTEMj_Prefs.PREFS_PREFIX + ESI_PREFIX + "fusedPostFit", fusedPostFit);
+			warmStart = Prefs.get(EFTEMj_Prefs.PREFS_PREFIX + ESI_PREFIX + "warmStart", warmStart);
+			progressivePreview = Prefs.get(EFTEMj_Prefs.PREFS_PREFIX + ESI_PREFIX + "progressivePreview",
+					progressivePreview);
+			maskMode = (int) Prefs.get(EFTEMj_Prefs.PREFS_PREFIX + ESI_PREFIX + "maskMode", maskMode);
 		}
 
 		/**
@@ -76,6 +86,10 @@ public class MapSetupDialog extends EFTEMFrame {
 		 */
 		private void writeSettings() {
 			Prefs.set(EFTEMj_Prefs.PREFS_PREFIX + ESI_PREFIX + "epsilon", epsilon);
+			Prefs.set(EFTEMj_Prefs.PREFS_PREFIX + ESI_PREFIX + "fusedPostFit", fusedPostFit);
+			Prefs.set(EFTEMj_Prefs.PREFS_PREFIX + ESI_PREFIX + "warmStart", warmStart);
+			Prefs.set(EFTEMj_Prefs.PREFS_PREFIX + ESI_PREFIX + "progressivePreview", progressivePreview);
+			Prefs.set(EFTEMj_Prefs.PREFS_PREFIX + ESI_PREFIX + "maskMode", maskMode);
 			Prefs.savePreferences();
 		}
 
@@ -97,8 +111,16 @@ public class MapSetupDialog extends EFTEMFrame {
 		protected void okOperation() {
 			eLoss = Float.valueOf(eLossField.getText());
 			epsilon = Float.valueOf(epsilonField.getText());
+			fusedPostFit = fusedPostFitBox.getState();
+			warmStart = warmStartBox.getState();
+			progressivePreview = progressivePreviewBox.getState();
+			maskMode = maskChoice.getSelectedIndex();
 			try {
 				PluginAPI.getInstance().getDatasetAPI().createDatasetMapInput(eLoss, epsilon);
+				PluginAPI.getInstance().getDatasetAPI().setMask(createMask());
+				PluginAPI.getInstance().getDatasetAPI().setFusedPostFit(fusedPostFit);
+				PluginAPI.getInstance().getDatasetAPI().setWarmStart(warmStart);
+				PluginAPI.getInstance().getDatasetAPI().setProgressivePreview(progressivePreview);
 			} catch (final Exception e) {
 				LogWriter.showWarningAndWriteLog(e.getMessage());
 				return;
@@ -141,6 +163,54 @@ public class MapSetupDialog extends EFTEMFrame {
 	 * A {@link JFormattedTextField} to edit the value of epsilon.
 	 */
 	private JFormattedTextField epsilonField;
+	/**
+	 * If <code>true</code> all results of the elemental-map calculation are
+	 * calculated in a single pass after the MLE calculation.
+	 */
+	private boolean fusedPostFit = false;
+	/**
+	 * A {@link Checkbox} to select the single pass calculation.
+	 */
+	private Checkbox fusedPostFitBox;
+	/**
+	 * If <code>true</code> the fit of each pixel starts with the result of the
+	 * previous pixel.
+	 */
+	private boolean warmStart = false;
+	/**
+	 * A {@link Checkbox} to select the warm start of the fit.
+	 */
+	private Checkbox warmStartBox;
+	/**
+	 * If <code>true</code> a binned preview of the elemental-maps is shown
+	 * before the full calculation starts.
+	 */
+	private boolean progressivePreview = false;
+	/**
+	 * A {@link Checkbox} to select the binned preview.
+	 */
+	private Checkbox progressivePreviewBox;
+	/**
+	 * All pixels are fitted.
+	 */
+	private static final int MASK_NONE = 0;
+	/**
+	 * Only the pixels inside the ROI of the stack are fitted.
+	 */
+	private static final int MASK_ROI = 1;
+	/**
+	 * Only the pixels selected by a threshold of the image with the lowest
+	 * energy loss are fitted.
+	 */
+	private static final int MASK_THRESHOLD = 2;
+	/**
+	 * One of {@link #MASK_NONE}, {@link #MASK_ROI} and {@link #MASK_THRESHOLD}.
+	 */
+	private int maskMode = MASK_NONE;
+	/**
+	 * A {@link Choice} to select the pixels that are fitted.
+	 */
+	private Choice maskChoice;
 	/**
 	 * This is the Layout used by the optionPanel.
 	 */
@@ -203,6 +273,28 @@ public class MapSetupDialog extends EFTEMFrame {
 		panel.add(comp);
 	}
 
+	/**
+	 * @return The {@link PixelMask} selected by {@link #maskMode} or
+	 *         <code>null</code> if all pixels are fitted.
+	 * @throws Exception
+	 *             If the ROI is selected, but the stack has no area ROI.
+	 */
+	private PixelMask createMask() throws Exception {
+		final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
+		switch (maskMode) {
+		case MASK_ROI:
+			final Roi roi = datasetAPI.getImagePlus().getRoi();
+			if (roi == null || !roi.isArea()) {
+				throw new Exception(PluginMessages.getString("Error.NoMaskROI"));
+			}
+			return PixelMask.fromRoi(roi, datasetAPI.getWidth(), datasetAPI.getHeight());
+		case MASK_THRESHOLD:
+			return datasetAPI.createThresholdMask();
+		default:
+			return null;
+		}
+	}
+
 	/**
 	 * Sets the number of columns to 8 and the alignment to RIGHT.
 	 *
@@ -264,6 +356,28 @@ public class MapSetupDialog extends EFTEMFrame {
 		this.configField(epsilonField);
 		epsilonField.setValue(epsilon);
 		addElement(epsilonField, optionPanel, 1, pos, 1, 1);
+		pos++;
+		// Start value of the MLE
+		warmStartBox = new Checkbox(PluginMessages.getString("Label.WarmStart"), warmStart);
+		addElement(warmStartBox, optionPanel, 0, pos, 2, 1);
+		pos++;
+		// Single pass calculation of the results
+		fusedPostFitBox = new Checkbox(PluginMessages.getString("Label.FusedPostFit"), fusedPostFit);
+		addElement(fusedPostFitBox, optionPanel, 0, pos, 2, 1);
+		pos++;
+		// Binned preview of the elemental-maps
+		progressivePreviewBox = new Checkbox(PluginMessages.getString("Label.ProgressivePreview"),
+				progressivePreview);
+		addElement(progressivePreviewBox, optionPanel, 0, pos, 2, 1);
+		pos++;
+		// The pixels that are fitted
+		addElement(new Label(PluginMessages.getString("Label.Mask")), optionPanel, 0, pos, 1, 1);
+		maskChoice = new Choice();
+		maskChoice.add(PluginMessages.getString("Label.MaskNone"));
+		maskChoice.add(PluginMessages.getString("Label.MaskRoi"));
+		maskChoice.add(PluginMessages.getString("Label.MaskThreshold"));
+		maskChoice.select(maskMode);
+		addElement(maskChoice, optionPanel, 1, pos, 1, 1);
 		return optionPanel;
 	}
 }
@@ -27,35 +27,123 @@
 
 package de.m_entrup.EFTEMj_ESI.map;
 
+import de.m_entrup.EFTEMj_ESI.dataset.SpectrumBlock;
+import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
+
+/**
+ * This is the contract of a routine that fits the power law background model
+ * pixel by pixel. The results are not stored by the routine. Instead they are
+ * written to <code>float[]</code> buffers that are supplied by the caller. A
+ * routine must not allocate any objects per pixel, as it is called for each
+ * pixel of the processed stack.
+ */
 public abstract class AbstractFitRoutine {
 
-	// /**
-	// * A shortcut to access the instance of {@link DatasetAPI}.
-	// */
-	// private final DatasetAPI datasetAPI = PluginAPI.getInstance()
-	// .getDatasetAPI();
-	// /**
-	// * The selected {@link ImageStack} as a sorted array of {@link
-	// EFTEMImage}s.
-	// */
-	// private EFTEMImage[] array_EFTEMImages;
-	// /**
-	// * The index of the first post-edge image.
-	// */
-	// private int edgeIndex;
-	// /**
-	// * <code>x + y * width</code>
-	// */
-	// private int index;
-	//
-	// public AbstractFitRoutine() {
-	// array_EFTEMImages = datasetAPI.getEFTEMImageArray();
-	// }
-
-	public abstract short calculateByPixel(int index);
-
-	public abstract float getR(int index);
-
-	public abstract float getA(int index);
+	/**
+	 * The start value of <code>r</code>, if no warm start is used.
+	 */
+	protected static final double R_START = 4.0;
+
+	/**
+	 * If not <code>null</code> the number of iterations of each pixel is
+	 * written to this buffer. The same index as for the results is used.
+	 */
+	protected float[] iterationBuffer = null;
+	/**
+	 * If <code>true</code> the iteration of each pixel starts with the
+	 * <code>r</code> of the previously fitted pixel. Neighbouring pixels
+	 * usually have a similar <code>r</code>, so less iterations are necessary.
+	 */
+	protected boolean warmStart = false;
+
+	/**
+	 * Fits the power law to the pixel at the given index and writes the
+	 * result to the given buffers.
+	 *
+	 * @param index
+	 *            <code>x + y * width</code>
+	 * @param rBuffer
+	 *            The parameter <code>r</code> is written to this buffer.
+	 * @param aBuffer
+	 *            The parameter <code>a</code> is written to this buffer.
+	 * @param bufferIndex
+	 *            The position at rBuffer and aBuffer that is used to save the
+	 *            result.
+	 * @return An error code as defined at {@link PluginConstants}.
+	 */
+	public abstract short calculateByPixel(int index, float[] rBuffer, float[] aBuffer, int bufferIndex);
+
+	/**
+	 * Fits the power law to all pixels of a {@link SpectrumBlock}. The block
+	 * has to contain all images of the processed stack. Routines that can read
+	 * the spectra from the block should override this method. By default the
+	 * span of the block is processed by
+	 * {@link #calculateSpan(int, int, float[], float[], short[], int)}.
+	 *
+	 * @param block
+	 *            A {@link SpectrumBlock} that has been loaded before.
+	 * @param rBuffer
+	 *            The parameters <code>r</code> of the block are written to
+	 *            this buffer.
+	 * @param aBuffer
+	 *            The parameters <code>a</code> of the block are written to
+	 *            this buffer.
+	 * @param errorBuffer
+	 *            The error codes of the block are written to this buffer.
+	 * @param bufferOffset
+	 *            The position at the buffers that corresponds to the first
+	 *            pixel of the block.
+	 */
+	public void calculateBlock(final SpectrumBlock block, final float[] rBuffer, final float[] aBuffer,
+			final short[] errorBuffer, final int bufferOffset) {
+		calculateSpan(block.getIndex(), block.getLength(), rBuffer, aBuffer, errorBuffer, bufferOffset);
+	}
+
+	/**
+	 * Fits the power law to a span of pixels. This is usually a complete
+	 * image row. The buffers have to be at least as long as
+	 * <code>bufferOffset + length</code>. They are filled by the routine and
+	 * can be reused for the next span.
+	 *
+	 * @param index
+	 *            The first pixel of the span (<code>x + y * width</code>).
+	 * @param length
+	 *            The number of pixels to process.
+	 * @param rBuffer
+	 *            The parameters <code>r</code> of the span are written to this
+	 *            buffer.
+	 * @param aBuffer
+	 *            The parameters <code>a</code> of the span are written to this
+	 *            buffer.
+	 * @param errorBuffer
+	 *            The error codes of the span are written to this buffer.
+	 * @param bufferOffset
+	 *            The position at the buffers that corresponds to the first
+	 *            pixel of the span.
+	 */
+	public void calculateSpan(final int index, final int length, final float[] rBuffer, final float[] aBuffer,
+			final short[] errorBuffer, final int bufferOffset) {
+		for (int i = 0; i < length; i++) {
+			errorBuffer[bufferOffset + i] = calculateByPixel(index + i, rBuffer, aBuffer, bufferOffset + i);
+		}
+	}
+
+	/**
+	 * @param iterationBuffer
+	 *            A buffer that receives the number of iterations of each
+	 *            pixel, or <code>null</code> to skip the counting.
+	 */
+	public void setIterationBuffer(final float[] iterationBuffer) {
+		this.iterationBuffer = iterationBuffer;
+	}
 
+	/**
+	 * @param warmStart
+	 *            <code>true</code> to start the iteration of each pixel with
+	 *            the <code>r</code> of the previously fitted pixel,
+	 *            <code>false</code> to start with a fixed value.
+	 */
+	public void setWarmStart(final boolean warmStart) {
+		this.warmStart = warmStart;
+	}
 }
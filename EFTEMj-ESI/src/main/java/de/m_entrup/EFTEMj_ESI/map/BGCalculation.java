@@ -29,98 +29,127 @@ package de.m_entrup.EFTEMj_ESI.map;
 
 import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
 import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
+import de.m_entrup.EFTEMj_ESI.dataset.EnergyKernel;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
-import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
 import ij.ImageStack;
 
 /**
  * This class calculates the background images using the parameter
- * <code>r</code> and <code>a</code> of the power law. Each instance of
- * {@link BGCalculation} processes a single image. Additionally to the
+ * <code>r</code> and <code>a</code> of the power law. A background image is
+ * calculated for each image of the sorted input {@link ImageStack}. Each
+ * {@link Tile} is processed for all images at once. Additionally to the
  * background the ratio of the calculated background to the measured values is
  * determined.
  */
-public class BGCalculation extends Thread {
+public class BGCalculation implements TileTask {
 
 	/**
 	 * Map of parameter <code>a</code>.
 	 */
 	private final float[] aMap;
 	/**
-	 * A shortcut to access the instance of {@link DatasetAPI}.
+	 * The measured images.
 	 */
-	private final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
+	private final EFTEMImage[] array_EFTEMImages;
 	/**
-	 * The energy loss of the processed image.
+	 * The calculated background images.
 	 */
-	private final float eLoss;
+	private final float[][] background;
 	/**
-	 * Map of errors that occurred during the MLE calculation.
+	 * The {@link DatasetAPI} of the processed dataset.
 	 */
-	private final float[] errorValues;
+	private final DatasetAPI datasetAPI;
+	/**
+	 * The logarithms of the energy losses of the input images.
+	 */
+	private final EnergyKernel energyKernel;
 	/**
-	 * The position of the processed image at the sorted input
-	 * {@link ImageStack}.
+	 * Map of errors that occurred during the MLE calculation.
 	 */
-	private final int imageIndex;
+	private final float[] errorValues;
 	/**
-	 * The pixels of the measured image.
+	 * The ratio of the calculated background to the measured images.
 	 */
-	private final float[] pixels;
+	private final float[][] relBackground;
 	/**
 	 * Map of parameter <code>r</code>.
 	 */
 	private final float[] rMap;
+
 	/**
-	 * A shortcut to access the instance of {@link ThreadInterface}.
+	 * The {@link DatasetAPI} of the {@link PluginAPI} is used.
 	 */
-	private final ThreadInterface threadInterface = ThreadInterface.getInstance();
+	public BGCalculation() {
+		this(PluginAPI.getInstance().getDatasetAPI());
+	}
 
 	/**
-	 * Each instance calculates a background image at the energy loss of the
-	 * given eftemImage.
+	 * The constructor creates the arrays that are used to store the background
+	 * images until the calculation has finished.
 	 *
-	 * @param eftemImage
-	 *            The energy loss of this image i used for the background
-	 *            calculation. Additionally this image is compared to the
-	 *            calculated background.
-	 * @param imageIndex
-	 *            The position of the processed image at the sorted input
-	 *            {@link ImageStack}. This is used to save the results of the
-	 *            calculation by using the {@link DatasetAPI}.
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
 	 */
-	public BGCalculation(final EFTEMImage eftemImage, final int imageIndex) {
+	public BGCalculation(final DatasetAPI datasetAPI) {
 		super();
-		threadInterface.addThread();
-		this.imageIndex = imageIndex;
-		pixels = eftemImage.getPixels();
-		eLoss = eftemImage.getELoss();
+		this.datasetAPI = datasetAPI;
+		array_EFTEMImages = datasetAPI.getEFTEMImageArray();
+		energyKernel = datasetAPI.getEnergyKernel();
 		rMap = datasetAPI.getRMap();
 		aMap = datasetAPI.getAMap();
 		errorValues = datasetAPI.getErrorMap();
+		background = new float[array_EFTEMImages.length][rMap.length];
+		relBackground = new float[array_EFTEMImages.length][rMap.length];
+	}
+
+	@Override
+	public void finished() {
+		for (int imageIndex = 0; imageIndex < array_EFTEMImages.length; imageIndex++) {
+			datasetAPI.saveBackground(background[imageIndex], imageIndex);
+			datasetAPI.saveRelBackground(relBackground[imageIndex], imageIndex);
+		}
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		// 3 floats per input image and r, a and the error.
+		return 4 * (3 * array_EFTEMImages.length + 3);
+	}
+
+	@Override
+	public int getHeight() {
+		return datasetAPI.getHeight();
+	}
+
+	@Override
+	public int getWidth() {
+		return datasetAPI.getWidth();
 	}
 
 	@Override
-	public void run() {
-		final int length = rMap.length;
-		final float[] background = new float[length];
-		final float[] relBackground = new float[length];
-		for (int index = 0; index < length; index++) {
-			if (errorValues[index] == 0) {
-				background[index] = (float) Math.exp(aMap[index] - rMap[index] * Math.log(eLoss));
-				if (pixels[index] != 0) {
-					relBackground[index] = background[index] / pixels[index];
+	public void processTile(final Tile tile) {
+		final int end = tile.getIndex() + tile.getLength();
+		for (int imageIndex = 0; imageIndex < array_EFTEMImages.length; imageIndex++) {
+			final float[] pixels = array_EFTEMImages[imageIndex].getPixels();
+			final float[] bg = background[imageIndex];
+			final float[] relBg = relBackground[imageIndex];
+			for (int index = tile.getIndex(); index < end; index++) {
+				if (errorValues[index] == 0) {
+					bg[index] = (float) energyKernel.background(imageIndex, aMap[index], rMap[index]);
+					if (pixels[index] != 0) {
+						relBg[index] = bg[index] / pixels[index];
+					} else {
+						relBg[index] = 0;
+					}
 				} else {
-					relBackground[index] = 0;
+					bg[index] = PluginConstants.VALUE_CALCULATION_FAILED;
+					relBg[index] = PluginConstants.VALUE_CALCULATION_FAILED;
 				}
-			} else {
-				background[index] = PluginConstants.VALUE_CALCULATION_FAILED;
-				relBackground[index] = PluginConstants.VALUE_CALCULATION_FAILED;
 			}
 		}
-		datasetAPI.saveBackground(background, imageIndex);
-		datasetAPI.saveRelBackground(relBackground, imageIndex);
-		threadInterface.removeThread(ThreadInterface.BG);
 	}
 }
@@ -29,14 +29,16 @@ package de.m_entrup.EFTEMj_ESI.map;
 
 import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
 import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
+import de.m_entrup.EFTEMj_ESI.dataset.EnergyKernel;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
-import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
 
 /**
- * This class calculates Chi² pixel by pixel. Each instance processes a single
- * image row.
+ * This class calculates Chi² pixel by pixel. The image is processed
+ * {@link Tile} by {@link Tile}.
  */
-public class Chi2Calculation extends Thread {
+public class Chi2Calculation implements TileTask {
 
 	/**
 	 * Map of parameter <code>a</code>.
@@ -47,100 +49,121 @@ public class Chi2Calculation extends Thread {
 	 */
 	private final EFTEMImage[] array_EFTEMImages;
 	/**
-	 * A shortcut to access the instance of {@link DatasetAPI}.
+	 * The calculated Chi² values.
 	 */
-	private final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
+	private final float[] chi2Map;
+	/**
+	 * The {@link DatasetAPI} of the processed dataset.
+	 */
+	private final DatasetAPI datasetAPI;
 	/**
 	 * The index of the first post-edge image.
 	 */
 	private final int edgeIndex;
 	/**
-	 * Map of errors that occurred during the MLE calculation.
+	 * The logarithms of the energy losses of the input images.
 	 */
-	private final float[] errorMap;
+	private final EnergyKernel energyKernel;
 	/**
-	 * <code>x + y * width</code>
+	 * Map of errors that occurred during the MLE calculation.
 	 */
-	private int index;
+	private final float[] errorMap;
 	/**
 	 * Map of parameter <code>r</code>.
 	 */
 	private final float[] rMap;
+
 	/**
-	 * A shortcut to access the instance of {@link ThreadInterface}.
-	 */
-	private final ThreadInterface threadInterface = ThreadInterface.getInstance();
-	/**
-	 * The x coordinate of the processed pixel.
-	 */
-	private int x;
-	/**
-	 * The y coordinate of the processed pixel.
+	 * The {@link DatasetAPI} of the {@link PluginAPI} is used.
 	 */
-	private final int y;
+	public Chi2Calculation() {
+		this(PluginAPI.getInstance().getDatasetAPI());
+	}
 
 	/**
 	 * The constructor creates a new instance of {@link Chi2Calculation} for the
-	 * Chi^2 calculation of each pixel at an image row.
+	 * Chi^2 calculation of each pixel of the image.
 	 *
-	 * @param y
-	 *            The image row that is processed by the new instance of
-	 *            {@link Chi2Calculation}.
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
 	 */
-	public Chi2Calculation(final int y) {
+	public Chi2Calculation(final DatasetAPI datasetAPI) {
 		super();
-		threadInterface.addThread();
-		this.x = 0;
-		this.y = y;
+		this.datasetAPI = datasetAPI;
 		edgeIndex = datasetAPI.getEdgeIndex();
 		array_EFTEMImages = datasetAPI.getEFTEMImageArray();
+		energyKernel = datasetAPI.getEnergyKernel();
 		rMap = datasetAPI.getRMap();
 		aMap = datasetAPI.getAMap();
 		errorMap = datasetAPI.getErrorMap();
+		chi2Map = datasetAPI.getChi2();
 	}
 
 	/**
 	 * Calculating the background again is faster than reading it from the saved
 	 * results, especially with a increasing number of pre-edge images.
 	 *
-	 * @param eLoss
-	 *            The energy loss that is used for the calculation.
+	 * @param index
+	 *            <code>x + y * width</code>
+	 * @param i
+	 *            The index of the image whose energy loss is used for the
+	 *            calculation.
 	 * @return The background signal.
 	 */
-	private float calculateBG(final float eLoss) {
-		final float bg = (float) Math.exp(aMap[index] - rMap[index] * Math.log(eLoss));
+	private float calculateBG(final int index, final int i) {
+		final float bg = (float) energyKernel.background(i, aMap[index], rMap[index]);
 		return bg;
 	}
 
 	/**
+	 * @param index
+	 *            <code>x + y * width</code>
 	 * @return The value of Chi² at the pixel at the array position
 	 *         <code>index</code>.
 	 */
-	private float calculateChi2() {
+	private float calculateChi2(final int index) {
 		float sum = 0;
 		float counts;
 		float fit;
 		for (int i = 0; i < edgeIndex; i++) {
 			counts = array_EFTEMImages[i].getPixels()[index];
-			fit = calculateBG(array_EFTEMImages[i].getELoss());
-			sum += Math.pow((counts - fit), 2) / counts;
+			fit = calculateBG(index, i);
+			sum += (counts - fit) * (counts - fit) / counts;
 		}
 		return sum;
 	}
 
 	@Override
-	public void run() {
-		final int width = datasetAPI.getWidth();
-		final float[] chi2 = new float[width];
-		for (x = 0; x < width; x++) {
-			index = x + y * width;
+	public void finished() {
+		// The results have been written to the Chi² map.
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		// 1 float per pre-edge image and r, a, the error and Chi².
+		return 4 * (edgeIndex + 4);
+	}
+
+	@Override
+	public int getHeight() {
+		return datasetAPI.getHeight();
+	}
+
+	@Override
+	public int getWidth() {
+		return datasetAPI.getWidth();
+	}
+
+	@Override
+	public void processTile(final Tile tile) {
+		final int end = tile.getIndex() + tile.getLength();
+		for (int index = tile.getIndex(); index < end; index++) {
 			if (errorMap[index] == 0) {
-				chi2[x] = calculateChi2();
+				chi2Map[index] = calculateChi2(index);
 			} else {
-				chi2[x] = 0;
+				chi2Map[index] = 0;
 			}
 		}
-		datasetAPI.saveChi2(y * width, chi2);
-		threadInterface.removeThread(ThreadInterface.CHI2);
 	}
 }
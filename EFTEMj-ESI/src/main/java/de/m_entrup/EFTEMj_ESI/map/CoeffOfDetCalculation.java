@@ -29,14 +29,16 @@ package de.m_entrup.EFTEMj_ESI.map;
 
 import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
 import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
+import de.m_entrup.EFTEMj_ESI.dataset.EnergyKernel;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
-import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
 
 /**
- * This class calculates the coefficient of determination pixel by pixel. Each
- * instance processes a single image row.
+ * This class calculates the coefficient of determination pixel by pixel. The
+ * image is processed {@link Tile} by {@link Tile}.
  */
-public class CoeffOfDetCalculation extends Thread {
+public class CoeffOfDetCalculation implements TileTask {
 
 	/**
 	 * Map of parameter <code>a</code>.
@@ -47,99 +49,122 @@ public class CoeffOfDetCalculation extends Thread {
 	 */
 	private final EFTEMImage[] array_EFTEMImages;
 	/**
-	 * A shortcut to access the instance of {@link DatasetAPI}.
+	 * The calculated coefficients of determination.
 	 */
-	private final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
+	private final float[] coeffOfDetMap;
+	/**
+	 * The {@link DatasetAPI} of the processed dataset.
+	 */
+	private final DatasetAPI datasetAPI;
 	/**
 	 * The index of the first post-edge image.
 	 */
 	private final int edgeIndex;
 	/**
-	 * Map of errors that occurred during the MLE calculation.
+	 * The logarithms of the energy losses of the input images.
 	 */
-	private final float[] errorMap;
+	private final EnergyKernel energyKernel;
 	/**
-	 * <code>x + y * width</code>
+	 * Map of errors that occurred during the MLE calculation.
 	 */
-	private int index;
+	private final float[] errorMap;
 	/**
 	 * Map of parameter <code>r</code>.
 	 */
 	private final float[] rMap;
+
 	/**
-	 * A shortcut to access the instance of {@link ThreadInterface}.
-	 */
-	private final ThreadInterface threadInterface = ThreadInterface.getInstance();
-	/**
-	 * The x coordinate of the processed pixel.
-	 */
-	private int x;
-	/**
-	 * The y coordinate of the processed pixel.
+	 * The {@link DatasetAPI} of the {@link PluginAPI} is used.
 	 */
-	private final int y;
+	public CoeffOfDetCalculation() {
+		this(PluginAPI.getInstance().getDatasetAPI());
+	}
 
 	/**
 	 * The constructor creates a new instance of {@link CoeffOfDetCalculation}
-	 * for the coefficient of determination calculation of each pixel at an
-	 * image row.
+	 * for the coefficient of determination calculation of each pixel of the
+	 * image.
 	 *
-	 * @param y
-	 *            The image row that is processed by the new instance of
-	 *            {@link CoeffOfDetCalculation}.
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
 	 */
-	public CoeffOfDetCalculation(final int y) {
+	public CoeffOfDetCalculation(final DatasetAPI datasetAPI) {
 		super();
-		threadInterface.addThread();
-		this.x = 0;
-		this.y = y;
+		this.datasetAPI = datasetAPI;
 		edgeIndex = datasetAPI.getEdgeIndex();
 		array_EFTEMImages = datasetAPI.getEFTEMImageArray();
+		energyKernel = datasetAPI.getEnergyKernel();
 		rMap = datasetAPI.getRMap();
 		aMap = datasetAPI.getAMap();
 		errorMap = datasetAPI.getErrorMap();
+		coeffOfDetMap = datasetAPI.getCoeffOFDet();
+	}
+
+	@Override
+	public void finished() {
+		// The results have been written to the coefficient of determination
+		// map.
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		// 1 float per pre-edge image and r, a, the error and the coefficient.
+		return 4 * (edgeIndex + 4);
+	}
+
+	@Override
+	public int getHeight() {
+		return datasetAPI.getHeight();
+	}
+
+	@Override
+	public int getWidth() {
+		return datasetAPI.getWidth();
+	}
+
+	@Override
+	public void processTile(final Tile tile) {
+		final int end = tile.getIndex() + tile.getLength();
+		for (int index = tile.getIndex(); index < end; index++) {
+			if (errorMap[index] == 0) {
+				coeffOfDetMap[index] = (float) (1 - residual(index) / variationY(index));
+			} else {
+				coeffOfDetMap[index] = 0;
+			}
+		}
 	}
 
 	/**
+	 * @param index
+	 *            <code>x + y * width</code>
 	 * @return The sum of squares of residuals, also called the residual sum of
 	 *         squares.
 	 */
-	private double residual() {
+	private double residual(final int index) {
 		double residuen = 0;
 		for (int i = 0; i < edgeIndex; i++) {
-			residuen += Math.pow(array_EFTEMImages[i].getPixels()[index]
-					- Math.exp(aMap[index] - rMap[index] * Math.log(array_EFTEMImages[i].getELoss())), 2);
+			final double d = array_EFTEMImages[i].getPixels()[index]
+					- energyKernel.background(i, aMap[index], rMap[index]);
+			residuen += d * d;
 		}
 		return residuen;
 	}
 
-	@Override
-	public void run() {
-		final int width = datasetAPI.getWidth();
-		final float[] coeffOfDetArray = new float[width];
-		for (x = 0; x < width; x++) {
-			index = x + y * width;
-			if (errorMap[index] == 0) {
-				coeffOfDetArray[x] = (float) (1 - residual() / variationY());
-			} else {
-				coeffOfDetArray[x] = 0;
-			}
-		}
-		datasetAPI.saveCOD(y * width, coeffOfDetArray);
-		threadInterface.removeThread(ThreadInterface.COD);
-	}
-
 	/**
+	 * @param index
+	 *            <code>x + y * width</code>
 	 * @return The total sum of squares (proportional to the sample variance).
 	 */
-	private double variationY() {
+	private double variationY(final int index) {
 		double mittel = 0;
 		for (int i = 0; i < edgeIndex; i++) {
 			mittel += array_EFTEMImages[i].getPixels()[index] / edgeIndex;
 		}
 		double variation = 0;
 		for (int i = 0; i < edgeIndex; i++) {
-			variation += Math.pow(array_EFTEMImages[i].getPixels()[index] - mittel, 2);
+			final double d = array_EFTEMImages[i].getPixels()[index] - mittel;
+			variation += d * d;
 		}
 		return variation;
 	}
@@ -29,9 +29,8 @@ package de.m_entrup.EFTEMj_ESI.map;
 
 import java.util.Locale;
 
-import javax.swing.SwingWorker;
-
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
+import de.m_entrup.EFTEMj_ESI.threading.CalculationExecutor;
 import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
 import de.m_entrup.EFTEMj_ESI.tools.DisplyProcessLogTool;
 import de.m_entrup.EFTEMj_ESI.tools.LogWriter;
@@ -42,31 +41,21 @@ import ij.IJ;
  * After {@link BGCalculation} has finished the {@link MapCalculationExecutor}
  * can be started.<br>
  * The aim of {@link CoeffOfDetCalculationExecutor} is to split the calculation
- * of the coefficient of determination into subtasks. Each task processes 1
- * image row.
+ * of the coefficient of determination into subtasks. Each task processes a
+ * tile of several image rows.
  */
-public class CoeffOfDetCalculationExecutor extends SwingWorker<Void, Void> {
-
-	/**
-	 * The height of the processed images. This corresponds to the number of
-	 * subtasks the calculation is split up.
-	 */
-	private int height;
+public class CoeffOfDetCalculationExecutor extends CalculationExecutor {
 
 	/**
 	 * the calculation of the coefficient of determination does only start if
 	 * there are more than 2 post-edge images. For 2 post-edge images the
-	 * coefficient is always 1. The constructor transmits the number of subtasks
-	 * to the {@link ThreadInterface}.
+	 * coefficient is always 1.
 	 *
 	 * @throws Exception
 	 */
 	public CoeffOfDetCalculationExecutor() throws Exception {
 		super();
-		if (PluginAPI.getInstance().getDatasetAPI().getEdgeIndex() > 2) {
-			height = PluginAPI.getInstance().getDatasetAPI().getHeight();
-			ThreadInterface.getInstance().configureThreadChecker(height);
-		} else {
+		if (PluginAPI.getInstance().getDatasetAPI().getEdgeIndex() <= 2) {
 			PluginAPI.getInstance().getMainMenu().enableMapResultButton("key_closeMapResult");
 		}
 	}
@@ -75,10 +64,7 @@ public class CoeffOfDetCalculationExecutor extends SwingWorker<Void, Void> {
 	protected Void doInBackground() throws Exception {
 		IJ.showStatus("Starting coefficient of determination calculation...");
 		if (PluginAPI.getInstance().getDatasetAPI().getEdgeIndex() > 2) {
-			for (int y = 0; y < height; y++) {
-				final CoeffOfDetCalculation coeffOfDet = new CoeffOfDetCalculation(y);
-				coeffOfDet.run();
-			}
+			ThreadInterface.getInstance().execute(new CoeffOfDetCalculation(), ThreadInterface.COD);
 		} else {
 			// TODO Create a finished() method to reduce redundancy.
 			final Float timeInSeconds = (float) (MyTimer.stop()) / 1000;
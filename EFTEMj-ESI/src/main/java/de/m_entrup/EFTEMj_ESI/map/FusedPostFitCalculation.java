@@ -0,0 +1,421 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.m_entrup.EFTEMj_ESI.map;
+
+import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
+import de.m_entrup.EFTEMj_ESI.dataset.EnergyKernel;
+import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
+import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
+import de.m_entrup.EFTEMj_ESI.tools.Statistics;
+import de.m_entrup.EFTEMj_ESI.tools.StatisticsAccumulator;
+import ij.ImageStack;
+
+/**
+ * This class combines {@link BGCalculation}, {@link MapCalculation},
+ * {@link SNRCalculation}, {@link CoeffOfDetCalculation} and
+ * {@link Chi2Calculation}. The background of each pixel is calculated only
+ * once and all results are written during a single traversal of each
+ * {@link Tile}. The results are identical to those of the separate
+ * calculations.<br>
+ * The coefficient of determination and Chi² are only calculated if there are
+ * more than 2 pre-edge images.<br>
+ * The {@link Statistics} of the results are collected for each tile and merged,
+ * there is no additional pass over the results.
+ */
+public class FusedPostFitCalculation implements TileTask {
+
+	/**
+	 * Map of parameter <code>a</code>.
+	 */
+	private final float[] aMap;
+	/**
+	 * The sorted input images.
+	 */
+	private final EFTEMImage[] array_EFTEMImages;
+	/**
+	 * The background images of all input images.
+	 */
+	private final float[][] background;
+	/**
+	 * The Chi² map.
+	 */
+	private final float[] chi2Map;
+	/**
+	 * The statistics of the Chi² map.
+	 */
+	private final StatisticsAccumulator chi2Statistics = new StatisticsAccumulator();
+	/**
+	 * The coefficient of determination map.
+	 */
+	private final float[] coeffOfDetMap;
+	/**
+	 * The statistics of the coefficient of determination map.
+	 */
+	private final StatisticsAccumulator coeffOfDetStatistics = new StatisticsAccumulator();
+	/**
+	 * The {@link DatasetAPI} of the processed dataset.
+	 */
+	private final DatasetAPI datasetAPI;
+	/**
+	 * The index of the first post-edge image.
+	 */
+	private final int edgeIndex;
+	/**
+	 * The logarithms of the energy losses of the input images.
+	 */
+	private final EnergyKernel energyKernel;
+	/**
+	 * Map of errors that occurred during the MLE calculation.
+	 */
+	private final float[] errorValues;
+	/**
+	 * The elemental-maps of all post-edge images.
+	 */
+	private final float[][] maps;
+	/**
+	 * The statistics of the elemental-maps.
+	 */
+	private final StatisticsAccumulator[] mapStatistics;
+	/**
+	 * The ratio of the background to the measured values of all input images.
+	 */
+	private final float[][] relBackground;
+	/**
+	 * The statistics of the relative background of all pre-edge images.
+	 */
+	private final StatisticsAccumulator[] relBackgroundStatistics;
+	/**
+	 * Map of parameter <code>r</code>.
+	 */
+	private final float[] rMap;
+	/**
+	 * The sigma² images of all post-edge images.
+	 */
+	private final float[][] sigma2;
+	/**
+	 * The statistics of the sigma² images.
+	 */
+	private final StatisticsAccumulator[] sigma2Statistics;
+	/**
+	 * The SNR images of all post-edge images.
+	 */
+	private final float[][] snr;
+	/**
+	 * The statistics of the SNR images.
+	 */
+	private final StatisticsAccumulator[] snrStatistics;
+	/**
+	 * <code>true</code> if the coefficient of determination and Chi² are
+	 * calculated.
+	 */
+	private final boolean withFitQuality;
+
+	/**
+	 * The {@link DatasetAPI} of the {@link PluginAPI} is used.
+	 */
+	public FusedPostFitCalculation() {
+		this(PluginAPI.getInstance().getDatasetAPI());
+	}
+
+	/**
+	 * The constructor creates a new instance of
+	 * {@link FusedPostFitCalculation}. The background images and the
+	 * elemental-maps are saved when all tiles have been processed, all other
+	 * results are written directly to the result images.
+	 *
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
+	 */
+	public FusedPostFitCalculation(final DatasetAPI datasetAPI) {
+		super();
+		this.datasetAPI = datasetAPI;
+		array_EFTEMImages = datasetAPI.getEFTEMImageArray();
+		edgeIndex = datasetAPI.getEdgeIndex();
+		energyKernel = datasetAPI.getEnergyKernel();
+		rMap = datasetAPI.getRMap();
+		aMap = datasetAPI.getAMap();
+		errorValues = datasetAPI.getErrorMap();
+		background = new float[array_EFTEMImages.length][rMap.length];
+		relBackground = new float[array_EFTEMImages.length][rMap.length];
+		maps = new float[array_EFTEMImages.length - edgeIndex][rMap.length];
+		snr = new float[maps.length][];
+		sigma2 = new float[maps.length][];
+		for (int imageIndex = edgeIndex; imageIndex < array_EFTEMImages.length; imageIndex++) {
+			snr[imageIndex - edgeIndex] = datasetAPI.getSNRPixels(imageIndex);
+			sigma2[imageIndex - edgeIndex] = datasetAPI.getSigma2Pixels(imageIndex);
+		}
+		withFitQuality = edgeIndex > 2;
+		coeffOfDetMap = datasetAPI.getCoeffOFDet();
+		chi2Map = datasetAPI.getChi2();
+		relBackgroundStatistics = createAccumulators(edgeIndex);
+		mapStatistics = createAccumulators(maps.length);
+		sigma2Statistics = createAccumulators(maps.length);
+		snrStatistics = createAccumulators(maps.length);
+	}
+
+	/**
+	 * @param length
+	 *            The number of accumulators.
+	 * @return An array of empty {@link StatisticsAccumulator}s.
+	 */
+	private static StatisticsAccumulator[] createAccumulators(final int length) {
+		final StatisticsAccumulator[] accumulators = new StatisticsAccumulator[length];
+		for (int i = 0; i < length; i++) {
+			accumulators[i] = new StatisticsAccumulator();
+		}
+		return accumulators;
+	}
+
+	/**
+	 * @param accumulators
+	 *            An array of {@link StatisticsAccumulator}s.
+	 * @return The {@link Statistics} of each accumulator.
+	 */
+	private static Statistics[] toStatistics(final StatisticsAccumulator[] accumulators) {
+		final Statistics[] statistics = new Statistics[accumulators.length];
+		for (int i = 0; i < accumulators.length; i++) {
+			statistics[i] = new Statistics(accumulators[i]);
+		}
+		return statistics;
+	}
+
+	/**
+	 * Adds the statistics of a {@link Tile} to the statistics of the whole
+	 * image.
+	 *
+	 * @param target
+	 *            The statistics of the whole image.
+	 * @param source
+	 *            The statistics of a single tile.
+	 */
+	private static void merge(final StatisticsAccumulator[] target, final StatisticsAccumulator[] source) {
+		for (int i = 0; i < target.length; i++) {
+			target[i].merge(source[i]);
+		}
+	}
+
+	@Override
+	public void finished() {
+		for (int imageIndex = 0; imageIndex < array_EFTEMImages.length; imageIndex++) {
+			datasetAPI.saveBackground(background[imageIndex], imageIndex);
+			datasetAPI.saveRelBackground(relBackground[imageIndex], imageIndex);
+		}
+		for (int imageIndex = edgeIndex; imageIndex < array_EFTEMImages.length; imageIndex++) {
+			datasetAPI.saveMap(maps[imageIndex - edgeIndex], imageIndex);
+		}
+	}
+
+	/**
+	 * @return The {@link Statistics} of the Chi² map.
+	 */
+	public Statistics getChi2Statistics() {
+		return new Statistics(chi2Statistics);
+	}
+
+	/**
+	 * @return The {@link Statistics} of the coefficient of determination map.
+	 */
+	public Statistics getCoeffOfDetStatistics() {
+		return new Statistics(coeffOfDetStatistics);
+	}
+
+	/**
+	 * @return The {@link Statistics} of the elemental-maps.
+	 */
+	public Statistics[] getMapStatistics() {
+		return toStatistics(mapStatistics);
+	}
+
+	/**
+	 * @return The {@link Statistics} of the relative background of all
+	 *         pre-edge images.
+	 */
+	public Statistics[] getRelBackgroundStatistics() {
+		return toStatistics(relBackgroundStatistics);
+	}
+
+	/**
+	 * @return The {@link Statistics} of the sigma² images.
+	 */
+	public Statistics[] getSigma2Statistics() {
+		return toStatistics(sigma2Statistics);
+	}
+
+	/**
+	 * @return The {@link Statistics} of the SNR images.
+	 */
+	public Statistics[] getSNRStatistics() {
+		return toStatistics(snrStatistics);
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		// 3 floats per input image, 3 floats per post-edge image and r, a,
+		// the error, the coefficient and Chi².
+		return 4 * (3 * array_EFTEMImages.length + 3 * maps.length + 5);
+	}
+
+	@Override
+	public int getHeight() {
+		return datasetAPI.getHeight();
+	}
+
+	@Override
+	public int getWidth() {
+		return datasetAPI.getWidth();
+	}
+
+	@Override
+	public void processTile(final Tile tile) {
+		final SNRPixelCalculator calculator = new SNRPixelCalculator(energyKernel);
+		final double[] bg = new double[array_EFTEMImages.length];
+		final StatisticsAccumulator[] tileRelBackground = createAccumulators(edgeIndex);
+		final StatisticsAccumulator[] tileMap = createAccumulators(maps.length);
+		final StatisticsAccumulator[] tileSigma2 = createAccumulators(maps.length);
+		final StatisticsAccumulator[] tileSNR = createAccumulators(maps.length);
+		final StatisticsAccumulator tileCoeffOfDet = new StatisticsAccumulator();
+		final StatisticsAccumulator tileChi2 = new StatisticsAccumulator();
+		final int end = tile.getIndex() + tile.getLength();
+		for (int index = tile.getIndex(); index < end; index++) {
+			if (errorValues[index] == 0) {
+				for (int imageIndex = 0; imageIndex < array_EFTEMImages.length; imageIndex++) {
+					bg[imageIndex] = energyKernel.background(imageIndex, aMap[index], rMap[index]);
+					final float counts = array_EFTEMImages[imageIndex].getPixels()[index];
+					background[imageIndex][index] = (float) bg[imageIndex];
+					if (counts != 0) {
+						relBackground[imageIndex][index] = background[imageIndex][index] / counts;
+					} else {
+						relBackground[imageIndex][index] = 0;
+					}
+					if (imageIndex < edgeIndex) {
+						tileRelBackground[imageIndex].add(relBackground[imageIndex][index]);
+					}
+				}
+				calculator.calcPixel(bg);
+				for (int i = 0; i < maps.length; i++) {
+					final int imageIndex = edgeIndex + i;
+					final float signal = array_EFTEMImages[imageIndex].getPixels()[index]
+							- background[imageIndex][index];
+					maps[i][index] = signal;
+					sigma2[i][index] = (float) calculator.sigma2(imageIndex, bg[imageIndex]);
+					double snrAtPixel = signal / Math.sqrt(signal + bg[imageIndex] + sigma2[i][index]);
+					if (Double.isNaN(snrAtPixel) | Double.isInfinite(snrAtPixel)) {
+						snrAtPixel = 0;
+					}
+					snr[i][index] = (float) snrAtPixel;
+					tileMap[i].add(maps[i][index]);
+					tileSigma2[i].add(sigma2[i][index]);
+					tileSNR[i].add(snr[i][index]);
+				}
+				if (withFitQuality) {
+					coeffOfDetMap[index] = (float) (1 - residual(index, bg) / variationY(index));
+					chi2Map[index] = chi2(index);
+					tileCoeffOfDet.add(coeffOfDetMap[index]);
+					tileChi2.add(chi2Map[index]);
+				}
+			} else {
+				for (int imageIndex = 0; imageIndex < array_EFTEMImages.length; imageIndex++) {
+					background[imageIndex][index] = PluginConstants.VALUE_CALCULATION_FAILED;
+					relBackground[imageIndex][index] = PluginConstants.VALUE_CALCULATION_FAILED;
+				}
+				for (int i = 0; i < maps.length; i++) {
+					maps[i][index] = PluginConstants.VALUE_CALCULATION_FAILED;
+					snr[i][index] = PluginConstants.VALUE_CALCULATION_FAILED;
+				}
+				if (withFitQuality) {
+					coeffOfDetMap[index] = 0;
+					chi2Map[index] = 0;
+				}
+			}
+		}
+		synchronized (this) {
+			merge(relBackgroundStatistics, tileRelBackground);
+			merge(mapStatistics, tileMap);
+			merge(sigma2Statistics, tileSigma2);
+			merge(snrStatistics, tileSNR);
+			coeffOfDetStatistics.merge(tileCoeffOfDet);
+			chi2Statistics.merge(tileChi2);
+		}
+	}
+
+	/**
+	 * Chi² is calculated from the background images of the current
+	 * {@link Tile}, that has been calculated before.
+	 *
+	 * @param index
+	 *            The index of the processed pixel.
+	 * @return Chi² at the given pixel.
+	 */
+	private float chi2(final int index) {
+		float sum = 0;
+		for (int i = 0; i < edgeIndex; i++) {
+			final float counts = array_EFTEMImages[i].getPixels()[index];
+			final float fit = background[i][index];
+			sum += (counts - fit) * (counts - fit) / counts;
+		}
+		return sum;
+	}
+
+	/**
+	 * @param index
+	 *            The index of the processed pixel.
+	 * @param bg
+	 *            The background at the energy losses of the input images.
+	 * @return The residual sum of squares at the given pixel.
+	 */
+	private double residual(final int index, final double[] bg) {
+		double residuen = 0;
+		for (int i = 0; i < edgeIndex; i++) {
+			final double d = array_EFTEMImages[i].getPixels()[index] - bg[i];
+			residuen += d * d;
+		}
+		return residuen;
+	}
+
+	/**
+	 * @param index
+	 *            The index of the processed pixel.
+	 * @return The total sum of squares at the given pixel.
+	 */
+	private double variationY(final int index) {
+		double mittel = 0;
+		for (int i = 0; i < edgeIndex; i++) {
+			mittel += array_EFTEMImages[i].getPixels()[index] / edgeIndex;
+		}
+		double variation = 0;
+		for (int i = 0; i < edgeIndex; i++) {
+			final double d = array_EFTEMImages[i].getPixels()[index] - mittel;
+			variation += d * d;
+		}
+		return variation;
+	}
+}
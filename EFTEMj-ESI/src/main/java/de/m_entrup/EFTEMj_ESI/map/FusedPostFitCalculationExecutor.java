@@ -0,0 +1,60 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.m_entrup.EFTEMj_ESI.map;
+
+import de.m_entrup.EFTEMj_ESI.threading.CalculationExecutor;
+import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
+import ij.IJ;
+
+/**
+ * After {@link PowerLawFitCalculation} has finished the
+ * {@link FusedPostFitCalculationExecutor} can be started instead of the
+ * {@link BGCalculationExecutor}.<br>
+ * The aim of the {@link FusedPostFitCalculationExecutor} is to calculate the
+ * background, the elemental-maps, the SNR, the coefficient of determination
+ * and Chi² in a single pass. Each task processes a tile of all images.
+ */
+public class FusedPostFitCalculationExecutor extends CalculationExecutor {
+
+	/**
+	 * The constructor creates a new {@link FusedPostFitCalculationExecutor}.
+	 *
+	 * @throws Exception
+	 */
+	public FusedPostFitCalculationExecutor() throws Exception {
+		super();
+	}
+
+	@Override
+	protected Void doInBackground() throws Exception {
+		IJ.showStatus("Starting post-fit calculation...");
+		ThreadInterface.getInstance().execute(new FusedPostFitCalculation(), ThreadInterface.POST_FIT);
+		return null;
+	}
+
+}
@@ -27,10 +27,10 @@
 
 package de.m_entrup.EFTEMj_ESI.map;
 
-import java.util.HashMap;
-
 import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
 import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
+import de.m_entrup.EFTEMj_ESI.dataset.EnergyKernel;
+import de.m_entrup.EFTEMj_ESI.dataset.SpectrumBlock;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
 import ij.ImageStack;
@@ -38,14 +38,11 @@ import ij.ImageStack;
 public class MLERoutine extends AbstractFitRoutine {
 
 	/**
-	 * The exit condition for the MLE. There is a static method to change this
-	 * value.
-	 */
-	private float epsilon = PluginConstants.EPSILON;
-	/**
-	 * A shortcut to access the instance of {@link DatasetAPI}.
+	 * The exit condition for the MLE. Each dataset keeps its own value at the
+	 * DatasetMapInput. It is read by {@link DatasetAPI#getEpsilon()} and
+	 * passed to the constructor.
 	 */
-	private final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
+	private final float epsilon;
 	/**
 	 * The selected {@link ImageStack} as a sorted array of {@link EFTEMImage}s.
 	 */
@@ -55,43 +52,142 @@ public class MLERoutine extends AbstractFitRoutine {
 	 */
 	private final int edgeIndex;
 	/**
-	 * <code>x + y * width</code>
+	 * The logarithms of the energy losses of array_EFTEMImages.
 	 */
-	private int currentIndex;
-
-	private final HashMap<Integer, Float> r;
-	private final HashMap<Integer, Float> a;
+	private final EnergyKernel energyKernel;
+	/**
+	 * <code>E_i^-r</code> of the pre-edge images at the current iteration.
+	 */
+	private final double[] powers;
+	/**
+	 * The sums of <code>E_i^-r * ln^k(E_i)</code> with <code>k = 0, 1, 2</code>
+	 * at the current iteration.
+	 */
+	private final double[] sums = new double[3];
+	/**
+	 * The spectrum of the currently processed pixel, if it is not read from a
+	 * {@link SpectrumBlock}.
+	 */
+	private final float[] pixelSpectrum;
+	/**
+	 * The number of iterations of the last fit.
+	 */
+	private int iterations;
+	/**
+	 * The <code>r</code> of the last pixel that has been fitted without an
+	 * error. It is used as start value if warm start is enabled.
+	 */
+	private double lastR = R_START;
 
+	/**
+	 * Creates a {@link MLERoutine} that uses the dataset of the
+	 * {@link DatasetAPI} and the default exit condition.
+	 */
 	public MLERoutine() {
-		edgeIndex = datasetAPI.getEdgeIndex();
-		array_EFTEMImages = datasetAPI.getEFTEMImageArray();
-		r = new HashMap<>();
-		a = new HashMap<>();
+		this(PluginConstants.EPSILON);
 	}
 
+	/**
+	 * Creates a {@link MLERoutine} that uses the dataset of the
+	 * {@link DatasetAPI}.
+	 *
+	 * @param epsilon
+	 *            The exit condition for the MLE.
+	 */
 	public MLERoutine(final float epsilon) {
-		edgeIndex = datasetAPI.getEdgeIndex();
-		array_EFTEMImages = datasetAPI.getEFTEMImageArray();
-		r = new HashMap<>();
-		a = new HashMap<>();
+		this(PluginAPI.getInstance().getDatasetAPI().getEFTEMImageArray(),
+				PluginAPI.getInstance().getDatasetAPI().getEnergyKernel(), epsilon);
+	}
+
+	/**
+	 * Creates a {@link MLERoutine} that is independent of the
+	 * {@link DatasetAPI}.
+	 *
+	 * @param eftemImages
+	 *            A sorted array of {@link EFTEMImage}s.
+	 * @param edgeIndex
+	 *            The index of the first post-edge image.
+	 * @param epsilon
+	 *            The exit condition for the MLE.
+	 */
+	public MLERoutine(final EFTEMImage[] eftemImages, final int edgeIndex, final float epsilon) {
+		this(eftemImages, new EnergyKernel(eftemImages, edgeIndex), epsilon);
+	}
+
+	/**
+	 * Creates a {@link MLERoutine} that uses an existing {@link EnergyKernel}.
+	 *
+	 * @param eftemImages
+	 *            A sorted array of {@link EFTEMImage}s.
+	 * @param energyKernel
+	 *            The {@link EnergyKernel} of eftemImages.
+	 * @param epsilon
+	 *            The exit condition for the MLE.
+	 */
+	public MLERoutine(final EFTEMImage[] eftemImages, final EnergyKernel energyKernel, final float epsilon) {
+		this.array_EFTEMImages = eftemImages;
+		this.energyKernel = energyKernel;
+		this.edgeIndex = energyKernel.getEdgeIndex();
 		this.epsilon = epsilon;
+		powers = new double[edgeIndex];
+		pixelSpectrum = new float[eftemImages.length];
+	}
+
+	/**
+	 * The spectra are read from the {@link SpectrumBlock} instead of the
+	 * images.
+	 */
+	@Override
+	public void calculateBlock(final SpectrumBlock block, final float[] rBuffer, final float[] aBuffer,
+			final short[] errorBuffer, final int bufferOffset) {
+		final float[] data = block.getData();
+		for (int p = 0; p < block.getLength(); p++) {
+			errorBuffer[bufferOffset + p] = fit(data, block.offset(p), rBuffer, aBuffer, bufferOffset + p);
+			saveIterations(bufferOffset + p);
+		}
+	}
+
+	/**
+	 * The spectrum of the pixel is copied from the images before the fit.
+	 */
+	@Override
+	public short calculateByPixel(final int index, final float[] r, final float[] a, final int bufferIndex) {
+		for (int i = 0; i < array_EFTEMImages.length; i++) {
+			pixelSpectrum[i] = array_EFTEMImages[i].getPixels()[index];
+		}
+		final short error = fit(pixelSpectrum, 0, r, a, bufferIndex);
+		saveIterations(bufferIndex);
+		return error;
 	}
 
 	/**
 	 * The calculation of <code>r</code> and <code>a</code> is done by this
 	 * method. Other methods are used to keep this method short. The different
 	 * parts are divided by comments.
+	 *
+	 * @param spectrum
+	 *            An array that contains the spectrum of the pixel.
+	 * @param offset
+	 *            The position of the first value of the spectrum.
+	 * @param r
+	 *            The parameter <code>r</code> is written to this buffer.
+	 * @param a
+	 *            The parameter <code>a</code> is written to this buffer.
+	 * @param bufferIndex
+	 *            The position at r and a that is used to save the result.
+	 * @return An error code as defined at {@link PluginConstants}.
 	 */
-	@Override
-	public short calculateByPixel(final int index) {
-		this.currentIndex = index;
-		if (isLessThanZero()) {
-			r.put(index, 0f);
-			a.put(index, 0f);
+	private short fit(final float[] spectrum, final int offset, final float[] r, final float[] a,
+			final int bufferIndex) {
+		iterations = 0;
+		if (isLessThanZero(spectrum, offset)) {
+			r[bufferIndex] = 0f;
+			a[bufferIndex] = 0f;
 			return PluginConstants.ERROR__SIGNAL_LESS_THAN_ZERO;
 		}
-		// 4 is a random start value for r.
-		double rn = 4.0;
+		// 4 is a random start value for r. A warm start uses the result of the
+		// previous pixel instead.
+		double rn = warmStart ? lastR : R_START;
 		// rn-rn_prev has to be larger than epsilon
 		double rn_prev = rn + 2 * epsilon;
 		// converganceCounter is used to stop the iteration if the calculation
@@ -103,23 +199,27 @@ public class MLERoutine extends AbstractFitRoutine {
 		double diff = 10.0;
 		double num;
 		double denum;
+		// The weight does not depend on r.
+		final double weight = weight(spectrum, offset);
 		// Start: Iteration to calculate r
 		while (Math.abs(rn_prev - rn) > epsilon) {
+			iterations++;
 			rn_prev = rn;
-			num = numerator(rn);
-			denum = denominator(rn);
+			sumExp(rn);
+			num = numerator(weight);
+			denum = denominator();
 			rn = rn_prev - num / denum;
 			// Check for a NaN error
 			if (Double.isNaN(rn) | Double.isInfinite(rn)) {
-				r.put(index, 0f);
-				a.put(index, 0f);
+				r[bufferIndex] = 0f;
+				a[bufferIndex] = 0f;
 				return PluginConstants.ERROR__NAN;
 			}
 			// Checks for a convergence error. The combination of the 2. and 3.
 			// if statement prevents an infinite number of iterations.
 			if (Math.abs(rn_prev - rn) == diff) {
-				r.put(index, 0f);
-				a.put(index, 0f);
+				r[bufferIndex] = 0f;
+				a[bufferIndex] = 0f;
 				return PluginConstants.ERROR__CONVERGENCE;
 			}
 			if (Math.abs(rn_prev - rn) > diff) {
@@ -127,8 +227,8 @@ public class MLERoutine extends AbstractFitRoutine {
 			}
 			if (convergenceCounter >= 25) {
 				// r is set to NaN to make a clean up (see below)
-				r.put(index, 0f);
-				a.put(index, 0f);
+				r[bufferIndex] = 0f;
+				a[bufferIndex] = 0f;
 				return PluginConstants.ERROR__CONVERGENCE;
 			}
 			diff = Math.abs(rn_prev - rn);
@@ -137,33 +237,35 @@ public class MLERoutine extends AbstractFitRoutine {
 		// Parameter clean up:
 		// This is done to optimise the display of the parameter maps.
 		if (Double.isNaN(rn) | Double.isInfinite(rn)) {
-			r.put(index, 0f);
-			a.put(index, 0f);
+			r[bufferIndex] = 0f;
+			a[bufferIndex] = 0f;
 			return PluginConstants.ERROR__NAN;
 		}
 		// Check if a can be calculated
-		final double value = sumCounts() / sumExp(rn, 0);
+		sumExp(rn);
+		final double value = sumCounts(spectrum, offset) / sums[0];
 		if (value < 0) {
-			a.put(index, 0f);
-			r.put(index, (float) rn);
+			a[bufferIndex] = 0f;
+			r[bufferIndex] = (float) rn;
 			return PluginConstants.ERROR__A_NOT_POSSIBLE_TO_CALCULATE;
 		}
 		// Calculation of parameter a
-		a.put(index, (float) Math.log(value));
+		a[bufferIndex] = (float) Math.log(value);
 		// Check for a NaN error
-		if (Double.isNaN(a.get(index))) {
-			a.put(index, 0f);
-			r.put(index, (float) rn);
+		if (Float.isNaN(a[bufferIndex])) {
+			a[bufferIndex] = 0f;
+			r[bufferIndex] = (float) rn;
 			return PluginConstants.ERROR__NAN;
 		}
 		// calculation of a is ok
-		r.put(index, (float) rn);
+		r[bufferIndex] = (float) rn;
+		lastR = rn;
 		return PluginConstants.ERROR__NON;
 	}
 
-	private boolean isLessThanZero() {
+	private boolean isLessThanZero(final float[] spectrum, final int offset) {
 		for (int i = 0; i < array_EFTEMImages.length; i++) {
-			if (array_EFTEMImages[i].getPixels()[currentIndex] < 0) {
+			if (spectrum[offset + i] < 0) {
 				return true;
 			}
 		}
@@ -171,86 +273,91 @@ public class MLERoutine extends AbstractFitRoutine {
 	}
 
 	/**
-	 * The denominator of the equation to calculate <code>r</code>.
+	 * The denominator of the equation to calculate <code>r</code>. The sums
+	 * have to be updated by {@link #sumExp(double)} before.
 	 *
-	 * @param rn
-	 *            The value of <code>r</code> at the current iteration.
 	 * @return The result of the equation at the denominator.
 	 */
-	private double denominator(final double rn) {
-		final double s0 = sumExp(rn, 0);
-		final double s2 = sumExp(rn, 2);
-		return Math.pow((sumExp(rn, 1) / s0), 2) - s2 / s0;
+	private double denominator() {
+		final double m1 = sums[1] / sums[0];
+		return m1 * m1 - sums[2] / sums[0];
 	}
 
 	/**
-	 * The numerator of the equation to calculate <code>r</code>.
+	 * The numerator of the equation to calculate <code>r</code>. The sums have
+	 * to be updated by {@link #sumExp(double)} before.
 	 *
-	 * @param rn
-	 *            The value of <code>r</code> at the current iteration.
+	 * @param weight
+	 *            The result of {@link #weight()}.
 	 * @return The result of the equation at the numerator.
 	 */
-	private double numerator(final double rn) {
-		return sumExp(rn, 1) / sumExp(rn, 0) - weight();
+	private double numerator(final double weight) {
+		return sums[1] / sums[0] - weight;
+	}
+
+	/**
+	 * Writes the number of iterations of the last fit to the iteration buffer,
+	 * if there is one.
+	 *
+	 * @param bufferIndex
+	 *            The position at the iteration buffer.
+	 */
+	private void saveIterations(final int bufferIndex) {
+		if (iterationBuffer != null) {
+			iterationBuffer[bufferIndex] = iterations;
+		}
 	}
 
 	/**
 	 * Sums the counts of all pre-edge images at the currently processed pixel
 	 * position.
 	 *
+	 * @param spectrum
+	 *            An array that contains the spectrum of the pixel.
+	 * @param offset
+	 *            The position of the first value of the spectrum.
 	 * @return Sum of the counts.
 	 */
-	private double sumCounts() {
+	private double sumCounts(final float[] spectrum, final int offset) {
 		double value = 0;
 		for (int i = 0; i < edgeIndex; i++) {
-			value += array_EFTEMImages[i].getPixels()[currentIndex];
+			value += spectrum[offset + i];
 		}
 		return value;
 	}
 
 	/**
-	 * Calculates the sum of E_i^{exponent}.
+	 * Calculates the sums of <code>E_i^-r * ln^k(E_i)</code> with
+	 * <code>k = 0, 1, 2</code> and saves them to the field sums. Each power
+	 * function is evaluated only once per iteration.
 	 *
 	 * @param rn
 	 *            The value of <code>r</code> at the current iteration.
-	 * @param exponent
-	 *            can be 0, 1, or 2.
-	 * @return The sum of power functions.
 	 */
-	private double sumExp(final double rn, final int exponent) {
-		double value = 0;
-		for (int i = 0; i < edgeIndex; i++) {
-			value += (Math.pow(Math.log(array_EFTEMImages[i].getELoss()), exponent))
-					* Math.exp(-1 * rn * Math.log(array_EFTEMImages[i].getELoss()));
-		}
-		return value;
+	private void sumExp(final double rn) {
+		energyKernel.fillPowers(rn, powers);
+		energyKernel.moments(powers, sums);
 	}
 
 	/**
 	 * The MLE uses a weight that is calculated at this method.
 	 *
+	 * @param spectrum
+	 *            An array that contains the spectrum of the pixel.
+	 * @param offset
+	 *            The position of the first value of the spectrum.
 	 * @return A weighted mean energy loss.
 	 */
-	private double weight() {
+	private double weight(final float[] spectrum, final int offset) {
 		double value1 = 0;
 		double value2 = 0;
 		for (int i = 0; i < edgeIndex; i++) {
-			value1 += Math.log(array_EFTEMImages[i].getELoss()) * array_EFTEMImages[i].getPixels()[currentIndex];
-			value2 += array_EFTEMImages[i].getPixels()[currentIndex];
+			value1 += energyKernel.getLnE(i) * spectrum[offset + i];
+			value2 += spectrum[offset + i];
 		}
 		// If true this will result in 0/1
 		if (value2 == 0)
 			value2 = 1;
 		return value1 / value2;
 	}
-
-	@Override
-	public float getR(final int index) {
-		return r.get(index);
-	}
-
-	@Override
-	public float getA(final int index) {
-		return a.get(index);
-	}
 }
@@ -31,74 +31,100 @@ import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
 import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
-import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
 import ij.ImageStack;
 
 /**
- * This class calculates the elemental-map at a given energy loss. It subtracts
- * the calculated background from the measured image. Pixel that have an error
- * at the error map are ignored.
+ * This class calculates the elemental-maps of all post-edge images. It
+ * subtracts the calculated background from the measured image. Pixel that have
+ * an error at the error map are ignored.
  */
-public class MapCalculation extends Thread {
+public class MapCalculation implements TileTask {
 
 	/**
-	 * The calculated background signal.
+	 * The measured images.
 	 */
-	private final float[] bg;
+	private final EFTEMImage[] array_EFTEMImages;
 	/**
-	 * A shortcut to access the instance of {@link DatasetAPI}.
+	 * The {@link DatasetAPI} of the processed dataset.
 	 */
-	private final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
+	private final DatasetAPI datasetAPI;
 	/**
-	 * Map of errors that occurred during the MLE calculation.
+	 * The index of the first post-edge image.
 	 */
-	private final float[] errorValues;
+	private final int edgeIndex;
 	/**
-	 * The position of the processed image at the sorted input
-	 * {@link ImageStack}.
+	 * Map of errors that occurred during the MLE calculation.
 	 */
-	private final int imageIndex;
+	private final float[] errorValues;
 	/**
-	 * The pixels of the measured image.
+	 * The calculated elemental-maps. The first map belongs to the image at the
+	 * position edgeIndex of the sorted input {@link ImageStack}.
 	 */
-	private final float[] signal;
+	private final float[][] maps;
+
 	/**
-	 * A shortcut to access the instance of {@link ThreadInterface}.
+	 * The {@link DatasetAPI} of the {@link PluginAPI} is used.
 	 */
-	private final ThreadInterface threadInterface = ThreadInterface.getInstance();
+	public MapCalculation() {
+		this(PluginAPI.getInstance().getDatasetAPI());
+	}
 
 	/**
-	 * Each instance calculates the elemental-map of the given eftemImage by
-	 * subtracting the calculated background.
+	 * The constructor creates the arrays that are used to store the
+	 * elemental-maps until the calculation has finished.
 	 *
-	 * @param eftemImage
-	 *            The measured signal is taken from this object.
-	 * @param imageIndex
-	 *            The position of the processed image at the sorted input
-	 *            {@link ImageStack}. This is used to save the results of the
-	 *            calculation by using the {@link DatasetAPI}.
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
 	 */
-	public MapCalculation(final EFTEMImage eftemImage, final int imageIndex) {
+	public MapCalculation(final DatasetAPI datasetAPI) {
 		super();
-		threadInterface.addThread();
-		this.imageIndex = imageIndex;
-		bg = datasetAPI.getBackgroundPixels(imageIndex);
+		this.datasetAPI = datasetAPI;
+		array_EFTEMImages = datasetAPI.getEFTEMImageArray();
+		edgeIndex = datasetAPI.getEdgeIndex();
 		errorValues = datasetAPI.getErrorMap();
-		signal = eftemImage.getPixels();
+		maps = new float[array_EFTEMImages.length - edgeIndex][errorValues.length];
 	}
 
 	@Override
-	public void run() {
-		final float[] map = new float[signal.length];
-		for (int index = 0; index < signal.length; index++) {
-			if (errorValues[index] == 0) {
-				map[index] = signal[index] - bg[index];
-			} else {
-				map[index] = PluginConstants.VALUE_CALCULATION_FAILED;
-			}
+	public void finished() {
+		for (int imageIndex = edgeIndex; imageIndex < array_EFTEMImages.length; imageIndex++) {
+			datasetAPI.saveMap(maps[imageIndex - edgeIndex], imageIndex);
 		}
-		datasetAPI.saveMap(map, imageIndex);
-		threadInterface.removeThread(ThreadInterface.MAP);
 	}
 
+	@Override
+	public int getBytesPerPixel() {
+		// 3 floats per post-edge image and the error.
+		return 4 * (3 * (array_EFTEMImages.length - edgeIndex) + 1);
+	}
+
+	@Override
+	public int getHeight() {
+		return datasetAPI.getHeight();
+	}
+
+	@Override
+	public int getWidth() {
+		return datasetAPI.getWidth();
+	}
+
+	@Override
+	public void processTile(final Tile tile) {
+		final int end = tile.getIndex() + tile.getLength();
+		for (int imageIndex = edgeIndex; imageIndex < array_EFTEMImages.length; imageIndex++) {
+			final float[] signal = array_EFTEMImages[imageIndex].getPixels();
+			final float[] bg = datasetAPI.getBackgroundPixels(imageIndex);
+			final float[] map = maps[imageIndex - edgeIndex];
+			for (int index = tile.getIndex(); index < end; index++) {
+				if (errorValues[index] == 0) {
+					map[index] = signal[index] - bg[index];
+				} else {
+					map[index] = PluginConstants.VALUE_CALCULATION_FAILED;
+				}
+			}
+		}
+	}
 }
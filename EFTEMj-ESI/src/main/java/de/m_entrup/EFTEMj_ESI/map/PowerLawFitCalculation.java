@@ -28,114 +28,281 @@
 package de.m_entrup.EFTEMj_ESI.map;
 
 import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
+import de.m_entrup.EFTEMj_ESI.dataset.EnergyKernel;
+import de.m_entrup.EFTEMj_ESI.dataset.FitResultCache;
+import de.m_entrup.EFTEMj_ESI.dataset.PixelMask;
+import de.m_entrup.EFTEMj_ESI.dataset.SpectrumBlock;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
+import de.m_entrup.EFTEMj_ESI.threading.SparseTileTask;
 import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
 
 /**
  * This class calculates the parameter of the background model pixel by pixel.
- * The used background model is the power law. Each instance of
- * {@link PowerLawFitCalculation} processes an image row and saves the result.
- * To calculate the background the maximum likelihood estimation is used. All
- * errors that occur during the calculation are classified and logged.
+ * The used background model is the power law. The image is processed
+ * {@link Tile} by {@link Tile} and the results are written directly to the
+ * result arrays of the {@link DatasetAPI}. To calculate the background the
+ * maximum likelihood estimation is used. All errors that occur during the
+ * calculation are classified and logged.<br>
+ * If the {@link DatasetAPI} has a {@link PixelMask}, only the selected pixels
+ * are fitted. The results of all other pixels are set by the constructor, so
+ * {@link Tile}s without a selected pixel are skipped.<br>
+ * The results of a finished calculation are stored at the
+ * {@link FitResultCache}. They are reused by
+ * {@link #restoreFromCache(DatasetAPI, FitResultCache.Key)} as long as the pre-edge images, the
+ * epsilon and the fit options do not change.
  */
-public class PowerLawFitCalculation extends Thread {
+public class PowerLawFitCalculation implements SparseTileTask {
 
 	private final int DEBUGCODE = 1;
-	private AbstractFitRoutine typeOfFit;
 	/**
-	 * The exit condition for the MLE. There is a static method to change this
-	 * value.
+	 * The number of pixels of each {@link SpectrumBlock}. The block of a stack
+	 * with 40 images fits into the L1 cache.
 	 */
-	private static float epsilon = PluginConstants.EPSILON;
+	private static final int BLOCK_LENGTH = 128;
 
 	/**
-	 * @return The current value of epsilon.
+	 * Copies the results of an earlier calculation with the same pre-edge
+	 * images from the {@link FitResultCache} to the result arrays of the
+	 * {@link DatasetAPI}.
+	 *
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} of the processed dataset.
+	 * @param cacheKey
+	 *            The key that has been created by
+	 *            {@link #createCacheKey(DatasetAPI)}.
+	 * @return <code>true</code> if the results have been restored,
+	 *         <code>false</code> if the power law fit has to be calculated.
 	 */
-	public static float getEpsilon() {
-		return epsilon;
+	public static boolean restoreFromCache(final DatasetAPI datasetAPI, final FitResultCache.Key cacheKey) {
+		return FitResultCache.getInstance().restore(cacheKey, datasetAPI.getRMap(), datasetAPI.getAMap(),
+				datasetAPI.getErrorMap(), datasetAPI.getIterationMap());
 	}
 
 	/**
-	 * The exit condition is saved as a static field so each instance can access
-	 * it. This method is used to change the value.
+	 * The pre-edge images are fingerprinted, so the key should be created once
+	 * per calculation and passed to {@link #restoreFromCache(DatasetAPI,
+	 * FitResultCache.Key)} and to the constructor.
 	 *
-	 * @param newEpsilon
-	 *            The new exit condition that is set by the GUI.
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} of the processed dataset.
+	 * @return The key of the fit at the {@link FitResultCache}. The post-edge
+	 *         images are not part of the key.
 	 */
-	public static void setEpsilon(final float newEpsilon) {
-		epsilon = newEpsilon;
+	public static FitResultCache.Key createCacheKey(final DatasetAPI datasetAPI) {
+		final float[][] preEdgePixels = new float[datasetAPI.getEdgeIndex()][];
+		final float[] preEdgeELosses = new float[preEdgePixels.length];
+		for (int i = 0; i < preEdgePixels.length; i++) {
+			preEdgePixels[i] = datasetAPI.getEFTEMImage(i).getPixels();
+			preEdgeELosses[i] = datasetAPI.getEFTEMImage(i).getELoss();
+		}
+		return new FitResultCache.Key(datasetAPI.getImagePlus().getID(), preEdgeELosses, datasetAPI.getEpsilon(),
+				datasetAPI.isWarmStart(), FitResultCache.fingerprint(preEdgePixels, null, datasetAPI.getMask()));
 	}
 
 	/**
 	 * The second parameter of the power law. It is derived from r.
 	 */
-	private float[] a;
+	private final float[] aMap;
+	/**
+	 * Identifies the fit at the {@link FitResultCache}.
+	 */
+	private final FitResultCache.Key cacheKey;
+	/**
+	 * The {@link DatasetAPI} of the processed dataset.
+	 */
+	private final DatasetAPI datasetAPI;
+	/**
+	 * This field stores the error type of each pixel.
+	 */
+	private final float[] errorMap;
+	/**
+	 * This field stores the number of iterations of each pixel.
+	 */
+	private final float[] iterationMap;
+	/**
+	 * Only the selected pixels are fitted. It is <code>null</code> if all
+	 * pixels are fitted.
+	 */
+	private final PixelMask mask;
 	/**
-	 * A shortcut to access the instance of {@link DatasetAPI}.
+	 * The fit routines write the error type of each pixel to this array before
+	 * it is copied to the error map.
 	 */
-	private final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
+	private final short[] errorType;
 	/**
-	 * This field stores the error type of each pixel before it is saved.
+	 * The preview that is refined after each {@link Tile}. It is
+	 * <code>null</code> if no preview is shown.
 	 */
-	short[] errorType;
+	private final PreviewMapCalculation preview;
 	/**
-	 * The parameter of the power law that is calculated. This field saves the
-	 * result of each x-position of the processed image line.
+	 * The parameter of the power law that is calculated.
 	 */
-	private float[] r;
+	private final float[] rMap;
 
 	/**
-	 * A shortcut to access the instance of {@link ThreadInterface}.
+	 * The constructor creates a new instance of {@link PowerLawFitCalculation}
+	 * for the parameter calculation of each pixel of the image. The
+	 * {@link DatasetAPI} of the {@link PluginAPI} is used.
 	 */
-	private final ThreadInterface threadInterface = ThreadInterface.getInstance();
+	public PowerLawFitCalculation() {
+		this(PluginAPI.getInstance().getDatasetAPI());
+	}
+
 	/**
-	 * The y coordinate of the processed pixel.
+	 * The constructor creates a new instance of {@link PowerLawFitCalculation}
+	 * for the parameter calculation of each pixel of the image.
+	 *
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
 	 */
-	private final int y;
+	public PowerLawFitCalculation(final DatasetAPI datasetAPI) {
+		this(datasetAPI, createCacheKey(datasetAPI), null);
+	}
 
 	/**
 	 * The constructor creates a new instance of {@link PowerLawFitCalculation}
-	 * for the parameter calculation of each pixel at an image row.
+	 * that refines the given preview after each {@link Tile}.
 	 *
-	 * @param y
-	 *            The image row that is processed by the new instance of
-	 *            {@link PowerLawFitCalculation}.
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
+	 * @param cacheKey
+	 *            The key that has been created by
+	 *            {@link #createCacheKey(DatasetAPI)}. The results are stored
+	 *            with this key at the {@link FitResultCache}.
+	 * @param preview
+	 *            The {@link PreviewMapCalculation} that is refined or
+	 *            <code>null</code>.
 	 */
-	public PowerLawFitCalculation(final int y) {
+	public PowerLawFitCalculation(final DatasetAPI datasetAPI, final FitResultCache.Key cacheKey,
+			final PreviewMapCalculation preview) {
 		super();
-		threadInterface.addThread();
-		this.y = y;
+		this.datasetAPI = datasetAPI;
+		this.preview = preview;
+		rMap = datasetAPI.getRMap();
+		aMap = datasetAPI.getAMap();
+		errorMap = datasetAPI.getErrorMap();
+		iterationMap = datasetAPI.getIterationMap();
+		errorType = new short[errorMap.length];
+		mask = datasetAPI.getMask();
+		this.cacheKey = cacheKey;
+		if (mask != null) {
+			for (int index = 0; index < errorType.length; index++) {
+				if (!mask.isSelected(index)) {
+					rMap[index] = PluginConstants.VALUE_CALCULATION_FAILED;
+					aMap[index] = PluginConstants.VALUE_CALCULATION_FAILED;
+					iterationMap[index] = 0;
+					errorType[index] = PluginConstants.ERROR__MASKED;
+					errorMap[index] = PluginConstants.ERROR__MASKED;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void finished() {
+		// The results have been written to the result arrays.
+		FitResultCache.getInstance().put(cacheKey, rMap, aMap, errorMap, iterationMap);
+		if (preview != null) {
+			preview.finished();
+		}
+	}
+
+	@Override
+	public int getBytesPerPixel() {
+		// 1 float per input image and r, a, the error and the iterations for
+		// the results.
+		return 4 * (datasetAPI.getStackSize() + 4);
+	}
+
+	@Override
+	public int getHeight() {
+		return datasetAPI.getHeight();
+	}
+
+	@Override
+	public int getWidth() {
+		return datasetAPI.getWidth();
+	}
+
+	@Override
+	public boolean isEmpty(final Tile tile) {
+		return mask != null && mask.isEmpty(tile.getIndex(), tile.getLength());
 	}
 
 	@Override
-	public void run() {
-		selectTypeOfFit();
-		final int width = datasetAPI.getWidth();
-		r = new float[width];
-		a = new float[width];
-		errorType = new short[width];
-		for (int x = 0; x < width; x++) {
-			final int index = x + y * width;
-			errorType[x] = typeOfFit.calculateByPixel(index);
-			r[x] = typeOfFit.getR(index);
-			a[x] = typeOfFit.getA(index);
+	public void processTile(final Tile tile) {
+		// Each tile uses its own fit routine, as the routines are not thread
+		// safe.
+		final AbstractFitRoutine typeOfFit = selectTypeOfFit();
+		typeOfFit.setWarmStart(datasetAPI.isWarmStart());
+		typeOfFit.setIterationBuffer(iterationMap);
+		SpectrumBlock block = null;
+		if (datasetAPI.isSpectrumBlocks()) {
+			block = new SpectrumBlock(datasetAPI.getStackSize(), BLOCK_LENGTH);
+		}
+		final int end = tile.getIndex() + tile.getLength();
+		if (mask == null) {
+			fitSpan(typeOfFit, block, tile.getIndex(), end);
+		} else {
+			// The tile is processed as runs of selected and unselected pixels.
+			int index = tile.getIndex();
+			while (index < end) {
+				final int endOfRun = mask.endOfRun(index, end);
+				if (mask.isSelected(index)) {
+					fitSpan(typeOfFit, block, index, endOfRun);
+				}
+				index = endOfRun;
+			}
+		}
+		for (int index = tile.getIndex(); index < tile.getIndex() + tile.getLength(); index++) {
+			errorMap[index] = errorType[index];
+		}
+		if (preview != null) {
+			preview.refineTile(tile);
+		}
+	}
+
+	/**
+	 * Fits all pixels of a span. The fit routine writes its results directly
+	 * to the result arrays.
+	 *
+	 * @param typeOfFit
+	 *            The fit routine of the {@link Tile}.
+	 * @param block
+	 *            The {@link SpectrumBlock} that is reused for all spans of the
+	 *            {@link Tile} or <code>null</code> to read the spectra
+	 *            directly from the images.
+	 * @param start
+	 *            The first pixel of the span.
+	 * @param end
+	 *            The first pixel that is not part of the span.
+	 */
+	private void fitSpan(final AbstractFitRoutine typeOfFit, final SpectrumBlock block, final int start,
+			final int end) {
+		if (block != null) {
+			final EFTEMImage[] images = datasetAPI.getEFTEMImageArray();
+			for (int index = start; index < end; index += BLOCK_LENGTH) {
+				block.load(images, index, Math.min(BLOCK_LENGTH, end - index));
+				typeOfFit.calculateBlock(block, rMap, aMap, errorType, index);
+			}
+		} else {
+			typeOfFit.calculateSpan(start, end - start, rMap, aMap, errorType, start);
 		}
-		// ToDo Call a instance of FitCalculation
-		datasetAPI.saveR(y * width, r);
-		datasetAPI.saveA(y * width, a);
-		datasetAPI.saveError(y * width, errorType);
-		threadInterface.removeThread(ThreadInterface.MLE);
 	}
 
-	private void selectTypeOfFit() {
+	private AbstractFitRoutine selectTypeOfFit() {
+		final EFTEMImage[] images = datasetAPI.getEFTEMImageArray();
+		final EnergyKernel energyKernel = datasetAPI.getEnergyKernel();
 		switch (DEBUGCODE) {
 		case 1:
-			typeOfFit = new MLERoutine(epsilon);
-			break;
+			return new MLERoutine(images, energyKernel, datasetAPI.getEpsilon());
 		default:
-			typeOfFit = new MLERoutine(epsilon);
-			break;
+			return new MLERoutine(images, energyKernel, datasetAPI.getEpsilon());
 		}
 	}
 
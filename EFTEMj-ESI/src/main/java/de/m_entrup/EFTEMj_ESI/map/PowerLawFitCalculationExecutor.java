@@ -30,15 +30,17 @@ package de.m_entrup.EFTEMj_ESI.map;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
 import java.util.Date;
 import java.util.Locale;
 
 import javax.swing.JButton;
-import javax.swing.SwingWorker;
 
 import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+import de.m_entrup.EFTEMj_ESI.dataset.FitResultCache;
 import de.m_entrup.EFTEMj_ESI.gui.MainMenu;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
+import de.m_entrup.EFTEMj_ESI.threading.CalculationExecutor;
 import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
 import de.m_entrup.EFTEMj_ESI.tools.LogWriter;
 import de.m_entrup.EFTEMj_ESI.tools.MyTimer;
@@ -47,16 +49,11 @@ import ij.IJ;
 /**
  * The aim of the {@link PowerLawFitCalculationExecutor} is to split the
  * calculation of the MLE into subtasks. The calculation is independent for each
- * pixel. To limit the effort for thread handling each thread processes a
- * complete image row.
+ * pixel. To limit the effort for thread handling the {@link ThreadInterface}
+ * splits the image into tiles of several image rows.
  */
-public class PowerLawFitCalculationExecutor extends SwingWorker<Void, Void> {
+public class PowerLawFitCalculationExecutor extends CalculationExecutor {
 
-	/**
-	 * The height of the processed images. This corresponds to the number of
-	 * subtasks the calculation is split up.
-	 */
-	private final int height;
 	/**
 	 * A shortcut to access the instance of {@link DatasetAPI}.
 	 */
@@ -64,14 +61,12 @@ public class PowerLawFitCalculationExecutor extends SwingWorker<Void, Void> {
 
 	/**
 	 * The constructor disables all {@link JButton} at the {@link MainMenu} and
-	 * transmits the number of subtasks to the {@link ThreadInterface}.
+	 * writes the parameters of the calculation to the log.
 	 *
 	 * @throws Exception
 	 */
 	public PowerLawFitCalculationExecutor() throws Exception {
 		super();
-		height = PluginAPI.getInstance().getDatasetAPI().getHeight();
-		ThreadInterface.getInstance().configureThreadChecker(height);
 		LogWriter.clearProcessLog();
 		DateFormat df;
 		df = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM, Locale.ENGLISH);
@@ -80,7 +75,7 @@ public class PowerLawFitCalculationExecutor extends SwingWorker<Void, Void> {
 		DecimalFormat decF = new DecimalFormat("#.###", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
 		decF = new DecimalFormat("0.0##E0", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
 		LogWriter.writeProcessLog("The break condition for r is a change of less than "
-				+ decF.format(PowerLawFitCalculation.getEpsilon()), LogWriter.MAP);
+				+ decF.format(datasetAPI.getEpsilon()), LogWriter.MAP);
 		String preEdgeImages = "";
 		String postEdgeImages = "";
 		for (int i = 0; i < datasetAPI.getStackSize(); i++) {
@@ -94,16 +89,37 @@ public class PowerLawFitCalculationExecutor extends SwingWorker<Void, Void> {
 		postEdgeImages = postEdgeImages.substring(0, postEdgeImages.length() - 2);
 		LogWriter.writeProcessLog("Pre edge images: " + preEdgeImages, LogWriter.MAP);
 		LogWriter.writeProcessLog("Post edge images: " + postEdgeImages, LogWriter.MAP);
+		if (datasetAPI.getMask() != null) {
+			final int count = datasetAPI.getMask().getCount();
+			LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Fitted pixels: %d (%s)", count,
+					NumberFormat.getPercentInstance()
+							.format((double) count / (datasetAPI.getWidth() * datasetAPI.getHeight()))),
+					LogWriter.MAP);
+		}
 	}
 
 	@Override
 	protected Void doInBackground() throws Exception {
 		IJ.showStatus("Starting power law fit calculation...");
 		MyTimer.start();
-		for (int y = 0; y < height; y++) {
-			final PowerLawFitCalculation mle = new PowerLawFitCalculation(y);
-			mle.start();
+		final FitResultCache.Key cacheKey = PowerLawFitCalculation.createCacheKey(datasetAPI);
+		if (PowerLawFitCalculation.restoreFromCache(datasetAPI, cacheKey)) {
+			LogWriter.writeProcessLog("The power law fit of the same pre-edge images has been reused.", LogWriter.MAP);
+			ThreadInterface.getInstance().finish(ThreadInterface.MLE);
+			return null;
+		}
+		PreviewMapCalculation preview = null;
+		if (datasetAPI.isProgressivePreview()) {
+			IJ.showStatus("Calculating the preview...");
+			preview = new PreviewMapCalculation(datasetAPI);
+			preview.show();
+			final Float timeInSeconds = (float) (MyTimer.interval()) / 1000;
+			LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Time required (preview, binning %d): %.2f s",
+					preview.getBinning(), timeInSeconds), LogWriter.MAP);
+			IJ.showStatus("Starting power law fit calculation...");
 		}
+		ThreadInterface.getInstance().execute(new PowerLawFitCalculation(datasetAPI, cacheKey, preview),
+				ThreadInterface.MLE);
 		return null;
 	}
 
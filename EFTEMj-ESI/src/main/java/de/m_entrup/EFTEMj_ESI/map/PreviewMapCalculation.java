@@ -0,0 +1,275 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.map;
+
+import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
+import de.m_entrup.EFTEMj_ESI.dataset.EnergyKernel;
+import de.m_entrup.EFTEMj_ESI.dataset.PixelMask;
+import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.tools.ImagePlusTool;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/**
+ * The {@link PreviewMapCalculation} creates a preview of the elemental-maps
+ * before the full calculation is done. The images are binned and the binned
+ * stack is fitted by a single {@link MLERoutine}. The preview is shown with
+ * the full size of the images. While the {@link PowerLawFitCalculation} is
+ * running, each finished {@link Tile} replaces the binned preview by the
+ * elemental-map of full resolution.
+ */
+public class PreviewMapCalculation {
+
+	/**
+	 * The minimal time between two updates of the displayed preview in ms.
+	 */
+	private static final long UPDATE_INTERVAL = 250;
+
+	/**
+	 * @param width
+	 *            The width of the images.
+	 * @param height
+	 *            The height of the images.
+	 * @return The binning that is used for the preview. Images with more than
+	 *         2048 pixels in a row or column are binned by 8, smaller ones by
+	 *         4.
+	 */
+	public static int getBinning(final int width, final int height) {
+		final int binning = (Math.max(width, height) > 2048) ? 8 : 4;
+		return Math.max(1, Math.min(binning, Math.min(width, height)));
+	}
+
+	/**
+	 * The result of the fit of full resolution.
+	 */
+	private final float[] aMap;
+	/**
+	 * The binning of the preview.
+	 */
+	private final int binning;
+	/**
+	 * The {@link DatasetAPI} of the processed dataset.
+	 */
+	private final DatasetAPI datasetAPI;
+	/**
+	 * The index of the first post-edge image.
+	 */
+	private final int edgeIndex;
+	/**
+	 * The energy losses of the full stack.
+	 */
+	private final EnergyKernel energyKernel;
+	/**
+	 * The error map of the fit of full resolution.
+	 */
+	private final float[] errorMap;
+	/**
+	 * The measured images.
+	 */
+	private final EFTEMImage[] images;
+	/**
+	 * The {@link ImagePlus} that shows the preview. It is <code>null</code>
+	 * until <code>show()</code> has been called.
+	 */
+	private ImagePlus imp;
+	/**
+	 * The time of the last update of the displayed preview.
+	 */
+	private long lastUpdate;
+	/**
+	 * The displayed elemental-maps. The first map belongs to the image at the
+	 * position edgeIndex.
+	 */
+	private final float[][] maps;
+	/**
+	 * The result of the fit of full resolution.
+	 */
+	private final float[] rMap;
+	/**
+	 * The width of the images.
+	 */
+	private final int width;
+
+	/**
+	 * The constructor bins the images, fits the binned stack and fills the
+	 * preview with the result.
+	 *
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and the results of the full calculation.
+	 */
+	public PreviewMapCalculation(final DatasetAPI datasetAPI) {
+		super();
+		this.datasetAPI = datasetAPI;
+		images = datasetAPI.getEFTEMImageArray();
+		edgeIndex = datasetAPI.getEdgeIndex();
+		energyKernel = new EnergyKernel(images, edgeIndex);
+		width = datasetAPI.getWidth();
+		rMap = datasetAPI.getRMap();
+		aMap = datasetAPI.getAMap();
+		errorMap = datasetAPI.getErrorMap();
+		binning = getBinning(width, datasetAPI.getHeight());
+		maps = new float[images.length - edgeIndex][width * datasetAPI.getHeight()];
+		calculateBinnedMaps();
+	}
+
+	/**
+	 * Bins all images by summing up the counts. The sum of Poisson distributed
+	 * values is Poisson distributed, too. That is why the MLE is valid for the
+	 * binned stack and only <strong>a</strong> is scaled by the number of
+	 * binned pixels.
+	 */
+	private void calculateBinnedMaps() {
+		final int height = datasetAPI.getHeight();
+		final int binnedWidth = width / binning;
+		final int binnedHeight = height / binning;
+		final int binnedLength = binnedWidth * binnedHeight;
+		final EFTEMImage[] binnedImages = new EFTEMImage[images.length];
+		for (int i = 0; i < images.length; i++) {
+			final float[] pixels = images[i].getPixels();
+			final float[] binnedPixels = new float[binnedLength];
+			for (int y = 0; y < binnedHeight * binning; y++) {
+				final int binnedRow = (y / binning) * binnedWidth;
+				for (int x = 0; x < binnedWidth * binning; x++) {
+					binnedPixels[binnedRow + x / binning] += pixels[y * width + x];
+				}
+			}
+			binnedImages[i] = new EFTEMImage(images[i].getELoss(), images[i].getLabel(), binnedPixels, binnedWidth);
+		}
+		final float[] binnedR = new float[binnedLength];
+		final float[] binnedA = new float[binnedLength];
+		final short[] binnedErrors = new short[binnedLength];
+		final MLERoutine routine = new MLERoutine(binnedImages, energyKernel, datasetAPI.getEpsilon());
+		routine.setWarmStart(true);
+		for (int y = 0; y < binnedHeight; y++) {
+			routine.calculateSpan(y * binnedWidth, binnedWidth, binnedR, binnedA, binnedErrors, y * binnedWidth);
+		}
+		// Each pixel of full resolution gets the value of the binned pixel it
+		// belongs to. The last rows and columns use the nearest binned pixel.
+		// Pixels outside the mask are not fitted and have no preview.
+		final PixelMask mask = datasetAPI.getMask();
+		final double pixelsPerBin = binning * binning;
+		for (int imageIndex = edgeIndex; imageIndex < images.length; imageIndex++) {
+			final float[] binnedSignal = binnedImages[imageIndex].getPixels();
+			final float[] map = maps[imageIndex - edgeIndex];
+			for (int y = 0; y < height; y++) {
+				final int binnedRow = Math.min(y / binning, binnedHeight - 1) * binnedWidth;
+				for (int x = 0; x < width; x++) {
+					final int binnedIndex = binnedRow + Math.min(x / binning, binnedWidth - 1);
+					if (binnedErrors[binnedIndex] == PluginConstants.ERROR__NON
+							&& (mask == null || mask.isSelected(y * width + x))) {
+						map[y * width + x] = (float) ((binnedSignal[binnedIndex] - energyKernel
+								.background(imageIndex, binnedA[binnedIndex], binnedR[binnedIndex])) / pixelsPerBin);
+					} else {
+						map[y * width + x] = PluginConstants.VALUE_CALCULATION_FAILED;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Shows the last state of the preview. The {@link ImagePlus} stays open
+	 * after the calculation has finished.
+	 */
+	public void finished() {
+		if (imp != null) {
+			imp.updateAndDraw();
+		}
+	}
+
+	/**
+	 * @return The binning of the preview.
+	 */
+	public int getBinning() {
+		return binning;
+	}
+
+	/**
+	 * Replaces the preview of the given {@link Tile} by the elemental-maps of
+	 * full resolution. The fit of the tile must have been finished. The
+	 * displayed preview is updated every {@value #UPDATE_INTERVAL} ms at most.
+	 *
+	 * @param tile
+	 *            A {@link Tile} that has been processed by the
+	 *            {@link PowerLawFitCalculation}.
+	 */
+	public void refineTile(final Tile tile) {
+		final int end = tile.getIndex() + tile.getLength();
+		for (int imageIndex = edgeIndex; imageIndex < images.length; imageIndex++) {
+			final float[] signal = images[imageIndex].getPixels();
+			final float[] map = maps[imageIndex - edgeIndex];
+			for (int index = tile.getIndex(); index < end; index++) {
+				if (errorMap[index] == PluginConstants.ERROR__NON) {
+					map[index] = (float) (signal[index]
+							- energyKernel.background(imageIndex, aMap[index], rMap[index]));
+				} else {
+					map[index] = PluginConstants.VALUE_CALCULATION_FAILED;
+				}
+			}
+		}
+		update();
+	}
+
+	/**
+	 * Displays the preview. The display limits are calculated from the binned
+	 * preview.
+	 */
+	public void show() {
+		final int height = datasetAPI.getHeight();
+		final ImageStack stack = new ImageStack(width, height);
+		for (int i = 0; i < maps.length; i++) {
+			final FloatProcessor fp = new FloatProcessor(width, height, maps[i], null);
+			fp.resetMinAndMax();
+			stack.addSlice("Preview[" + images[edgeIndex + i].getELoss() + "eV] "
+					+ datasetAPI.getImagePlusShortTitle(), fp);
+		}
+		imp = ImagePlusTool.createImagePlus("Map-Preview " + datasetAPI.getImagePlusShortTitle(), stack, true);
+		imp.show();
+		lastUpdate = System.currentTimeMillis();
+	}
+
+	/**
+	 * Redraws the displayed preview if the last update is older than
+	 * {@value #UPDATE_INTERVAL} ms.
+	 */
+	private synchronized void update() {
+		if (imp == null) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		if (now - lastUpdate >= UPDATE_INTERVAL) {
+			lastUpdate = now;
+			imp.updateAndDraw();
+		}
+	}
+}
@@ -29,16 +29,18 @@ package de.m_entrup.EFTEMj_ESI.map;
 
 import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
 import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
+import de.m_entrup.EFTEMj_ESI.dataset.EnergyKernel;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
-import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
 import ij.ImageStack;
 
 /**
  * This class calculates the Signal-to-Noise-Ratio (SNR) pixel by pixel. Each
- * instance processes a single image row.
+ * {@link Tile} is processed for all elemental-maps at once.
  */
-public class SNRCalculation extends Thread {
+public class SNRCalculation implements TileTask {
 
 	/**
 	 * Map of parameter <code>a</code>.
@@ -50,195 +52,116 @@ public class SNRCalculation extends Thread {
 	 */
 	private final EFTEMImage[] array_EFTEMImages;
 	/**
-	 * This constant determines if the derivative from a is used.
+	 * The {@link DatasetAPI} of the processed dataset.
 	 */
-	private final int da = 0;
-	/**
-	 * A shortcut to access the instance of {@link DatasetAPI}.
-	 */
-	private final DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
-	/**
-	 * This constant determines if the derivative from r is used.
-	 */
-	private final int dr = 1;
+	private final DatasetAPI datasetAPI;
 	/**
 	 * The index of the first post-edge image.
 	 */
 	private final int edgeIndex;
 	/**
-	 * The energy loss of the {@link EFTEMImage} at the array position
-	 * imageIndex.
+	 * The logarithms of the energy losses of the input images.
 	 */
-	private final float eLoss;
+	private final EnergyKernel energyKernel;
 	/**
 	 * Map of errors that occurred during the MLE calculation.
 	 */
 	private final float[] errorValues;
-	/**
-	 * The position of the processed image at the sorted input
-	 * {@link ImageStack}.
-	 */
-	private final int imageIndex;
-	/**
-	 * <code>x + y * width</code>
-	 */
-	private int index;
 	/**
 	 * Map of parameter <code>r</code>.
 	 */
 	private final float[] rMap;
 	/**
-	 * The pixels of the {@link EFTEMImage} at the array position imageIndex.
+	 * The sigma² images of all post-edge images.
 	 */
-	private final float[] signal;
+	private final float[][] sigma2;
 	/**
-	 * A shortcut to access the instance of {@link ThreadInterface}.
+	 * The elemental-maps.
 	 */
-	private final ThreadInterface threadInterface = ThreadInterface.getInstance();
+	private final float[][] signal;
 	/**
-	 * The x coordinate of the processed pixel.
+	 * The SNR images of all post-edge images.
 	 */
-	private int currentX;
+	private final float[][] snr;
+
 	/**
-	 * The y coordinate of the processed pixel.
+	 * The {@link DatasetAPI} of the {@link PluginAPI} is used.
 	 */
-	private final int currentY;
+	public SNRCalculation() {
+		this(PluginAPI.getInstance().getDatasetAPI());
+	}
 
 	/**
 	 * The constructor creates a new instance of {@link SNRCalculation} for the
-	 * SNR calculation of each pixel at an image row.
+	 * SNR calculation of all elemental-maps. The result images are created
+	 * before the calculation starts, so all tiles can write to them.
 	 *
-	 * @param y
-	 *            The image row that is processed by the new instance of
-	 *            {@link SNRCalculation}
-	 * @param imageIndex
-	 *            The position of the processed image at the sorted input
-	 *            {@link ImageStack}. This is used to save the results of the
-	 *            calculation by using the {@link DatasetAPI}.
+	 * @param datasetAPI
+	 *            The {@link DatasetAPI} that gives access to the input images
+	 *            and stores the results.
 	 */
-	public SNRCalculation(final int y, final int imageIndex) {
+	public SNRCalculation(final DatasetAPI datasetAPI) {
 		super();
-		threadInterface.addThread();
-		this.currentX = 0;
-		this.currentY = y;
-		this.imageIndex = imageIndex;
+		this.datasetAPI = datasetAPI;
 		edgeIndex = datasetAPI.getEdgeIndex();
 		array_EFTEMImages = datasetAPI.getEFTEMImageArray();
-		eLoss = array_EFTEMImages[imageIndex].getELoss();
+		energyKernel = datasetAPI.getEnergyKernel();
 		rMap = datasetAPI.getRMap();
 		aMap = datasetAPI.getAMap();
-		signal = datasetAPI.getMap(imageIndex - edgeIndex).getPixels();
 		errorValues = datasetAPI.getErrorMap();
+		signal = new float[array_EFTEMImages.length - edgeIndex][];
+		snr = new float[signal.length][];
+		sigma2 = new float[signal.length][];
+		for (int imageIndex = edgeIndex; imageIndex < array_EFTEMImages.length; imageIndex++) {
+			signal[imageIndex - edgeIndex] = datasetAPI.getMap(imageIndex - edgeIndex).getPixels();
+			snr[imageIndex - edgeIndex] = datasetAPI.getSNRPixels(imageIndex);
+			sigma2[imageIndex - edgeIndex] = datasetAPI.getSigma2Pixels(imageIndex);
+		}
 	}
 
-	/**
-	 * Calculating the background again is faster than reading it from the saved
-	 * results, especially with a increasing number of pre-edge images.
-	 *
-	 * @param energyLoss
-	 *            The energy loss that is used for the calculation.
-	 * @return The background signal.
-	 */
-	private float calcBG(final float energyLoss) {
-		final float bg = (float) Math.exp(aMap[index] - rMap[index] * Math.log(energyLoss));
-		return bg;
+	@Override
+	public void finished() {
+		// The results have been written to the result images.
 	}
 
-	/**
-	 * @return The covariance of parameter <code>r</code> and <code>a</code>.
-	 */
-	private double covar() {
-		return m(1) * varR();
+	@Override
+	public int getBytesPerPixel() {
+		// 1 float per pre-edge image, 3 floats per post-edge image and r, a
+		// and the error.
+		return 4 * (edgeIndex + 3 * signal.length + 3);
 	}
 
-	/**
-	 * By using a switch statement the power law can be differentiated with
-	 * respect to different variables.
-	 *
-	 * @param x
-	 *            The power law is differentiated with respect to x
-	 * @return The derivative of the power law at E=eloss.
-	 */
-	private double dI(final int x) {
-		switch (x) {
-		case da:
-			return calcBG(eLoss);
-		case dr:
-			return -Math.log(eLoss) * calcBG(eLoss);
-		}
-		return Double.NaN;
+	@Override
+	public int getHeight() {
+		return datasetAPI.getHeight();
 	}
 
-	/**
-	 * This is a weight. The numerator is a sum of
-	 * <code>bg(eLoss)*eloss^k</code> and the denominator is the sum of
-	 * <code>bg(eLoss)</code>.
-	 *
-	 * @param k
-	 *            Can be 1 or 2.
-	 * @return A linear or cubic weight.
-	 */
-	private double m(final int k) {
-		double sum1 = 0;
-		for (int i = 0; i < edgeIndex; i++) {
-			sum1 += calcBG(array_EFTEMImages[i].getELoss()) * Math.pow(Math.log(array_EFTEMImages[i].getELoss()), k);
-		}
-		double sum2 = 0;
-		for (int i = 0; i < edgeIndex; i++) {
-			sum2 += calcBG(array_EFTEMImages[i].getELoss());
-		}
-		return sum1 / sum2;
+	@Override
+	public int getWidth() {
+		return datasetAPI.getWidth();
 	}
 
 	@Override
-	public void run() {
-		final int width = datasetAPI.getWidth();
-		final float[] snr = new float[width];
-		final float[] sigma2 = new float[width];
-		for (currentX = 0; currentX < width; currentX++) {
-			index = currentX + currentY * width;
+	public void processTile(final Tile tile) {
+		final SNRPixelCalculator calculator = new SNRPixelCalculator(energyKernel);
+		final int end = tile.getIndex() + tile.getLength();
+		for (int index = tile.getIndex(); index < end; index++) {
 			if (errorValues[index] == 0) {
-				sigma2[currentX] = (float) sigma2();
-				double snrAtPixel = signal[index] / Math.sqrt(signal[index] + calcBG(eLoss) + sigma2[currentX]);
-				if (Double.isNaN(snrAtPixel) | Double.isInfinite(snrAtPixel)) {
-					snrAtPixel = 0;
+				calculator.calcPixel(aMap[index], rMap[index]);
+				for (int i = 0; i < signal.length; i++) {
+					final double bg = energyKernel.background(edgeIndex + i, aMap[index], rMap[index]);
+					sigma2[i][index] = (float) calculator.sigma2(edgeIndex + i, bg);
+					double snrAtPixel = signal[i][index] / Math.sqrt(signal[i][index] + bg + sigma2[i][index]);
+					if (Double.isNaN(snrAtPixel) | Double.isInfinite(snrAtPixel)) {
+						snrAtPixel = 0;
+					}
+					snr[i][index] = (float) snrAtPixel;
 				}
-				snr[currentX] = (float) snrAtPixel;
 			} else {
-				snr[currentX] = PluginConstants.VALUE_CALCULATION_FAILED;
+				for (int i = 0; i < signal.length; i++) {
+					snr[i][index] = PluginConstants.VALUE_CALCULATION_FAILED;
+				}
 			}
 		}
-		datasetAPI.saveSNR(imageIndex, currentY * width, snr);
-		datasetAPI.saveSigma2(imageIndex, currentY * width, sigma2);
-		threadInterface.removeThread(ThreadInterface.SNR);
-	}
-
-	/**
-	 * This methods calculates sigma². This calculation is split up in several
-	 * methods.
-	 *
-	 * @return Sigma²
-	 */
-	private double sigma2() {
-		return Math.pow(dI(da), 2) * varA() + Math.pow(dI(dr), 2) * varR() + 2 * dI(da) * dI(dr) * covar();
-	}
-
-	/**
-	 * @return The variance of parameter <code>a</code>.
-	 */
-	private double varA() {
-		return m(2) * varR();
-	}
-
-	/**
-	 * @return The variance of parameter <code>r</code>.
-	 */
-	private double varR() {
-		double sum = 0;
-		for (int i = 0; i < edgeIndex; i++) {
-			sum += calcBG(array_EFTEMImages[i].getELoss())
-					* Math.pow(Math.log(array_EFTEMImages[i].getELoss()) - m(1), 2);
-		}
-		return 1 / sum;
 	}
 }
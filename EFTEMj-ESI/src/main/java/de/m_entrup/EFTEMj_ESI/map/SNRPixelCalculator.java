@@ -0,0 +1,199 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.m_entrup.EFTEMj_ESI.map;
+
+import de.m_entrup.EFTEMj_ESI.dataset.EnergyKernel;
+import ij.ImageStack;
+
+/**
+ * The {@link SNRPixelCalculator} calculates sigma², the error of the
+ * background extrapolation, for a single pixel. All values that depend on the
+ * pixel, but not on the post-edge image, are calculated once by
+ * <code>calcPixel()</code>. An instance is not thread safe, that is why each
+ * {@link de.m_entrup.EFTEMj_ESI.threading.Tile} uses its own instance.
+ */
+public class SNRPixelCalculator {
+
+	/**
+	 * This constant determines if the derivative from a is used.
+	 */
+	private static final int da = 0;
+	/**
+	 * This constant determines if the derivative from r is used.
+	 */
+	private static final int dr = 1;
+
+	/**
+	 * The background at the energy loss of the processed image.
+	 */
+	private double bgAtELoss;
+	/**
+	 * The background at the energy losses of the pre-edge images.
+	 */
+	private final double[] bgPreEdge;
+	/**
+	 * The index of the first post-edge image.
+	 */
+	private final int edgeIndex;
+	/**
+	 * The logarithms of the energy losses of the input images.
+	 */
+	private final EnergyKernel energyKernel;
+	/**
+	 * The position of the processed image at the sorted input
+	 * {@link ImageStack}.
+	 */
+	private int imageIndex;
+	/**
+	 * The sums of <code>bg(E_i) * ln^k(E_i)</code> with
+	 * <code>k = 0, 1, 2</code> at the processed pixel.
+	 */
+	private final double[] sums = new double[3];
+	/**
+	 * The variance of parameter <code>r</code> at the processed pixel.
+	 */
+	private double varR;
+
+	/**
+	 * Creates a new {@link SNRPixelCalculator}.
+	 *
+	 * @param energyKernel
+	 *            The logarithms of the energy losses of the input images.
+	 */
+	public SNRPixelCalculator(final EnergyKernel energyKernel) {
+		this.energyKernel = energyKernel;
+		this.edgeIndex = energyKernel.getEdgeIndex();
+		bgPreEdge = new double[edgeIndex];
+	}
+
+	/**
+	 * Calculates the background at the energy losses of the pre-edge images
+	 * and all values that depend only on the pixel.
+	 *
+	 * @param a
+	 *            The parameter <code>a</code> at the processed pixel.
+	 * @param r
+	 *            The parameter <code>r</code> at the processed pixel.
+	 */
+	public void calcPixel(final double a, final double r) {
+		for (int i = 0; i < edgeIndex; i++) {
+			bgPreEdge[i] = energyKernel.background(i, a, r);
+		}
+		calcPixel(bgPreEdge);
+	}
+
+	/**
+	 * Calculates all values that depend only on the pixel. This are the sums
+	 * used by {@link #m(int)} and the variance of <code>r</code>.
+	 *
+	 * @param background
+	 *            The background at the energy losses of the images. Only the
+	 *            pre-edge values are used.
+	 */
+	public void calcPixel(final double[] background) {
+		energyKernel.moments(background, sums);
+		final double m1 = m(1);
+		double sum = 0;
+		for (int i = 0; i < edgeIndex; i++) {
+			final double d = energyKernel.getLnE(i) - m1;
+			sum += background[i] * d * d;
+		}
+		varR = 1 / sum;
+	}
+
+	/**
+	 * @return The covariance of parameter <code>r</code> and <code>a</code>.
+	 */
+	private double covar() {
+		return m(1) * varR();
+	}
+
+	/**
+	 * By using a switch statement the power law can be differentiated with
+	 * respect to different variables.
+	 *
+	 * @param x
+	 *            The power law is differentiated with respect to x
+	 * @return The derivative of the power law at E=eloss.
+	 */
+	private double dI(final int x) {
+		switch (x) {
+		case da:
+			return bgAtELoss;
+		case dr:
+			return -energyKernel.getLnE(imageIndex) * bgAtELoss;
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * This is a weight. The numerator is a sum of
+	 * <code>bg(eLoss)*eloss^k</code> and the denominator is the sum of
+	 * <code>bg(eLoss)</code>.
+	 *
+	 * @param k
+	 *            Can be 1 or 2.
+	 * @return A linear or cubic weight.
+	 */
+	private double m(final int k) {
+		return sums[k] / sums[0];
+	}
+
+	/**
+	 * This methods calculates sigma². This calculation is split up in several
+	 * methods. <code>calcPixel()</code> has to be called before.
+	 *
+	 * @param imageIndex
+	 *            The position of the processed image at the sorted input
+	 *            {@link ImageStack}.
+	 * @param bgAtELoss
+	 *            The background at the energy loss of the processed image.
+	 * @return Sigma²
+	 */
+	public double sigma2(final int imageIndex, final double bgAtELoss) {
+		this.imageIndex = imageIndex;
+		this.bgAtELoss = bgAtELoss;
+		final double dIda = dI(da);
+		final double dIdr = dI(dr);
+		return dIda * dIda * varA() + dIdr * dIdr * varR() + 2 * dIda * dIdr * covar();
+	}
+
+	/**
+	 * @return The variance of parameter <code>a</code>.
+	 */
+	private double varA() {
+		return m(2) * varR();
+	}
+
+	/**
+	 * @return The variance of parameter <code>r</code>.
+	 */
+	private double varR() {
+		return varR;
+	}
+}
@@ -0,0 +1,306 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+import de.m_entrup.EFTEMj_ESI.dataset.FitResultCache;
+import de.m_entrup.EFTEMj_ESI.driftcorrection.DriftExecutor;
+import de.m_entrup.EFTEMj_ESI.map.FusedPostFitCalculation;
+import de.m_entrup.EFTEMj_ESI.map.PowerLawFitCalculation;
+import de.m_entrup.EFTEMj_ESI.threading.ForkJoinTileScheduler;
+import de.m_entrup.EFTEMj_ESI.threading.ProgressSink;
+import de.m_entrup.EFTEMj_ESI.threading.SparseTileTask;
+import de.m_entrup.EFTEMj_ESI.threading.ThreadInterface;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileScheduler;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
+import ij.ImagePlus;
+
+/**
+ * An {@link EsiJob} processes a single dataset. It owns the {@link DatasetAPI},
+ * the {@link TileScheduler} and the {@link ProgressSink} of the calculation.
+ * There is no access to {@link PluginAPI} or {@link ThreadInterface}, that is
+ * why several instances can process different stacks at the same time, e.g. at
+ * a batch process. The main menu is one client of this class: the
+ * {@link ThreadInterface} uses an {@link EsiJob} for each calculation.<br>
+ * The options of the calculations (e.g. the warm start of the power law fit)
+ * are read from the {@link DatasetAPI}, so each job uses its own settings.
+ */
+public class EsiJob {
+
+	/**
+	 * The {@link ProgressTask} wraps the {@link TileTask} of a calculation. It
+	 * passes the progress to the {@link ProgressSink} after each {@link Tile}
+	 * and skips the remaining tiles if the job has been cancelled.
+	 */
+	private class ProgressTask implements TileTask {
+
+		/**
+		 * The wrapped {@link TileTask}.
+		 */
+		private final TileTask task;
+		/**
+		 * The number of tiles of the calculation.
+		 */
+		private final int fullSteps;
+		/**
+		 * The number of processed tiles.
+		 */
+		private final AtomicInteger step = new AtomicInteger();
+
+		/**
+		 * @param task
+		 *            The {@link TileTask} to wrap.
+		 * @param fullSteps
+		 *            The number of tiles of the calculation.
+		 */
+		private ProgressTask(final TileTask task, final int fullSteps) {
+			this.task = task;
+			this.fullSteps = fullSteps;
+		}
+
+		@Override
+		public void finished() {
+			task.finished();
+		}
+
+		@Override
+		public int getBytesPerPixel() {
+			return task.getBytesPerPixel();
+		}
+
+		@Override
+		public int getHeight() {
+			return task.getHeight();
+		}
+
+		@Override
+		public int getWidth() {
+			return task.getWidth();
+		}
+
+		@Override
+		public void processTile(final Tile tile) {
+			if (cancelled) {
+				return;
+			}
+			task.processTile(tile);
+			progressSink.updateProgress((int) (step.incrementAndGet() * 100.0 / fullSteps));
+		}
+	}
+
+	/**
+	 * A {@link ProgressSink} that ignores the progress.
+	 */
+	private static final ProgressSink NO_PROGRESS = new ProgressSink() {
+
+		@Override
+		public void updateProgress(final int progress) {
+			// The progress is not shown.
+		}
+	};
+
+	/**
+	 * If <code>true</code> the remaining {@link Tile}s of the running
+	 * calculation are skipped.
+	 */
+	private volatile boolean cancelled = false;
+	/**
+	 * The dataset that is processed by this job.
+	 */
+	private final DatasetAPI datasetAPI;
+	/**
+	 * Receives the progress of all calculations of this job.
+	 */
+	private final ProgressSink progressSink;
+	/**
+	 * Processes the {@link Tile}s of all calculations of this job.
+	 */
+	private final TileScheduler tileScheduler;
+
+	/**
+	 * Creates a job without a progress display. The {@link Tile}s are
+	 * processed by a {@link ForkJoinTileScheduler}.
+	 *
+	 * @param imagePlus
+	 *            The stack that is processed.
+	 */
+	public EsiJob(final ImagePlus imagePlus) {
+		this(new DatasetAPI(imagePlus), new ForkJoinTileScheduler(), NO_PROGRESS);
+	}
+
+	/**
+	 * @param datasetAPI
+	 *            The dataset that is processed by this job.
+	 * @param tileScheduler
+	 *            Processes the {@link Tile}s of all calculations.
+	 * @param progressSink
+	 *            Receives the progress of all calculations.
+	 */
+	public EsiJob(final DatasetAPI datasetAPI, final TileScheduler tileScheduler, final ProgressSink progressSink) {
+		super();
+		this.datasetAPI = datasetAPI;
+		this.tileScheduler = tileScheduler;
+		this.progressSink = progressSink;
+	}
+
+	/**
+	 * Calculates the crosscorrelation coefficients of the drift correction.
+	 * The ROI of the {@link ImagePlus} is used as template. The coefficients
+	 * are available by the {@link DatasetAPI}.
+	 *
+	 * @param delta
+	 *            The largest investigated drift.
+	 * @param referenceIndex
+	 *            The index (starting @ 1) of the image that is used as
+	 *            reference.
+	 * @return <code>true</code> if the calculation has been finished,
+	 *         <code>false</code> if delta is too large or the job has been
+	 *         cancelled.
+	 */
+	public boolean calculateDrift(final int delta, final int referenceIndex) {
+		if (!datasetAPI.createDatasetDriftInput(delta, referenceIndex)) {
+			return false;
+		}
+		return execute(DriftExecutor.createCorrelation(datasetAPI));
+	}
+
+	/**
+	 * Calculates the elemental-maps and all other results with a single
+	 * post-fit pass. The results are available by the {@link DatasetAPI}. The
+	 * power law fit is skipped if its result is found at the
+	 * {@link FitResultCache}.
+	 *
+	 * @param edgeEnergyLoss
+	 *            The energy loss where the element signal starts.
+	 * @param epsilon
+	 *            The exit condition for the MLE calculation.
+	 * @return <code>true</code> if the calculation has been finished,
+	 *         <code>false</code> if the job has been cancelled.
+	 * @throws Exception
+	 *             If the number of pre-edge or post-edge images is not
+	 *             sufficient.
+	 */
+	public boolean calculateMap(final float edgeEnergyLoss, final float epsilon) throws Exception {
+		datasetAPI.createDatasetMapInput(edgeEnergyLoss, epsilon);
+		final FitResultCache.Key cacheKey = PowerLawFitCalculation.createCacheKey(datasetAPI);
+		if (!PowerLawFitCalculation.restoreFromCache(datasetAPI, cacheKey)
+				&& !execute(new PowerLawFitCalculation(datasetAPI, cacheKey, null))) {
+			return false;
+		}
+		return execute(new FusedPostFitCalculation(datasetAPI));
+	}
+
+	/**
+	 * The running calculation is cancelled. The {@link Tile}s that are
+	 * processed at the moment are completed, all following calculations of
+	 * this job are skipped.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * The given {@link TileTask} is split into {@link Tile}s that are processed
+	 * by the {@link TileScheduler}. The empty tiles of a {@link SparseTileTask}
+	 * are skipped. This method blocks until all tiles are processed. Then
+	 * <code>finished()</code> of the task is called.
+	 *
+	 * @param task
+	 *            The calculation to execute.
+	 * @return <code>true</code> if the calculation has been finished,
+	 *         <code>false</code> if the job has been cancelled.
+	 */
+	public boolean execute(final TileTask task) {
+		if (cancelled) {
+			return false;
+		}
+		Tile[] tiles = Tile.createTiles(task.getWidth(), task.getHeight(),
+				Tile.rowsForCache(task.getWidth(), task.getBytesPerPixel()));
+		if (task instanceof SparseTileTask) {
+			tiles = removeEmptyTiles((SparseTileTask) task, tiles);
+		}
+		tileScheduler.execute(new ProgressTask(task, tiles.length), tiles);
+		if (cancelled) {
+			return false;
+		}
+		task.finished();
+		return true;
+	}
+
+	/**
+	 * @param task
+	 *            The {@link SparseTileTask} that decides which tiles are
+	 *            empty.
+	 * @param tiles
+	 *            All tiles of the calculation.
+	 * @return The tiles that have to be processed.
+	 */
+	private static Tile[] removeEmptyTiles(final SparseTileTask task, final Tile[] tiles) {
+		final List<Tile> remaining = new ArrayList<>(tiles.length);
+		for (final Tile tile : tiles) {
+			if (!task.isEmpty(tile)) {
+				remaining.add(tile);
+			}
+		}
+		return remaining.toArray(new Tile[remaining.size()]);
+	}
+
+	/**
+	 * @return The dataset that is processed by this job.
+	 */
+	public DatasetAPI getDatasetAPI() {
+		return datasetAPI;
+	}
+
+	/**
+	 * @return The {@link ProgressSink} of this job.
+	 */
+	public ProgressSink getProgressSink() {
+		return progressSink;
+	}
+
+	/**
+	 * @return The {@link TileScheduler} of this job.
+	 */
+	public TileScheduler getTileScheduler() {
+		return tileScheduler;
+	}
+
+	/**
+	 * @return <code>true</code> if the job has been cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
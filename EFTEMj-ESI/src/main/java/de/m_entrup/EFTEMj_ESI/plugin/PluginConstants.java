@@ -30,6 +30,8 @@ package de.m_entrup.EFTEMj_ESI.plugin;
 import java.awt.BorderLayout;
 import java.awt.GridLayout;
 
+import de.m_entrup.EFTEMj_ESI.dataset.PixelMask;
+
 /**
  * {@link PluginConstants} contains only constants (static final fields) that
  * can be used to configure the plugin.
@@ -53,6 +55,11 @@ public class PluginConstants {
 	 * An error that is logged if the iteration does not converge.
 	 */
 	public static final short ERROR__CONVERGENCE = 220;
+	/**
+	 * The pixel is not selected by the {@link PixelMask} and has not been
+	 * fitted.
+	 */
+	public static final short ERROR__MASKED = 190;
 	/**
 	 * An error that is logged if an interim result is NaN.
 	 */
@@ -97,4 +104,9 @@ public class PluginConstants {
 	 * calculation. It is the smallest nonezero value multiplied with (-1).
 	 */
 	public static final float VALUE_CALCULATION_FAILED = Float.NaN;
+	/**
+	 * Images with a lower energy loss are zero-loss images. Vacuum is bright
+	 * at these images and dark at all others.
+	 */
+	public static final float ZERO_LOSS_LIMIT = 5;
 }
@@ -28,13 +28,15 @@
 package de.m_entrup.EFTEMj_ESI.simple;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Vector;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
-import ij.IJ;
+import de.m_entrup.EFTEMj_ESI.dataset.FitResultCache;
+import de.m_entrup.EFTEMj_ESI.dataset.PixelMask;
+import de.m_entrup.EFTEMj_ESI.dataset.SpectrumBlock;
+import de.m_entrup.EFTEMj_ESI.simple.RowTaskRunner.RowWorker;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.GenericDialog;
@@ -61,7 +63,8 @@ public class ElementalMapping {
 	public static enum AVAILABLE_METHODS {
 		LSE("Least squares estimation"), MLE("Maximum-likelihood estimation"), WLSE(
 				"Weighted least squares estimation"), LMA(
-						"Levenberg-Marquardt algorithm"), LMA_L("Levenberg-Marquardt algorithm (linear)");
+						"Levenberg-Marquardt algorithm"), LMA_L("Levenberg-Marquardt algorithm (linear)"),
+		LMA_REFERENCE("Levenberg-Marquardt algorithm (commons-math)"), CASCADE("Cascade (WLSE, MLE where needed)");
 
 		/**
 		 * Full name of the method. Display this {@link String} at the GUI.
@@ -86,6 +89,16 @@ public class ElementalMapping {
 			return fullName;
 		}
 
+		/**
+		 * @return <code>false</code> if the fits of this method share mutable
+		 *         state, like the static {@link LMACurveFitter} of
+		 *         {@link PowerLawFit_LMA}. Such a method is processed by a
+		 *         single thread.
+		 */
+		public boolean isThreadSafe() {
+			return this != LMA_REFERENCE;
+		}
+
 		/**
 		 * @return A {@link String} array that can be used to create a choice at
 		 *         a {@link GenericDialog}.
@@ -184,10 +197,31 @@ public class ElementalMapping {
 	 * iteration will be stopped.
 	 */
 	private final double epsilon;
+	/**
+	 * If <code>true</code> the MLE of each pixel starts with the
+	 * <strong>r</strong> of the previous pixel of the row.
+	 */
+	private boolean warmStart = false;
 	/**
 	 * The {@link ImagePlus} that is used for elemental mapping.
 	 */
 	private final ImagePlus impStack;
+	/**
+	 * The pixels of all pre-edge images followed by the pixels of all
+	 * post-edge images.
+	 */
+	private float[][] slices;
+	/**
+	 * The exposure of each image of {@link #impStack} divided by the longest
+	 * exposure. <code>null</code> if all images have the same exposure.
+	 */
+	private float[] exposureNorms;
+	/**
+	 * The values of {@link #exposureNorms} in the order of {@link #slices}.
+	 * The pixel values are divided by them when they are gathered.
+	 * <code>null</code> if all images have the same exposure.
+	 */
+	private float[] sliceNorms;
 	/**
 	 * A map of the parameter <strong>r</strong> ( power law: I(E) = a&sdot;E
 	 * <sup>-r</sup> ).
@@ -207,15 +241,62 @@ public class ElementalMapping {
 	 */
 	private final FloatProcessor[] elementalMaps;
 	/**
-	 * This field indicates the progress. A static method is used to increase
-	 * the value by 1. It is necessary to use volatile because different
-	 * {@link Thread}s call the related method.
+	 * The pixels of {@link #rMap}, {@link #aMap}, {@link #errorMap} and
+	 * {@link #elementalMaps}. The tasks write the results directly to these
+	 * arrays.
+	 */
+	private float[] rPixels;
+	private float[] aPixels;
+	private byte[] errorPixels;
+	private float[][] elementalPixels;
+	/**
+	 * Only the selected pixels are fitted. <code>null</code> if all pixels are
+	 * fitted.
+	 */
+	private PixelMask mask;
+	/**
+	 * Identifies the fit at the {@link FitResultCache}. It is created by
+	 * {@link #prepareCalculation()}.
+	 */
+	private FitResultCache.Key cacheKey;
+	/**
+	 * Runs the {@link ElementalMappingTask}s.
+	 */
+	private final RowTaskRunner runner = new RowTaskRunner();
+	/**
+	 * The paths a pixel can take if {@link AVAILABLE_METHODS#CASCADE} is used.
+	 * All pixels are fitted by the WLSE first. The result is replaced by a MLE
+	 * if the WLSE has failed, the counts are low or the residual is large.
+	 */
+	private static final String[] CASCADE_PATHS = { "WLSE", "MLE (WLSE failed)", "MLE (low counts)",
+			"MLE (residual)" };
+	private static final int CASCADE_WLSE = 0;
+	private static final int CASCADE_FAILED = 1;
+	private static final int CASCADE_LOW_COUNTS = 2;
+	private static final int CASCADE_RESIDUAL = 3;
+	/**
+	 * The default of {@link #cascadeMinCounts}.
+	 */
+	public static final double DEFAULT_CASCADE_MIN_COUNTS = 100;
+	/**
+	 * The default of {@link #cascadeMaxChi2}.
+	 */
+	public static final double DEFAULT_CASCADE_MAX_CHI2 = 4;
+	/**
+	 * Pixels whose mean pre-edge count is lower than this value are fitted by
+	 * the MLE if {@link AVAILABLE_METHODS#CASCADE} is used.
+	 */
+	private double cascadeMinCounts = DEFAULT_CASCADE_MIN_COUNTS;
+	/**
+	 * Pixels whose WLSE result has a reduced chi<sup>2</sup> (Poisson
+	 * weights) larger than this value are fitted by the MLE if
+	 * {@link AVAILABLE_METHODS#CASCADE} is used.
 	 */
-	private static volatile int progress;
+	private double cascadeMaxChi2 = DEFAULT_CASCADE_MAX_CHI2;
 	/**
-	 * Number of steps until the drift detection is finished.
+	 * The number of pixels that took each of the {@link #CASCADE_PATHS}.
 	 */
-	private static int progressSteps;
+	private final int[] cascadeCounts = new int[CASCADE_PATHS.length];
 
 	/**
 	 * @param energyLossArray
@@ -239,76 +320,324 @@ public class ElementalMapping {
 		rMap = new FloatProcessor(stack.getWidth(), stack.getHeight());
 		aMap = new FloatProcessor(stack.getWidth(), stack.getHeight());
 		errorMap = new ByteProcessor(stack.getWidth(), stack.getHeight());
-		elementalMaps = new FloatProcessor[postEdgeIndices.length];
-		for (int i = 0; i < elementalMaps.length; i++) {
-			elementalMaps[i] = new FloatProcessor(stack.getWidth(), stack.getHeight());
-			final float[] pixels = (float[]) elementalMaps[i].getPixels();
-			Arrays.fill(pixels, Float.NaN);
-		}
-		progress = 0;
-		progressSteps = stack.getHeight();
+		elementalMaps = createElementalMaps();
 	}
 
-	public ElementalMapping(final float[] energyLossArray, final float[] exposureArray, final ImagePlus stack,
-			final float edgeEnergyLoss, final float epsilon, final AVAILABLE_METHODS method) {
+	/**
+	 * This constructor is used by {@link MultiEdgeMapping}, where the pre-edge
+	 * and post-edge images are selected by energy windows.
+	 *
+	 * @param energyLossArray
+	 *            The energy losses of all images at the given stack.
+	 * @param exposureNorms
+	 *            The exposure of each image divided by the longest exposure or
+	 *            <code>null</code>.
+	 * @param stack
+	 *            An {@link ImagePlus} that contains the stack to process.
+	 * @param preEdgeIndices
+	 *            The indices of the pre-edge images, starting at 1.
+	 * @param postEdgeIndices
+	 *            The indices of the post-edge images, starting at 1.
+	 * @param epsilon
+	 *            The accuracy of the power low fit (this is the break condition
+	 *            for the used fit method).
+	 * @param method
+	 *            The method used for fitting the power law function.
+	 */
+	ElementalMapping(final float[] energyLossArray, final float[] exposureNorms, final ImagePlus stack,
+			final int[] preEdgeIndices, final int[] postEdgeIndices, final float epsilon,
+			final AVAILABLE_METHODS method) {
 		this.method = method;
 		this.epsilon = epsilon;
-		this.impStack = processExposureArray(stack, exposureArray);
-		splitEnergyLosses(energyLossArray, edgeEnergyLoss);
+		this.impStack = stack;
+		this.exposureNorms = exposureNorms;
+		this.preEdgeIndices = preEdgeIndices;
+		this.postEdgeIndices = postEdgeIndices;
+		preEdgeEnergyLosses = new double[preEdgeIndices.length];
+		for (int i = 0; i < preEdgeIndices.length; i++) {
+			preEdgeEnergyLosses[i] = energyLossArray[preEdgeIndices[i] - 1];
+		}
+		postEdgeEnergyLosses = new double[postEdgeIndices.length];
+		for (int i = 0; i < postEdgeIndices.length; i++) {
+			postEdgeEnergyLosses[i] = energyLossArray[postEdgeIndices[i] - 1];
+		}
 		rMap = new FloatProcessor(stack.getWidth(), stack.getHeight());
 		aMap = new FloatProcessor(stack.getWidth(), stack.getHeight());
 		errorMap = new ByteProcessor(stack.getWidth(), stack.getHeight());
-		elementalMaps = new FloatProcessor[postEdgeIndices.length];
-		for (int i = 0; i < elementalMaps.length; i++) {
-			elementalMaps[i] = new FloatProcessor(stack.getWidth(), stack.getHeight());
-			final float[] pixels = (float[]) elementalMaps[i].getPixels();
+		elementalMaps = createElementalMaps();
+	}
+
+	/**
+	 * @return One map for each post-edge image. All values are NaN.
+	 */
+	private FloatProcessor[] createElementalMaps() {
+		final FloatProcessor[] maps = new FloatProcessor[postEdgeIndices.length];
+		for (int i = 0; i < maps.length; i++) {
+			maps[i] = new FloatProcessor(impStack.getWidth(), impStack.getHeight());
+			final float[] pixels = (float[]) maps[i].getPixels();
 			Arrays.fill(pixels, Float.NaN);
 		}
-		progress = 0;
-		progressSteps = stack.getHeight();
+		return maps;
 	}
 
-	private ImagePlus processExposureArray(final ImagePlus stack, final float[] exposureArray) {
-		final float[] exposureArrayNorm = new float[exposureArray.length];
+	/**
+	 * The images of the stack are normalised to the longest exposure. The
+	 * stack is not copied, each pixel value is divided by the normalised
+	 * exposure of its image when it is read.
+	 *
+	 * @param energyLossArray
+	 *            The energy losses of all images at the given stack.
+	 * @param exposureArray
+	 *            The exposure times of all images at the given stack.
+	 * @param stack
+	 *            An {@link ImagePlus} that contains the stack to process.
+	 * @param edgeEnergyLoss
+	 *            The onset energy of the considered ionisation edge.
+	 * @param epsilon
+	 *            The accuracy of the power low fit (this is the break condition
+	 *            for the used fit method).
+	 * @param method
+	 *            The method used for fitting the power law function.
+	 */
+	public ElementalMapping(final float[] energyLossArray, final float[] exposureArray, final ImagePlus stack,
+			final float edgeEnergyLoss, final float epsilon, final AVAILABLE_METHODS method) {
+		this(energyLossArray, stack, edgeEnergyLoss, epsilon, method);
 		final float[] exposureArraySorted = Arrays.copyOf(exposureArray, exposureArray.length);
 		Arrays.sort(exposureArraySorted);
 		final float max = exposureArraySorted[exposureArraySorted.length - 1];
+		exposureNorms = new float[exposureArray.length];
 		for (int i = 0; i < exposureArray.length; i++) {
-			exposureArrayNorm[i] = exposureArray[i] / max;
+			exposureNorms[i] = exposureArray[i] / max;
 		}
-		final ImagePlus imp = new Duplicator().run(stack, 1, stack.getStackSize());
-		for (int i = 0; i < exposureArray.length; i++) {
+	}
+
+	/**
+	 * Creates a copy of the stack, where all images are normalised to the
+	 * longest exposure. The calculation does not need this copy, it is only
+	 * created on request.
+	 *
+	 * @return The normalised stack or <code>null</code> if all images have the
+	 *         same exposure.
+	 */
+	public ImagePlus getNormalisedStack() {
+		if (exposureNorms == null) {
+			return null;
+		}
+		final ImagePlus imp = new Duplicator().run(impStack, 1, impStack.getStackSize());
+		for (int i = 0; i < exposureNorms.length; i++) {
 			final float[] pixels = (float[]) imp.getStack().getPixels(i + 1);
 			for (int j = 0; j < pixels.length; j++) {
-				pixels[j] /= exposureArrayNorm[i];
+				pixels[j] /= exposureNorms[i];
 			}
 		}
 		return imp;
 	}
 
 	/**
-	 * {@link ElementalMappingTask} will use this method to update the process.
+	 * Sets the thresholds that are used by {@link AVAILABLE_METHODS#CASCADE}
+	 * to decide if a pixel is fitted again by the MLE.
+	 *
+	 * @param minCounts
+	 *            Pixels with a lower mean pre-edge count are fitted by the MLE.
+	 * @param maxChi2
+	 *            Pixels whose WLSE result has a larger reduced
+	 *            chi<sup>2</sup> are fitted by the MLE.
+	 */
+	public void setCascadeThresholds(final double minCounts, final double maxChi2) {
+		cascadeMinCounts = minCounts;
+		cascadeMaxChi2 = maxChi2;
+	}
+
+	/**
+	 * @return A line that lists how many pixels took each path of the last
+	 *         calculation with {@link AVAILABLE_METHODS#CASCADE}.
+	 */
+	public String getCascadeReport() {
+		final StringBuilder report = new StringBuilder("Cascade:");
+		synchronized (cascadeCounts) {
+			for (int i = 0; i < CASCADE_PATHS.length; i++) {
+				report.append(MessageFormat.format(" {0}: {1,number,#};", CASCADE_PATHS[i], cascadeCounts[i]));
+			}
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Stops a running calculation. The image rows that are processed are
+	 * finished, all other rows are skipped.
+	 */
+	public void cancel() {
+		runner.cancel();
+	}
+
+	/**
+	 * @param mask
+	 *            Only the pixels selected by this {@link PixelMask} are
+	 *            fitted, all maps are NaN at the other pixels. Image rows
+	 *            without a selected pixel are not read. <code>null</code> to
+	 *            fit all pixels.
+	 */
+	public void setMask(final PixelMask mask) {
+		this.mask = mask;
+	}
+
+	/**
+	 * @param warmStart
+	 *            <code>true</code> to start the MLE of each pixel with the
+	 *            <strong>r</strong> of the previous pixel of the row.
+	 */
+	public void setWarmStart(final boolean warmStart) {
+		this.warmStart = warmStart;
+	}
+
+	/**
+	 * Starts the calculation with parallel {@link Thread}s and waits until it
+	 * has finished. The progress bar is updated at a fixed interval. Pressing
+	 * the escape key cancels the calculation.<br />
+	 * If the {@link FitResultCache} contains the fit of the same pre-edge
+	 * images, only the background is subtracted from the post-edge images.
+	 *
+	 * @return <code>true</code> if all image rows have been processed,
+	 *         <code>false</code> if the calculation has been cancelled or has
+	 *         failed.
+	 */
+	public boolean startCalculation() {
+		prepareCalculation();
+		if (restoreFromCache()) {
+			return true;
+		}
+		final int threads = method.isThreadSafe() ? RowTaskRunner.getThreadCount() : 1;
+		final List<ElementalMappingTask> tasks = new ArrayList<>(threads);
+		for (int j = 0; j < threads; j++) {
+			tasks.add(new ElementalMappingTask(null));
+		}
+		if (!runner.run(impStack.getHeight(), tasks)) {
+			return false;
+		}
+		storeInCache();
+		return true;
+	}
+
+	/**
+	 * Collects the pixel arrays of the images and the maps. This method has to
+	 * be called before any {@link ElementalMappingTask} is created.
 	 */
-	private static void updateProgress() {
-		progress++;
-		IJ.showProgress(progress, progressSteps);
+	void prepareCalculation() {
+		final ImageStack stack = impStack.getStack();
+		slices = new float[preEdgeIndices.length + postEdgeIndices.length][];
+		for (int z = 0; z < preEdgeIndices.length; z++) {
+			slices[z] = (float[]) stack.getPixels(preEdgeIndices[z]);
+		}
+		for (int z = 0; z < postEdgeIndices.length; z++) {
+			slices[preEdgeIndices.length + z] = (float[]) stack.getPixels(postEdgeIndices[z]);
+		}
+		sliceNorms = null;
+		if (exposureNorms != null) {
+			sliceNorms = new float[slices.length];
+			for (int z = 0; z < preEdgeIndices.length; z++) {
+				sliceNorms[z] = exposureNorms[preEdgeIndices[z] - 1];
+			}
+			for (int z = 0; z < postEdgeIndices.length; z++) {
+				sliceNorms[preEdgeIndices.length + z] = exposureNorms[postEdgeIndices[z] - 1];
+			}
+		}
+		rPixels = (float[]) rMap.getPixels();
+		aPixels = (float[]) aMap.getPixels();
+		errorPixels = (byte[]) errorMap.getPixels();
+		elementalPixels = new float[elementalMaps.length][];
+		for (int z = 0; z < elementalMaps.length; z++) {
+			elementalPixels[z] = (float[]) elementalMaps[z].getPixels();
+		}
+		synchronized (cascadeCounts) {
+			Arrays.fill(cascadeCounts, 0);
+		}
+		// The post-edge images are not part of the key, so changing them
+		// reuses the fit.
+		final float[] preEdgeNorms = sliceNorms == null ? null : Arrays.copyOf(sliceNorms, preEdgeIndices.length);
+		cacheKey = new FitResultCache.Key(impStack.getID(), preEdgeIndices, preEdgeEnergyLosses, epsilon, method,
+				warmStart, cascadeMinCounts, cascadeMaxChi2,
+				FitResultCache.fingerprint(Arrays.copyOf(slices, preEdgeIndices.length), preEdgeNorms, mask));
 	}
 
 	/**
-	 * Starts the calculation with parallel {@link Thread}s.
+	 * Copies the result of an earlier fit of the same pre-edge images from the
+	 * {@link FitResultCache} and subtracts the background from the post-edge
+	 * images. {@link #prepareCalculation()} has to be called before.
+	 *
+	 * @return <code>true</code> if the result has been restored,
+	 *         <code>false</code> if the fit has to be calculated.
 	 */
-	public void startCalculation() {
-		final ExecutorService executorService = Executors
-				.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-		for (int j = 0; j < impStack.getHeight(); j++) {
-			executorService.execute(new ElementalMappingTask(j));
+	boolean restoreFromCache() {
+		synchronized (cascadeCounts) {
+			if (!FitResultCache.getInstance().restore(cacheKey, rPixels, aPixels, errorPixels, cascadeCounts)) {
+				return false;
+			}
 		}
-		executorService.shutdown();
-		try {
-			executorService.awaitTermination(5, TimeUnit.MINUTES);
-		} catch (final InterruptedException e) {
-			e.printStackTrace();
+		for (int z = 0; z < postEdgeIndices.length; z++) {
+			final float[] pixels = slices[preEdgeIndices.length + z];
+			for (int index = 0; index < pixels.length; index++) {
+				if (errorPixels[index] == PowerLawFit.ERROR_NONE) {
+					// The same arithmetic as the fit, so the maps are
+					// identical.
+					final float value = sliceNorms == null ? pixels[index]
+							: pixels[index] / sliceNorms[preEdgeIndices.length + z];
+					final float bg = (float) (aPixels[index] * Math.pow(postEdgeEnergyLosses[z], -rPixels[index]));
+					elementalPixels[z][index] = value - bg;
+				}
+			}
 		}
+		return true;
+	}
+
+	/**
+	 * Stores the result of a finished fit at the {@link FitResultCache}.
+	 */
+	void storeInCache() {
+		synchronized (cascadeCounts) {
+			FitResultCache.getInstance().put(cacheKey, rPixels, aPixels, errorPixels, cascadeCounts);
+		}
+	}
+
+	/**
+	 * Creates a task that fits the rows of {@link SpectrumBlock}s that are
+	 * loaded by the caller. {@link #prepareCalculation()} has to be called
+	 * before.
+	 *
+	 * @param blockPositions
+	 *            The position of each pre-edge image followed by each
+	 *            post-edge image at the {@link SpectrumBlock}s.
+	 * @return A new task for a single thread.
+	 */
+	ElementalMappingTask createTask(final int[] blockPositions) {
+		return new ElementalMappingTask(blockPositions);
+	}
+
+	/**
+	 * @return The map of the parameter <strong>r</strong>.
+	 */
+	FloatProcessor getRMap() {
+		return rMap;
+	}
+
+	/**
+	 * @return The map of the parameter <strong>a</strong>.
+	 */
+	FloatProcessor getAMap() {
+		return aMap;
+	}
+
+	/**
+	 * @return The map of all errors that occurred at the power law fit.
+	 */
+	ByteProcessor getErrorMap() {
+		return errorMap;
+	}
+
+	/**
+	 * @return The elemental maps in the order of the post-edge images.
+	 */
+	FloatProcessor[] getElementalMaps() {
+		return elementalMaps;
 	}
 
 	/**
@@ -423,93 +752,301 @@ public class ElementalMapping {
 	}
 
 	/**
-	 * This Class implements {@link Runnable} to allow parallel calculation of
-	 * power low fit functions. This is possible, because the calculation is
-	 * independent for each pixel of the stack. To reduce the administrative
-	 * workload, one task is created for each image row instead of one task for
-	 * each pixel.
+	 * This Class is a {@link RowWorker} to allow parallel calculation of power
+	 * low fit functions. This is possible, because the calculation is
+	 * independent for each pixel of the stack. One task is created for each
+	 * thread, so the buffers and the {@link PowerLawFit} of a task are reused
+	 * for all its rows.
 	 *
 	 * @author Michael Entrup b. Epping
 	 */
-	private class ElementalMappingTask implements Runnable {
+	class ElementalMappingTask extends RowWorker {
 
 		/**
-		 * The image row to process.
+		 * The position of each of {@link #slices} at the {@link SpectrumBlock}
+		 * that is passed to {@link #fitRow(int, SpectrumBlock)}.
+		 */
+		private final int[] blockPositions;
+		/**
+		 * The block that is loaded by {@link #processRow(int)}.
+		 * <code>null</code> if the blocks are loaded by the caller.
 		 */
-		private final int y;
+		private final SpectrumBlock block;
+		/**
+		 * A buffer for the pre-edge values of a single pixel.
+		 */
+		private final double[] counts = new double[preEdgeIndices.length];
+		/**
+		 * LSE and WLSE fit whole rows. The cascade uses this and
+		 * {@link #fitMethod}. <code>null</code> if not used.
+		 */
+		private final PowerLawBatchFit batchFit;
+		/**
+		 * All other methods fit single pixels. This fit method is reset for
+		 * each pixel. <code>null</code> if not used.
+		 */
+		private final PowerLawFit fitMethod;
+		/**
+		 * The number of pixels of this task that took each of the
+		 * {@link #CASCADE_PATHS}.
+		 */
+		private final int[] pathCounts = new int[CASCADE_PATHS.length];
 
 		/**
-		 * A default constructor that only sets one field.
+		 * @param blockPositions
+		 *            The position of each pre-edge and post-edge image at the
+		 *            {@link SpectrumBlock}s that are passed to
+		 *            {@link #fitRow(int, SpectrumBlock)}. <code>null</code> if
+		 *            the task loads its own blocks by {@link #processRow(int)}.
+		 */
+		ElementalMappingTask(final int[] blockPositions) {
+			final int width = impStack.getWidth();
+			if (blockPositions == null) {
+				// The pre-edge and post-edge values of the row are copied to a
+				// block, so the spectrum of each pixel is contiguous.
+				block = new SpectrumBlock(slices.length, width);
+				this.blockPositions = new int[slices.length];
+				for (int z = 0; z < slices.length; z++) {
+					this.blockPositions[z] = z;
+				}
+			} else {
+				block = null;
+				this.blockPositions = blockPositions;
+			}
+			if (method == AVAILABLE_METHODS.LSE || method == AVAILABLE_METHODS.WLSE
+					|| method == AVAILABLE_METHODS.CASCADE) {
+				batchFit = new PowerLawBatchFit(preEdgeEnergyLosses, epsilon, method != AVAILABLE_METHODS.LSE,
+						width);
+			} else {
+				batchFit = null;
+			}
+			if (batchFit == null || method == AVAILABLE_METHODS.CASCADE) {
+				// A power low fit method has to extend PowerLawFit.
+				fitMethod = createFitMethod(counts);
+			} else {
+				fitMethod = null;
+			}
+		}
+
+		@Override
+		void processRow(final int y) {
+			final int width = impStack.getWidth();
+			if (mask == null || !mask.isEmpty(y * width, width)) {
+				block.load(slices, sliceNorms, y * width, width);
+			}
+			fitRow(y, block);
+		}
+
+		@Override
+		void finished() {
+			synchronized (cascadeCounts) {
+				for (int i = 0; i < pathCounts.length; i++) {
+					cascadeCounts[i] += pathCounts[i];
+				}
+			}
+		}
+
+		/**
+		 * Fits all pixels of an image row.
 		 *
 		 * @param y
-		 *            The image row to process.
+		 *            The index of the image row.
+		 * @param rowBlock
+		 *            The spectra of the row, arranged by
+		 *            {@link #blockPositions}. It is not read if the row has no
+		 *            pixel selected by {@link ElementalMapping#mask}.
 		 */
-		public ElementalMappingTask(final int y) {
-			super();
-			this.y = y;
+		void fitRow(final int y, final SpectrumBlock rowBlock) {
+			if (batchFit == null && fitMethod == null) {
+				return;
+			}
+			final int width = impStack.getWidth();
+			if (mask != null && mask.isEmpty(y * width, width)) {
+				for (int index = y * width; index < (y + 1) * width; index++) {
+					clearPixel(index);
+				}
+				return;
+			}
+			if (batchFit != null) {
+				batchFit.fit(slices, sliceNorms, y * width, width);
+			}
+			fitPixels(y * width, rowBlock);
 		}
 
-		@Override
-		public void run() {
-			final double[] counts = new double[preEdgeIndices.length];
-			// A power low fit method has to extend PowerLawFit.
-			PowerLawFit fitMethod;
-			for (int x = 0; x < impStack.getWidth(); x++) {
+		/**
+		 * Creates the {@link PowerLawFit} that is used by this task for all
+		 * pixels.
+		 *
+		 * @param counts
+		 *            The buffer for the pre-edge values of a single pixel.
+		 * @return The fit method selected by {@link #method} or
+		 *         <code>null</code> if the method is unknown.
+		 */
+		private PowerLawFit createFitMethod(final double[] counts) {
+			switch (method) {
+			case MLE:
+			case CASCADE:
+				return new PowerLawFit_MLE(preEdgeEnergyLosses, counts, epsilon);
+			case LMA:
+				return new PowerLawFit_LM(preEdgeEnergyLosses, counts, epsilon);
+			case LMA_REFERENCE:
+				return new PowerLawFit_LMA(preEdgeEnergyLosses, counts, epsilon);
+			case LMA_L:
+				return new PowerLawFit_linearLMA(preEdgeEnergyLosses, counts, epsilon);
+			case LSE:
+				return new PowerLawFit_LSE(preEdgeEnergyLosses, counts, epsilon);
+			case WLSE:
+				return new PowerLawFit_WLSE(preEdgeEnergyLosses, counts, epsilon);
+			default:
+				return null;
+			}
+		}
+
+		/**
+		 * Writes the results of all pixels of an image row. If both
+		 * {@link #batchFit} and {@link #fitMethod} are used, fitMethod is
+		 * applied to the pixels selected by
+		 * {@link #selectCascadePath(int, double, double, double[])}.
+		 *
+		 * @param rowIndex
+		 *            The index of the first pixel of the row.
+		 * @param block
+		 *            The spectra of the row.
+		 */
+		private void fitPixels(final int rowIndex, final SpectrumBlock block) {
+			// The start value of the MLE if warm start is used.
+			double lastR = Double.NaN;
+			for (int x = 0; x < block.getLength(); x++) {
+				final int index = rowIndex + x;
+				if (mask != null && !mask.isSelected(index)) {
+					clearPixel(index);
+					continue;
+				}
 				float r;
 				float a;
-				for (int z = 0; z < preEdgeIndices.length; z++) {
-					counts[z] = impStack.getStack().getProcessor(preEdgeIndices[z]).getf(x, y);
+				int error = PowerLawFit.ERROR_NONE;
+				double fitR = Double.NaN;
+				double fitA = Double.NaN;
+				double startR = warmStart ? lastR : Double.NaN;
+				boolean fitPixel = batchFit == null;
+				if (fitMethod != null) {
+					for (int z = 0; z < preEdgeIndices.length; z++) {
+						counts[z] = block.get(x, blockPositions[z]);
+					}
 				}
-				switch (method) {
-				case MLE:
-					fitMethod = new PowerLawFit_MLE(preEdgeEnergyLosses, counts, epsilon);
-					break;
-				case LMA:
-					fitMethod = new PowerLawFit_LMA(preEdgeEnergyLosses, counts, epsilon);
-					break;
-				case LMA_L:
-					fitMethod = new PowerLawFit_linearLMA(preEdgeEnergyLosses, counts, epsilon);
-					break;
-				case LSE:
-					fitMethod = new PowerLawFit_LSE(preEdgeEnergyLosses, counts, epsilon);
-					break;
-				case WLSE:
-					fitMethod = new PowerLawFit_WLSE(preEdgeEnergyLosses, counts, epsilon);
-					break;
-				default:
-					return;
+				if (batchFit != null) {
+					error = batchFit.getErrorCode(x);
+					fitR = batchFit.getR(x);
+					fitA = batchFit.getA(x);
+					if (fitMethod != null) {
+						final int path = selectCascadePath(error, fitR, fitA, counts);
+						pathCounts[path]++;
+						if (path != CASCADE_WLSE) {
+							fitPixel = true;
+							// A usable WLSE result is a good start value.
+							if (path != CASCADE_FAILED) {
+								startR = fitR;
+							}
+						}
+					}
 				}
-				fitMethod.doFit();
-				if (fitMethod.getErrorCode() == PowerLawFit.ERROR_NONE) {
-					r = (float) fitMethod.getR();
+				if (fitPixel) {
+					if (!Double.isNaN(startR) && fitMethod instanceof PowerLawFit_MLE) {
+						((PowerLawFit_MLE) fitMethod).reset(counts, startR);
+					} else {
+						fitMethod.reset(counts);
+					}
+					fitMethod.doFit();
+					error = fitMethod.getErrorCode();
+					fitR = Double.NaN;
+					fitA = Double.NaN;
+					if (error == PowerLawFit.ERROR_NONE) {
+						fitR = fitMethod.getR();
+						fitA = fitMethod.getA();
+					}
+				}
+				if (error == PowerLawFit.ERROR_NONE) {
+					r = (float) fitR;
 					if (Float.isInfinite(r)) {
-						errorMap.set(x, y, PowerLawFit.ERROR_R_INFINITE);
-						rMap.setf(x, y, Float.NaN);
-						aMap.setf(x, y, Float.NaN);
+						errorPixels[index] = PowerLawFit.ERROR_R_INFINITE;
+						rPixels[index] = Float.NaN;
+						aPixels[index] = Float.NaN;
 					} else {
-						rMap.setf(x, y, r);
-						a = (float) fitMethod.getA();
+						rPixels[index] = r;
+						a = (float) fitA;
 						if (Float.isInfinite(a)) {
-							errorMap.set(x, y, PowerLawFit.ERROR_A_INFINITE);
-							rMap.setf(x, y, Float.NaN);
-							aMap.setf(x, y, Float.NaN);
+							errorPixels[index] = PowerLawFit.ERROR_A_INFINITE;
+							rPixels[index] = Float.NaN;
+							aPixels[index] = Float.NaN;
 						} else {
-							errorMap.set(x, y, PowerLawFit.ERROR_NONE);
-							aMap.setf(x, y, a);
+							errorPixels[index] = PowerLawFit.ERROR_NONE;
+							aPixels[index] = a;
+							lastR = r;
 							for (int z = 0; z < postEdgeIndices.length; z++) {
-								final float value = impStack.getStack().getProcessor(postEdgeIndices[z]).getf(x, y);
+								final float value = block.get(x, blockPositions[preEdgeIndices.length + z]);
 								final float bg = (float) (a * Math.pow(postEdgeEnergyLosses[z], -r));
-								elementalMaps[z].setf(x, y, value - bg);
+								elementalPixels[z][index] = value - bg;
 							}
 						}
 					}
 				} else {
-					errorMap.set(x, y, fitMethod.getErrorCode());
-					rMap.setf(x, y, Float.NaN);
-					aMap.setf(x, y, Float.NaN);
+					errorPixels[index] = (byte) error;
+					rPixels[index] = Float.NaN;
+					aPixels[index] = Float.NaN;
 				}
 			}
-			ElementalMapping.updateProgress();
+		}
+
+		/**
+		 * Marks a pixel that is not selected by {@link ElementalMapping#mask}.
+		 *
+		 * @param index
+		 *            The index of the pixel.
+		 */
+		private void clearPixel(final int index) {
+			errorPixels[index] = PowerLawFit.ERROR_MASKED;
+			rPixels[index] = Float.NaN;
+			aPixels[index] = Float.NaN;
+			for (int z = 0; z < elementalPixels.length; z++) {
+				elementalPixels[z][index] = Float.NaN;
+			}
+		}
+
+		/**
+		 * Decides if the WLSE result of a pixel is kept or if the pixel is
+		 * fitted again by the MLE.
+		 *
+		 * @param error
+		 *            The error code of the WLSE.
+		 * @param r
+		 *            The <strong>r</strong> of the WLSE.
+		 * @param a
+		 *            The <strong>a</strong> of the WLSE.
+		 * @param counts
+		 *            The pre-edge values of the pixel.
+		 * @return One of the indices of {@link #CASCADE_PATHS}.
+		 */
+		private int selectCascadePath(final int error, final double r, final double a, final double[] counts) {
+			if (error != PowerLawFit.ERROR_NONE || Double.isInfinite(r) || Double.isInfinite(a)) {
+				return CASCADE_FAILED;
+			}
+			double sum = 0;
+			double chi2 = 0;
+			for (int z = 0; z < counts.length; z++) {
+				final double expected = a * Math.pow(preEdgeEnergyLosses[z], -r);
+				sum += counts[z];
+				chi2 += (counts[z] - expected) * (counts[z] - expected) / expected;
+			}
+			if (sum / counts.length < cascadeMinCounts) {
+				return CASCADE_LOW_COUNTS;
+			}
+			// With two pre-edge images the fit is exact and there is no
+			// residual.
+			final int degreesOfFreedom = counts.length - 2;
+			if (degreesOfFreedom > 0 && chi2 / degreesOfFreedom > cascadeMaxChi2) {
+				return CASCADE_RESIDUAL;
+			}
+			return CASCADE_WLSE;
 		}
 	}
 }
@@ -44,6 +44,8 @@ import javax.swing.JLabel;
 import javax.swing.JRadioButton;
 
 import de.m_entrup.EFTEMj_ESI.dataset.IonisationEdges;
+import de.m_entrup.EFTEMj_ESI.dataset.PixelMask;
+import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
 import de.m_entrup.EFTEMj_ESI.simple.ElementalMapping.AVAILABLE_METHODS;
 import de.m_entrup.EFTEMj_lib.EFTEMj_Debug;
 import de.m_entrup.EFTEMj_lib.tools.EnergyLossExtractor;
@@ -51,6 +53,7 @@ import de.m_entrup.EFTEMj_lib.tools.ExposureExtractor;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
+import ij.gui.Roi;
 import ij.measure.Calibration;
 import ij.plugin.ImagesToStack;
 import ij.plugin.filter.ExtendedPlugInFilter;
@@ -80,6 +83,14 @@ public class ElementalMappingPlugin implements ExtendedPlugInFilter {
 	 * <code>DOES_32 | NO_CHANGES | FINAL_PROCESSING</code>
 	 */
 	private final int FLAGS = DOES_32 | NO_CHANGES | FINAL_PROCESSING;
+	/**
+	 * The choices of the pixels that are fitted: all pixels, the pixels inside
+	 * the ROI or the pixels selected by a threshold of the image with the
+	 * lowest energy loss.
+	 */
+	private final String[] MASK_MODES = { "All pixels", "Inside the ROI", "Threshold of the lowest energy loss" };
+	private final int MASK_ROI = 1;
+	private final int MASK_THRESHOLD = 2;
 	/**
 	 * The {@link ImagePlus} that is used for elemental mapping.
 	 */
@@ -104,6 +115,20 @@ public class ElementalMappingPlugin implements ExtendedPlugInFilter {
 	 * The selected fit method.
 	 */
 	private AVAILABLE_METHODS method;
+	/**
+	 * If <code>true</code> the MLE of each pixel starts with the result of the
+	 * previous pixel.
+	 */
+	private boolean warmStart;
+	/**
+	 * If <code>true</code> the stack normalised to the longest exposure is
+	 * shown. Without this option no normalised copy of the stack is created.
+	 */
+	private boolean showNormalisedStack;
+	/**
+	 * The index of the selected {@link #MASK_MODES}.
+	 */
+	private int maskMode;
 	/**
 	 * the {@link Calibration} of the input stack.
 	 */
@@ -131,9 +156,18 @@ public class ElementalMappingPlugin implements ExtendedPlugInFilter {
 	 */
 	@Override
 	public void run(final ImageProcessor ip) {
+		final PixelMask mask;
+		try {
+			mask = createMask();
+		} catch (final IllegalArgumentException e) {
+			IJ.showMessage("Elemental mapping", e.getMessage());
+			return;
+		}
 		switch (method) {
 		case LMA:
 		case LMA_L:
+		case LMA_REFERENCE:
+		case CASCADE:
 		case MLE:
 		case LSE:
 		case WLSE:
@@ -144,12 +178,27 @@ public class ElementalMappingPlugin implements ExtendedPlugInFilter {
 				mapping = new ElementalMapping(energyLossArray, exposureArray, impStack, edgeEnergyLoss, epsilon,
 						method);
 			}
-			mapping.startCalculation();
+			mapping.setWarmStart(warmStart);
+			mapping.setMask(mask);
+			if (!mapping.startCalculation()) {
+				IJ.showStatus("Elemental mapping has been canceled.");
+				break;
+			}
+			if (method == AVAILABLE_METHODS.CASCADE) {
+				IJ.log(mapping.getCascadeReport());
+			}
 			// TODO Move all show-methods to the final processing
 			mapping.showRMap(calibration);
 			mapping.showLnAMap(calibration);
 			mapping.showErrorMap(calibration);
 			mapping.showElementalMap(calibration);
+			if (showNormalisedStack) {
+				final ImagePlus impNormalised = mapping.getNormalisedStack();
+				if (impNormalised != null) {
+					impNormalised.setTitle(impStack.getShortTitle() + " (normalised exposure)");
+					impNormalised.show();
+				}
+			}
 			break;
 		default:
 			IJ.showStatus(method + " has been selected.");
@@ -192,6 +241,35 @@ public class ElementalMappingPlugin implements ExtendedPlugInFilter {
 		}
 	}
 
+	/**
+	 * @return The {@link PixelMask} selected by {@link #maskMode} or
+	 *         <code>null</code> if all pixels are fitted.
+	 * @throws IllegalArgumentException
+	 *             If the ROI is selected, but the stack has no area ROI.
+	 */
+	private PixelMask createMask() {
+		switch (maskMode) {
+		case MASK_ROI:
+			final Roi roi = impStack.getRoi();
+			if (roi == null) {
+				throw new IllegalArgumentException("There is no ROI at " + impStack.getTitle() + ".");
+			}
+			return PixelMask.fromRoi(roi, impStack.getWidth(), impStack.getHeight());
+		case MASK_THRESHOLD:
+			int lowest = 0;
+			for (int i = 1; i < energyLossArray.length; i++) {
+				if (energyLossArray[i] < energyLossArray[lowest]) {
+					lowest = i;
+				}
+			}
+			// Vacuum is bright at a zero-loss image and dark at all others.
+			return PixelMask.fromThreshold(impStack.getStack().getProcessor(lowest + 1),
+					energyLossArray[lowest] >= PluginConstants.ZERO_LOSS_LIMIT);
+		default:
+			return null;
+		}
+	}
+
 	/**
 	 * Check if any energy loss is 0. The user is asked to enter values.
 	 */
@@ -242,6 +320,10 @@ public class ElementalMappingPlugin implements ExtendedPlugInFilter {
 		gd.addChoice("Epsilon:", ElementalMapping.AVAILABLE_EPSILONS.toStringArray(),
 				ElementalMapping.AVAILABLE_EPSILONS.toStringArray()[0]);
 		gd.addChoice("Method:", ElementalMapping.AVAILABLE_METHODS.toStringArray(), AVAILABLE_METHODS.MLE.toString());
+		gd.addCheckbox("Warm_start (MLE only)", false);
+		gd.addCheckbox("Show_stack_with_normalised_exposure", false);
+		final Roi roi = impStack.getRoi();
+		gd.addChoice("Fit_only:", MASK_MODES, MASK_MODES[roi != null && roi.isArea() ? MASK_ROI : 0]);
 		gd.setResizable(false);
 		gd.showDialog();
 		if (gd.wasCanceled()) {
@@ -250,6 +332,9 @@ public class ElementalMappingPlugin implements ExtendedPlugInFilter {
 		edgeEnergyLoss = (float) gd.getNextNumber();
 		epsilon = new Float(gd.getNextChoice());
 		method = AVAILABLE_METHODS.values()[gd.getNextChoiceIndex()];
+		warmStart = gd.getNextBoolean();
+		showNormalisedStack = gd.getNextBoolean();
+		maskMode = gd.getNextChoiceIndex();
 		return OK;
 	}
 
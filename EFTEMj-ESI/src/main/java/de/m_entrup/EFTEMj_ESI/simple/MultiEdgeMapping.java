@@ -0,0 +1,510 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.simple;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import de.m_entrup.EFTEMj_ESI.dataset.FitResultCache;
+import de.m_entrup.EFTEMj_ESI.dataset.PixelMask;
+import de.m_entrup.EFTEMj_ESI.dataset.SpectrumBlock;
+import de.m_entrup.EFTEMj_ESI.simple.ElementalMapping.AVAILABLE_METHODS;
+import de.m_entrup.EFTEMj_ESI.simple.ElementalMapping.ElementalMappingTask;
+import de.m_entrup.EFTEMj_ESI.simple.RowTaskRunner.RowWorker;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+/**
+ * Maps several ionisation edges of one stack. Each {@link Edge} selects its
+ * pre-edge and post-edge images by an energy window. The calculation reads
+ * each image row only once for all edges: the pixels of all used images are
+ * gathered to one {@link SpectrumBlock} and every edge takes its values from
+ * this block. Edges whose pre-edge windows select the same images share a
+ * single power law fit.
+ *
+ * @author Michael Entrup b. Epping
+ */
+public class MultiEdgeMapping {
+
+	/**
+	 * An ionisation edge and the maps that are calculated for it.
+	 */
+	public static class Edge {
+
+		/**
+		 * The onset energy of the ionisation edge.
+		 */
+		private final float edgeEnergyLoss;
+		/**
+		 * The indices of the pre-edge images, starting at 1.
+		 */
+		private final int[] preEdgeIndices;
+		/**
+		 * The indices of the post-edge images, starting at 1.
+		 */
+		private final int[] postEdgeIndices;
+		/**
+		 * The energy losses of the post-edge images.
+		 */
+		private final float[] postEdgeEnergyLosses;
+		/**
+		 * The fit that is used by this edge. It can be shared with other
+		 * edges.
+		 */
+		private ElementalMapping fit;
+		/**
+		 * The elemental maps of the post-edge images.
+		 */
+		private FloatProcessor[] elementalMaps;
+
+		/**
+		 * @param edgeEnergyLoss
+		 *            The onset energy of the ionisation edge.
+		 * @param preEdgeIndices
+		 *            The indices of the pre-edge images, starting at 1.
+		 * @param postEdgeIndices
+		 *            The indices of the post-edge images, starting at 1.
+		 * @param postEdgeEnergyLosses
+		 *            The energy losses of the post-edge images.
+		 */
+		private Edge(final float edgeEnergyLoss, final int[] preEdgeIndices, final int[] postEdgeIndices,
+				final float[] postEdgeEnergyLosses) {
+			this.edgeEnergyLoss = edgeEnergyLoss;
+			this.preEdgeIndices = preEdgeIndices;
+			this.postEdgeIndices = postEdgeIndices;
+			this.postEdgeEnergyLosses = postEdgeEnergyLosses;
+		}
+
+		/**
+		 * @return The onset energy of the ionisation edge.
+		 */
+		public float getEdgeEnergyLoss() {
+			return edgeEnergyLoss;
+		}
+
+		/**
+		 * @return The map of the parameter <strong>r</strong> or
+		 *         <code>null</code> if no calculation has been started. Edges
+		 *         that share the pre-edge images return the same map.
+		 */
+		public FloatProcessor getRMap() {
+			return fit == null ? null : fit.getRMap();
+		}
+
+		/**
+		 * @return The map of the parameter <strong>a</strong> or
+		 *         <code>null</code> if no calculation has been started. Edges
+		 *         that share the pre-edge images return the same map.
+		 */
+		public FloatProcessor getAMap() {
+			return fit == null ? null : fit.getAMap();
+		}
+
+		/**
+		 * @return The map of all errors that occurred at the power law fit or
+		 *         <code>null</code> if no calculation has been started.
+		 */
+		public ByteProcessor getErrorMap() {
+			return fit == null ? null : fit.getErrorMap();
+		}
+
+		/**
+		 * @return The elemental maps in the order of the post-edge images or
+		 *         <code>null</code> if no calculation has been started.
+		 */
+		public FloatProcessor[] getElementalMaps() {
+			return elementalMaps;
+		}
+
+		/**
+		 * Shows one {@link ImagePlus} for each elemental map of this edge.
+		 *
+		 * @param cal
+		 *            A {@link Calibration} object or <code>null</code>.
+		 */
+		public void showElementalMap(final Calibration cal) {
+			if (elementalMaps == null) {
+				return;
+			}
+			for (int z = 0; z < elementalMaps.length; z++) {
+				final ImagePlus impElementalMap = new ImagePlus(
+						MessageFormat.format("Elemental map {0,number}eV (edge {1,number}eV)",
+								postEdgeEnergyLosses[z], edgeEnergyLoss),
+						elementalMaps[z]);
+				if (cal != null) {
+					impElementalMap.setCalibration(cal);
+				}
+				impElementalMap.show();
+			}
+		}
+	}
+
+	/**
+	 * The energy losses of all images at the stack.
+	 */
+	private final float[] energyLossArray;
+	/**
+	 * The exposure of each image divided by the longest exposure.
+	 * <code>null</code> if all images have the same exposure.
+	 */
+	private float[] exposureNorms;
+	/**
+	 * The {@link ImagePlus} that is used for elemental mapping.
+	 */
+	private final ImagePlus impStack;
+	/**
+	 * The break condition of iterative power law fit methods.
+	 */
+	private final float epsilon;
+	/**
+	 * The method used for fitting the power law function.
+	 */
+	private final AVAILABLE_METHODS method;
+	/**
+	 * Only the selected pixels are fitted. <code>null</code> if all pixels are
+	 * fitted.
+	 */
+	private PixelMask mask;
+	/**
+	 * All edges in the order they have been added.
+	 */
+	private final List<Edge> edges = new ArrayList<>();
+	/**
+	 * One fit for each distinct set of pre-edge images. It is created by
+	 * {@link #startCalculation()}.
+	 */
+	private List<ElementalMapping> fits;
+	/**
+	 * The position of the pre-edge and post-edge images of each of
+	 * {@link #fits} at the {@link SpectrumBlock}.
+	 */
+	private List<int[]> blockPositions;
+	/**
+	 * The pixels of all images that are used by at least one edge.
+	 */
+	private float[][] slices;
+	/**
+	 * The values of {@link #exposureNorms} in the order of {@link #slices}.
+	 */
+	private float[] sliceNorms;
+	/**
+	 * Runs the {@link MultiEdgeTask}s.
+	 */
+	private final RowTaskRunner runner = new RowTaskRunner();
+
+	/**
+	 * @param energyLossArray
+	 *            The energy losses of all images at the given stack.
+	 * @param stack
+	 *            An {@link ImagePlus} that contains the stack to process.
+	 * @param epsilon
+	 *            The accuracy of the power low fit (this is the break condition
+	 *            for the used fit method).
+	 * @param method
+	 *            The method used for fitting the power law function.
+	 */
+	public MultiEdgeMapping(final float[] energyLossArray, final ImagePlus stack, final float epsilon,
+			final AVAILABLE_METHODS method) {
+		this.energyLossArray = energyLossArray;
+		this.impStack = stack;
+		this.epsilon = epsilon;
+		this.method = method;
+	}
+
+	/**
+	 * The images of the stack are normalised to the longest exposure, as
+	 * done by {@link ElementalMapping}.
+	 *
+	 * @param energyLossArray
+	 *            The energy losses of all images at the given stack.
+	 * @param exposureArray
+	 *            The exposure times of all images at the given stack.
+	 * @param stack
+	 *            An {@link ImagePlus} that contains the stack to process.
+	 * @param epsilon
+	 *            The accuracy of the power low fit (this is the break condition
+	 *            for the used fit method).
+	 * @param method
+	 *            The method used for fitting the power law function.
+	 */
+	public MultiEdgeMapping(final float[] energyLossArray, final float[] exposureArray, final ImagePlus stack,
+			final float epsilon, final AVAILABLE_METHODS method) {
+		this(energyLossArray, stack, epsilon, method);
+		float max = exposureArray[0];
+		for (final float exposure : exposureArray) {
+			max = Math.max(max, exposure);
+		}
+		exposureNorms = new float[exposureArray.length];
+		for (int i = 0; i < exposureArray.length; i++) {
+			exposureNorms[i] = exposureArray[i] / max;
+		}
+	}
+
+	/**
+	 * Adds an ionisation edge. All images with
+	 * <code>preEdgeStart &le; E &lt; edgeEnergyLoss</code> are used to fit the
+	 * background, all images with
+	 * <code>edgeEnergyLoss &le; E &le; postEdgeEnd</code> are used to extract
+	 * the elemental signal.
+	 *
+	 * @param edgeEnergyLoss
+	 *            The onset energy of the ionisation edge.
+	 * @param preEdgeStart
+	 *            The lowest energy loss of the pre-edge window.
+	 * @param postEdgeEnd
+	 *            The highest energy loss of the post-edge window.
+	 * @return The new {@link Edge}. Its maps are available after the
+	 *         calculation.
+	 * @throws IllegalArgumentException
+	 *             If the pre-edge window contains less than two images or the
+	 *             post-edge window contains no image.
+	 */
+	public Edge addEdge(final float edgeEnergyLoss, final float preEdgeStart, final float postEdgeEnd) {
+		final List<Integer> pre = new ArrayList<>();
+		final List<Integer> post = new ArrayList<>();
+		for (int i = 0; i < energyLossArray.length; i++) {
+			if (energyLossArray[i] >= preEdgeStart && energyLossArray[i] < edgeEnergyLoss) {
+				// use an index starting at 1
+				pre.add(i + 1);
+			} else if (energyLossArray[i] >= edgeEnergyLoss && energyLossArray[i] <= postEdgeEnd) {
+				post.add(i + 1);
+			}
+		}
+		if (pre.size() < 2 || post.isEmpty()) {
+			throw new IllegalArgumentException(MessageFormat.format(
+					"The edge at {0,number}eV needs at least two pre-edge images and one post-edge image.",
+					edgeEnergyLoss));
+		}
+		final float[] postEdgeEnergyLosses = new float[post.size()];
+		for (int i = 0; i < post.size(); i++) {
+			postEdgeEnergyLosses[i] = energyLossArray[post.get(i) - 1];
+		}
+		final Edge edge = new Edge(edgeEnergyLoss, toArray(pre), toArray(post), postEdgeEnergyLosses);
+		edges.add(edge);
+		return edge;
+	}
+
+	/**
+	 * @return All edges in the order they have been added.
+	 */
+	public List<Edge> getEdges() {
+		return Collections.unmodifiableList(edges);
+	}
+
+	/**
+	 * @return The number of power law fits per pixel. Edges whose pre-edge
+	 *         windows select the same images are counted once, fits restored
+	 *         from the {@link FitResultCache} are not counted. 0 if no
+	 *         calculation has been started.
+	 */
+	public int getFitCount() {
+		return fits == null ? 0 : fits.size();
+	}
+
+	/**
+	 * @param mask
+	 *            Only the pixels selected by this {@link PixelMask} are
+	 *            fitted, all maps are NaN at the other pixels.
+	 *            <code>null</code> to fit all pixels.
+	 */
+	public void setMask(final PixelMask mask) {
+		this.mask = mask;
+	}
+
+	/**
+	 * Stops a running calculation. The image rows that are processed are
+	 * finished, all other rows are skipped.
+	 */
+	public void cancel() {
+		runner.cancel();
+	}
+
+	/**
+	 * Calculates the maps of all edges with parallel {@link Thread}s and waits
+	 * until it has finished. Pressing the escape key cancels the calculation.
+	 * <br />
+	 * Groups of edges whose fit is found at the {@link FitResultCache} are not
+	 * fitted again.
+	 *
+	 * @return <code>true</code> if all image rows have been processed,
+	 *         <code>false</code> if the calculation has been cancelled or has
+	 *         failed.
+	 */
+	public boolean startCalculation() {
+		// Group the edges by their pre-edge images.
+		final Map<String, List<Edge>> groups = new LinkedHashMap<>();
+		for (final Edge edge : edges) {
+			final String key = Arrays.toString(edge.preEdgeIndices);
+			if (!groups.containsKey(key)) {
+				groups.put(key, new ArrayList<Edge>());
+			}
+			groups.get(key).add(edge);
+		}
+		// Each image is gathered once, even if several edges use it.
+		final TreeSet<Integer> used = new TreeSet<>();
+		for (final Edge edge : edges) {
+			for (final int index : edge.preEdgeIndices) {
+				used.add(index);
+			}
+			for (final int index : edge.postEdgeIndices) {
+				used.add(index);
+			}
+		}
+		final ImageStack stack = impStack.getStack();
+		final int[] positions = new int[stack.getSize() + 1];
+		slices = new float[used.size()][];
+		sliceNorms = exposureNorms == null ? null : new float[used.size()];
+		int z = 0;
+		for (final int index : used) {
+			positions[index] = z;
+			slices[z] = (float[]) stack.getPixels(index);
+			if (sliceNorms != null) {
+				sliceNorms[z] = exposureNorms[index - 1];
+			}
+			z++;
+		}
+		fits = new ArrayList<>(groups.size());
+		blockPositions = new ArrayList<>(groups.size());
+		for (final List<Edge> group : groups.values()) {
+			final int[] preEdgeIndices = group.get(0).preEdgeIndices;
+			final TreeSet<Integer> post = new TreeSet<>();
+			for (final Edge edge : group) {
+				for (final int index : edge.postEdgeIndices) {
+					post.add(index);
+				}
+			}
+			final int[] postEdgeIndices = toArray(post);
+			final ElementalMapping fit = new ElementalMapping(energyLossArray, exposureNorms, impStack,
+					preEdgeIndices, postEdgeIndices, epsilon, method);
+			fit.setMask(mask);
+			fit.prepareCalculation();
+			for (final Edge edge : group) {
+				edge.fit = fit;
+				edge.elementalMaps = new FloatProcessor[edge.postEdgeIndices.length];
+				for (int i = 0; i < edge.postEdgeIndices.length; i++) {
+					edge.elementalMaps[i] = fit.getElementalMaps()[Arrays.binarySearch(postEdgeIndices,
+							edge.postEdgeIndices[i])];
+				}
+			}
+			if (fit.restoreFromCache()) {
+				continue;
+			}
+			final int[] fitPositions = new int[preEdgeIndices.length + postEdgeIndices.length];
+			for (int i = 0; i < preEdgeIndices.length; i++) {
+				fitPositions[i] = positions[preEdgeIndices[i]];
+			}
+			for (int i = 0; i < postEdgeIndices.length; i++) {
+				fitPositions[preEdgeIndices.length + i] = positions[postEdgeIndices[i]];
+			}
+			fits.add(fit);
+			blockPositions.add(fitPositions);
+		}
+		if (fits.isEmpty()) {
+			return true;
+		}
+		final int threads = method.isThreadSafe() ? RowTaskRunner.getThreadCount() : 1;
+		final List<MultiEdgeTask> tasks = new ArrayList<>(threads);
+		for (int j = 0; j < threads; j++) {
+			tasks.add(new MultiEdgeTask());
+		}
+		if (!runner.run(impStack.getHeight(), tasks)) {
+			return false;
+		}
+		for (final ElementalMapping fit : fits) {
+			fit.storeInCache();
+		}
+		return true;
+	}
+
+	/**
+	 * @param values
+	 *            A collection of indices.
+	 * @return The indices in the order of the collection.
+	 */
+	private static int[] toArray(final Iterable<Integer> values) {
+		final List<Integer> list = new ArrayList<>();
+		for (final Integer value : values) {
+			list.add(value);
+		}
+		final int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * Gathers each image row once and passes it to one
+	 * {@link ElementalMappingTask} for each of {@link MultiEdgeMapping#fits}.
+	 */
+	private class MultiEdgeTask extends RowWorker {
+
+		/**
+		 * The spectra of the current image row.
+		 */
+		private final SpectrumBlock block = new SpectrumBlock(slices.length, impStack.getWidth());
+		/**
+		 * One task for each fit.
+		 */
+		private final ElementalMappingTask[] tasks = new ElementalMappingTask[fits.size()];
+
+		public MultiEdgeTask() {
+			for (int i = 0; i < tasks.length; i++) {
+				tasks[i] = fits.get(i).createTask(blockPositions.get(i));
+			}
+		}
+
+		@Override
+		void processRow(final int y) {
+			final int width = impStack.getWidth();
+			if (mask == null || !mask.isEmpty(y * width, width)) {
+				block.load(slices, sliceNorms, y * width, width);
+			}
+			for (final ElementalMappingTask task : tasks) {
+				task.fitRow(y, block);
+			}
+		}
+
+		@Override
+		void finished() {
+			for (final ElementalMappingTask task : tasks) {
+				task.finished();
+			}
+		}
+	}
+}
@@ -0,0 +1,348 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.simple;
+
+/**
+ * This class does the same fits as {@link PowerLawFit_LSE} and
+ * {@link PowerLawFit_WLSE}, but for a whole span of pixels that share the same
+ * x-values. Both methods fit a line to ln(y) over ln(x). All sums that only
+ * depend on the x-values are calculated once by the constructor. A span is
+ * fitted by first calculating the dot products of ln(y) with ln<sup>k</sup>(x)
+ * for all pixels, image by image, and then solving the fits with these few
+ * values per pixel. The iterations of the WLSE need no loop over the data
+ * points.<br />
+ * An instance keeps the results of the last span and must not be shared by
+ * several threads.
+ *
+ * @author Michael Entrup b. Epping
+ */
+public class PowerLawBatchFit {
+
+	private final static double DEFAULT_R = 4.0;
+
+	/**
+	 * If true the WLSE is used, else the LSE.
+	 */
+	private final boolean weighted;
+	/**
+	 * The break condition for the WLSE.
+	 */
+	private final double epsilon;
+	/**
+	 * ln(x) of all data points.
+	 */
+	private final double[] logX;
+	/**
+	 * The LSE coefficients (ln(x<sub>i</sub>) - mean) / &sum;(ln(x) -
+	 * mean)<sup>2</sup>. r is the negative dot product of them with ln(y).
+	 */
+	private final double[] lseCoefficients;
+	/**
+	 * The mean of ln(x).
+	 */
+	private final double meanLogX;
+	/**
+	 * &sum;ln<sup>k</sup>(x) for k = 0 to 3.
+	 */
+	private final double[] moments = new double[4];
+	/**
+	 * &sum;ln<sup>k</sup>(x)&sdot;ln(y) for k = 0 to 2 of each pixel.
+	 */
+	private double[] t0;
+	private double[] t1;
+	private double[] t2;
+	/**
+	 * ln(y) of the first data point of each pixel. It is the start value of
+	 * the WLSE.
+	 */
+	private double[] firstLogY;
+	private double[] r;
+	private double[] a;
+	private int[] errorCode;
+
+	/**
+	 * @param xValues
+	 *            x-values of the data points.
+	 * @param epsilon
+	 *            The break condition for the WLSE.
+	 * @param weighted
+	 *            If true the WLSE is used, else the LSE.
+	 * @param capacity
+	 *            The initial number of pixels of a span.
+	 */
+	public PowerLawBatchFit(final double[] xValues, final double epsilon, final boolean weighted,
+			final int capacity) {
+		this.weighted = weighted;
+		this.epsilon = epsilon;
+		logX = new double[xValues.length];
+		double sum = 0;
+		for (int i = 0; i < xValues.length; i++) {
+			logX[i] = Math.log(xValues[i]);
+			sum += logX[i];
+			double power = 1;
+			for (int k = 0; k < moments.length; k++) {
+				moments[k] += power;
+				power *= logX[i];
+			}
+		}
+		meanLogX = sum / xValues.length;
+		double sxx = 0;
+		for (int i = 0; i < logX.length; i++) {
+			sxx += (logX[i] - meanLogX) * (logX[i] - meanLogX);
+		}
+		lseCoefficients = new double[logX.length];
+		for (int i = 0; i < logX.length; i++) {
+			lseCoefficients[i] = (logX[i] - meanLogX) / sxx;
+		}
+		ensureCapacity(capacity);
+	}
+
+	/**
+	 * Fits all pixels of a span. The results are available by the getters
+	 * until the next span is fitted.
+	 *
+	 * @param slices
+	 *            The pixel arrays of the images. The first images are used
+	 *            that correspond to the x-values.
+	 * @param index
+	 *            The index of the first pixel of the span.
+	 * @param length
+	 *            The number of pixels of the span.
+	 */
+	public void fit(final float[][] slices, final int index, final int length) {
+		fit(slices, null, index, length);
+	}
+
+	/**
+	 * Fits all pixels of a span. The results are available by the getters
+	 * until the next span is fitted.
+	 *
+	 * @param slices
+	 *            The pixel arrays of the images. The first images are used
+	 *            that correspond to the x-values.
+	 * @param divisors
+	 *            Each pixel value is divided by the divisor of its image before
+	 *            it is used, e.g. to normalise the exposure. <code>null</code>
+	 *            to use the values as they are.
+	 * @param index
+	 *            The index of the first pixel of the span.
+	 * @param length
+	 *            The number of pixels of the span.
+	 */
+	public void fit(final float[][] slices, final float[] divisors, final int index, final int length) {
+		ensureCapacity(length);
+		for (int x = 0; x < length; x++) {
+			t0[x] = 0;
+			t1[x] = 0;
+			t2[x] = 0;
+		}
+		for (int i = 0; i < logX.length; i++) {
+			final float[] slice = slices[i];
+			final float divisor = divisors == null ? 1 : divisors[i];
+			final double lx = logX[i];
+			final double lx2 = lx * lx;
+			final double c = lseCoefficients[i];
+			if (weighted) {
+				for (int x = 0; x < length; x++) {
+					final double ly = Math.log(slice[index + x] / divisor);
+					t0[x] += ly;
+					t1[x] += lx * ly;
+					t2[x] += lx2 * ly;
+				}
+				if (i == 0) {
+					for (int x = 0; x < length; x++) {
+						firstLogY[x] = Math.log(slice[index + x] / divisor);
+					}
+				}
+			} else {
+				// t0 is the sum of ln(y), t1 the LSE dot product.
+				for (int x = 0; x < length; x++) {
+					final double ly = Math.log(slice[index + x] / divisor);
+					t0[x] += ly;
+					t1[x] += c * ly;
+				}
+			}
+		}
+		for (int x = 0; x < length; x++) {
+			if (weighted) {
+				fitWLSE(x);
+			} else {
+				fitLSE(x);
+			}
+		}
+	}
+
+	/**
+	 * @param pixel
+	 *            The position of the pixel at the last span (starting at 0).
+	 * @return The calculated value of <strong>a</strong>.
+	 */
+	public double getA(final int pixel) {
+		return a[pixel];
+	}
+
+	/**
+	 * @param pixel
+	 *            The position of the pixel at the last span (starting at 0).
+	 * @return The error code of the pixel, one of the constants of
+	 *         {@link PowerLawFit}.
+	 */
+	public int getErrorCode(final int pixel) {
+		return errorCode[pixel];
+	}
+
+	/**
+	 * @param pixel
+	 *            The position of the pixel at the last span (starting at 0).
+	 * @return The calculated value of <strong>r</strong>.
+	 */
+	public double getR(final int pixel) {
+		return r[pixel];
+	}
+
+	/**
+	 * The closed form solution of {@link PowerLawFit_LSE}.
+	 *
+	 * @param x
+	 *            The position of the pixel at the span.
+	 */
+	private void fitLSE(final int x) {
+		final double rn = -t1[x];
+		errorCode[x] = PowerLawFit.ERROR_NONE;
+		if (Double.isNaN(rn)) {
+			setError(x, PowerLawFit.ERROR_R_NAN);
+			return;
+		}
+		if (Double.isInfinite(rn)) {
+			setError(x, PowerLawFit.ERROR_R_INFINITE);
+			return;
+		}
+		final double an = Math.exp(t0[x] / logX.length + rn * meanLogX);
+		if (Double.isNaN(an)) {
+			setError(x, PowerLawFit.ERROR_A_NAN);
+			return;
+		}
+		r[x] = rn;
+		a[x] = an;
+	}
+
+	/**
+	 * The iteration of {@link PowerLawFit_WLSE}. The weight is the linear
+	 * function w = an - rn&sdot;ln(x), so each weighted sum is a combination of
+	 * the moments of ln(x) and the dot products t0, t1 and t2.
+	 *
+	 * @param x
+	 *            The position of the pixel at the span.
+	 */
+	private void fitWLSE(final int x) {
+		errorCode[x] = PowerLawFit.ERROR_NONE;
+		double rn = DEFAULT_R;
+		double rn_prev = rn + 2 * epsilon;
+		double an = firstLogY[x] + rn * logX[0];
+		int convergenceCounter = 0;
+		double diff = 10.0;
+		while (Math.abs(rn_prev - rn) > epsilon) {
+			rn_prev = rn;
+			rn = slope(an, rn, x);
+			an = intercept(an, rn, x);
+			if (Double.isNaN(rn)) {
+				setError(x, PowerLawFit.ERROR_R_NAN);
+				return;
+			}
+			if (Double.isNaN(an)) {
+				setError(x, PowerLawFit.ERROR_A_NAN);
+				return;
+			}
+			if (Double.isInfinite(rn)) {
+				setError(x, PowerLawFit.ERROR_R_INFINITE);
+				return;
+			}
+			if (Double.isInfinite(an)) {
+				setError(x, PowerLawFit.ERROR_A_INFINITE);
+				return;
+			}
+			if (Math.abs(rn_prev - rn) == diff) {
+				setError(x, PowerLawFit.ERROR_CONVERGE);
+				return;
+			}
+			if (Math.abs(rn_prev - rn) > diff) {
+				convergenceCounter++;
+			}
+			if (convergenceCounter >= 25) {
+				setError(x, PowerLawFit.ERROR_CONVERGE);
+				return;
+			}
+			diff = Math.abs(rn_prev - rn);
+		}
+		r[x] = rn;
+		a[x] = Math.exp(an);
+	}
+
+	/**
+	 * @return The new value of <strong>r</strong> of a WLSE iteration.
+	 */
+	private double slope(final double an, final double rn, final int x) {
+		final double s100 = an * moments[0] - rn * moments[1];
+		final double s110 = an * moments[1] - rn * moments[2];
+		final double s120 = an * moments[2] - rn * moments[3];
+		final double s101 = an * t0[x] - rn * t1[x];
+		final double s111 = an * t1[x] - rn * t2[x];
+		return (s101 * s110 - s100 * s111) / (s120 * s100 - s110 * s110);
+	}
+
+	/**
+	 * @return The new value of ln(a) of a WLSE iteration.
+	 */
+	private double intercept(final double an, final double rn, final int x) {
+		final double s100 = an * moments[0] - rn * moments[1];
+		final double s110 = an * moments[1] - rn * moments[2];
+		final double s120 = an * moments[2] - rn * moments[3];
+		final double s101 = an * t0[x] - rn * t1[x];
+		final double s111 = an * t1[x] - rn * t2[x];
+		return (s101 * s120 - s110 * s111) / (s120 * s100 - s110 * s110);
+	}
+
+	private void setError(final int x, final int error) {
+		errorCode[x] = error;
+		r[x] = Double.NaN;
+		a[x] = Double.NaN;
+	}
+
+	private void ensureCapacity(final int capacity) {
+		if (r == null || r.length < capacity) {
+			t0 = new double[capacity];
+			t1 = new double[capacity];
+			t2 = new double[capacity];
+			firstLogY = new double[capacity];
+			r = new double[capacity];
+			a = new double[capacity];
+			errorCode = new int[capacity];
+		}
+	}
+}
@@ -30,7 +30,11 @@ package de.m_entrup.EFTEMj_ESI.simple;
 /**
  * This is a blueprint for a power law fit method ( y(x) = a&sdot;x<sup>-r</sup>
  * ). It is used by EFTEMj, but it can be used for other tasks as well. That is
- * why no classes from ImageJ are used.
+ * why no classes from ImageJ are used.<br />
+ * An instance can be reused for data points with the same x-values by calling
+ * {@link #reset(double[])}. Subclasses that transform the data points keep them
+ * in scratch arrays that are allocated once, so a reused instance does not
+ * allocate memory. An instance must not be shared by several threads.
  *
  * @author Michael Entrup b. Epping
  */
@@ -52,6 +56,11 @@ public abstract class PowerLawFit {
 	public final static int ERROR_CONVERGE = 4;
 	public final static int ERROR_A_NAN = 8;
 	public final static int ERROR_A_INFINITE = 16;
+	/**
+	 * The pixel is not selected by the mask of the elemental mapping and has
+	 * not been fitted.
+	 */
+	public final static int ERROR_MASKED = 32;
 
 	/**
 	 * @return The calculated value of <strong>a</strong>. NaN if an error
@@ -88,6 +97,33 @@ public abstract class PowerLawFit {
 	 */
 	public abstract void doFit();
 
+	/**
+	 * Prepares this instance to fit new data points. The x-values are kept.
+	 *
+	 * @param yValues
+	 *            y-values of the new data points. The array is not copied and
+	 *            must not be modified until the fit is done.
+	 */
+	public void reset(final double[] yValues) {
+		errorCode = ERROR_NONE;
+		done = false;
+		r = Double.NaN;
+		a = Double.NaN;
+		loadValues(yValues);
+	}
+
+	/**
+	 * Sets the y-values that are used by {@link #doFit()}. Subclasses that
+	 * transform the y-values override this method and write the transformed
+	 * values to their scratch array.
+	 *
+	 * @param yValues
+	 *            y-values of the data points.
+	 */
+	protected void loadValues(final double[] yValues) {
+		this.yValues = yValues;
+	}
+
 	/**
 	 * This will create a power law fit method. It will try to fit a power law
 	 * function to the given data points.
@@ -0,0 +1,261 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.simple;
+
+/**
+ * This is an implementation of {@link PowerLawFit} that uses a
+ * <strong>Levenberg-Marquardt algorithm (LMA)</strong> specialised for the two
+ * parameters of the power law. The model is fitted as y = exp(ln(a) - r&sdot;ln(x)),
+ * so the normal equations are a 2&times;2 system that is solved in closed form.
+ * It minimises the same weighted sum of squares as {@link PowerLawFit_LMA}
+ * (weight sqrt(y)), but uses only primitive arrays and no shared state. An
+ * instance must not be used by several threads.<br />
+ * At least two counts must be positive, otherwise the two parameters are not
+ * determined and {@link PowerLawFit#ERROR_R_NAN} is reported.
+ *
+ * @author Michael Entrup b. Epping
+ */
+public class PowerLawFit_LM extends PowerLawFit {
+
+	private final static double DEFAULT_R = 4.0;
+	private final static int MAX_ITERATIONS = 100;
+	private final static double LAMBDA_START = 1.0E-3;
+	private final static double LAMBDA_MAX = 1.0E10;
+
+	/**
+	 * The logarithm of the x-values. They are calculated once.
+	 */
+	private final double[] logX;
+	/**
+	 * The weight of each data point. Counts that are not positive get the
+	 * weight 0.
+	 */
+	private final double[] weights;
+
+	/**
+	 * A constructor that uses the same parameters as the constructor of
+	 * {@link PowerLawFit}.
+	 *
+	 * @param xValues
+	 * @param yValues
+	 * @param epsilon
+	 */
+	public PowerLawFit_LM(final double[] xValues, final double[] yValues, final double epsilon) {
+		super(xValues, yValues, epsilon);
+		logX = new double[xValues.length];
+		weights = new double[xValues.length];
+		this.yValues = new double[yValues.length];
+		for (int i = 0; i < xValues.length; i++) {
+			logX[i] = Math.log(xValues[i]);
+		}
+		loadValues(yValues);
+	}
+
+	@Override
+	protected void loadValues(final double[] yValues) {
+		for (int i = 0; i < yValues.length; i++) {
+			this.yValues[i] = yValues[i];
+			weights[i] = yValues[i] > 0 ? Math.sqrt(yValues[i]) : 0;
+		}
+	}
+
+	@Override
+	public void doFit() {
+		for (int i = 0; i < yValues.length; i++) {
+			if (Double.isInfinite(yValues[i]) | Double.isNaN(yValues[i])) {
+				setError(ERROR_CONVERGE);
+				return;
+			}
+		}
+		int positive = 0;
+		for (int i = 0; i < yValues.length; i++) {
+			if (yValues[i] > 0) {
+				positive++;
+			}
+		}
+		if (positive < 2) {
+			setError(ERROR_R_NAN);
+			return;
+		}
+		// The start values are taken from a linear fit of the logarithms.
+		double rn = startR();
+		double lnA = startLnA(rn);
+		if (Double.isNaN(lnA)) {
+			setError(ERROR_A_NAN);
+			return;
+		}
+		double chi2 = chi2(lnA, rn);
+		double lambda = LAMBDA_START;
+		int iteration = 0;
+		boolean converged = false;
+		while (!converged) {
+			if (iteration++ >= MAX_ITERATIONS) {
+				setError(ERROR_CONVERGE);
+				return;
+			}
+			// The Jacobian of the model is (f, -f*ln(x)).
+			double a11 = 0;
+			double a12 = 0;
+			double a22 = 0;
+			double g1 = 0;
+			double g2 = 0;
+			for (int i = 0; i < yValues.length; i++) {
+				final double f = Math.exp(lnA - rn * logX[i]);
+				final double j2 = -f * logX[i];
+				final double wf = weights[i] * f;
+				final double residual = yValues[i] - f;
+				a11 += wf * f;
+				a12 += wf * j2;
+				a22 += weights[i] * j2 * j2;
+				g1 += wf * residual;
+				g2 += weights[i] * j2 * residual;
+			}
+			boolean improved = false;
+			while (!improved) {
+				final double d11 = a11 * (1 + lambda);
+				final double d22 = a22 * (1 + lambda);
+				final double det = d11 * d22 - a12 * a12;
+				final double deltaLnA = (g1 * d22 - g2 * a12) / det;
+				final double deltaR = (d11 * g2 - a12 * g1) / det;
+				final double chi2Trial = chi2(lnA + deltaLnA, rn + deltaR);
+				if (chi2Trial < chi2) {
+					lnA += deltaLnA;
+					rn += deltaR;
+					chi2 = chi2Trial;
+					lambda /= 10;
+					improved = true;
+					converged = Math.abs(deltaR) <= epsilon;
+				} else {
+					lambda *= 10;
+					if (lambda > LAMBDA_MAX) {
+						/*
+						 * Even the shortest step along the gradient does not
+						 * reduce chi2, so the current parameters are a minimum
+						 * within the precision of double. This can be the start
+						 * values of the linear fit, e.g. if the counts follow
+						 * the power law exactly. They are accepted without an
+						 * error code.
+						 */
+						improved = true;
+						converged = true;
+					}
+				}
+			}
+		}
+		r = rn;
+		a = Math.exp(lnA);
+		if (Double.isNaN(r)) {
+			setError(ERROR_R_NAN);
+		} else if (Double.isInfinite(r)) {
+			setError(ERROR_R_INFINITE);
+		} else if (Double.isNaN(a)) {
+			setError(ERROR_A_NAN);
+		} else if (Double.isInfinite(a)) {
+			setError(ERROR_A_INFINITE);
+		}
+		done = true;
+	}
+
+	/**
+	 * Sets an error code and the results to NaN.
+	 *
+	 * @param error
+	 *            One of the error codes of {@link PowerLawFit}.
+	 */
+	private void setError(final int error) {
+		errorCode = error;
+		r = Double.NaN;
+		a = Double.NaN;
+		done = true;
+	}
+
+	/**
+	 * @return The start value of <strong>r</strong> from a linear fit of
+	 *         ln(y) over ln(x), or a default value if a count is not positive.
+	 */
+	private double startR() {
+		double xMean = 0;
+		double yMean = 0;
+		for (int i = 0; i < yValues.length; i++) {
+			if (yValues[i] <= 0) {
+				return DEFAULT_R;
+			}
+			xMean += logX[i];
+			yMean += Math.log(yValues[i]);
+		}
+		xMean /= yValues.length;
+		yMean /= yValues.length;
+		double sum = 0;
+		double sum2 = 0;
+		for (int i = 0; i < yValues.length; i++) {
+			sum += (logX[i] - xMean) * (Math.log(yValues[i]) - yMean);
+			sum2 += (logX[i] - xMean) * (logX[i] - xMean);
+		}
+		final double start = -sum / sum2;
+		if (Double.isNaN(start) | Double.isInfinite(start)) {
+			return DEFAULT_R;
+		}
+		return start;
+	}
+
+	/**
+	 * @param rn
+	 *            The start value of <strong>r</strong>.
+	 * @return The value of ln(a) that matches the sum of all counts. NaN if
+	 *         the sum is not positive.
+	 */
+	private double startLnA(final double rn) {
+		double sumY = 0;
+		double sumF = 0;
+		for (int i = 0; i < yValues.length; i++) {
+			sumY += yValues[i];
+			sumF += Math.exp(-rn * logX[i]);
+		}
+		if (sumY <= 0) {
+			return Double.NaN;
+		}
+		return Math.log(sumY / sumF);
+	}
+
+	/**
+	 * @param lnA
+	 *            The logarithm of <strong>a</strong>.
+	 * @param rn
+	 *            The value of <strong>r</strong>.
+	 * @return The weighted sum of squared residuals.
+	 */
+	private double chi2(final double lnA, final double rn) {
+		double value = 0;
+		for (int i = 0; i < yValues.length; i++) {
+			final double residual = yValues[i] - Math.exp(lnA - rn * logX[i]);
+			value += weights[i] * residual * residual;
+		}
+		return value;
+	}
+}
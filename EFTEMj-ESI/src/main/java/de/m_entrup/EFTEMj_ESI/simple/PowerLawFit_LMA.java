@@ -34,6 +34,11 @@ import org.apache.commons.math3.fitting.WeightedObservedPoint;
 import de.m_entrup.EFTEMj_lib.lma.PowerLawFunction;
 
 /**
+ * This implementation uses the curve fitter of commons-math. The fitter is
+ * shared by all instances, so it is kept as a reference for
+ * {@link PowerLawFit_LM} and processed by a single thread (see
+ * {@link ElementalMapping.AVAILABLE_METHODS#isThreadSafe()}).
+ *
  * @author Michael Entrup b. Epping
  */
 public class PowerLawFit_LMA extends PowerLawFit {
@@ -47,11 +52,20 @@ public class PowerLawFit_LMA extends PowerLawFit {
 		if (fitter.getLimit() != epsilon) {
 			fitter.setLimit(epsilon);
 		}
-		points = new ArrayList<>();
+		points = new ArrayList<>(xValues.length);
 		this.xValues = new double[xValues.length];
 		this.yValues = new double[yValues.length];
 		for (int i = 0; i < xValues.length; i++) {
 			this.xValues[i] = xValues[i];
+		}
+		loadValues(yValues);
+	}
+
+	@Override
+	protected void loadValues(final double[] yValues) {
+		// WeightedObservedPoint is immutable, only the list is reused.
+		points.clear();
+		for (int i = 0; i < yValues.length; i++) {
 			this.yValues[i] = yValues[i];
 			points.add(new WeightedObservedPoint(Math.sqrt(yValues[i]), this.xValues[i], this.yValues[i]));
 		}
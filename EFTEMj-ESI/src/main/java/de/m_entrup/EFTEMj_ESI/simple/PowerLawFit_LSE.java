@@ -38,6 +38,13 @@ public class PowerLawFit_LSE extends PowerLawFit {
 		this.yValues = new double[yValues.length];
 		for (int i = 0; i < xValues.length; i++) {
 			this.xValues[i] = Math.log(xValues[i]);
+		}
+		loadValues(yValues);
+	}
+
+	@Override
+	protected void loadValues(final double[] yValues) {
+		for (int i = 0; i < yValues.length; i++) {
 			this.yValues[i] = Math.log(yValues[i]);
 		}
 	}
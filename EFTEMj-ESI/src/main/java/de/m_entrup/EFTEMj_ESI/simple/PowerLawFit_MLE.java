@@ -79,6 +79,25 @@ public class PowerLawFit_MLE extends PowerLawFit {
 		r = rStart;
 	}
 
+	@Override
+	public void reset(final double[] yValues) {
+		reset(yValues, DEFAULT_R);
+	}
+
+	/**
+	 * Prepares this instance to fit new data points, starting the iterative
+	 * calculation of <strong>r</strong> at the given value.
+	 *
+	 * @param yValues
+	 *            y-values of the new data points.
+	 * @param rStart
+	 *            The starting value of <strong>r</strong>.
+	 */
+	public void reset(final double[] yValues, final double rStart) {
+		super.reset(yValues);
+		r = rStart;
+	}
+
 	@Override
 	public void doFit() {
 		double rn = r;
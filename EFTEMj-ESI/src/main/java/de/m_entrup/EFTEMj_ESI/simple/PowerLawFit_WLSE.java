@@ -44,6 +44,19 @@ public class PowerLawFit_WLSE extends PowerLawFit {
 		this.yValues = new double[counts.length];
 		for (int i = 0; i < preEdgeEnergyLosses.length; i++) {
 			this.xValues[i] = Math.log(preEdgeEnergyLosses[i]);
+		}
+		loadValues(counts);
+	}
+
+	@Override
+	public void reset(final double[] counts) {
+		super.reset(counts);
+		r = DEFAULT_R;
+	}
+
+	@Override
+	protected void loadValues(final double[] counts) {
+		for (int i = 0; i < counts.length; i++) {
 			this.yValues[i] = Math.log(counts[i]);
 		}
 	}
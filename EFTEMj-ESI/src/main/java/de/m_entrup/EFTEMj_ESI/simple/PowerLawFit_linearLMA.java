@@ -45,11 +45,20 @@ public class PowerLawFit_linearLMA extends PowerLawFit {
 		if (fitter.getLimit() != epsilon) {
 			fitter.setLimit(epsilon);
 		}
-		points = new ArrayList<>();
+		points = new ArrayList<>(xValues.length);
 		this.xValues = new double[xValues.length];
 		this.yValues = new double[yValues.length];
 		for (int i = 0; i < xValues.length; i++) {
 			this.xValues[i] = Math.log(xValues[i]);
+		}
+		loadValues(yValues);
+	}
+
+	@Override
+	protected void loadValues(final double[] yValues) {
+		// WeightedObservedPoint is immutable, only the list is reused.
+		points.clear();
+		for (int i = 0; i < yValues.length; i++) {
 			this.yValues[i] = Math.log(yValues[i]);
 			points.add(new WeightedObservedPoint(Math.sqrt(yValues[i]), this.xValues[i], this.yValues[i]));
 		}
@@ -0,0 +1,193 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.simple;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+
+/**
+ * Processes the rows of an image with parallel {@link Thread}s. One
+ * {@link RowWorker} is used per thread. The workers take the next unprocessed
+ * row until all rows are done, so the buffers of a worker are reused for all
+ * its rows. The thread that has started the calculation waits, updates the
+ * progress bar and checks for the escape key.
+ *
+ * @author Michael Entrup b. Epping
+ */
+class RowTaskRunner {
+
+	/**
+	 * A worker is used by a single thread.
+	 */
+	static abstract class RowWorker {
+
+		/**
+		 * @param y
+		 *            The index of the image row to process.
+		 */
+		abstract void processRow(int y);
+
+		/**
+		 * Is called when the worker has processed its last row, even if the
+		 * calculation has been cancelled or has failed.
+		 */
+		void finished() {
+		}
+	}
+
+	/**
+	 * The interval in ms between two updates of the progress bar.
+	 */
+	private static final long PROGRESS_INTERVAL = 100;
+	/**
+	 * The {@link ExecutorService} that is shared by all calculations. It is
+	 * created on first use and its daemon {@link Thread}s are kept for the
+	 * next calculation.
+	 */
+	private static ExecutorService executorService;
+	/**
+	 * The index of the next image row that is processed by a
+	 * {@link RowWorker}.
+	 */
+	private final AtomicInteger nextRow = new AtomicInteger();
+	/**
+	 * The number of image rows that have been processed. The workers only
+	 * increase the value, the progress bar is updated by the {@link Thread}
+	 * that waits at {@link #run(int, List)}.
+	 */
+	private final AtomicInteger progress = new AtomicInteger();
+	/**
+	 * If <code>true</code> the workers stop before processing the next image
+	 * row.
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * @return The number of {@link RowWorker}s that should be passed to
+	 *         {@link #run(int, List)}.
+	 */
+	static int getThreadCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @return The {@link ExecutorService} that is shared by all calculations.
+	 */
+	private static synchronized ExecutorService getExecutorService() {
+		if (executorService == null) {
+			executorService = Executors.newFixedThreadPool(getThreadCount(), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "ElementalMapping");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executorService;
+	}
+
+	/**
+	 * Processes all rows and waits until the calculation has finished. The
+	 * progress bar is updated at a fixed interval. Pressing the escape key
+	 * cancels the calculation.
+	 *
+	 * @param rows
+	 *            The number of image rows.
+	 * @param workers
+	 *            One {@link RowWorker} for each thread.
+	 * @return <code>true</code> if all image rows have been processed,
+	 *         <code>false</code> if the calculation has been cancelled or has
+	 *         failed.
+	 */
+	boolean run(final int rows, final List<? extends RowWorker> workers) {
+		nextRow.set(0);
+		progress.set(0);
+		cancelled = false;
+		IJ.resetEscape();
+		final CountDownLatch latch = new CountDownLatch(workers.size());
+		final List<Future<?>> futures = new ArrayList<>(workers.size());
+		for (final RowWorker worker : workers) {
+			futures.add(getExecutorService().submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						int y;
+						while (!cancelled && (y = nextRow.getAndIncrement()) < rows) {
+							worker.processRow(y);
+							progress.incrementAndGet();
+						}
+					} finally {
+						worker.finished();
+						latch.countDown();
+					}
+				}
+			}));
+		}
+		try {
+			while (!latch.await(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) {
+				IJ.showProgress(progress.get(), rows);
+				if (IJ.escapePressed()) {
+					cancel();
+				}
+			}
+			for (final Future<?> future : futures) {
+				future.get();
+			}
+		} catch (final InterruptedException e) {
+			cancel();
+			Thread.currentThread().interrupt();
+		} catch (final ExecutionException e) {
+			cancel();
+			e.getCause().printStackTrace();
+		}
+		IJ.showProgress(1.0);
+		return !cancelled;
+	}
+
+	/**
+	 * Stops a running calculation. The image rows that are processed are
+	 * finished, all other rows are skipped.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+}
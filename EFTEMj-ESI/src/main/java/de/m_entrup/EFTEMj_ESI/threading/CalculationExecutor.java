@@ -0,0 +1,80 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.threading;
+
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+
+import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
+import de.m_entrup.EFTEMj_ESI.tools.LogWriter;
+import ij.IJ;
+
+/**
+ * The {@link CalculationExecutor} is the base class of all executors that start
+ * a calculation of the {@link ThreadInterface} as a background task. The
+ * constructor reserves the {@link ThreadInterface}, so that the caller is
+ * notified if another calculation is running. Exceptions that are thrown by
+ * <code>doInBackground()</code> are shown to the user when the background task
+ * is done.
+ */
+public abstract class CalculationExecutor extends SwingWorker<Void, Void> {
+
+	/**
+	 * The constructor reserves the {@link ThreadInterface} for this executor.
+	 *
+	 * @throws Exception
+	 *             If another calculation is running.
+	 */
+	public CalculationExecutor() throws Exception {
+		super();
+		ThreadInterface.getInstance().reserve(this);
+	}
+
+	/**
+	 * Releases the {@link ThreadInterface} if <code>doInBackground()</code> has
+	 * not started a calculation and shows the exception that has been thrown
+	 * by <code>doInBackground()</code>.
+	 */
+	@Override
+	protected void done() {
+		ThreadInterface.getInstance().release(this);
+		try {
+			get();
+		} catch (final InterruptedException e) {
+			e.printStackTrace();
+		} catch (final ExecutionException e) {
+			e.getCause().printStackTrace();
+			IJ.showStatus("");
+			PluginAPI.getInstance().getMainMenu().closeMapResultPanel();
+			PluginAPI.getInstance().enableMainMenuButtons();
+			LogWriter.showWarningAndWriteLog(e.getCause().toString());
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.m_entrup.EFTEMj_ESI.threading;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This {@link TileScheduler} uses a {@link ForkJoinPool}. The array of
+ * {@link Tile}s is split recursively and idle threads steal the remaining
+ * parts from busy ones. The same pool is used for all calculations, that is
+ * why no threads are created for each calculation.
+ */
+public class ForkJoinTileScheduler implements TileScheduler {
+
+	/**
+	 * A {@link RecursiveAction} that processes a range of {@link Tile}s. The
+	 * range is split into halves until only a single tile is left.
+	 */
+	private static class TileAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The task that processes the tiles.
+		 */
+		private final TileTask task;
+		/**
+		 * All tiles of the calculation.
+		 */
+		private final Tile[] tiles;
+		/**
+		 * The first tile of the range.
+		 */
+		private final int from;
+		/**
+		 * The first tile that is not part of the range.
+		 */
+		private final int to;
+
+		/**
+		 * @param task
+		 *            The task that processes the tiles.
+		 * @param tiles
+		 *            All tiles of the calculation.
+		 * @param from
+		 *            The first tile of the range.
+		 * @param to
+		 *            The first tile that is not part of the range.
+		 */
+		private TileAction(final TileTask task, final Tile[] tiles, final int from, final int to) {
+			this.task = task;
+			this.tiles = tiles;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				task.processTile(tiles[from]);
+			} else {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new TileAction(task, tiles, from, middle), new TileAction(task, tiles, middle, to));
+			}
+		}
+	}
+
+	/**
+	 * The pool that is used by all instances of {@link ForkJoinTileScheduler}.
+	 * The number of threads is the number of available processors.
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	@Override
+	public void execute(final TileTask task, final Tile[] tiles) {
+		if (tiles.length == 0) {
+			return;
+		}
+		POOL.invoke(new TileAction(task, tiles, 0, tiles.length));
+	}
+}
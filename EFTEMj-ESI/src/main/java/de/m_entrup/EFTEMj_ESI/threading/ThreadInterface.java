@@ -28,13 +28,17 @@
 package de.m_entrup.EFTEMj_ESI.threading;
 
 import java.awt.Point;
+import java.awt.geom.Point2D;
 import java.text.NumberFormat;
 import java.util.Locale;
 
 import javax.swing.JOptionPane;
 
 import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
+import de.m_entrup.EFTEMj_ESI.dataset.FitResultCache;
 import de.m_entrup.EFTEMj_ESI.driftcorrection.CrossCorrelation;
+import de.m_entrup.EFTEMj_ESI.driftcorrection.StackShifter;
 import de.m_entrup.EFTEMj_ESI.gui.MainMenu;
 import de.m_entrup.EFTEMj_ESI.gui.MapResultPanel;
 import de.m_entrup.EFTEMj_ESI.map.BGCalculation;
@@ -43,11 +47,14 @@ import de.m_entrup.EFTEMj_ESI.map.Chi2Calculation;
 import de.m_entrup.EFTEMj_ESI.map.Chi2CalculationExecutor;
 import de.m_entrup.EFTEMj_ESI.map.CoeffOfDetCalculation;
 import de.m_entrup.EFTEMj_ESI.map.CoeffOfDetCalculationExecutor;
+import de.m_entrup.EFTEMj_ESI.map.FusedPostFitCalculation;
+import de.m_entrup.EFTEMj_ESI.map.FusedPostFitCalculationExecutor;
 import de.m_entrup.EFTEMj_ESI.map.MapCalculation;
 import de.m_entrup.EFTEMj_ESI.map.MapCalculationExecutor;
 import de.m_entrup.EFTEMj_ESI.map.PowerLawFitCalculation;
 import de.m_entrup.EFTEMj_ESI.map.SNRCalculation;
 import de.m_entrup.EFTEMj_ESI.map.SNRCalculationExecutor;
+import de.m_entrup.EFTEMj_ESI.plugin.EsiJob;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginAPI;
 import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
 import de.m_entrup.EFTEMj_ESI.resources.PluginMessages;
@@ -60,18 +67,18 @@ import de.m_entrup.EFTEMj_ESI.tools.Statistics;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
-import ij.process.Blitter;
 import ij.process.FloatProcessor;
 
 /**
  * The {@link ThreadInterface} is the main part of my threading framework. Each
- * executor has to call the method <code>configureThreadChecker(int)</code> to
- * specify the number of threads he will create. the constructor of each thread
- * has to call <code>addThread()</code>. This ensures that the number of threads
- * does not exceed the number of CPU-cores. When a thread has finished it's
- * calculations <code>removeThread(int)</code> hat to be called. A waiting
- * thread will continue or, if all sub tasks are finished, a finisher thread
- * (implemented as a inner class of {@link ThreadInterface}) is started.
+ * {@link CalculationExecutor} reserves the {@link ThreadInterface} when it is
+ * created and passes its calculation as a {@link TileTask} to
+ * <code>execute(TileTask, int)</code>. The calculation is processed by an
+ * {@link EsiJob} of the dataset that is selected at the main menu. The image is
+ * split into {@link Tile}s that are processed by a {@link TileScheduler}. This
+ * ensures that the number of threads does not exceed the number of CPU-cores.
+ * When all tiles are finished, a finisher thread (implemented as a inner class
+ * of {@link ThreadInterface}) is started.
  */
 public class ThreadInterface {
 
@@ -84,18 +91,8 @@ public class ThreadInterface {
 
 		@Override
 		public void run() {
-			final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
-			final float[] errorMap = dataset.getErrorMap();
-			Statistics statistics;
-			for (int i = 0; i < dataset.getEdgeIndex(); i++) {
-				statistics = new Statistics(dataset.getRelBackgroundImages()[i].getPixels(), errorMap);
-				LogWriter.writeProcessLog(
-						dataset.getRelBackgroundImages()[i].getLabel() + " " + statistics.getAllAsString(),
-						LogWriter.MAP);
-			}
-			final Float timeInSeconds = (float) (MyTimer.interval()) / 1000;
-			LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Time required (BG calc.): %.2f s", timeInSeconds),
-					LogWriter.MAP);
+			logBackgroundStatistics();
+			logInterval("BG calc.");
 			MapCalculationExecutor executor;
 			try {
 				executor = new MapCalculationExecutor();
@@ -119,21 +116,10 @@ public class ThreadInterface {
 
 		@Override
 		public void run() {
-			final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
-			final float[] errorMap = dataset.getErrorMap();
-			final Statistics statistics = new Statistics(dataset.getChi2(), errorMap);
-			LogWriter.writeProcessLog("Chi² " + statistics.getAllAsString(), LogWriter.MAP);
-			Float timeInSeconds = (float) (MyTimer.interval()) / 1000;
-			LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Time required (Chi²): %.2f s", timeInSeconds),
-					LogWriter.MAP);
-			// TODO Create a finished() method to reduce redundancy.
-			timeInSeconds = (float) (MyTimer.stop()) / 1000;
-			LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Time required (total): %.2f s", timeInSeconds),
-					LogWriter.MAP);
+			logChi2Statistics();
+			logInterval("Chi²");
 			mainMenu.enableMapResultButton("key_showChi2");
-			mainMenu.enableMapResultButton("key_closeMapResult");
-			// TODO add "show log" button to the MapResultPanel
-			DisplyProcessLogTool.showExportDialog("Map_" + dataset.getImagePlusShortTitle());
+			mapFinished();
 		}
 	}
 
@@ -147,13 +133,8 @@ public class ThreadInterface {
 
 		@Override
 		public void run() {
-			final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
-			final float[] errorMap = dataset.getErrorMap();
-			final Statistics statistics = new Statistics(dataset.getCoeffOFDet(), errorMap);
-			LogWriter.writeProcessLog("coefficient of determination " + statistics.getAllAsString(), LogWriter.MAP);
-			final Float timeInSeconds = (float) (MyTimer.interval()) / 1000;
-			LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Time required (COD): %.2f s", timeInSeconds),
-					LogWriter.MAP);
+			logCODStatistics();
+			logInterval("COD");
 			Chi2CalculationExecutor executor;
 			try {
 				executor = new Chi2CalculationExecutor();
@@ -173,51 +154,38 @@ public class ThreadInterface {
 	 * crosscorrelation coefficient, this is done by {@link CrossCorrelation}.
 	 * If the coefficients are calculated, this class is initialised and
 	 * determines the drift from the coefficient map. Ongoing the images are
-	 * shifted and finally displayed.
+	 * shifted in parallel by a {@link StackShifter} and finally displayed.
 	 */
 	private class CROSSFinisher implements Runnable {
 
 		DatasetAPI datasetAPI = PluginAPI.getInstance().getDatasetAPI();
 
-		/**
-		 * this method is used to create a {@link ImageStack} from an array of
-		 * {@link FloatProcessor}s.
-		 *
-		 * @param array
-		 *            An array of {@link FloatProcessor}s.
-		 * @return The {@link ImageStack} that contains the
-		 *         {@link FloatProcessor}s of the parameter array.
-		 */
-		private ImageStack arrayToStack(final FloatProcessor[] array) {
-			final ImageStack stack = new ImageStack(array[0].getWidth(), array[0].getHeight());
-			for (int i = 0; i < array.length; i++) {
-				stack.addSlice(datasetAPI.getSliceLabel(i), array[i]);
-			}
-			return stack;
-		}
-
 		@Override
 		public void run() {
 			final int templateIndex = datasetAPI.getTemplateIndex();
 			final ImageStack imageStack = datasetAPI.getImagePlus().getStack();
-			final FloatProcessor[] correctedImages = new FloatProcessor[datasetAPI.getStackSize()];
-			correctedImages[templateIndex] = new FloatProcessor(datasetAPI.getWidth(), datasetAPI.getHeight());
-			correctedImages[templateIndex].copyBits(imageStack.getProcessor(templateIndex + 1), 0, 0, Blitter.COPY);
+			// The shift of the reference image is null, it is copied.
+			final Point2D.Double[] shifts = new Point2D.Double[datasetAPI.getStackSize()];
 			for (int i = 0; i < datasetAPI.getStackSize(); i++) {
 				if (i != templateIndex) {
-					final Point maxPos = ImageShifter.calcShift(datasetAPI.getCorrelationCoefficientsAsFP()[i]);
-					// 'x' and 'y' are shift values.
-					LogWriter.writeProcessLog("Drift of \"" + imageStack.getShortSliceLabel(i + 1) + "\" " + ": x="
-							+ -maxPos.x + " y=" + -maxPos.y, LogWriter.DRIFT);
-					correctedImages[i] = ImageShifter.moveImage(maxPos,
-							(FloatProcessor) imageStack.getProcessor(i + 1));
-					// When an image is changed you have to call this method to
-					// get the
-					// right min & max (used for display limits).
-					imageStack.getProcessor(i + 1).resetMinAndMax();
+					final FloatProcessor coefficients = datasetAPI.getCorrelationCoefficientsAsFP()[i];
+					if (datasetAPI.isSubPixelShift()) {
+						shifts[i] = ImageShifter.calcSubPixelShift(coefficients);
+						LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Drift of \"%s\" : x=%.2f y=%.2f",
+								imageStack.getShortSliceLabel(i + 1), -shifts[i].x, -shifts[i].y), LogWriter.DRIFT);
+					} else {
+						final Point maxPos = ImageShifter.calcShift(coefficients);
+						// 'x' and 'y' are shift values.
+						LogWriter.writeProcessLog("Drift of \"" + imageStack.getShortSliceLabel(i + 1) + "\" " + ": x="
+								+ -maxPos.x + " y=" + -maxPos.y, LogWriter.DRIFT);
+						shifts[i] = new Point2D.Double(maxPos.x, maxPos.y);
+					}
 				}
 			}
-			final ImageStack correctedStack = arrayToStack(correctedImages);
+			// All slices are shifted in parallel.
+			final StackShifter stackShifter = new StackShifter(imageStack, shifts, datasetAPI.getFillValue());
+			new EsiJob(datasetAPI, tileScheduler, progressSink).execute(stackShifter);
+			final ImageStack correctedStack = stackShifter.getResult();
 			final ImagePlus driftStackWin = new ImagePlus("DK-" + datasetAPI.getImagePlus().getTitle(), correctedStack);
 			driftStackWin.setDisplayRange(WindowManager.getCurrentImage().getDisplayRangeMin(),
 					WindowManager.getCurrentImage().getDisplayRangeMax());
@@ -249,17 +217,8 @@ public class ThreadInterface {
 
 		@Override
 		public void run() {
-			final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
-			final float[] errorMap = dataset.getErrorMap();
-			Statistics statistics;
-			for (int i = 0; i < dataset.getMap().length; i++) {
-				statistics = new Statistics(dataset.getMap()[i].getPixels(), errorMap);
-				LogWriter.writeProcessLog(dataset.getMap()[i].getLabel() + " " + statistics.getAllAsString(),
-						LogWriter.MAP);
-			}
-			final Float timeInSeconds = (float) (MyTimer.interval()) / 1000;
-			LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Time required (Map calc): %.2f s", timeInSeconds),
-					LogWriter.MAP);
+			logMapStatistics();
+			logInterval("Map calc");
 			SNRCalculationExecutor executor;
 			try {
 				executor = new SNRCalculationExecutor();
@@ -275,7 +234,7 @@ public class ThreadInterface {
 
 	/**
 	 * When the MLE calculation is finished, the next calculation
-	 * {@link BGCalculation} is started. As the {@link PowerLawFitCalculation}
+	 * {@link BGCalculation} or {@link FusedPostFitCalculation} is started. As the {@link PowerLawFitCalculation}
 	 * is the first part of the elemental-map calculation the MapResultPanel
 	 * will be displayed by this finisher Thread. The buttons of the already
 	 * available results are enabled.
@@ -309,17 +268,25 @@ public class ThreadInterface {
 			errorCount = errorHistogram[PluginConstants.ERROR__NAN];
 			LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "NAN error: %d pixels (%s)", errorCount,
 					NumberFormat.getPercentInstance().format((double) errorCount / pixelCount)), LogWriter.MAP);
+			errorCount = errorHistogram[PluginConstants.ERROR__MASKED];
+			if (errorCount > 0) {
+				LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "outside the mask: %d pixels (%s)",
+						errorCount, NumberFormat.getPercentInstance().format((double) errorCount / pixelCount)),
+						LogWriter.MAP);
+			}
 			Statistics statistics = new Statistics(dataset.getRMap(), errorMap);
 			LogWriter.writeProcessLog("r " + statistics.getAllAsString(), LogWriter.MAP);
 			statistics = new Statistics(dataset.getAMap(), errorMap);
 			LogWriter.writeProcessLog("a " + statistics.getAllAsString(), LogWriter.MAP);
-			final Float timeInSeconds = (float) (MyTimer.interval()) / 1000;
-			LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Time required (MLE): %.2f s", timeInSeconds),
-					LogWriter.MAP);
-			BGCalculationExecutor executor;
+			statistics = new Statistics(dataset.getIterationMap(), errorMap);
+			LogWriter.writeProcessLog("iterations " + statistics.getAllAsString(), LogWriter.MAP);
+			logInterval("MLE");
 			try {
-				executor = new BGCalculationExecutor();
-				executor.execute();
+				if (dataset.isFusedPostFit()) {
+					new FusedPostFitCalculationExecutor().execute();
+				} else {
+					new BGCalculationExecutor().execute();
+				}
 			} catch (final Exception e) {
 				mainMenu.closeMapResultPanel();
 				mainMenu.enableMainMenuButtons();
@@ -328,6 +295,53 @@ public class ThreadInterface {
 			mainMenu.enableMapResultButton("key_showErrorMap");
 			mainMenu.enableMapResultButton("key_showR");
 			mainMenu.enableMapResultButton("key_showA");
+			mainMenu.enableMapResultButton("key_showIterationMap");
+		}
+	}
+
+	/**
+	 * The {@link PostFitFinisher} is started when the
+	 * {@link FusedPostFitCalculation} has been finished. It replaces the
+	 * finishers from {@link BGFinisher} to {@link Chi2Finisher}. All remaining
+	 * buttons of the MapResultPanel are enabled. The statistics have been
+	 * collected by the calculation.
+	 */
+	private class PostFitFinisher implements Runnable {
+
+		/**
+		 * The finished calculation.
+		 */
+		private final FusedPostFitCalculation calculation;
+
+		/**
+		 * @param calculation
+		 *            The finished calculation.
+		 */
+		private PostFitFinisher(final FusedPostFitCalculation calculation) {
+			this.calculation = calculation;
+		}
+
+		@Override
+		public void run() {
+			final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
+			logBackgroundStatistics(calculation.getRelBackgroundStatistics());
+			logMapStatistics(calculation.getMapStatistics());
+			logSNRStatistics(calculation.getSigma2Statistics(), calculation.getSNRStatistics());
+			if (dataset.getEdgeIndex() > 2) {
+				logCODStatistics(calculation.getCoeffOfDetStatistics());
+				logChi2Statistics(calculation.getChi2Statistics());
+			}
+			logInterval("post-fit calc.");
+			mainMenu.enableMapResultButton("key_showBG");
+			mainMenu.enableMapResultButton("key_showRelBG");
+			mainMenu.enableMapResultButton("key_showMap");
+			mainMenu.enableMapResultButton("key_showSNR");
+			mainMenu.enableMapResultButton("key_showSigma2");
+			if (dataset.getEdgeIndex() > 2) {
+				mainMenu.enableMapResultButton("key_showCoeffOfDet");
+				mainMenu.enableMapResultButton("key_showChi2");
+			}
+			mapFinished();
 		}
 	}
 
@@ -341,20 +355,8 @@ public class ThreadInterface {
 
 		@Override
 		public void run() {
-			final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
-			final float[] errorMap = dataset.getErrorMap();
-			Statistics statistics;
-			for (int i = 0; i < dataset.getSNR().length; i++) {
-				statistics = new Statistics(dataset.getSigma2()[i].getPixels(), errorMap);
-				LogWriter.writeProcessLog(dataset.getSigma2()[i].getLabel() + " " + statistics.getAllAsString(),
-						LogWriter.MAP);
-				statistics = new Statistics(dataset.getSNR()[i].getPixels(), errorMap);
-				LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "%s with DQE=1 %s",
-						dataset.getSNR()[i].getLabel(), statistics.getAllAsString()), LogWriter.MAP);
-			}
-			final Float timeInSeconds = (float) (MyTimer.interval()) / 1000;
-			LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Time required (SNR): %.2f s", timeInSeconds),
-					LogWriter.MAP);
+			logSNRStatistics();
+			logInterval("SNR");
 			CoeffOfDetCalculationExecutor executor;
 			try {
 				executor = new CoeffOfDetCalculationExecutor();
@@ -390,6 +392,7 @@ public class ThreadInterface {
 	public static final int COD = 5;
 	public static final int CROSS = 6;
 	public static final int CHI2 = 7;
+	public static final int POST_FIT = 8;
 
 	/**
 	 * Instead of using the constructor you can get an instance of
@@ -402,11 +405,32 @@ public class ThreadInterface {
 	}
 
 	/**
-	 * An instance of {@link ThreadChecker} is used to control the number of
-	 * parallel threads. Additionally it's used to check if the calculation has
-	 * finished.
+	 * The {@link TileScheduler} that is used to process the {@link Tile}s of
+	 * all calculations.
+	 */
+	private TileScheduler tileScheduler = new ForkJoinTileScheduler();
+	/**
+	 * The {@link CalculationExecutor} that has reserved the
+	 * {@link ThreadInterface}. It is <code>null</code> if no calculation is
+	 * running.
+	 */
+	private CalculationExecutor owner = null;
+	/**
+	 * The job of the running calculation. It is <code>null</code> if no
+	 * calculation has been started.
+	 */
+	private volatile EsiJob runningJob = null;
+	/**
+	 * Passes the progress of all calculations to the progress bar of the
+	 * {@link MainMenu}.
 	 */
-	private ThreadChecker threadChecker;
+	private final ProgressSink progressSink = new ProgressSink() {
+
+		@Override
+		public void updateProgress(final int progress) {
+			PluginAPI.getInstance().updateProgrssbar(progress);
+		}
+	};
 
 	/**
 	 * A private constructor.
@@ -416,72 +440,287 @@ public class ThreadInterface {
 	}
 
 	/**
-	 * Uses <code>threadChecker.addThread()</code> and handles the exception.
+	 * The running calculation is cancelled. The {@link Tile}s that are
+	 * processed at the moment are completed, but no finisher is started.
 	 */
-	public void addThread() {
-		try {
-			threadChecker.addThread();
-		} catch (final InterruptedException e) {
-			// TODO export String
-			LogWriter.writeLog("Fehler! (wait interrupted)");
-			e.printStackTrace();
+	public void cancel() {
+		final EsiJob job = runningJob;
+		if (job != null) {
+			job.cancel();
 		}
 	}
 
 	/**
-	 * A new instance of {@link ThreadChecker} is created that will handle the
-	 * number of running threads.
+	 * The {@link ThreadInterface} is reserved for the given executor until the
+	 * calculation has been executed.
 	 *
-	 * @param subTasks
-	 *            The number of subtasks.
+	 * @param executor
+	 *            The {@link CalculationExecutor} that will start a calculation.
 	 * @throws Exception
+	 *             If another calculation is running.
 	 */
-	public void configureThreadChecker(final int subTasks) throws Exception {
-		if (threadChecker == null) {
-			threadChecker = new ThreadChecker(subTasks);
-		} else {
-			throw new Exception(PluginMessages.getString("Error.ConfiguteThreadChecker"));
+	public synchronized void reserve(final CalculationExecutor executor) throws Exception {
+		if (owner != null) {
+			throw new Exception(PluginMessages.getString("Error.ConfigureThreadChecker"));
 		}
+		owner = executor;
 	}
 
-	public void deleteThreadChecker() {
-		threadChecker = null;
+	/**
+	 * Releases the reservation of the given executor. Nothing happens if the
+	 * {@link ThreadInterface} is not reserved by this executor.
+	 *
+	 * @param executor
+	 *            The {@link CalculationExecutor} that has reserved the
+	 *            {@link ThreadInterface}.
+	 */
+	public synchronized void release(final CalculationExecutor executor) {
+		if (owner == executor) {
+			owner = null;
+		}
 	}
 
 	/**
-	 * Uses <code>threadChecker.removeThread()</code> and creates the
-	 * {@link MapResultPanel} if
-	 * <code>threadChecker.isFinished() == true</code>.
-	 */
-	public synchronized void removeThread(final int type) {
-		threadChecker.removeThread();
-		if (threadChecker.isFinished()) {
-			threadChecker = null;
-			switch (type) {
-			case MLE:
-				new Thread(new MLEFinisher()).run();
-				break;
-			case BG:
-				new Thread(new BGFinisher()).run();
-				break;
-			case MAP:
-				new Thread(new MapFinisher()).run();
-				break;
-			case SNR:
-				new Thread(new SNRFinisher()).run();
-				break;
-			case COD:
-				new Thread(new CODFinisher()).run();
-				break;
-			case CROSS:
-				new Thread(new CROSSFinisher()).run();
-				break;
-			case CHI2:
-				new Thread(new Chi2Finisher()).run();
-				break;
-			default:
-				break;
+	 * The given {@link TileTask} is processed by a new {@link EsiJob} of the
+	 * selected dataset. This method blocks until all tiles are processed. Then
+	 * <code>finished()</code> of the task is called, the reservation of the
+	 * {@link CalculationExecutor} is released and the finisher of the given
+	 * type is started.
+	 *
+	 * @param task
+	 *            The calculation to execute.
+	 * @param type
+	 *            One of the constants of {@link ThreadInterface}, e.g.
+	 *            {@link ThreadInterface#MLE}.
+	 */
+	public void execute(final TileTask task, final int type) {
+		final EsiJob job = new EsiJob(PluginAPI.getInstance().getDatasetAPI(), tileScheduler, progressSink);
+		runningJob = job;
+		final boolean completed;
+		try {
+			completed = job.execute(task);
+		} finally {
+			synchronized (this) {
+				owner = null;
 			}
 		}
+		if (!completed) {
+			return;
+		}
+		startFinisher(type, task);
+	}
+
+	/**
+	 * Starts the finisher of the given type without executing a calculation,
+	 * e.g. if the results of the {@link PowerLawFitCalculation} have been
+	 * restored from the {@link FitResultCache}. The reservation of the
+	 * {@link CalculationExecutor} is released.
+	 *
+	 * @param type
+	 *            One of the constants of {@link ThreadInterface}, e.g.
+	 *            {@link ThreadInterface#MLE}.
+	 */
+	public void finish(final int type) {
+		synchronized (this) {
+			owner = null;
+		}
+		startFinisher(type, null);
+	}
+
+	/**
+	 * @param images
+	 *            The result images.
+	 * @return The {@link Statistics} of each image. Pixels with an error are
+	 *         ignored.
+	 */
+	private Statistics[] createStatistics(final EFTEMImage[] images) {
+		final float[] errorMap = PluginAPI.getInstance().getDatasetAPI().getErrorMap();
+		final Statistics[] statistics = new Statistics[images.length];
+		for (int i = 0; i < images.length; i++) {
+			statistics[i] = new Statistics(images[i].getPixels(), errorMap);
+		}
+		return statistics;
+	}
+
+	/**
+	 * Writes the statistics of the relative background images of all pre-edge
+	 * images to the process log.
+	 */
+	private void logBackgroundStatistics() {
+		logBackgroundStatistics(createStatistics(PluginAPI.getInstance().getDatasetAPI().getRelBackgroundImages()));
+	}
+
+	/**
+	 * Writes the given statistics of the relative background images to the
+	 * process log.
+	 *
+	 * @param statistics
+	 *            The {@link Statistics} of at least all pre-edge images.
+	 */
+	private void logBackgroundStatistics(final Statistics[] statistics) {
+		final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
+		for (int i = 0; i < dataset.getEdgeIndex(); i++) {
+			LogWriter.writeProcessLog(
+					dataset.getRelBackgroundImages()[i].getLabel() + " " + statistics[i].getAllAsString(),
+					LogWriter.MAP);
+		}
+	}
+
+	/**
+	 * Writes the statistics of the Chi² map to the process log.
+	 */
+	private void logChi2Statistics() {
+		final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
+		logChi2Statistics(new Statistics(dataset.getChi2(), dataset.getErrorMap()));
+	}
+
+	/**
+	 * @param statistics
+	 *            The {@link Statistics} of the Chi² map.
+	 */
+	private void logChi2Statistics(final Statistics statistics) {
+		LogWriter.writeProcessLog("Chi² " + statistics.getAllAsString(), LogWriter.MAP);
+	}
+
+	/**
+	 * Writes the statistics of the coefficient of determination map to the
+	 * process log.
+	 */
+	private void logCODStatistics() {
+		final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
+		logCODStatistics(new Statistics(dataset.getCoeffOFDet(), dataset.getErrorMap()));
+	}
+
+	/**
+	 * @param statistics
+	 *            The {@link Statistics} of the coefficient of determination
+	 *            map.
+	 */
+	private void logCODStatistics(final Statistics statistics) {
+		LogWriter.writeProcessLog("coefficient of determination " + statistics.getAllAsString(), LogWriter.MAP);
+	}
+
+	/**
+	 * Writes the time since the last interval to the process log.
+	 *
+	 * @param step
+	 *            The name of the finished calculation.
+	 */
+	private void logInterval(final String step) {
+		final Float timeInSeconds = (float) (MyTimer.interval()) / 1000;
+		LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Time required (%s): %.2f s", step, timeInSeconds),
+				LogWriter.MAP);
+	}
+
+	/**
+	 * Writes the statistics of all elemental-maps to the process log.
+	 */
+	private void logMapStatistics() {
+		logMapStatistics(createStatistics(PluginAPI.getInstance().getDatasetAPI().getMap()));
+	}
+
+	/**
+	 * @param statistics
+	 *            The {@link Statistics} of all elemental-maps.
+	 */
+	private void logMapStatistics(final Statistics[] statistics) {
+		final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
+		for (int i = 0; i < dataset.getMap().length; i++) {
+			LogWriter.writeProcessLog(dataset.getMap()[i].getLabel() + " " + statistics[i].getAllAsString(),
+					LogWriter.MAP);
+		}
+	}
+
+	/**
+	 * Writes the statistics of all SNR and sigma² images to the process log.
+	 */
+	private void logSNRStatistics() {
+		final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
+		logSNRStatistics(createStatistics(dataset.getSigma2()), createStatistics(dataset.getSNR()));
+	}
+
+	/**
+	 * @param sigma2Statistics
+	 *            The {@link Statistics} of all sigma² images.
+	 * @param snrStatistics
+	 *            The {@link Statistics} of all SNR images.
+	 */
+	private void logSNRStatistics(final Statistics[] sigma2Statistics, final Statistics[] snrStatistics) {
+		final DatasetAPI dataset = PluginAPI.getInstance().getDatasetAPI();
+		for (int i = 0; i < dataset.getSNR().length; i++) {
+			LogWriter.writeProcessLog(dataset.getSigma2()[i].getLabel() + " " + sigma2Statistics[i].getAllAsString(),
+					LogWriter.MAP);
+			LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "%s with DQE=1 %s", dataset.getSNR()[i].getLabel(),
+					snrStatistics[i].getAllAsString()), LogWriter.MAP);
+		}
+	}
+
+	/**
+	 * The last step of the elemental-map calculation. The total time is
+	 * written to the process log and the export dialog of the log is shown.
+	 */
+	private void mapFinished() {
+		final Float timeInSeconds = (float) (MyTimer.stop()) / 1000;
+		LogWriter.writeProcessLog(String.format(Locale.ENGLISH, "Time required (total): %.2f s", timeInSeconds),
+				LogWriter.MAP);
+		mainMenu.enableMapResultButton("key_closeMapResult");
+		// TODO add "show log" button to the MapResultPanel
+		DisplyProcessLogTool
+				.showExportDialog("Map_" + PluginAPI.getInstance().getDatasetAPI().getImagePlusShortTitle());
+	}
+
+	/**
+	 * @return The {@link TileScheduler} that is used for all calculations.
+	 */
+	public TileScheduler getTileScheduler() {
+		return tileScheduler;
+	}
+
+	/**
+	 * @param tileScheduler
+	 *            The {@link TileScheduler} that will be used for all following
+	 *            calculations.
+	 */
+	public void setTileScheduler(final TileScheduler tileScheduler) {
+		this.tileScheduler = tileScheduler;
+	}
+
+	/**
+	 * Starts the finisher that corresponds to the given type.
+	 *
+	 * @param type
+	 *            One of the constants of {@link ThreadInterface}.
+	 * @param task
+	 *            The finished calculation.
+	 */
+	private void startFinisher(final int type, final TileTask task) {
+		switch (type) {
+		case MLE:
+			new Thread(new MLEFinisher()).run();
+			break;
+		case BG:
+			new Thread(new BGFinisher()).run();
+			break;
+		case MAP:
+			new Thread(new MapFinisher()).run();
+			break;
+		case SNR:
+			new Thread(new SNRFinisher()).run();
+			break;
+		case COD:
+			new Thread(new CODFinisher()).run();
+			break;
+		case CROSS:
+			new Thread(new CROSSFinisher()).run();
+			break;
+		case CHI2:
+			new Thread(new Chi2Finisher()).run();
+			break;
+		case POST_FIT:
+			new Thread(new PostFitFinisher((FusedPostFitCalculation) task)).run();
+			break;
+		default:
+			break;
+		}
 	}
 }
@@ -0,0 +1,148 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.m_entrup.EFTEMj_ESI.threading;
+
+/**
+ * A {@link Tile} is a band of complete image rows. All calculations that are
+ * executed by a {@link TileScheduler} process the image tile by tile. Each
+ * tile covers a continuous part of the pixel arrays, that is why the pixels of
+ * a tile can be addressed by <code>getIndex() + i</code> with
+ * <code>0 &le; i &lt; getLength()</code>.
+ */
+public class Tile {
+
+	/**
+	 * The size of the data a single tile should not exceed. This is a
+	 * conservative estimation of the size of the L2 cache.
+	 */
+	public static final int CACHE_SIZE = 256 * 1024;
+
+	/**
+	 * The first row of the tile.
+	 */
+	private final int y;
+	/**
+	 * The number of rows.
+	 */
+	private final int height;
+	/**
+	 * The width of the image the tile is part of.
+	 */
+	private final int width;
+
+	/**
+	 * Creates a new {@link Tile}.
+	 *
+	 * @param y
+	 *            The first row of the tile.
+	 * @param height
+	 *            The number of rows.
+	 * @param width
+	 *            The width of the image the tile is part of.
+	 */
+	public Tile(final int y, final int height, final int width) {
+		this.y = y;
+		this.height = height;
+		this.width = width;
+	}
+
+	/**
+	 * Splits an image into tiles with the same number of rows. Only the last
+	 * tile can be smaller.
+	 *
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @param rowsPerTile
+	 *            The number of rows of each tile.
+	 * @return An array of {@link Tile}s that covers the whole image.
+	 */
+	public static Tile[] createTiles(final int width, final int height, final int rowsPerTile) {
+		final int rows = Math.max(1, rowsPerTile);
+		final Tile[] tiles = new Tile[(height + rows - 1) / rows];
+		for (int i = 0; i < tiles.length; i++) {
+			final int y = i * rows;
+			tiles[i] = new Tile(y, Math.min(rows, height - y), width);
+		}
+		return tiles;
+	}
+
+	/**
+	 * Determines the number of rows a tile can have, if the data of the tile
+	 * should fit into {@link #CACHE_SIZE}.
+	 *
+	 * @param width
+	 *            The width of the image.
+	 * @param bytesPerPixel
+	 *            The number of bytes that are read and written for each pixel,
+	 *            e.g. <code>4</code> for each image of a stack of float
+	 *            images.
+	 * @return The number of rows of a tile (at least 1).
+	 */
+	public static int rowsForCache(final int width, final int bytesPerPixel) {
+		final long bytesPerRow = (long) width * Math.max(1, bytesPerPixel);
+		return (int) Math.max(1, CACHE_SIZE / bytesPerRow);
+	}
+
+	/**
+	 * @return The first row of the tile.
+	 */
+	public int getY() {
+		return y;
+	}
+
+	/**
+	 * @return The number of rows.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The width of the image the tile is part of.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return The index of the first pixel of the tile (
+	 *         <code>y * width</code>).
+	 */
+	public int getIndex() {
+		return y * width;
+	}
+
+	/**
+	 * @return The number of pixels of the tile.
+	 */
+	public int getLength() {
+		return height * width;
+	}
+}
@@ -1,7 +1,7 @@
 /**
  * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
  *
- * Copyright (c) 2015, Michael Entrup b. Epping
+ * Copyright (c) 2016, Michael Entrup b. Epping
  * All rights reserved.
  *
  * Redistribution and use in source and binary forms, with or without
@@ -28,47 +28,42 @@
 package de.m_entrup.EFTEMj_ESI.threading;
 
 /**
- * This class handles the number of threads that are used by calculations done
- * by the elemental map plug-In. All methods and fields are static.
+ * A {@link TileTask} is a calculation that can be split up into independent
+ * {@link Tile}s. The {@link TileScheduler} calls
+ * {@link #processTile(Tile)} for each tile, maybe from different threads. An
+ * implementation must only write to the part of the result arrays that
+ * corresponds to the processed tile. When all tiles have been processed
+ * {@link #finished()} is called once.
  */
-public class FreeThreadsPool {
+public interface TileTask {
 
 	/**
-	 * The maximum number of threads that is used for calculations.
+	 * Processes all pixels of the given {@link Tile}.
+	 *
+	 * @param tile
+	 *            The {@link Tile} to process.
 	 */
-	private static final int MAX_THREADS = Runtime.getRuntime().availableProcessors();
+	public void processTile(Tile tile);
+
 	/**
-	 * This field is used to handle the number of threads. freeThreads is
-	 * initialised with the maximum number of Threads.
+	 * This method is called after all {@link Tile}s have been processed. It is
+	 * used to save the results.
 	 */
-	private static int freeThreads = MAX_THREADS;
+	public void finished();
 
 	/**
-	 * The number of free threads is raised by one.
+	 * @return The width of the processed image.
 	 */
-	public synchronized static void freeThread() {
-		freeThreads++;
-	}
+	public int getWidth();
 
 	/**
-	 * @return The number of free threads
+	 * @return The height of the processed image.
 	 */
-	public synchronized static int getFreeThreads() {
-		return freeThreads;
-	}
+	public int getHeight();
 
 	/**
-	 * It is checked if there are free threads available. If there are free once
-	 * a thread is reserved.
-	 *
-	 * @return <code>true</code> if the reservation was successful,
-	 *         <code>false</code> else
+	 * @return The number of bytes that are read and written for each pixel.
+	 *         This is used to determine the size of the {@link Tile}s.
 	 */
-	public synchronized static boolean reserveThread() {
-		if (freeThreads > 0) {
-			freeThreads--;
-			return true;
-		}
-		return false;
-	}
+	public int getBytesPerPixel();
 }
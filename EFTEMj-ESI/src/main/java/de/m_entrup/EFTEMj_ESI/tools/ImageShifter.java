@@ -28,12 +28,14 @@
 package de.m_entrup.EFTEMj_ESI.tools;
 
 import java.awt.Point;
+import java.awt.geom.Point2D;
 import java.util.Arrays;
 
 import ij.process.FloatProcessor;
 
 /**
  * This class shifts images depending on the result of the cross correlation.
+ * The shift can be detected and applied with sub-pixel accuracy.
  */
 public class ImageShifter {
 
@@ -49,12 +51,12 @@ public class ImageShifter {
 		final int sizeY = fp.getHeight();
 		final int delta = (sizeX - 1) / 2;
 		final Point maxPos = new Point(0, 0);
-		int max = 0;
+		float max = Float.NEGATIVE_INFINITY;
 
 		for (int i = 0; i < sizeY; i++) {
 			for (int j = 0; j < sizeX; j++) {
-				if (fp.get(j, i) > max) {
-					max = fp.get(j, i);
+				if (fp.getf(j, i) > max) {
+					max = fp.getf(j, i);
 					maxPos.x = j - delta;
 					maxPos.y = i - delta;
 				}
@@ -64,6 +66,55 @@ public class ImageShifter {
 		return maxPos;
 	}
 
+	/**
+	 * The position of the maximum is detected with sub-pixel accuracy. A
+	 * parabola is fitted through the maximum and its two neighbours, separately
+	 * in x- and y-direction. The vertex of the parabola is used. If the maximum
+	 * is found at the border of the map, the integer position is used for this
+	 * direction.
+	 *
+	 * @param fp
+	 *            An image that contains the cross correlation coefficients
+	 *            (size: [2*delta+1; 2*delta+1])
+	 * @return The shift in pixels [x, y].
+	 */
+	public static Point2D.Double calcSubPixelShift(final FloatProcessor fp) {
+		final Point maxPos = calcShift(fp);
+		final int delta = (fp.getWidth() - 1) / 2;
+		final int x = maxPos.x + delta;
+		final int y = maxPos.y + delta;
+		final float center = fp.getf(x, y);
+		double offsetX = 0;
+		if (x > 0 && x < fp.getWidth() - 1) {
+			offsetX = parabolaVertex(fp.getf(x - 1, y), center, fp.getf(x + 1, y));
+		}
+		double offsetY = 0;
+		if (y > 0 && y < fp.getHeight() - 1) {
+			offsetY = parabolaVertex(fp.getf(x, y - 1), center, fp.getf(x, y + 1));
+		}
+		return new Point2D.Double(maxPos.x + offsetX, maxPos.y + offsetY);
+	}
+
+	/**
+	 * @param left
+	 *            The value at the position -1.
+	 * @param center
+	 *            The value at the position 0. It is not smaller than the
+	 *            neighbours.
+	 * @param right
+	 *            The value at the position +1.
+	 * @return The position of the vertex of the parabola through the 3 values.
+	 *         It is inside the interval [-0.5, 0.5].
+	 */
+	private static double parabolaVertex(final double left, final double center, final double right) {
+		final double curvature = left - 2 * center + right;
+		if (!(curvature < 0)) {
+			// The values are constant or invalid (NaN).
+			return 0;
+		}
+		return Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / curvature));
+	}
+
 	/**
 	 * This methods creates a new {@link FloatProcessor} with a contend that is
 	 * shifted by the value saved in shiftValue. The passed
@@ -76,47 +127,97 @@ public class ImageShifter {
 	 * @return A new {@link FloatProcessor} with the shifted image
 	 */
 	public static FloatProcessor moveImage(final Point shiftValue, final FloatProcessor fp) {
-		final int width = fp.getWidth();
-		final int height = fp.getHeight();
-
-		final float[] toMove = (float[]) fp.getPixelsCopy();
-		final float[] newPixels = toMove.clone();
+		return moveImage(new Point2D.Double(shiftValue.x, shiftValue.y), fp);
+	}
 
-		if (shiftValue.y < 0) {
-			Arrays.fill(newPixels, 0, toMove.length, 0);
-			for (int i = 0; i < (toMove.length + (shiftValue.y * width)); i++) {
-				newPixels[i] = toMove[i - (shiftValue.y * width)];
-			}
-		}
+	/**
+	 * This methods creates a new {@link FloatProcessor} with a contend that is
+	 * shifted by the value saved in shiftValue. The passed
+	 * {@link FloatProcessor} is not changed. Pixels without a source are set
+	 * to 0.
+	 *
+	 * @param shiftValue
+	 *            Number of pixel the image has to be shifted [x, y]
+	 * @param fp
+	 *            The image that has to be shifted
+	 * @return A new {@link FloatProcessor} with the shifted image
+	 * @see #shiftInto(float[], int, int, Point2D.Double, float, float[])
+	 */
+	public static FloatProcessor moveImage(final Point2D.Double shiftValue, final FloatProcessor fp) {
+		final float[] newPixels = new float[fp.getWidth() * fp.getHeight()];
+		shiftInto((float[]) fp.getPixels(), fp.getWidth(), fp.getHeight(), shiftValue, 0, newPixels);
+		return new FloatProcessor(fp.getWidth(), fp.getHeight(), newPixels, null);
+	}
 
-		if (shiftValue.y > 0) {
-			Arrays.fill(newPixels, 0, toMove.length, 0);
-			for (int i = shiftValue.y * width; i < toMove.length; i++) {
-				newPixels[i] = toMove[i - (shiftValue.y * width)];
-			}
+	/**
+	 * Writes the shifted image to the given array; each value is written
+	 * once. Integer shifts copy whole rows by {@link System#arraycopy}.
+	 * Fractional shifts are applied by bilinear interpolation. All weights are
+	 * the same for each pixel, so the row kernel is a single loop over
+	 * contiguous values. A pixel is set to the fill value if any of its source
+	 * pixels is outside of the image.
+	 *
+	 * @param source
+	 *            The pixels of the image that has to be shifted.
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @param shiftValue
+	 *            Number of pixel the image has to be shifted [x, y]
+	 * @param fillValue
+	 *            The value of pixels without a source, e.g. 0 or
+	 *            {@link Float#NaN}.
+	 * @param target
+	 *            The shifted image is written to this array. It must not be
+	 *            the source array.
+	 */
+	public static void shiftInto(final float[] source, final int width, final int height,
+			final Point2D.Double shiftValue, final float fillValue, final float[] target) {
+		/*
+		 * The new pixel (x, y) is interpolated between the source columns x -
+		 * shiftX - 1 and x - shiftX and the source rows y - shiftY - 1 and y -
+		 * shiftY. If the weight of the first one is 0, it is replaced by the
+		 * second one.
+		 */
+		final int shiftX = (int) Math.floor(shiftValue.x);
+		final int shiftY = (int) Math.floor(shiftValue.y);
+		final float weightX = (float) (shiftValue.x - shiftX);
+		final float weightY = (float) (shiftValue.y - shiftY);
+		final int leftColumn = weightX == 0 ? 0 : 1;
+		final int upperRow = weightY == 0 ? 0 : 1;
+		// The range of pixels whose source pixels are all inside the image.
+		final int xStart = Math.min(width, Math.max(0, shiftX + leftColumn));
+		final int xEnd = Math.max(xStart, Math.min(width, width + shiftX));
+		final int yStart = Math.min(height, Math.max(0, shiftY + upperRow));
+		final int yEnd = Math.max(yStart, Math.min(height, height + shiftY));
+		if (xStart == xEnd || yStart == yEnd) {
+			// The image is shifted out of the target.
+			Arrays.fill(target, 0, width * height, fillValue);
+			return;
 		}
-
-		if (shiftValue.x != 0) {
-			final float[] temp = newPixels.clone();
-			Arrays.fill(newPixels, 0, toMove.length, 0);
-			if (shiftValue.x < 0) {
-				for (int j = 0; j < height; j++) {
-					for (int i = 0; i < width + shiftValue.x; i++) {
-						newPixels[(j * width) + i] = temp[(j * width) + i - shiftValue.x];
-					}
-				}
-			}
-
-			if (shiftValue.x > 0) {
-				for (int j = 0; j < height; j++) {
-					for (int i = shiftValue.x; i < width; i++) {
-						newPixels[(j * width) + i] = temp[(j * width) + i - shiftValue.x];
-					}
+		Arrays.fill(target, 0, yStart * width, fillValue);
+		Arrays.fill(target, yEnd * width, height * width, fillValue);
+		final float weight = (1 - weightX) * (1 - weightY);
+		final float weightLeft = weightX * (1 - weightY);
+		final float weightUpper = (1 - weightX) * weightY;
+		final float weightUpperLeft = weightX * weightY;
+		for (int y = yStart; y < yEnd; y++) {
+			final int offset = y * width;
+			final int sourceOffset = (y - shiftY) * width - shiftX;
+			Arrays.fill(target, offset, offset + xStart, fillValue);
+			Arrays.fill(target, offset + xEnd, offset + width, fillValue);
+			if (weightX == 0 && weightY == 0) {
+				System.arraycopy(source, sourceOffset + xStart, target, offset + xStart, xEnd - xStart);
+			} else {
+				final int upperOffset = sourceOffset - upperRow * width;
+				for (int x = xStart; x < xEnd; x++) {
+					target[offset + x] = weight * source[sourceOffset + x]
+							+ weightLeft * source[sourceOffset + x - leftColumn]
+							+ weightUpper * source[upperOffset + x]
+							+ weightUpperLeft * source[upperOffset + x - leftColumn];
 				}
 			}
 		}
-
-		final FloatProcessor moved = new FloatProcessor(width, height, newPixels, null);
-		return moved;
 	}
 }
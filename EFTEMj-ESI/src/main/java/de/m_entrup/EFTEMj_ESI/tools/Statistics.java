@@ -30,15 +30,14 @@ package de.m_entrup.EFTEMj_ESI.tools;
 import java.util.Locale;
 
 /**
- * A class containing static methods to evaluate the results of the elemental
- * map calculation. All methods do only regard pixels with no error.
+ * A class containing methods to evaluate the results of the elemental map
+ * calculation. All methods do only regard pixels with no error. The values are
+ * collected by a {@link StatisticsAccumulator} in a single pass, the median is
+ * an estimate.
  */
 public class Statistics {
 
-	private double mean = Double.NaN;
-	private double median = Double.NaN;
-	private double stdv = Double.NaN;
-	private int noErrorCount = -1;
+	private StatisticsAccumulator accumulator = null;
 	private final float[] input;
 	private final float[] errors;
 
@@ -47,6 +46,19 @@ public class Statistics {
 		this.errors = errors;
 	}
 
+	/**
+	 * Creates the statistics of values that have already been collected, e.g.
+	 * by the tiles of a calculation.
+	 *
+	 * @param accumulator
+	 *            The {@link StatisticsAccumulator} that contains all values.
+	 */
+	public Statistics(final StatisticsAccumulator accumulator) {
+		this.accumulator = accumulator;
+		this.input = null;
+		this.errors = null;
+	}
+
 	/**
 	 * Creates a string with the pattern "mean / median / stdv".
 	 *
@@ -65,74 +77,49 @@ public class Statistics {
 	 * @return The mean of all pixels without an error.
 	 */
 	public double getMean() {
-		if (!Double.isNaN(mean)) {
-			return mean;
-		}
-		mean = 0;
-		final int count = noErrorCount();
-		for (int i = 0; i < input.length; i++) {
-			if (errors[i] == 0) {
-				mean += input[i] / count;
-			}
-		}
-		return mean;
+		return getAccumulator().getMean();
 	}
 
 	/**
-	 * @return The median of all pixels without an error.
+	 * @return The estimated median of all pixels without an error.
 	 */
 	public double getMedian() {
-		if (!Double.isNaN(median)) {
-			return median;
-		}
-		median = 0;
-		final int count = noErrorCount();
-		final float[] values = new float[count];
-		int j = 0;
-		for (int i = 0; i < input.length; i++) {
-			if (errors[i] == 0) {
-				values[j] = input[i];
-				j++;
-			}
-		}
-		if (count % 2 == 1) {
-			median = values[(int) Math.floor(count / 2)];
-		} else {
-			median = (values[(int) Math.floor(count / 2)] + values[(int) Math.ceil(count / 2)]) / 2;
-		}
-		return median;
+		return getAccumulator().getMedian();
+	}
+
+	/**
+	 * @param quantile
+	 *            A value between 0 and 1.
+	 * @return The estimated quantile of all pixels without an error.
+	 */
+	public double getQuantile(final double quantile) {
+		return getAccumulator().getQuantile(quantile);
 	}
 
 	/**
 	 * @return The standard deviation of all pixels without an error.
 	 */
 	public double getStdv() {
-		if (!Double.isNaN(stdv)) {
-			return stdv;
-		}
-		stdv = 0;
-		final int count = noErrorCount();
-		double sum = 0;
-		for (int i = 0; i < input.length; i++) {
-			if (errors[i] == 0) {
-				sum += Math.pow(input[i] - getMean(), 2) / (count - 1);
-			}
-		}
-		stdv = Math.sqrt(sum);
-		return stdv;
+		return getAccumulator().getStdv();
 	}
 
-	private int noErrorCount() {
-		if (noErrorCount > 1) {
-			return noErrorCount;
+	/**
+	 * The pixels are collected at the first call.
+	 *
+	 * @return The {@link StatisticsAccumulator} that contains all pixels
+	 *         without an error.
+	 */
+	private StatisticsAccumulator getAccumulator() {
+		if (accumulator != null) {
+			return accumulator;
 		}
-		noErrorCount = 0;
-		for (int i = 0; i < errors.length; i++) {
+		accumulator = new StatisticsAccumulator();
+		for (int i = 0; i < input.length; i++) {
 			if (errors[i] == 0) {
-				noErrorCount++;
+				accumulator.add(input[i]);
 			}
 		}
-		return noErrorCount;
+		return accumulator;
 	}
 
 }
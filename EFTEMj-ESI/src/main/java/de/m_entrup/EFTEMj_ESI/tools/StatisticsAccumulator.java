@@ -0,0 +1,307 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.tools;
+
+/**
+ * The {@link StatisticsAccumulator} collects values one by one and calculates
+ * their statistics in a single pass. Count, mean and variance are updated by
+ * Welford's method. Quantiles are estimated by a sketch of logarithmic buckets:
+ * each estimate has a relative error of at most
+ * {@value #RELATIVE_ACCURACY}. The buckets are taken from the exponent and the
+ * leading bits of the mantissa of the float value, no logarithm has to be
+ * calculated.<br>
+ * Two accumulators can be merged. This is used to collect the statistics of
+ * each {@link de.m_entrup.EFTEMj_ESI.threading.Tile} separately and combine
+ * them afterwards.
+ */
+public class StatisticsAccumulator {
+
+	/**
+	 * The buckets of the values with the same sign. The buckets are stored in a
+	 * dense array, that grows if a value outside of the current range is added.
+	 */
+	private static class BucketStore {
+
+		/**
+		 * The number of values of each bucket. The first element belongs to
+		 * the bucket with the index offset.
+		 */
+		private long[] counts = null;
+		/**
+		 * The index of the bucket that is stored at the first element.
+		 */
+		private int offset = 0;
+		/**
+		 * The number of values of all buckets.
+		 */
+		private long total = 0;
+
+		/**
+		 * @param index
+		 *            The index of the bucket.
+		 * @param count
+		 *            The number of values to add to the bucket.
+		 */
+		private void add(final int index, final long count) {
+			if (counts == null) {
+				counts = new long[64];
+				offset = index - 32;
+			} else if (index < offset || index >= offset + counts.length) {
+				final int min = Math.min(index, offset);
+				final int max = Math.max(index, offset + counts.length - 1);
+				// The array grows at least by a factor of 2.
+				final int length = Math.max(max - min + 1, 2 * counts.length);
+				final int newOffset = (index < offset) ? max - length + 1 : min;
+				final long[] newCounts = new long[length];
+				System.arraycopy(counts, 0, newCounts, offset - newOffset, counts.length);
+				counts = newCounts;
+				offset = newOffset;
+			}
+			counts[index - offset] += count;
+			total += count;
+		}
+
+		/**
+		 * Adds the counts of another {@link BucketStore}.
+		 *
+		 * @param other
+		 *            The {@link BucketStore} to merge.
+		 */
+		private void merge(final BucketStore other) {
+			if (other.counts == null) {
+				return;
+			}
+			for (int i = 0; i < other.counts.length; i++) {
+				if (other.counts[i] != 0) {
+					add(other.offset + i, other.counts[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The number of mantissa bits that are used to determine the bucket. Each
+	 * power of 2 is split into 2^6 buckets.
+	 */
+	private static final int MANTISSA_BITS = 6;
+	/**
+	 * The number of bits of the float representation that are dropped.
+	 */
+	private static final int SHIFT = 23 - MANTISSA_BITS;
+	/**
+	 * The largest relative error of the estimated quantiles. The width of a
+	 * bucket is less than 2^-6 of its lower limit and the center of the bucket
+	 * is used as estimate.
+	 */
+	public static final double RELATIVE_ACCURACY = 1.0 / (1 << (MANTISSA_BITS + 1));
+
+	/**
+	 * The number of values.
+	 */
+	private long count = 0;
+	/**
+	 * The mean of all values.
+	 */
+	private double mean = 0;
+	/**
+	 * The sum of squared differences from the mean.
+	 */
+	private double m2 = 0;
+	/**
+	 * The buckets of all negative values. The magnitude of the values is used
+	 * to determine the bucket.
+	 */
+	private final BucketStore negative = new BucketStore();
+	/**
+	 * The buckets of all positive values.
+	 */
+	private final BucketStore positive = new BucketStore();
+	/**
+	 * The number of values that are counted as 0.
+	 */
+	private long zeroCount = 0;
+
+	/**
+	 * Adds a value to the statistics. Values that are <code>NaN</code> or
+	 * infinite are part of the mean, but not of the quantiles.
+	 *
+	 * @param value
+	 *            The value to add.
+	 */
+	public void add(final double value) {
+		count++;
+		final double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return;
+		}
+		final float floatValue = (float) value;
+		if (floatValue > 0) {
+			positive.add(bucketIndex(floatValue), 1);
+		} else if (floatValue < 0) {
+			negative.add(bucketIndex(-floatValue), 1);
+		} else {
+			zeroCount++;
+		}
+	}
+
+	/**
+	 * The bits of a positive float value increase with the value. Dropping the
+	 * lower bits of the mantissa results in buckets of a constant relative
+	 * width.
+	 *
+	 * @param value
+	 *            A positive value.
+	 * @return The index of the bucket that contains the value.
+	 */
+	private static int bucketIndex(final float value) {
+		return Float.floatToRawIntBits(value) >>> SHIFT;
+	}
+
+	/**
+	 * @param index
+	 *            The index of a bucket.
+	 * @return The value that represents all values of the bucket.
+	 */
+	private static double bucketValue(final int index) {
+		final double lower = Float.intBitsToFloat(index << SHIFT);
+		final double upper = Float.intBitsToFloat((index + 1) << SHIFT);
+		return (lower + upper) / 2;
+	}
+
+	/**
+	 * @return The number of values.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return The mean of all values or <code>NaN</code> if no value has been
+	 *         added.
+	 */
+	public double getMean() {
+		if (count == 0) {
+			return Double.NaN;
+		}
+		return mean;
+	}
+
+	/**
+	 * @return The estimated median of all values.
+	 */
+	public double getMedian() {
+		return getQuantile(0.5);
+	}
+
+	/**
+	 * Estimates a quantile from the buckets. The relative error is less than
+	 * {@value #RELATIVE_ACCURACY}.
+	 *
+	 * @param quantile
+	 *            A value between 0 and 1.
+	 * @return The estimated quantile or <code>NaN</code> if there are no
+	 *         finite values.
+	 */
+	public double getQuantile(final double quantile) {
+		final long total = negative.total + zeroCount + positive.total;
+		if (total == 0) {
+			return Double.NaN;
+		}
+		final long rank = (long) (Math.max(0, Math.min(1, quantile)) * (total - 1));
+		long seen = 0;
+		if (negative.counts != null) {
+			// The most negative value has the largest magnitude.
+			for (int i = negative.counts.length - 1; i >= 0; i--) {
+				seen += negative.counts[i];
+				if (seen > rank) {
+					return -bucketValue(negative.offset + i);
+				}
+			}
+		}
+		seen += zeroCount;
+		if (seen > rank) {
+			return 0;
+		}
+		for (int i = 0; i < positive.counts.length; i++) {
+			seen += positive.counts[i];
+			if (seen > rank) {
+				return bucketValue(positive.offset + i);
+			}
+		}
+		return bucketValue(positive.offset + positive.counts.length - 1);
+	}
+
+	/**
+	 * @return The standard deviation of all values.
+	 */
+	public double getStdv() {
+		return Math.sqrt(getVariance());
+	}
+
+	/**
+	 * @return The sample variance of all values or <code>NaN</code> if less
+	 *         than 2 values have been added.
+	 */
+	public double getVariance() {
+		if (count < 2) {
+			return Double.NaN;
+		}
+		return m2 / (count - 1);
+	}
+
+	/**
+	 * Adds all values of another {@link StatisticsAccumulator} to this one.
+	 * The mean and variance are combined by the formula of Chan et al.
+	 *
+	 * @param other
+	 *            The {@link StatisticsAccumulator} to merge. It is not
+	 *            changed.
+	 */
+	public void merge(final StatisticsAccumulator other) {
+		if (other.count == 0) {
+			return;
+		}
+		if (count == 0) {
+			count = other.count;
+			mean = other.mean;
+			m2 = other.m2;
+		} else {
+			final long newCount = count + other.count;
+			final double delta = other.mean - mean;
+			mean += delta * other.count / newCount;
+			m2 += other.m2 + delta * delta * count * other.count / newCount;
+			count = newCount;
+		}
+		negative.merge(other.negative);
+		positive.merge(other.positive);
+		zeroCount += other.zeroCount;
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.driftcorrection;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+
+/**
+ * Compares the {@link FFTCrossCorrelation} with the {@link CrossCorrelation},
+ * which is used as reference.
+ */
+public class FFTCrossCorrelationTest {
+
+	/**
+	 * The largest accepted difference of the coefficients. Both are calculated
+	 * in double precision.
+	 */
+	private static final double MAX_DIFF = 1.0E-6;
+
+	@Test
+	public void matchesDirectCorrelation() {
+		for (final int[] testCase : new int[][] { { 64, 10 }, { 128, 16 } }) {
+			final int delta = testCase[1];
+			final DatasetAPI datasetAPI = SyntheticDrift.createDataset(testCase[0], delta);
+			SyntheticDrift.execute(new CrossCorrelation(datasetAPI));
+			final float[][] reference = new float[SyntheticDrift.SHIFTS.length][];
+			for (int i = 1; i < reference.length; i++) {
+				reference[i] = datasetAPI.getCorrelationCoefficients()[i].clone();
+			}
+			SyntheticDrift.execute(new FFTCrossCorrelation(datasetAPI));
+			for (int i = 1; i < reference.length; i++) {
+				final float[] coefficients = datasetAPI.getCorrelationCoefficients()[i];
+				double maxDiff = 0;
+				for (int j = 0; j < coefficients.length; j++) {
+					maxDiff = Math.max(maxDiff, Math.abs(coefficients[j] - reference[i][j]));
+				}
+				assertTrue("Max. diff. of the coefficients: " + maxDiff, maxDiff <= MAX_DIFF);
+				assertTrue("Drift found", SyntheticDrift.isDriftFound(coefficients, delta, SyntheticDrift.SHIFTS[i]));
+			}
+		}
+	}
+}
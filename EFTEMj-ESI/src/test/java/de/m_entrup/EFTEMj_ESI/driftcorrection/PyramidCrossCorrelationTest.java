@@ -0,0 +1,66 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.driftcorrection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+
+/**
+ * Checks that the {@link PyramidCrossCorrelation} finds the known drift of a
+ * synthetic stack, at the same coefficient as the {@link CrossCorrelation}.
+ */
+public class PyramidCrossCorrelationTest {
+
+	@Test
+	public void findsDrift() {
+		final int roiSize = 128;
+		final int delta = 24;
+		final int binning = PyramidCrossCorrelation.getBinning(roiSize, roiSize, delta);
+		assertTrue("Binning: " + binning, binning > 1);
+		final DatasetAPI datasetAPI = SyntheticDrift.createDataset(roiSize, delta);
+		SyntheticDrift.execute(new CrossCorrelation(datasetAPI));
+		final float[][] reference = new float[SyntheticDrift.SHIFTS.length][];
+		for (int i = 1; i < reference.length; i++) {
+			reference[i] = datasetAPI.getCorrelationCoefficients()[i].clone();
+		}
+		SyntheticDrift.execute(new PyramidCrossCorrelation(datasetAPI, binning));
+		final int width = 2 * delta + 1;
+		for (int i = 1; i < reference.length; i++) {
+			final int[] shift = SyntheticDrift.SHIFTS[i];
+			final float[] coefficients = datasetAPI.getCorrelationCoefficients()[i];
+			assertTrue("Drift found", SyntheticDrift.isDriftFound(coefficients, delta, shift));
+			final int peak = (shift[1] + delta) * width + shift[0] + delta;
+			assertEquals("Coefficient at the drift", reference[i][peak], coefficients[peak], 0);
+		}
+	}
+}
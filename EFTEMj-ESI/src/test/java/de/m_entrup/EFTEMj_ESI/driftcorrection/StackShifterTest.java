@@ -0,0 +1,157 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.driftcorrection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.m_entrup.EFTEMj_ESI.threading.ForkJoinTileScheduler;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.tools.ImageShifter;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/**
+ * Compares the {@link StackShifter} with shifting each slice on its own. The
+ * last shift moves the image out of the frame.
+ */
+public class StackShifterTest {
+
+	/**
+	 * The width and height of the synthetic images.
+	 */
+	private static final int SIZE = 64;
+	/**
+	 * The number of slices of the synthetic stack.
+	 */
+	private static final int SLICES = 8;
+
+	/**
+	 * Integer shifts must copy each pixel from its source. Pixels without a
+	 * source get the fill value.
+	 */
+	@Test
+	public void integerShiftIsIdentical() {
+		final ImageStack stack = createStack();
+		final Point2D.Double[] shifts = createShifts(false);
+		final ImageStack result = shift(stack, shifts, Float.NaN);
+		for (int i = 0; i < SLICES; i++) {
+			final float[] source = (float[]) stack.getPixels(i + 1);
+			final float[] expected = new float[SIZE * SIZE];
+			final int shiftX = shifts[i] == null ? 0 : (int) shifts[i].x;
+			final int shiftY = shifts[i] == null ? 0 : (int) shifts[i].y;
+			for (int y = 0; y < SIZE; y++) {
+				for (int x = 0; x < SIZE; x++) {
+					final int sourceX = x - shiftX;
+					final int sourceY = y - shiftY;
+					final boolean inside = sourceX >= 0 && sourceX < SIZE && sourceY >= 0 && sourceY < SIZE;
+					expected[y * SIZE + x] = inside ? source[sourceY * SIZE + sourceX] : Float.NaN;
+				}
+			}
+			assertArrayEquals("Slice " + (i + 1), expected, (float[]) result.getPixels(i + 1), 0);
+		}
+	}
+
+	/**
+	 * Sub-pixel shifts must give the same pixels as
+	 * {@link ImageShifter#moveImage(Point2D.Double, FloatProcessor)}.
+	 */
+	@Test
+	public void subPixelShiftIsIdentical() {
+		final ImageStack stack = createStack();
+		final Point2D.Double[] shifts = createShifts(true);
+		final ImageStack result = shift(stack, shifts, 0);
+		assertEquals(SLICES, result.getSize());
+		for (int i = 0; i < SLICES; i++) {
+			final FloatProcessor fp = (FloatProcessor) stack.getProcessor(i + 1);
+			final float[] expected = shifts[i] == null ? (float[]) fp.getPixels()
+					: (float[]) ImageShifter.moveImage(shifts[i], fp).getPixels();
+			assertEquals(stack.getSliceLabel(i + 1), result.getSliceLabel(i + 1));
+			assertArrayEquals("Slice " + (i + 1), expected, (float[]) result.getPixels(i + 1), 0);
+		}
+	}
+
+	/**
+	 * Shifts all slices on the {@link ForkJoinTileScheduler}.
+	 *
+	 * @param stack
+	 *            The stack to shift.
+	 * @param shifts
+	 *            The shift of each slice.
+	 * @param fillValue
+	 *            The value of pixels without a source.
+	 * @return The shifted stack.
+	 */
+	private static ImageStack shift(final ImageStack stack, final Point2D.Double[] shifts, final float fillValue) {
+		final StackShifter shifter = new StackShifter(stack, shifts, fillValue);
+		new ForkJoinTileScheduler().execute(shifter, Tile.createTiles(shifter.getWidth(), shifter.getHeight(),
+				Tile.rowsForCache(shifter.getWidth(), shifter.getBytesPerPixel())));
+		shifter.finished();
+		return shifter.getResult();
+	}
+
+	/**
+	 * @param subPixel
+	 *            <code>true</code> to create fractional shifts.
+	 * @return A shift for each slice. The first slice is the reference.
+	 */
+	private static Point2D.Double[] createShifts(final boolean subPixel) {
+		final Random random = new Random(42);
+		final Point2D.Double[] shifts = new Point2D.Double[SLICES];
+		for (int i = 1; i < SLICES - 1; i++) {
+			final double x = random.nextInt(41) - 20;
+			final double y = random.nextInt(41) - 20;
+			shifts[i] = subPixel ? new Point2D.Double(x + random.nextDouble(), y + random.nextDouble())
+					: new Point2D.Double(x, y);
+		}
+		shifts[SLICES - 1] = new Point2D.Double(-SIZE - (subPixel ? 0.5 : 0), 3);
+		return shifts;
+	}
+
+	/**
+	 * @return A stack of noisy images.
+	 */
+	private static ImageStack createStack() {
+		final Random random = new Random(42);
+		final ImageStack stack = new ImageStack(SIZE, SIZE);
+		for (int i = 0; i < SLICES; i++) {
+			final float[] pixels = new float[SIZE * SIZE];
+			for (int j = 0; j < pixels.length; j++) {
+				pixels[j] = 1000 + 30 * random.nextFloat();
+			}
+			stack.addSlice("[" + (100 + 10 * i) + "eV]", pixels);
+		}
+		return stack;
+	}
+}
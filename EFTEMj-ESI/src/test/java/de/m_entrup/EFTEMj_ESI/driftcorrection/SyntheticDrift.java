@@ -0,0 +1,144 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.driftcorrection;
+
+import java.util.Random;
+
+import de.m_entrup.EFTEMj_ESI.dataset.DatasetAPI;
+import de.m_entrup.EFTEMj_ESI.threading.Tile;
+import de.m_entrup.EFTEMj_ESI.threading.TileTask;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+
+/**
+ * Creates a synthetic stack with a known drift for the tests of the drift
+ * correction. The stack contains a smooth random texture.
+ */
+class SyntheticDrift {
+
+	/**
+	 * The drift of each image in x and y. The first image is the reference.
+	 */
+	static final int[][] SHIFTS = { { 0, 0 }, { 3, -2 }, { -7, 5 }, { 9, 8 } };
+
+	/**
+	 * @param roiSize
+	 *            The size of the square ROI.
+	 * @param delta
+	 *            The largest drift that is checked.
+	 * @return A {@link DatasetAPI} of the synthetic stack, that is prepared for
+	 *         the drift detection.
+	 */
+	static DatasetAPI createDataset(final int roiSize, final int delta) {
+		final ImagePlus imp = createStack(roiSize + 2 * delta + 16);
+		final int border = delta + 8;
+		imp.setRoi(new Roi(border, border, roiSize, roiSize));
+		final DatasetAPI datasetAPI = new DatasetAPI(imp);
+		datasetAPI.createDatasetDriftInput(delta, 1);
+		return datasetAPI;
+	}
+
+	/**
+	 * @param coefficients
+	 *            A map of crosscorrelation coefficients.
+	 * @param delta
+	 *            The largest drift that is checked.
+	 * @param shift
+	 *            The drift of the image in x and y.
+	 * @return <code>true</code> if the maximum of the map is found at the
+	 *         drift.
+	 */
+	static boolean isDriftFound(final float[] coefficients, final int delta, final int[] shift) {
+		final int width = 2 * delta + 1;
+		int max = 0;
+		for (int j = 0; j < coefficients.length; j++) {
+			if (coefficients[j] > coefficients[max]) {
+				max = j;
+			}
+		}
+		return max % width - delta == shift[0] && max / width - delta == shift[1];
+	}
+
+	/**
+	 * Processes all {@link Tile}s of a task on the current thread.
+	 *
+	 * @param task
+	 *            The calculation to execute.
+	 */
+	static void execute(final TileTask task) {
+		final Tile[] tiles = Tile.createTiles(task.getWidth(), task.getHeight(),
+				Tile.rowsForCache(task.getWidth(), task.getBytesPerPixel()));
+		for (final Tile tile : tiles) {
+			task.processTile(tile);
+		}
+		task.finished();
+	}
+
+	/**
+	 * @param size
+	 *            The width and height of the images.
+	 * @return A stack of shifted copies of a smooth random texture with
+	 *         additional noise.
+	 */
+	private static ImagePlus createStack(final int size) {
+		final Random random = new Random(42);
+		final int margin = 16;
+		final int textureSize = size + 2 * margin;
+		float[] texture = new float[textureSize * textureSize];
+		for (int i = 0; i < texture.length; i++) {
+			texture[i] = random.nextFloat();
+		}
+		// A few passes of a smoothing filter create features of several
+		// pixels.
+		for (int pass = 0; pass < 3; pass++) {
+			final float[] smooth = new float[texture.length];
+			for (int y = 1; y < textureSize - 1; y++) {
+				for (int x = 1; x < textureSize - 1; x++) {
+					final int index = y * textureSize + x;
+					smooth[index] = (4 * texture[index] + texture[index - 1] + texture[index + 1]
+							+ texture[index - textureSize] + texture[index + textureSize]) / 8;
+				}
+			}
+			texture = smooth;
+		}
+		final ImageStack stack = new ImageStack(size, size);
+		for (int i = 0; i < SHIFTS.length; i++) {
+			final float[] pixels = new float[size * size];
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					final int index = (y + margin + SHIFTS[i][1]) * textureSize + x + margin + SHIFTS[i][0];
+					pixels[y * size + x] = (float) (1000 + 500 * texture[index] + 5 * random.nextGaussian());
+				}
+			}
+			stack.addSlice("[" + (100 + 10 * i) + "eV]", pixels);
+		}
+		return new ImagePlus("Drift test", stack);
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
+import de.m_entrup.EFTEMj_ESI.dataset.EnergyKernel;
+import de.m_entrup.EFTEMj_ESI.dataset.SpectrumBlock;
+import de.m_entrup.EFTEMj_ESI.plugin.PluginConstants;
+
+/**
+ * Tests of the {@link MLERoutine} that use synthetic stacks with a power law
+ * background.
+ */
+public class MLERoutineTest {
+
+	/**
+	 * The width and height of the synthetic images.
+	 */
+	private static final int SIZE = 512;
+	/**
+	 * The number of complete passes over the stack before measuring. This
+	 * gives the JIT compiler time to optimise the hot loop.
+	 */
+	private static final int WARM_UP_PASSES = 5;
+	/**
+	 * The energy losses of the synthetic stack. The first three images are
+	 * pre-edge images.
+	 */
+	private static final float[] E_LOSSES = { 240, 260, 275, 290 };
+	/**
+	 * The number of pixels of each {@link SpectrumBlock}. The same value is
+	 * used by the {@link PowerLawFitCalculation}.
+	 */
+	private static final int BLOCK_LENGTH = 128;
+
+	/**
+	 * Fitting the spectra from {@link SpectrumBlock}s must give the same
+	 * result as reading them pixel by pixel from the images.
+	 */
+	@Test
+	public void blockFitIsBitIdentical() {
+		final int size = 256;
+		for (final int stackSize : new int[] { 10, 20, 40 }) {
+			final float[] eLosses = new float[stackSize];
+			for (int i = 0; i < stackSize; i++) {
+				eLosses[i] = 200 + 5 * i;
+			}
+			final EFTEMImage[] images = SyntheticStack.create(eLosses, size, size);
+			final AbstractFitRoutine routine = new MLERoutine(images, stackSize - 1, PluginConstants.EPSILON);
+			final int pixels = size * size;
+			final float[] r1 = new float[pixels];
+			final float[] a1 = new float[pixels];
+			final short[] e1 = new short[pixels];
+			routine.calculateSpan(0, pixels, r1, a1, e1, 0);
+			final float[] r2 = new float[pixels];
+			final float[] a2 = new float[pixels];
+			final short[] e2 = new short[pixels];
+			final SpectrumBlock block = new SpectrumBlock(images.length, BLOCK_LENGTH);
+			for (int index = 0; index < pixels; index += BLOCK_LENGTH) {
+				block.load(images, index, BLOCK_LENGTH);
+				routine.calculateBlock(block, r2, a2, e2, index);
+			}
+			assertArrayEquals(r1, r2, 0);
+			assertArrayEquals(a1, a2, 0);
+			assertArrayEquals(e1, e2);
+		}
+	}
+
+	/**
+	 * A warm start must give the same <code>r</code> as the fixed start value,
+	 * within the exit condition of the MLE. If <code>r</code> varies smoothly
+	 * over the image, fewer iterations are needed.
+	 */
+	@Test
+	public void warmStartNeedsFewerIterations() {
+		final int size = 256;
+		final float[] eLosses = { 200, 210, 220, 230, 240, 250, 260, 300 };
+		final EFTEMImage[] images = SyntheticStack.createSmooth(eLosses, size);
+		final EnergyKernel energyKernel = new EnergyKernel(images, eLosses.length - 1);
+		final int pixels = size * size;
+		final float[][] r = new float[2][pixels];
+		final double[] iterationSum = new double[2];
+		for (int mode = 0; mode < 2; mode++) {
+			final AbstractFitRoutine routine = new MLERoutine(images, energyKernel, PluginConstants.EPSILON);
+			final float[] iterations = new float[pixels];
+			routine.setIterationBuffer(iterations);
+			routine.setWarmStart(mode == 1);
+			final float[] a = new float[pixels];
+			final short[] errors = new short[pixels];
+			for (int y = 0; y < size; y++) {
+				routine.calculateSpan(y * size, size, r[mode], a, errors, y * size);
+			}
+			for (final float count : iterations) {
+				iterationSum[mode] += count;
+			}
+		}
+		double maxDiff = 0;
+		for (int index = 0; index < pixels; index++) {
+			maxDiff = Math.max(maxDiff, Math.abs(r[0][index] - r[1][index]));
+		}
+		assertTrue("Max. diff. of r: " + maxDiff, maxDiff <= PluginConstants.EPSILON);
+		assertTrue("Mean iterations", iterationSum[1] < iterationSum[0]);
+	}
+
+	/**
+	 * The hot loop must not allocate any objects. The bytes allocated by the
+	 * current thread are measured while a synthetic stack is fitted row by
+	 * row.
+	 */
+	@Test
+	public void hotLoopDoesNotAllocate() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+		final EFTEMImage[] images = SyntheticStack.create(E_LOSSES, SIZE, SIZE);
+		final AbstractFitRoutine routine = new MLERoutine(images, E_LOSSES.length - 1, PluginConstants.EPSILON);
+		final float[] r = new float[SIZE];
+		final float[] a = new float[SIZE];
+		final short[] errors = new short[SIZE];
+		for (int i = 0; i < WARM_UP_PASSES; i++) {
+			fitStack(routine, r, a, errors);
+		}
+		final long threadId = Thread.currentThread().getId();
+		final long before = threadBean.getThreadAllocatedBytes(threadId);
+		fitStack(routine, r, a, errors);
+		final long after = threadBean.getThreadAllocatedBytes(threadId);
+		assertEquals("Bytes allocated by the hot loop", 0, after - before);
+	}
+
+	/**
+	 * Fits all rows of the synthetic stack. The buffers are reused for each
+	 * row.
+	 */
+	private static void fitStack(final AbstractFitRoutine routine, final float[] r, final float[] a,
+			final short[] errors) {
+		for (int y = 0; y < SIZE; y++) {
+			routine.calculateSpan(y * SIZE, SIZE, r, a, errors, 0);
+		}
+	}
+}
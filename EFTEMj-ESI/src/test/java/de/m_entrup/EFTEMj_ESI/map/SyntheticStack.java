@@ -0,0 +1,102 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.map;
+
+import java.util.Random;
+
+import de.m_entrup.EFTEMj_ESI.dataset.EFTEMImage;
+
+/**
+ * Creates synthetic stacks of {@link EFTEMImage}s for the tests of the fit
+ * routines.
+ */
+class SyntheticStack {
+
+	/**
+	 * @param eLosses
+	 *            The energy losses of the images. The last one is used as a
+	 *            post-edge image.
+	 * @param width
+	 *            The width of the images.
+	 * @param height
+	 *            The height of the images.
+	 * @return A sorted array of {@link EFTEMImage}s with a noisy power law
+	 *         background and an edge signal at the last image.
+	 */
+	static EFTEMImage[] create(final float[] eLosses, final int width, final int height) {
+		final Random random = new Random(42);
+		final EFTEMImage[] images = new EFTEMImage[eLosses.length];
+		final float[][] pixels = new float[eLosses.length][width * height];
+		for (int index = 0; index < width * height; index++) {
+			final double r = 3 + random.nextDouble();
+			final double lnA = 20 + r * 1.5 + random.nextDouble();
+			for (int i = 0; i < eLosses.length; i++) {
+				final double bg = Math.exp(lnA - r * Math.log(eLosses[i]));
+				final double edge = (i == eLosses.length - 1) ? 0.2 * bg : 0;
+				pixels[i][index] = (float) Math.max(0, bg + edge + Math.sqrt(bg) * random.nextGaussian());
+			}
+		}
+		for (int i = 0; i < eLosses.length; i++) {
+			images[i] = new EFTEMImage(eLosses[i], eLosses[i] + "eV", pixels[i], width);
+		}
+		return images;
+	}
+
+	/**
+	 * @param eLosses
+	 *            The energy losses of the images. The last one is used as a
+	 *            post-edge image.
+	 * @param size
+	 *            The width and height of the images.
+	 * @return A sorted array of {@link EFTEMImage}s with a noisy power law
+	 *         background, whose <code>r</code> varies smoothly over the image,
+	 *         as it is found in real specimens.
+	 */
+	static EFTEMImage[] createSmooth(final float[] eLosses, final int size) {
+		final Random random = new Random(42);
+		final EFTEMImage[] images = new EFTEMImage[eLosses.length];
+		final float[][] pixels = new float[eLosses.length][size * size];
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				final int index = y * size + x;
+				final double r = 3 + 0.5 * Math.sin(x / 60.0) * Math.cos(y / 45.0);
+				final double lnA = 20 + r * 1.5;
+				for (int i = 0; i < eLosses.length; i++) {
+					final double bg = Math.exp(lnA - r * Math.log(eLosses[i]));
+					final double edge = (i == eLosses.length - 1) ? 0.2 * bg : 0;
+					pixels[i][index] = (float) Math.max(0, bg + edge + Math.sqrt(bg) * random.nextGaussian());
+				}
+			}
+		}
+		for (int i = 0; i < eLosses.length; i++) {
+			images[i] = new EFTEMImage(eLosses[i], eLosses[i] + "eV", pixels[i], size);
+		}
+		return images;
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.simple;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the {@link PowerLawBatchFit} with {@link PowerLawFit_LSE} and
+ * {@link PowerLawFit_WLSE} that fit each pixel on its own. Two and three
+ * pre-edge windows are used, as it is common for elemental maps.
+ */
+public class PowerLawBatchFitTest {
+
+	/**
+	 * The width and height of the synthetic images.
+	 */
+	private static final int SIZE = 128;
+	private static final double EPSILON = 1.0E-6;
+	/**
+	 * The largest accepted difference of <code>r</code>. The batch fit
+	 * accumulates in double instead of float.
+	 */
+	private static final double MAX_DIFF = 1.0E-5;
+	/**
+	 * The number of pixels that may fail with only one of the methods, because
+	 * of rounding at the convergence check or at the calculation of
+	 * <code>a</code>.
+	 */
+	private static final int MAX_ERROR_DIFF = 2;
+
+	@Test
+	public void lseMatchesPerPixelFit() {
+		compare(false);
+	}
+
+	@Test
+	public void wlseMatchesPerPixelFit() {
+		compare(true);
+	}
+
+	/**
+	 * Fits synthetic images with both methods. The results of <code>r</code>
+	 * must agree and nearly all pixels must have the same error state.
+	 *
+	 * @param weighted
+	 *            <code>true</code> to compare the weighted fits.
+	 */
+	private static void compare(final boolean weighted) {
+		for (final double[] eLosses : new double[][] { { 400, 450 }, { 400, 450, 500 } }) {
+			final float[][] slices = createSlices(eLosses);
+			final double[] counts = new double[eLosses.length];
+			final PowerLawFit fit = weighted ? new PowerLawFit_WLSE(eLosses, counts, EPSILON)
+					: new PowerLawFit_LSE(eLosses, counts, EPSILON);
+			final PowerLawBatchFit batchFit = new PowerLawBatchFit(eLosses, EPSILON, weighted, SIZE);
+			double maxDiff = 0;
+			int errors = 0;
+			for (int y = 0; y < SIZE; y++) {
+				batchFit.fit(slices, y * SIZE, SIZE);
+				for (int x = 0; x < SIZE; x++) {
+					final int index = y * SIZE + x;
+					for (int i = 0; i < eLosses.length; i++) {
+						counts[i] = slices[i][index];
+					}
+					fit.reset(counts);
+					fit.doFit();
+					final float rPixel = fit.getErrorCode() == PowerLawFit.ERROR_NONE ? (float) fit.getR() : Float.NaN;
+					final float rBatch = (float) batchFit.getR(x);
+					if (Float.isNaN(rPixel) != Float.isNaN(rBatch)) {
+						errors++;
+					} else if (!Float.isNaN(rPixel)) {
+						maxDiff = Math.max(maxDiff, Math.abs(rPixel - rBatch));
+					}
+				}
+			}
+			assertTrue("Max. diff. of r: " + maxDiff, maxDiff <= MAX_DIFF);
+			assertTrue("Pixels with different errors: " + errors, errors <= MAX_ERROR_DIFF);
+		}
+	}
+
+	/**
+	 * @param eLosses
+	 *            The energy losses of the pre-edge images.
+	 * @return The pixel arrays of images with a noisy power law background.
+	 */
+	private static float[][] createSlices(final double[] eLosses) {
+		final Random random = new Random(42);
+		final float[][] slices = new float[eLosses.length][SIZE * SIZE];
+		for (int index = 0; index < SIZE * SIZE; index++) {
+			final double r = 3 + random.nextDouble();
+			final double lnA = 20 + r * 1.5;
+			for (int i = 0; i < eLosses.length; i++) {
+				final double bg = Math.exp(lnA - r * Math.log(eLosses[i]));
+				slices[i][index] = (float) Math.max(1, bg + Math.sqrt(bg) * random.nextGaussian());
+			}
+		}
+		return slices;
+	}
+}
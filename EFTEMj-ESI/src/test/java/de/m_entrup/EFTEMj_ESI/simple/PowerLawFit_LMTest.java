@@ -0,0 +1,176 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.simple;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link PowerLawFit_LM} with exact and Poisson distributed counts of four
+ * pre-edge windows and checks the error codes of invalid counts.
+ */
+public class PowerLawFit_LMTest {
+
+	private static final double[] E_LOSSES = { 300, 350, 400, 450 };
+	private static final double EPSILON = 1.0E-6;
+	/**
+	 * The number of fitted sets of Poisson distributed counts.
+	 */
+	private static final int COUNT = 1000;
+	/**
+	 * The mean count of the first pre-edge window.
+	 */
+	private static final double MEAN_COUNTS = 10000;
+	/**
+	 * The largest accepted difference of <code>r</code> to
+	 * {@link PowerLawFit_LMA}. Both methods minimise the same weighted sum of
+	 * squares, only the convergence check is different.
+	 */
+	private static final double MAX_DIFF_LMA = 1.0E-4;
+	/**
+	 * The largest accepted difference of <code>r</code> to
+	 * {@link PowerLawFit_MLE}. The MLE is a different estimator, so both results
+	 * scatter around the true value. At the used counts the standard deviation
+	 * of <code>r</code> is about 0.05.
+	 */
+	private static final double MAX_DIFF_MLE = 0.25;
+	/**
+	 * The largest accepted mean difference of <code>r</code> to
+	 * {@link PowerLawFit_MLE}.
+	 */
+	private static final double MEAN_DIFF_MLE = 0.05;
+
+	@Test
+	public void exactCountsAreRecovered() {
+		final double[] counts = new double[E_LOSSES.length];
+		final PowerLawFit fit = new PowerLawFit_LM(E_LOSSES, counts, EPSILON);
+		for (double r = 2; r <= 5; r += 0.25) {
+			final double a = Math.exp(20 + 1.5 * r);
+			for (int i = 0; i < E_LOSSES.length; i++) {
+				counts[i] = a * Math.pow(E_LOSSES[i], -r);
+			}
+			fit.reset(counts);
+			fit.doFit();
+			assertEquals(PowerLawFit.ERROR_NONE, fit.getErrorCode());
+			assertEquals(r, fit.getR(), 1.0E-9);
+			assertEquals(1, fit.getA() / a, 1.0E-9);
+		}
+	}
+
+	@Test
+	public void poissonCountsMatchLmaAndMle() {
+		final Random random = new Random(42);
+		final double[] counts = new double[E_LOSSES.length];
+		final PowerLawFit fit = new PowerLawFit_LM(E_LOSSES, counts, EPSILON);
+		final PowerLawFit lma = new PowerLawFit_LMA(E_LOSSES, counts, EPSILON);
+		final PowerLawFit mle = new PowerLawFit_MLE(E_LOSSES, counts, EPSILON);
+		double maxDiffLma = 0;
+		double maxDiffMle = 0;
+		double sumDiffMle = 0;
+		for (int n = 0; n < COUNT; n++) {
+			final double r = 3 + random.nextDouble();
+			final double lnA = Math.log(MEAN_COUNTS) + r * Math.log(E_LOSSES[0]);
+			for (int i = 0; i < E_LOSSES.length; i++) {
+				counts[i] = poisson(random, Math.exp(lnA - r * Math.log(E_LOSSES[i])));
+			}
+			fit.reset(counts);
+			fit.doFit();
+			lma.reset(counts);
+			lma.doFit();
+			mle.reset(counts);
+			mle.doFit();
+			assertEquals(PowerLawFit.ERROR_NONE, fit.getErrorCode());
+			assertEquals(PowerLawFit.ERROR_NONE, lma.getErrorCode());
+			assertEquals(PowerLawFit.ERROR_NONE, mle.getErrorCode());
+			maxDiffLma = Math.max(maxDiffLma, Math.abs(fit.getR() - lma.getR()));
+			final double diffMle = Math.abs(fit.getR() - mle.getR());
+			maxDiffMle = Math.max(maxDiffMle, diffMle);
+			sumDiffMle += diffMle;
+		}
+		assertTrue("Max. diff. of r (LMA): " + maxDiffLma, maxDiffLma <= MAX_DIFF_LMA);
+		assertTrue("Max. diff. of r (MLE): " + maxDiffMle, maxDiffMle <= MAX_DIFF_MLE);
+		assertTrue("Mean diff. of r (MLE): " + sumDiffMle / COUNT, sumDiffMle / COUNT <= MEAN_DIFF_MLE);
+	}
+
+	@Test
+	public void invalidCountsReportErrors() {
+		assertError(PowerLawFit.ERROR_CONVERGE, Double.NaN, 100, 80, 60);
+		assertError(PowerLawFit.ERROR_CONVERGE, 100, Double.POSITIVE_INFINITY, 80, 60);
+		assertError(PowerLawFit.ERROR_R_NAN, 0, 0, 0, 0);
+		assertError(PowerLawFit.ERROR_R_NAN, 100, 0, 0, 0);
+		assertError(PowerLawFit.ERROR_R_NAN, 0, 0, 0, 100);
+	}
+
+	/**
+	 * Fits the given counts and checks that the error code is set and the
+	 * results are NaN.
+	 *
+	 * @param errorCode
+	 *            The expected error code.
+	 * @param counts
+	 *            The counts of the four pre-edge windows.
+	 */
+	private static void assertError(final int errorCode, final double... counts) {
+		final PowerLawFit fit = new PowerLawFit_LM(E_LOSSES, counts, EPSILON);
+		fit.doFit();
+		assertEquals(errorCode, fit.getErrorCode());
+		assertTrue(Double.isNaN(fit.getR()));
+		assertTrue(Double.isNaN(fit.getA()));
+	}
+
+	/**
+	 * A mean larger than 500 is split into several parts, because
+	 * <code>exp(-mean)</code> must not underflow. The sum of Poisson
+	 * distributed values is Poisson distributed as well.
+	 *
+	 * @param random
+	 *            The source of random numbers.
+	 * @param mean
+	 *            The mean of the Poisson distribution.
+	 * @return A Poisson distributed count.
+	 */
+	private static int poisson(final Random random, final double mean) {
+		int count = 0;
+		double remaining = mean;
+		while (remaining > 0) {
+			final double limit = Math.exp(-Math.min(remaining, 500));
+			remaining -= 500;
+			double product = random.nextDouble();
+			while (product > limit) {
+				count++;
+				product *= random.nextDouble();
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,184 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2016, Michael Entrup b. Epping
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.m_entrup.EFTEMj_ESI.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the single pass statistics of {@link StatisticsAccumulator} and
+ * {@link Statistics} with a two-pass calculation and with the exact quantiles
+ * of the sorted values. The values are negative, zero and positive and span
+ * several orders of magnitude.
+ */
+public class StatisticsAccumulatorTest {
+
+	private static final int COUNT = 100000;
+	/**
+	 * The largest accepted relative difference of the mean and the variance.
+	 */
+	private static final double MAX_REL_DIFF = 1.0E-12;
+	private static final double[] QUANTILES = { 0, 0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1 };
+
+	@Test
+	public void welfordMatchesTwoPass() {
+		final float[] values = createValues(COUNT);
+		final StatisticsAccumulator accumulator = accumulate(values, 0, values.length);
+		double mean = 0;
+		for (final float value : values) {
+			mean += value;
+		}
+		mean /= values.length;
+		double variance = 0;
+		for (final float value : values) {
+			variance += (value - mean) * (value - mean);
+		}
+		variance /= values.length - 1;
+		assertEquals(COUNT, accumulator.getCount());
+		assertEquals(mean, accumulator.getMean(), MAX_REL_DIFF * Math.abs(mean));
+		assertEquals(variance, accumulator.getVariance(), MAX_REL_DIFF * variance);
+	}
+
+	@Test
+	public void mergeMatchesSinglePass() {
+		final float[] values = createValues(COUNT);
+		final StatisticsAccumulator single = accumulate(values, 0, values.length);
+		final StatisticsAccumulator merged = new StatisticsAccumulator();
+		merged.merge(new StatisticsAccumulator());
+		// Parts of different size, including an empty one.
+		final int[] limits = { 0, 1, 1, 17, 5000, 5001, 42000, COUNT };
+		for (int i = 1; i < limits.length; i++) {
+			merged.merge(accumulate(values, limits[i - 1], limits[i]));
+		}
+		assertEquals(single.getCount(), merged.getCount());
+		assertEquals(single.getMean(), merged.getMean(), MAX_REL_DIFF * Math.abs(single.getMean()));
+		assertEquals(single.getVariance(), merged.getVariance(), MAX_REL_DIFF * single.getVariance());
+		for (final double quantile : QUANTILES) {
+			assertEquals(single.getQuantile(quantile), merged.getQuantile(quantile), 0);
+		}
+	}
+
+	@Test
+	public void quantileErrorIsBounded() {
+		final float[] values = createValues(COUNT);
+		final StatisticsAccumulator accumulator = accumulate(values, 0, values.length);
+		final float[] sorted = values.clone();
+		Arrays.sort(sorted);
+		for (final double quantile : QUANTILES) {
+			final double exact = sorted[(int) (quantile * (sorted.length - 1))];
+			final double estimate = accumulator.getQuantile(quantile);
+			assertTrue("Quantile " + quantile + ": " + estimate + " instead of " + exact,
+					Math.abs(estimate - exact) <= StatisticsAccumulator.RELATIVE_ACCURACY * Math.abs(exact));
+		}
+	}
+
+	@Test
+	public void nanIsPartOfMeanButNotOfQuantiles() {
+		final float[] values = createValues(COUNT);
+		final StatisticsAccumulator finite = accumulate(values, 0, values.length);
+		final StatisticsAccumulator withNaN = accumulate(values, 0, values.length / 2);
+		withNaN.add(Double.NaN);
+		withNaN.merge(accumulate(values, values.length / 2, values.length));
+		withNaN.add(Double.POSITIVE_INFINITY);
+		assertEquals(COUNT + 2, withNaN.getCount());
+		assertTrue(Double.isNaN(withNaN.getMean()));
+		assertTrue(Double.isNaN(withNaN.getVariance()));
+		for (final double quantile : QUANTILES) {
+			assertEquals(finite.getQuantile(quantile), withNaN.getQuantile(quantile), 0);
+		}
+		final StatisticsAccumulator onlyNaN = new StatisticsAccumulator();
+		onlyNaN.add(Double.NaN);
+		assertTrue(Double.isNaN(onlyNaN.getMedian()));
+	}
+
+	@Test
+	public void statisticsIgnoresPixelsWithError() {
+		final float[] values = createValues(COUNT);
+		final float[] errors = new float[COUNT];
+		final StatisticsAccumulator expected = new StatisticsAccumulator();
+		for (int i = 0; i < COUNT; i++) {
+			if (i % 3 == 0) {
+				errors[i] = 1;
+				values[i] = Float.NaN;
+			} else {
+				expected.add(values[i]);
+			}
+		}
+		final Statistics statistics = new Statistics(values, errors);
+		assertEquals(expected.getMean(), statistics.getMean(), 0);
+		assertEquals(expected.getStdv(), statistics.getStdv(), 0);
+		assertEquals(expected.getMedian(), statistics.getMedian(), 0);
+		assertEquals(expected.getMean(), new Statistics(expected).getMean(), 0);
+	}
+
+	/**
+	 * @param values
+	 *            The values to add.
+	 * @param from
+	 *            The index of the first value.
+	 * @param to
+	 *            The index after the last value.
+	 * @return A {@link StatisticsAccumulator} that contains the given values.
+	 */
+	private static StatisticsAccumulator accumulate(final float[] values, final int from, final int to) {
+		final StatisticsAccumulator accumulator = new StatisticsAccumulator();
+		for (int i = from; i < to; i++) {
+			accumulator.add(values[i]);
+		}
+		return accumulator;
+	}
+
+	/**
+	 * A tenth of the values is 0, a quarter is negative. The magnitude of the
+	 * other values is distributed logarithmically between 1E-3 and 1E6.
+	 *
+	 * @param count
+	 *            The number of values.
+	 * @return Random values with a fixed seed.
+	 */
+	private static float[] createValues(final int count) {
+		final Random random = new Random(42);
+		final float[] values = new float[count];
+		for (int i = 0; i < count; i++) {
+			final double p = random.nextDouble();
+			if (p < 0.1) {
+				values[i] = 0;
+			} else {
+				final double magnitude = Math.pow(10, -3 + 9 * random.nextDouble());
+				values[i] = (float) (p < 0.35 ? -magnitude : magnitude);
+			}
+		}
+		return values;
+	}
+}